@@ -0,0 +1,413 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for the exp 8 RBAC and exp 9 ABAC access checks
+ *
+ * Each invoke() makes CALLS_PER_INVOCATION decisions over a fixed, seeded
+ * mix of granted and denied requests, so the score is the cost of a single
+ * checkAccess call.
+ */
+public class AccessControlBenchmarks {
+
+    static final int CALLS_PER_INVOCATION = 1000000;
+
+    // Power of two so the request index can wrap with a mask
+    private static final int REQUESTS = 1024;
+
+    static void register(List<BenchmarkCase> list) {
+        list.add(new RbacCheck());
+        list.add(new RbacCheckIds());
+        list.add(new RbacCheckWhileUpdating());
+        list.add(new RbacCheckAudited());
+        list.add(new AbacCheck());
+        list.add(new AbacPolicyEvaluate());
+        list.add(new AbacResolve());
+    }
+
+    static class RbacCheck extends BenchmarkCase {
+
+        private final String[] roles = new String[REQUESTS];
+        private final String[] permissions = new String[REQUESTS];
+
+        RbacCheck() {
+            this("exp8.rbacCheckAccess");
+        }
+
+        RbacCheck(String name) {
+            super(name, null, null, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public long getOperationsPerInvocation() {
+            return CALLS_PER_INVOCATION;
+        }
+
+        @Override
+        public void setup(String param) {
+            String[] roleNames = {"ADMIN", "USER", "GUEST", "AUDITOR"};
+            String[] permissionNames = {"READ", "WRITE", "DELETE"};
+            Random random = new Random(42L);
+            for (int i = 0; i < REQUESTS; i++) {
+                roles[i] = roleNames[random.nextInt(roleNames.length)];
+                permissions[i] = permissionNames[random.nextInt(permissionNames.length)];
+            }
+        }
+
+        @Override
+        public long invoke() {
+            long granted = 0;
+            for (int i = 0; i < CALLS_PER_INVOCATION; i++) {
+                int r = i & (REQUESTS - 1);
+                if (RBAC.checkAccess(roles[r], permissions[r])) {
+                    granted++;
+                }
+            }
+            return granted;
+        }
+    }
+
+    /**
+     * Checks by id against a generated policy with as many permissions as
+     * roles: each role grants 8 permissions of its own and inherits from up
+     * to two earlier roles, so later roles hold hundreds of permissions.
+     * The score should not depend on the size.
+     */
+    static class RbacCheckIds extends BenchmarkCase {
+
+        private final int[] roles = new int[REQUESTS];
+        private final int[] permissions = new int[REQUESTS];
+        private CompiledPolicy policy;
+
+        RbacCheckIds() {
+            super("exp8.rbacCheckAccess.ids", "roles", new String[] {"4", "1000", "4000"}, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public long getOperationsPerInvocation() {
+            return CALLS_PER_INVOCATION;
+        }
+
+        @Override
+        public void setup(String param) {
+            int count = Integer.parseInt(param);
+            Random random = new Random(42L);
+            RolePolicy definition = new RolePolicy();
+            for (int role = 0; role < count; role++) {
+                definition.addRole("role" + role);
+                for (int g = 0; g < 8; g++) {
+                    definition.grant("role" + role, "perm" + random.nextInt(count));
+                }
+                for (int j = 0; j < 2 && role > 0; j++) {
+                    definition.addRole("role" + role, "role" + random.nextInt(role));
+                }
+            }
+            policy = definition.compile();
+            for (int i = 0; i < REQUESTS; i++) {
+                roles[i] = policy.roleId("role" + random.nextInt(count));
+                permissions[i] = policy.permissionId("perm" + random.nextInt(count));
+            }
+        }
+
+        @Override
+        public long invoke() {
+            long granted = 0;
+            for (int i = 0; i < CALLS_PER_INVOCATION; i++) {
+                int r = i & (REQUESTS - 1);
+                if (policy.check(roles[r], permissions[r])) {
+                    granted++;
+                }
+            }
+            return granted;
+        }
+    }
+
+    /**
+     * exp8.rbacCheckAccess while another thread publishes a new policy
+     * version every millisecond; readers take no lock, so the score should
+     * stay close to the plain check.
+     */
+    static class RbacCheckWhileUpdating extends RbacCheck {
+
+        private Thread writer;
+        private volatile boolean stopped;
+
+        RbacCheckWhileUpdating() {
+            super("exp8.rbacCheckAccess.updating");
+        }
+
+        @Override
+        public void setup(String param) {
+            super.setup(param);
+            stopped = false;
+            writer = new Thread(() -> {
+                PolicyStore policies = RBAC.getPolicies();
+                while (!stopped) {
+                    policies.grant("GUEST", "WRITE");
+                    policies.revoke("GUEST", "WRITE");
+                    try {
+                        Thread.sleep(1);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            });
+            writer.setDaemon(true);
+            writer.start();
+        }
+
+        @Override
+        public void tearDown() throws InterruptedException {
+            stopped = true;
+            writer.join();
+        }
+    }
+
+    /**
+     * exp8.rbacCheckAccess with every decision going to an AuditLog in a
+     * temporary file; the difference to the plain check is what auditing
+     * costs the caller, including the writer thread's share of the CPU.
+     */
+    static class RbacCheckAudited extends RbacCheck {
+
+        private Path file;
+        private AuditLog auditLog;
+
+        RbacCheckAudited() {
+            super("exp8.rbacCheckAccess.audited");
+        }
+
+        @Override
+        public void setup(String param) {
+            super.setup(param);
+            try {
+                file = Files.createTempFile("audit", ".log");
+                Files.delete(file);
+                auditLog = new AuditLog(file);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            RBAC.setAuditLog(auditLog);
+        }
+
+        @Override
+        public void tearDown() throws IOException {
+            RBAC.setAuditLog(null);
+            auditLog.close();
+            Files.delete(file);
+        }
+    }
+
+    static class AbacCheck extends BenchmarkCase {
+
+        private final String[] departments = new String[REQUESTS];
+        private final String[] clearances = new String[REQUESTS];
+
+        AbacCheck() {
+            super("exp9.abacCheckAccess", null, null, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public long getOperationsPerInvocation() {
+            return CALLS_PER_INVOCATION;
+        }
+
+        @Override
+        public void setup(String param) {
+            String[] departmentNames = {"IT", "HR", "FINANCE"};
+            String[] clearanceNames = {"HIGH", "LOW"};
+            Random random = new Random(42L);
+            for (int i = 0; i < REQUESTS; i++) {
+                departments[i] = departmentNames[random.nextInt(departmentNames.length)];
+                clearances[i] = clearanceNames[random.nextInt(clearanceNames.length)];
+            }
+        }
+
+        @Override
+        public long invoke() {
+            long granted = 0;
+            for (int i = 0; i < CALLS_PER_INVOCATION; i++) {
+                int r = i & (REQUESTS - 1);
+                if (ABAC.checkAccess(departments[r], clearances[r])) {
+                    granted++;
+                }
+            }
+            return granted;
+        }
+    }
+
+    /**
+     * Evaluates requests with up to six attributes against a generated
+     * AbacPolicy: rules on department, resource type, action and region,
+     * most with a numeric clearance bound, one in ten a deny and one in
+     * twenty not tied to a department. The score should not depend on the
+     * number of rules.
+     */
+    static class AbacPolicyEvaluate extends BenchmarkCase {
+
+        private static final String[] ACTIONS = {"read", "write", "update", "delete", "share", "export"};
+
+        private final List<Map<String, String>> requests = new ArrayList<>();
+        private AbacPolicy policy;
+
+        AbacPolicyEvaluate() {
+            super("exp9.abacPolicy", "rules", new String[] {"10", "1000", "5000"}, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public long getOperationsPerInvocation() {
+            return CALLS_PER_INVOCATION;
+        }
+
+        @Override
+        public void setup(String param) {
+            int count = Integer.parseInt(param);
+            Random random = new Random(42L);
+            policy = AbacPolicy.parse(policyText(count, random));
+            requests.clear();
+            int departments = departments(count);
+            for (int i = 0; i < REQUESTS; i++) {
+                Map<String, String> request = new HashMap<>();
+                request.put("department", "dept" + random.nextInt(departments));
+                request.put("resourceType", "type" + random.nextInt(departments * 2));
+                request.put("action", ACTIONS[random.nextInt(ACTIONS.length)]);
+                request.put("clearance", String.valueOf(random.nextInt(5)));
+                if (random.nextInt(4) > 0) {
+                    request.put("region", "region" + random.nextInt(8));
+                }
+                if (random.nextBoolean()) {
+                    request.put("employment", random.nextBoolean() ? "staff" : "contractor");
+                }
+                requests.add(request);
+            }
+        }
+
+        static String policyText(int count, Random random) {
+            int departments = departments(count);
+            StringBuilder text = new StringBuilder("algorithm deny-overrides\n");
+            for (int i = 0; i < count; i++) {
+                text.append(random.nextInt(10) == 0 ? "deny" : "permit").append(" rule").append(i).append(" if ");
+                if (random.nextInt(20) > 0) {
+                    text.append("department == dept").append(random.nextInt(departments)).append(" and ");
+                }
+                text.append("resourceType in {type").append(random.nextInt(departments * 2))
+                        .append(", type").append(random.nextInt(departments * 2)).append("}");
+                text.append(" and action in {").append(ACTIONS[random.nextInt(ACTIONS.length)])
+                        .append(", ").append(ACTIONS[random.nextInt(ACTIONS.length)]).append("}");
+                if (random.nextInt(4) > 0) {
+                    text.append(" and clearance >= ").append(random.nextInt(5));
+                }
+                if (random.nextInt(5) == 0) {
+                    text.append(" and region != region").append(random.nextInt(8));
+                }
+                if (random.nextInt(10) == 0) {
+                    text.append(" and employment == staff");
+                }
+                text.append('\n');
+            }
+            return text.toString();
+        }
+
+        // About ten rules per department, as in a policy written per team
+        private static int departments(int count) {
+            return Math.max(1, count / 10);
+        }
+
+        @Override
+        public long invoke() {
+            long granted = 0;
+            for (int i = 0; i < CALLS_PER_INVOCATION; i++) {
+                Map<String, String> request = requests.get(i & (REQUESTS - 1));
+                if (policy.evaluate(request::get) == AbacPolicy.Decision.PERMIT) {
+                    granted++;
+                }
+            }
+            return granted;
+        }
+    }
+
+    /**
+     * exp9.abacPolicy for requests that only name a subject, a resource and
+     * an action: department, clearance, resource type, region and the time
+     * are looked up in a FileAttributeStore of 1000 subjects and 1000
+     * resources and from the clock, with the attribute cache off (0) or on.
+     */
+    static class AbacResolve extends BenchmarkCase {
+
+        private static final String POLICY = "algorithm deny-overrides\n"
+                + "permit staff-reads if action == read and clearance >= 2\n"
+                + "permit owners if action in {write, update} and department == dept1 and resourceType == type1\n"
+                + "deny embargo if region == region0\n"
+                + "deny after-hours-writes if action != read and accessTime == NON_WORKING_HOURS\n";
+
+        private final List<Map<String, String>> requests = new ArrayList<>();
+        private AbacPolicy policy;
+        private AttributeResolver resolver;
+        private Path file;
+
+        AbacResolve() {
+            super("exp9.abacResolve", "attributeCache", new String[] {"0", "65536"}, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public long getOperationsPerInvocation() {
+            return CALLS_PER_INVOCATION;
+        }
+
+        @Override
+        public void setup(String param) throws IOException {
+            Random random = new Random(42L);
+            List<String> lines = new ArrayList<>();
+            for (int i = 0; i < 1000; i++) {
+                lines.add("subject user" + i + " department=dept" + random.nextInt(20)
+                        + " clearance=" + random.nextInt(4));
+                lines.add("resource res" + i + " resourceType=type" + random.nextInt(20)
+                        + " region=region" + random.nextInt(8));
+            }
+            file = Files.createTempFile("attributes", ".conf");
+            Files.write(file, lines);
+            policy = AbacPolicy.parse(POLICY);
+            resolver = new AttributeResolver(Integer.parseInt(param));
+            resolver.addProvider(new EnvironmentAttributes(Clock.systemDefaultZone(),
+                    new BusinessCalendar(ZoneId.systemDefault(), LocalTime.of(9, 0), LocalTime.of(17, 0))));
+            resolver.addProvider(new FileAttributeStore(file, 30000));
+            String[] actions = {"read", "write", "update"};
+            requests.clear();
+            for (int i = 0; i < REQUESTS; i++) {
+                Map<String, String> request = new HashMap<>();
+                request.put("subject", "user" + random.nextInt(1000));
+                request.put("resource", "res" + random.nextInt(1000));
+                request.put("action", actions[random.nextInt(actions.length)]);
+                requests.add(request);
+            }
+        }
+
+        @Override
+        public void tearDown() throws IOException {
+            Files.delete(file);
+        }
+
+        @Override
+        public long invoke() {
+            long granted = 0;
+            for (int i = 0; i < CALLS_PER_INVOCATION; i++) {
+                Map<String, String> request = requests.get(i & (REQUESTS - 1));
+                if (policy.evaluate(resolver.newRequest(request::get)) == AbacPolicy.Decision.PERMIT) {
+                    granted++;
+                }
+            }
+            return granted;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One benchmark registered with BenchmarkRunner
+ *
+ * Mirrors the JMH lifecycle: setup(param) runs once per parameter value
+ * (@Setup(Level.Trial)), setupInvocation() runs untimed before every call
+ * (@Setup(Level.Invocation)), and invoke() is the timed operation. invoke()
+ * returns a value so the JIT cannot drop the work as dead code.
+ */
+public abstract class BenchmarkCase {
+
+    private final String name;
+    private final String paramName;
+    private final String[] paramValues;
+    private final TimeUnit timeUnit;
+
+    /**
+     * @param name        benchmark name used in reports and filters
+     * @param paramName   name of the single parameter, or null
+     * @param paramValues default values of that parameter
+     * @param timeUnit    unit the average time per operation is reported in
+     */
+    protected BenchmarkCase(String name, String paramName, String[] paramValues, TimeUnit timeUnit) {
+        this.name = name;
+        this.paramName = paramName;
+        this.paramValues = paramName == null ? new String[] {""} : paramValues;
+        this.timeUnit = timeUnit;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getParamName() {
+        return paramName;
+    }
+
+    public String[] getParamValues() {
+        return paramValues;
+    }
+
+    public TimeUnit getTimeUnit() {
+        return timeUnit;
+    }
+
+    /**
+     * Operations performed by one invoke() call (e.g. 1,000,000 access
+     * checks in one loop); scores are reported per operation.
+     */
+    public long getOperationsPerInvocation() {
+        return 1;
+    }
+
+    public void setup(String param) throws Exception {
+    }
+
+    public void setupInvocation() throws Exception {
+    }
+
+    public abstract long invoke() throws Exception;
+
+    public void tearDown() throws Exception {
+    }
+}
@@ -0,0 +1,312 @@
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Benchmark harness for the scheduling, allocation and access-control hot paths
+ *
+ * The experiments are compiled with plain javac, so there is no Maven/Gradle
+ * build to host a JMH module. This runner follows the JMH model instead
+ * (warmup and measurement iterations, average time per operation, 99.9%
+ * confidence interval) and writes results in JMH's JSON result format, so
+ * the usual JMH result viewers and regression scripts can read them.
+ *
+ * Usage: java BenchmarkRunner [regex] [-wi n] [-i n] [-r seconds]
+ *                             [-p name=v1,v2] [-rff results.json]
+ *                             [-baseline old.json] [-threshold percent]
+ *
+ * With -baseline, every benchmark that got slower than the baseline by more
+ * than the threshold (default 10%) is reported and the exit code is 1.
+ */
+public class BenchmarkRunner {
+
+    // Two-sided 99.9% Student t quantiles, as used by JMH for scoreError
+    private static final double[] T_999 = {
+        636.62, 31.60, 12.92, 8.61, 6.87, 5.96, 5.41, 5.04, 4.78, 4.59,
+        4.44, 4.32, 4.22, 4.14, 4.07, 4.01, 3.97, 3.92, 3.88, 3.85
+    };
+
+    private int warmupIterations = 3;
+    private int measurementIterations = 5;
+    private double iterationSeconds = 1.0;
+    private Pattern filter = Pattern.compile(".*");
+    private final Map<String, String[]> paramOverrides = new HashMap<String, String[]>();
+    private String resultFile = "benchmark-results.json";
+    private String baselineFile;
+    private double thresholdPercent = 10.0;
+
+    // Result sink so the JIT cannot eliminate benchmark work
+    static volatile long sink;
+
+    /**
+     * Result of one benchmark at one parameter value.
+     */
+    static class Result {
+        String benchmark;
+        String paramName;
+        String paramValue;
+        String unit;
+        double score;
+        double scoreError;
+        double[] rawData;
+    }
+
+    static List<BenchmarkCase> allBenchmarks() {
+        List<BenchmarkCase> list = new ArrayList<BenchmarkCase>();
+        SchedulingBenchmarks.register(list);
+        AccessControlBenchmarks.register(list);
+        LogMonitoringBenchmarks.register(list);
+        return list;
+    }
+
+    public static void main(String[] args) {
+        BenchmarkRunner runner = new BenchmarkRunner();
+        try {
+            runner.parseArgs(args);
+            List<Result> results = runner.runAll(allBenchmarks());
+            runner.writeJson(results);
+            System.out.println("\nResults written to " + runner.resultFile);
+            if (runner.baselineFile != null && runner.compareWithBaseline(results) > 0) {
+                System.exit(1);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(2);
+        }
+    }
+
+    private void parseArgs(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("-wi")) {
+                warmupIterations = Integer.parseInt(args[++i]);
+            } else if (arg.equals("-i")) {
+                measurementIterations = Integer.parseInt(args[++i]);
+            } else if (arg.equals("-r")) {
+                iterationSeconds = Double.parseDouble(args[++i]);
+            } else if (arg.equals("-p")) {
+                String[] kv = args[++i].split("=", 2);
+                paramOverrides.put(kv[0], kv[1].split(","));
+            } else if (arg.equals("-rff")) {
+                resultFile = args[++i];
+            } else if (arg.equals("-baseline")) {
+                baselineFile = args[++i];
+            } else if (arg.equals("-threshold")) {
+                thresholdPercent = Double.parseDouble(args[++i]);
+            } else {
+                filter = Pattern.compile(".*" + arg + ".*");
+            }
+        }
+    }
+
+    private List<Result> runAll(List<BenchmarkCase> benchmarks) throws Exception {
+        List<Result> results = new ArrayList<Result>();
+        for (BenchmarkCase bench : benchmarks) {
+            if (!filter.matcher(bench.getName()).matches()) {
+                continue;
+            }
+            String[] values = bench.getParamValues();
+            if (bench.getParamName() != null && paramOverrides.containsKey(bench.getParamName())) {
+                values = paramOverrides.get(bench.getParamName());
+            }
+            for (String value : values) {
+                results.add(run(bench, value));
+            }
+        }
+
+        System.out.println();
+        System.out.println(String.format(Locale.ROOT, "%-45s %-12s %14s %12s  %s",
+                "Benchmark", "Param", "Score", "Error", "Units"));
+        for (Result r : results) {
+            System.out.println(String.format(Locale.ROOT, "%-45s %-12s %14.3f %12.3f  %s",
+                    r.benchmark, r.paramValue, r.score, r.scoreError, r.unit));
+        }
+        return results;
+    }
+
+    private Result run(BenchmarkCase bench, String param) throws Exception {
+        String label = bench.getName() + (bench.getParamName() == null ? ""
+                : " (" + bench.getParamName() + "=" + param + ")");
+        System.out.println("# Benchmark: " + label);
+
+        bench.setup(param);
+        double[] scores = new double[measurementIterations];
+        try {
+            for (int i = 0; i < warmupIterations; i++) {
+                double score = iteration(bench);
+                System.out.println(String.format(Locale.ROOT, "# Warmup Iteration %d: %.3f %s",
+                        i + 1, score, unitLabel(bench.getTimeUnit())));
+            }
+            for (int i = 0; i < measurementIterations; i++) {
+                scores[i] = iteration(bench);
+                System.out.println(String.format(Locale.ROOT, "Iteration %d: %.3f %s",
+                        i + 1, scores[i], unitLabel(bench.getTimeUnit())));
+            }
+        } finally {
+            bench.tearDown();
+        }
+
+        Result result = new Result();
+        result.benchmark = bench.getName();
+        result.paramName = bench.getParamName();
+        result.paramValue = param;
+        result.unit = unitLabel(bench.getTimeUnit());
+        result.rawData = scores;
+        result.score = mean(scores);
+        result.scoreError = confidenceHalfWidth(scores);
+        return result;
+    }
+
+    /**
+     * Runs invocations for one iteration and returns the average time per
+     * operation. Only invoke() is timed; per-invocation setup is not.
+     */
+    private double iteration(BenchmarkCase bench) throws Exception {
+        long budget = (long) (iterationSeconds * 1e9);
+        long elapsed = 0;
+        long operations = 0;
+        long result = 0;
+        do {
+            bench.setupInvocation();
+            long start = System.nanoTime();
+            result += bench.invoke();
+            elapsed += System.nanoTime() - start;
+            operations += bench.getOperationsPerInvocation();
+        } while (elapsed < budget);
+        sink = result;
+
+        double nanosPerOp = (double) elapsed / operations;
+        return nanosPerOp / bench.getTimeUnit().toNanos(1);
+    }
+
+    private static double mean(double[] values) {
+        double sum = 0;
+        for (double v : values) {
+            sum += v;
+        }
+        return sum / values.length;
+    }
+
+    private static double confidenceHalfWidth(double[] values) {
+        int n = values.length;
+        if (n < 2) {
+            return Double.NaN;
+        }
+        double m = mean(values);
+        double sq = 0;
+        for (double v : values) {
+            sq += (v - m) * (v - m);
+        }
+        double stdev = Math.sqrt(sq / (n - 1));
+        double t = n - 1 <= T_999.length ? T_999[n - 2] : 3.29;
+        return t * stdev / Math.sqrt(n);
+    }
+
+    private static String unitLabel(TimeUnit unit) {
+        switch (unit) {
+            case NANOSECONDS:
+                return "ns/op";
+            case MICROSECONDS:
+                return "us/op";
+            case MILLISECONDS:
+                return "ms/op";
+            default:
+                return "s/op";
+        }
+    }
+
+    private static String num(double value) {
+        return Double.isNaN(value) ? "\"NaN\"" : String.format(Locale.ROOT, "%.6f", value);
+    }
+
+    // Same layout as JMH's -rf json output
+    private void writeJson(List<Result> results) throws IOException {
+        PrintWriter out = new PrintWriter(new FileWriter(resultFile));
+        out.println("[");
+        for (int i = 0; i < results.size(); i++) {
+            Result r = results.get(i);
+            out.println("    {");
+            out.println("        \"benchmark\" : \"" + r.benchmark + "\",");
+            out.println("        \"mode\" : \"avgt\",");
+            out.println("        \"threads\" : 1,");
+            out.println("        \"forks\" : 0,");
+            out.println("        \"jdkVersion\" : \"" + System.getProperty("java.version") + "\",");
+            out.println("        \"warmupIterations\" : " + warmupIterations + ",");
+            out.println("        \"warmupTime\" : \"" + iterationSeconds + " s\",");
+            out.println("        \"measurementIterations\" : " + measurementIterations + ",");
+            out.println("        \"measurementTime\" : \"" + iterationSeconds + " s\",");
+            if (r.paramName != null) {
+                out.println("        \"params\" : {");
+                out.println("            \"" + r.paramName + "\" : \"" + r.paramValue + "\"");
+                out.println("        },");
+            }
+            out.println("        \"primaryMetric\" : {");
+            out.println("            \"score\" : " + num(r.score) + ",");
+            out.println("            \"scoreError\" : " + num(r.scoreError) + ",");
+            out.println("            \"scoreConfidence\" : [ " + num(r.score - r.scoreError)
+                    + ", " + num(r.score + r.scoreError) + " ],");
+            out.println("            \"scoreUnit\" : \"" + r.unit + "\",");
+            StringBuilder raw = new StringBuilder();
+            for (int j = 0; j < r.rawData.length; j++) {
+                raw.append(j == 0 ? "" : ", ").append(num(r.rawData[j]));
+            }
+            out.println("            \"rawData\" : [ [ " + raw + " ] ]");
+            out.println("        },");
+            out.println("        \"secondaryMetrics\" : {");
+            out.println("        }");
+            out.println(i == results.size() - 1 ? "    }" : "    },");
+        }
+        out.println("]");
+        out.close();
+    }
+
+    /**
+     * Compares against a previous result file (ours or JMH's) and prints
+     * every benchmark whose average time grew by more than the threshold.
+     *
+     * @return number of regressions found
+     */
+    private int compareWithBaseline(List<Result> results) throws IOException {
+        String json = new String(Files.readAllBytes(Paths.get(baselineFile)), StandardCharsets.UTF_8);
+        Pattern entry = Pattern.compile("\"benchmark\"\\s*:\\s*\"([^\"]+)\"(.*?)"
+                + "\"primaryMetric\"\\s*:\\s*\\{\\s*\"score\"\\s*:\\s*([-0-9.Ee]+)", Pattern.DOTALL);
+        Pattern param = Pattern.compile("\"params\"\\s*:\\s*\\{\\s*\"[^\"]+\"\\s*:\\s*\"([^\"]*)\"");
+
+        Map<String, Double> baseline = new LinkedHashMap<String, Double>();
+        Matcher m = entry.matcher(json);
+        while (m.find()) {
+            Matcher p = param.matcher(m.group(2));
+            String key = m.group(1) + "|" + (p.find() ? p.group(1) : "");
+            baseline.put(key, Double.parseDouble(m.group(3)));
+        }
+
+        int regressions = 0;
+        System.out.println("\nComparison with " + baselineFile + " (threshold " + thresholdPercent + "%):");
+        for (Result r : results) {
+            Double old = baseline.get(r.benchmark + "|" + r.paramValue);
+            if (old == null || old <= 0) {
+                continue;
+            }
+            double change = (r.score - old) / old * 100.0;
+            boolean regressed = change > thresholdPercent;
+            if (regressed) {
+                regressions++;
+            }
+            System.out.println(String.format(Locale.ROOT, "%s %-45s %-12s %+8.1f%%",
+                    regressed ? "REGRESSION" : "ok        ", r.benchmark, r.paramValue, change));
+        }
+        return regressions;
+    }
+}
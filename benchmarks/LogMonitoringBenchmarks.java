@@ -0,0 +1,160 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.time.Instant;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for the exp 10 log monitoring scan
+ *
+ * setup() writes a synthetic system log of the requested size (MB) to the
+ * temp directory; it is deleted again in tearDown(). Use -p sizeMb=4096 for
+ * multi-GB runs. The alerts monitorLogs prints are discarded while timing.
+ */
+public class LogMonitoringBenchmarks {
+
+    static void register(List<BenchmarkCase> list) {
+        list.add(new MonitorLogs());
+        list.add(new MonitorLogsRules());
+    }
+
+    /**
+     * Writes a log of roughly sizeMb megabytes: mostly INFO lines with about
+     * 2% failed logins and 0.1% unauthorized access attempts, a line every
+     * 10 ms from 10000 addresses and 1000 users. A tenth of the failed logins
+     * come from one address, which sets off the brute-force alerts.
+     */
+    static File generateLog(int sizeMb) throws IOException {
+        String[] info = {
+            "INFO: User login successful",
+            "INFO: File uploaded",
+            "INFO: File downloaded",
+            "INFO: VM started"
+        };
+        File file = File.createTempFile("bench_system_logs_", ".txt");
+        long target = (long) sizeMb * 1024 * 1024;
+        long written = 0;
+        long time = 1773619200000L;
+        Random random = new Random(42L);
+        BufferedWriter writer = new BufferedWriter(new FileWriter(file), 1 << 16);
+        try {
+            while (written < target) {
+                int roll = random.nextInt(1000);
+                String line;
+                if (roll < 1) {
+                    line = "ERROR: Unauthorized access attempt";
+                } else if (roll < 21) {
+                    line = "WARNING: Login failed";
+                } else {
+                    line = info[roll & 3];
+                }
+                int ip = roll < 3 ? 0xcb00710a : 0x0a000000 + random.nextInt(10000);
+                line = Instant.ofEpochMilli(time).toString().substring(0, 19).replace('T', ' ') + " " + line
+                        + " user=user" + random.nextInt(1000) + " ip=" + (ip >>> 24) + "." + (ip >>> 16 & 0xff)
+                        + "." + (ip >>> 8 & 0xff) + "." + (ip & 0xff) + "\n";
+                time += 10;
+                writer.write(line);
+                written += line.length();
+            }
+        } finally {
+            writer.close();
+        }
+        return file;
+    }
+
+    static class MonitorLogs extends BenchmarkCase {
+
+        private static final PrintStream DISCARD = new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        });
+
+        private File logFile;
+
+        MonitorLogs() {
+            this("exp10.monitorLogs", "sizeMb", new String[] {"256"});
+        }
+
+        MonitorLogs(String name, String parameter, String[] values) {
+            super(name, parameter, values, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void setup(String param) throws IOException {
+            logFile = generateLog(Integer.parseInt(param));
+        }
+
+        @Override
+        public long invoke() throws IOException {
+            PrintStream out = System.out;
+            System.setOut(DISCARD);
+            try {
+                monitor(logFile.getPath());
+            } finally {
+                System.setOut(out);
+            }
+            return logFile.length();
+        }
+
+        void monitor(String logFile) throws IOException {
+            LogMonitoring.monitorLogs(logFile);
+        }
+
+        @Override
+        public void tearDown() {
+            if (logFile != null) {
+                logFile.delete();
+            }
+        }
+    }
+
+    /**
+     * The built-in rules plus generated ones, on a 64 MB log: a third
+     * literal rules, a third regexes whose required text never occurs and
+     * a third regexes that share "Login failed user=user" with every
+     * failed login line. None of the generated rules match, so the time is
+     * the cost of matching, which should not grow with the rules.
+     */
+    static class MonitorLogsRules extends MonitorLogs {
+
+        private RuleSet rules;
+
+        MonitorLogsRules() {
+            super("exp10.monitorLogs.rules", "rules", new String[] {"3", "100", "300"});
+        }
+
+        @Override
+        public void setup(String param) throws IOException {
+            super.setup("64");
+            StringBuilder text = new StringBuilder(LogMonitoring.DEFAULT_RULES).append('\n');
+            for (int i = 3; i < Integer.parseInt(param); i++) {
+                if (i % 3 == 0) {
+                    text.append("rule literal").append(i).append(" match=\"token ").append(i).append(" denied\"\n");
+                } else if (i % 3 == 1) {
+                    text.append("rule regex").append(i).append(" key=user regex=\"session=s").append(i)
+                            .append("[0-9]+ expired\"\n");
+                } else {
+                    text.append("rule failed").append(i)
+                            .append(" key=user regex=\"Login failed user=user[0-9]+ ip=192\\.168\\.").append(i)
+                            .append("\\.\"\n");
+                }
+            }
+            rules = RuleSet.parse(text.toString());
+        }
+
+        @Override
+        void monitor(String logFile) throws IOException {
+            LogMonitoring.monitorLogs(logFile, rules);
+        }
+    }
+}
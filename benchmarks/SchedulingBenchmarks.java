@@ -0,0 +1,82 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.cloudbus.cloudsim.Log;
+
+/**
+ * Benchmarks for the exp 1 priority scheduling code
+ */
+public class SchedulingBenchmarks {
+
+    static void register(List<BenchmarkCase> list) {
+        list.add(new SortByPriority());
+        list.add(new FullSimulation());
+    }
+
+    /**
+     * The comparator sort behind Main.applyPriorityScheduling. Each call
+     * sorts a fresh copy of the same generated, unsorted cloudlet list.
+     */
+    static class SortByPriority extends BenchmarkCase {
+
+        private List<PriorityCloudlet> source;
+        private List<PriorityCloudlet> work;
+
+        SortByPriority() {
+            super("exp1.sortByPriority", "cloudlets",
+                    new String[] {"1000", "10000", "100000"}, TimeUnit.MICROSECONDS);
+        }
+
+        @Override
+        public void setup(String param) {
+            WorkloadGenerator generator = new WorkloadGenerator(42L, Integer.parseInt(param));
+            source = new ArrayList<PriorityCloudlet>();
+            while (generator.hasNext()) {
+                source.add(generator.next());
+            }
+        }
+
+        @Override
+        public void setupInvocation() {
+            work = new ArrayList<PriorityCloudlet>(source);
+        }
+
+        @Override
+        public long invoke() {
+            Main.sortByPriority(work);
+            return work.get(0).getPriority();
+        }
+    }
+
+    /**
+     * A complete CloudSim.startSimulation() run of the exp 1 workload:
+     * 8 priority-scheduled VMs on 2 hosts, Poisson arrivals.
+     */
+    static class FullSimulation extends BenchmarkCase {
+
+        private int cloudlets;
+
+        FullSimulation() {
+            super("exp1.simulation", "cloudlets",
+                    new String[] {"1000", "10000", "100000"}, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void setup(String param) {
+            cloudlets = Integer.parseInt(param);
+            Log.disable();
+        }
+
+        @Override
+        public long invoke() throws Exception {
+            WorkloadGenerator generator = Main.createWorkload(cloudlets, 8, 42L, false);
+            return Main.simulateWorkload(generator, 8, 2).getFinishedCount();
+        }
+
+        @Override
+        public void tearDown() {
+            Log.enable();
+        }
+    }
+}
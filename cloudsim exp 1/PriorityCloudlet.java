@@ -0,0 +1,33 @@
+import org.cloudbus.cloudsim.Cloudlet;
+import org.cloudbus.cloudsim.UtilizationModel;
+
+/**
+ * Custom Cloudlet class with priority attribute
+ *
+ * Higher number = Higher priority. The value is read by
+ * PriorityCloudletScheduler when the cloudlet reaches its VM.
+ */
+public class PriorityCloudlet extends Cloudlet {
+
+    private int priority;
+
+    public PriorityCloudlet(int cloudletId, long cloudletLength, int pesNumber,
+            long cloudletFileSize, long cloudletOutputSize,
+            UtilizationModel utilizationModelCpu,
+            UtilizationModel utilizationModelRam,
+            UtilizationModel utilizationModelBw,
+            int priority) {
+        super(cloudletId, cloudletLength, pesNumber, cloudletFileSize,
+                cloudletOutputSize, utilizationModelCpu, utilizationModelRam,
+                utilizationModelBw);
+        this.priority = priority;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    public void setPriority(int priority) {
+        this.priority = priority;
+    }
+}
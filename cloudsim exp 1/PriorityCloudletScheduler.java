@@ -0,0 +1,444 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import org.cloudbus.cloudsim.Cloudlet;
+import org.cloudbus.cloudsim.CloudletScheduler;
+import org.cloudbus.cloudsim.Consts;
+import org.cloudbus.cloudsim.ResCloudlet;
+import org.cloudbus.cloudsim.core.CloudSim;
+
+/**
+ * CUSTOM CLOUDLET SCHEDULER: Preemptive Priority Scheduling
+ *
+ * Runs inside each VM, so priority is enforced while cloudlets execute and
+ * not only in the order they were submitted. Every PE runs one cloudlet at a
+ * time (space-shared); waiting cloudlets are kept in a heap ordered by
+ * PriorityCloudlet.getPriority(), highest first and FIFO among equals.
+ *
+ * Preemption: a cloudlet that outranks the lowest-priority running cloudlet
+ * takes its PE. The preempted cloudlet keeps the work it has done so far and
+ * goes back to the waiting heap.
+ *
+ * Aging: a waiting cloudlet gains agingRate priority points per simulated
+ * second, so low-priority work cannot starve. All cloudlets age at the same
+ * rate, so ordering by priority + agingRate * (now - arrival) is the same as
+ * ordering by the fixed key priority - agingRate * arrival. The heap never has
+ * to be re-keyed and each event costs O(log n) on the waiting queue plus
+ * O(PEs) for the running cloudlets.
+ */
+public class PriorityCloudletScheduler extends CloudletScheduler {
+
+    /**
+     * Heap entry: a cloudlet together with its fixed scheduling key.
+     */
+    private static final class Entry {
+
+        final ResCloudlet rcl;
+        final double key;
+        final long seq;
+
+        Entry(ResCloudlet rcl, double key, long seq) {
+            this.rcl = rcl;
+            this.key = key;
+            this.seq = seq;
+        }
+    }
+
+    // Waiting order: highest key first, then first come first served
+    private static final Comparator<Entry> WAITING_ORDER = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry e1, Entry e2) {
+            int c = Double.compare(e2.key, e1.key);
+            return c != 0 ? c : Long.compare(e1.seq, e2.seq);
+        }
+    };
+
+    // Running order: the next cloudlet to preempt (lowest key, latest arrival) on top
+    private static final Comparator<Entry> PREEMPT_ORDER = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry e1, Entry e2) {
+            return WAITING_ORDER.compare(e2, e1);
+        }
+    };
+
+    private final double agingRate;
+    private final boolean preemptive;
+
+    private final PriorityQueue<Entry> waitingQueue = new PriorityQueue<Entry>(16, WAITING_ORDER);
+    private final PriorityQueue<Entry> runningQueue = new PriorityQueue<Entry>(4, PREEMPT_ORDER);
+    private final Map<Integer, Entry> pausedCloudlets = new HashMap<Integer, Entry>();
+    private final ArrayDeque<ResCloudlet> finishedCloudlets = new ArrayDeque<ResCloudlet>();
+
+    // Cloudlet ID -> entry, for cloudlets waiting or running
+    private final Map<Integer, Entry> activeCloudlets = new HashMap<Integer, Entry>();
+
+    private int currentCpus;
+    private int usedPes;
+    private double capacity;
+    private long nextSeq;
+    private long preemptions;
+
+    /**
+     * Creates a preemptive priority scheduler without aging.
+     */
+    public PriorityCloudletScheduler() {
+        this(0.0, true);
+    }
+
+    /**
+     * Creates a priority scheduler.
+     *
+     * @param agingRate priority points a cloudlet gains per simulated second
+     *                  of waiting (0 disables aging)
+     * @param preemptive whether arriving cloudlets may take the PE of a
+     *                   lower-priority running cloudlet
+     */
+    public PriorityCloudletScheduler(double agingRate, boolean preemptive) {
+        super();
+        if (agingRate < 0) {
+            throw new IllegalArgumentException("agingRate must be >= 0");
+        }
+        this.agingRate = agingRate;
+        this.preemptive = preemptive;
+    }
+
+    @Override
+    public double updateVmProcessing(double currentTime, List<Double> mipsShare) {
+        setCurrentMipsShare(mipsShare);
+        double timeSpan = currentTime - getPreviousTime();
+        updateCapacity(mipsShare);
+
+        // advance running cloudlets (one per PE, so this is O(PEs))
+        for (Entry e : runningQueue) {
+            ResCloudlet rcl = e.rcl;
+            rcl.updateCloudletFinishedSoFar(
+                    (long) (capacity * timeSpan * rcl.getNumberOfPes() * Consts.MILLION));
+        }
+
+        if (runningQueue.isEmpty() && waitingQueue.isEmpty()) {
+            setPreviousTime(currentTime);
+            return 0.0;
+        }
+
+        Iterator<Entry> it = runningQueue.iterator();
+        while (it.hasNext()) {
+            Entry e = it.next();
+            if (e.rcl.getRemainingCloudletLength() == 0) {
+                it.remove();
+                activeCloudlets.remove(e.rcl.getCloudletId());
+                cloudletFinish(e.rcl);
+            }
+        }
+
+        // hand freed PEs to the highest-priority waiting cloudlets
+        dispatchWaiting();
+
+        double nextEvent = Double.MAX_VALUE;
+        for (Entry e : runningQueue) {
+            double estimatedFinishTime = currentTime + estimateRunTime(e.rcl);
+            if (estimatedFinishTime - currentTime < CloudSim.getMinTimeBetweenEvents()) {
+                estimatedFinishTime = currentTime + CloudSim.getMinTimeBetweenEvents();
+            }
+            if (estimatedFinishTime < nextEvent) {
+                nextEvent = estimatedFinishTime;
+            }
+        }
+
+        setPreviousTime(currentTime);
+        return nextEvent == Double.MAX_VALUE ? 0.0 : nextEvent;
+    }
+
+    @Override
+    public double cloudletSubmit(Cloudlet cloudlet, double fileTransferTime) {
+        if (getCurrentMipsShare() != null) {
+            updateCapacity(getCurrentMipsShare());
+        }
+
+        // time to transfer the files is added to the cloudlet length
+        if (fileTransferTime > 0 && capacity > 0) {
+            cloudlet.setCloudletLength(cloudlet.getCloudletLength()
+                    + (long) (capacity * fileTransferTime));
+        }
+
+        ResCloudlet rcl = new ResCloudlet(cloudlet);
+        Entry entry = new Entry(rcl, keyOf(cloudlet, rcl.getCloudletArrivalTime()), nextSeq++);
+        activeCloudlets.put(cloudlet.getCloudletId(), entry);
+        return enqueue(entry);
+    }
+
+    @Override
+    public double cloudletSubmit(Cloudlet cloudlet) {
+        return cloudletSubmit(cloudlet, 0.0);
+    }
+
+    /**
+     * Cancels a cloudlet. Removing a waiting cloudlet from the middle of the
+     * heap is O(n), which is fine for the rare cancel/pause calls.
+     */
+    @Override
+    public Cloudlet cloudletCancel(int cloudletId) {
+        for (Iterator<ResCloudlet> it = finishedCloudlets.iterator(); it.hasNext();) {
+            ResCloudlet rcl = it.next();
+            if (rcl.getCloudletId() == cloudletId) {
+                it.remove();
+                return rcl.getCloudlet();
+            }
+        }
+
+        Entry paused = pausedCloudlets.remove(cloudletId);
+        if (paused != null) {
+            paused.rcl.setCloudletStatus(Cloudlet.CANCELED);
+            return paused.rcl.getCloudlet();
+        }
+
+        Entry entry = activeCloudlets.remove(cloudletId);
+        if (entry == null) {
+            return null;
+        }
+        if (runningQueue.remove(entry)) {
+            if (entry.rcl.getRemainingCloudletLength() == 0) {
+                cloudletFinish(entry.rcl);
+                return entry.rcl.getCloudlet();
+            }
+            usedPes -= entry.rcl.getNumberOfPes();
+        } else {
+            waitingQueue.remove(entry);
+        }
+        entry.rcl.setCloudletStatus(Cloudlet.CANCELED);
+        dispatchWaiting();
+        return entry.rcl.getCloudlet();
+    }
+
+    @Override
+    public boolean cloudletPause(int cloudletId) {
+        Entry entry = activeCloudlets.remove(cloudletId);
+        if (entry == null) {
+            return false;
+        }
+        if (runningQueue.remove(entry)) {
+            if (entry.rcl.getRemainingCloudletLength() == 0) {
+                cloudletFinish(entry.rcl);
+                return true;
+            }
+            usedPes -= entry.rcl.getNumberOfPes();
+        } else {
+            waitingQueue.remove(entry);
+        }
+        entry.rcl.setCloudletStatus(Cloudlet.PAUSED);
+        pausedCloudlets.put(cloudletId, entry);
+        dispatchWaiting();
+        return true;
+    }
+
+    /**
+     * Resumes a paused cloudlet. It keeps its original key, so time spent
+     * paused still counts towards aging.
+     */
+    @Override
+    public double cloudletResume(int cloudletId) {
+        Entry entry = pausedCloudlets.remove(cloudletId);
+        if (entry == null) {
+            return 0.0;
+        }
+        entry.rcl.setCloudletStatus(Cloudlet.QUEUED);
+        activeCloudlets.put(cloudletId, entry);
+        double runTime = enqueue(entry);
+        return runTime > 0 ? CloudSim.clock() + runTime : 0.0;
+    }
+
+    @Override
+    public void cloudletFinish(ResCloudlet rcl) {
+        rcl.setCloudletStatus(Cloudlet.SUCCESS);
+        rcl.finalizeCloudlet();
+        finishedCloudlets.add(rcl);
+        usedPes -= rcl.getNumberOfPes();
+    }
+
+    @Override
+    public int getCloudletStatus(int cloudletId) {
+        Entry entry = activeCloudlets.get(cloudletId);
+        if (entry == null) {
+            entry = pausedCloudlets.get(cloudletId);
+        }
+        return entry == null ? -1 : entry.rcl.getCloudletStatus();
+    }
+
+    @Override
+    public boolean isFinishedCloudlets() {
+        return !finishedCloudlets.isEmpty();
+    }
+
+    @Override
+    public Cloudlet getNextFinishedCloudlet() {
+        ResCloudlet rcl = finishedCloudlets.poll();
+        return rcl == null ? null : rcl.getCloudlet();
+    }
+
+    @Override
+    public int runningCloudlets() {
+        return runningQueue.size();
+    }
+
+    /**
+     * Gives up the lowest-priority running cloudlet for migration.
+     */
+    @Override
+    public Cloudlet migrateCloudlet() {
+        Entry entry = runningQueue.poll();
+        if (entry == null) {
+            return null;
+        }
+        activeCloudlets.remove(entry.rcl.getCloudletId());
+        entry.rcl.finalizeCloudlet();
+        usedPes -= entry.rcl.getNumberOfPes();
+        return entry.rcl.getCloudlet();
+    }
+
+    @Override
+    public double getTotalUtilizationOfCpu(double time) {
+        double totalUtilization = 0;
+        for (Entry e : runningQueue) {
+            totalUtilization += e.rcl.getCloudlet().getUtilizationOfCpu(time);
+        }
+        return totalUtilization;
+    }
+
+    @Override
+    public List<Double> getCurrentRequestedMips() {
+        List<Double> mipsShare = new ArrayList<Double>();
+        if (getCurrentMipsShare() != null) {
+            mipsShare.addAll(getCurrentMipsShare());
+        }
+        return mipsShare;
+    }
+
+    @Override
+    public double getTotalCurrentAvailableMipsForCloudlet(ResCloudlet rcl, List<Double> mipsShare) {
+        updateCapacity(mipsShare);
+        return capacity;
+    }
+
+    @Override
+    public double getTotalCurrentRequestedMipsForCloudlet(ResCloudlet rcl, double time) {
+        return 0.0;
+    }
+
+    @Override
+    public double getTotalCurrentAllocatedMipsForCloudlet(ResCloudlet rcl, double time) {
+        return 0.0;
+    }
+
+    @Override
+    public double getCurrentRequestedUtilizationOfRam() {
+        return 0.0;
+    }
+
+    @Override
+    public double getCurrentRequestedUtilizationOfBw() {
+        return 0.0;
+    }
+
+    /**
+     * Number of cloudlets waiting for a PE.
+     */
+    public int getWaitingCount() {
+        return waitingQueue.size();
+    }
+
+    /**
+     * Number of times a running cloudlet was preempted by a higher-priority one.
+     */
+    public long getPreemptionCount() {
+        return preemptions;
+    }
+
+    // Fixed heap key, see class comment for why aging does not need re-keying
+    private double keyOf(Cloudlet cloudlet, double arrivalTime) {
+        int priority = 0;
+        if (cloudlet instanceof PriorityCloudlet) {
+            priority = ((PriorityCloudlet) cloudlet).getPriority();
+        }
+        return priority - agingRate * arrivalTime;
+    }
+
+    /**
+     * Starts the cloudlet if a PE is free (preempting if allowed), otherwise
+     * queues it.
+     *
+     * @return expected run time if started now, 0 if queued
+     */
+    private double enqueue(Entry entry) {
+        int pes = entry.rcl.getNumberOfPes();
+
+        if (preemptive) {
+            while (currentCpus - usedPes < pes && !runningQueue.isEmpty()
+                    && WAITING_ORDER.compare(entry, runningQueue.peek()) < 0) {
+                preempt(runningQueue.poll());
+            }
+        }
+
+        if (currentCpus - usedPes >= pes) {
+            start(entry);
+            dispatchWaiting();
+            return estimateRunTime(entry.rcl);
+        }
+
+        entry.rcl.setCloudletStatus(Cloudlet.QUEUED);
+        waitingQueue.add(entry);
+        dispatchWaiting();
+        return 0.0;
+    }
+
+    private void preempt(Entry victim) {
+        usedPes -= victim.rcl.getNumberOfPes();
+        // PAUSED closes the current execution interval, QUEUED puts it back in line
+        victim.rcl.setCloudletStatus(Cloudlet.PAUSED);
+        victim.rcl.setCloudletStatus(Cloudlet.QUEUED);
+        waitingQueue.add(victim);
+        preemptions++;
+    }
+
+    private void dispatchWaiting() {
+        while (!waitingQueue.isEmpty()
+                && currentCpus - usedPes >= waitingQueue.peek().rcl.getNumberOfPes()) {
+            start(waitingQueue.poll());
+        }
+    }
+
+    private void start(Entry entry) {
+        ResCloudlet rcl = entry.rcl;
+        rcl.setCloudletStatus(Cloudlet.INEXEC);
+        for (int i = 0; i < rcl.getNumberOfPes(); i++) {
+            rcl.setMachineAndPeId(0, i);
+        }
+        runningQueue.add(entry);
+        usedPes += rcl.getNumberOfPes();
+    }
+
+    private double estimateRunTime(ResCloudlet rcl) {
+        if (capacity <= 0) {
+            return 0.0;
+        }
+        return rcl.getRemainingCloudletLength() / (capacity * rcl.getNumberOfPes());
+    }
+
+    // Average MIPS per CPU available to this VM
+    private void updateCapacity(List<Double> mipsShare) {
+        double total = 0.0;
+        int cpus = 0;
+        for (Double mips : mipsShare) {
+            total += mips;
+            if (mips > 0) {
+                cpus++;
+            }
+        }
+        currentCpus = cpus;
+        capacity = cpus > 0 ? total / cpus : 0.0;
+    }
+}
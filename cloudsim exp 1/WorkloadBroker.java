@@ -0,0 +1,161 @@
+import java.util.Arrays;
+
+import org.cloudbus.cloudsim.Cloudlet;
+import org.cloudbus.cloudsim.DatacenterBroker;
+import org.cloudbus.cloudsim.Log;
+import org.cloudbus.cloudsim.Vm;
+import org.cloudbus.cloudsim.core.CloudSim;
+import org.cloudbus.cloudsim.core.CloudSimTags;
+import org.cloudbus.cloudsim.core.SimEvent;
+
+/**
+ * Broker that streams cloudlets from a WorkloadGenerator
+ *
+ * The stock DatacenterBroker submits its whole cloudlet list at time 0. This
+ * broker pulls one cloudlet at a time from the generator and submits it at
+ * its arrival time, so the simulation only ever holds the cloudlets that have
+ * arrived and not yet finished (plus one pending arrival event). Finished
+ * cloudlets are folded into per-priority statistics; keeping the cloudlet
+ * objects themselves is optional. A cloudlet that arrives when there is no
+ * VM to run it is dropped and counted, see getFailedCount().
+ */
+public class WorkloadBroker extends DatacenterBroker {
+
+    // Self-event tag for the next generated arrival
+    private static final int CLOUDLET_ARRIVAL = 910001;
+
+    private final WorkloadGenerator generator;
+    private boolean retainFinished;
+    private boolean arrivalsStarted;
+    private int vmIndex;
+
+    // Per-priority statistics, index = priority
+    private long[] finishedCount = new long[4];
+    private double[] responseTimeSum = new double[4];
+    private long finished;
+    private long failed;
+    private double makespan;
+
+    public WorkloadBroker(String name, WorkloadGenerator generator) throws Exception {
+        super(name);
+        this.generator = generator;
+    }
+
+    /**
+     * Keep finished cloudlets in getCloudletReceivedList(). Off by default so
+     * memory does not grow with the number of finished cloudlets.
+     */
+    public void setRetainFinished(boolean retainFinished) {
+        this.retainFinished = retainFinished;
+    }
+
+    @Override
+    protected void submitCloudlets() {
+        // cloudlets submitted the usual way still go out at time 0
+        super.submitCloudlets();
+        if (!arrivalsStarted) {
+            arrivalsStarted = true;
+            scheduleNextArrival();
+        }
+    }
+
+    @Override
+    protected void processOtherEvent(SimEvent ev) {
+        if (ev == null || ev.getTag() != CLOUDLET_ARRIVAL) {
+            super.processOtherEvent(ev);
+            return;
+        }
+        // submit every cloudlet that is due, then wait for the next one
+        while (generator.hasNext() && generator.getNextArrivalTime() <= CloudSim.clock()) {
+            submitGenerated(generator.next());
+        }
+        scheduleNextArrival();
+        finishIfDone();
+    }
+
+    @Override
+    protected void processCloudletReturn(SimEvent ev) {
+        Cloudlet cloudlet = (Cloudlet) ev.getData();
+        recordFinished(cloudlet);
+        if (retainFinished) {
+            getCloudletReceivedList().add(cloudlet);
+        }
+        cloudletsSubmitted--;
+        finishIfDone();
+    }
+
+    public long getFinishedCount() {
+        return finished;
+    }
+
+    public long getFinishedCount(int priority) {
+        return priority < finishedCount.length ? finishedCount[priority] : 0;
+    }
+
+    /**
+     * Mean time from arrival at the datacenter to completion.
+     */
+    public double getMeanResponseTime(int priority) {
+        long count = getFinishedCount(priority);
+        return count == 0 ? 0.0 : responseTimeSum[priority] / count;
+    }
+
+    /**
+     * Generated cloudlets that were dropped because no VM was running.
+     */
+    public long getFailedCount() {
+        return failed;
+    }
+
+    public double getMakespan() {
+        return makespan;
+    }
+
+    private void scheduleNextArrival() {
+        if (generator.hasNext()) {
+            double delay = Math.max(0.0, generator.getNextArrivalTime() - CloudSim.clock());
+            schedule(getId(), delay, CLOUDLET_ARRIVAL);
+        }
+    }
+
+    // Round-robin over the created VMs, like DatacenterBroker.submitCloudlets()
+    private void submitGenerated(Cloudlet cloudlet) {
+        if (getVmsCreatedList().isEmpty()) {
+            Log.printLine(CloudSim.clock() + ": " + getName() + ": Cloudlet #" + cloudlet.getCloudletId()
+                    + " dropped, no VM is running");
+            failed++;
+            return;
+        }
+        vmIndex %= getVmsCreatedList().size();
+        Vm vm = getVmsCreatedList().get(vmIndex);
+        vmIndex = (vmIndex + 1) % getVmsCreatedList().size();
+
+        cloudlet.setUserId(getId());
+        cloudlet.setVmId(vm.getId());
+        sendNow(getVmsToDatacentersMap().get(vm.getId()), CloudSimTags.CLOUDLET_SUBMIT, cloudlet);
+        cloudletsSubmitted++;
+    }
+
+    private void finishIfDone() {
+        if (!generator.hasNext() && getCloudletList().isEmpty() && cloudletsSubmitted == 0) {
+            Log.printLine(CloudSim.clock() + ": " + getName() + ": All Cloudlets executed. Finishing...");
+            clearDatacenters();
+            finishExecution();
+        }
+    }
+
+    private void recordFinished(Cloudlet cloudlet) {
+        int priority = 0;
+        if (cloudlet instanceof PriorityCloudlet) {
+            priority = Math.max(0, ((PriorityCloudlet) cloudlet).getPriority());
+        }
+        if (priority >= finishedCount.length) {
+            finishedCount = Arrays.copyOf(finishedCount, priority + 1);
+            responseTimeSum = Arrays.copyOf(responseTimeSum, priority + 1);
+        }
+        finishedCount[priority]++;
+        responseTimeSum[priority] += cloudlet.getFinishTime() - cloudlet.getSubmissionTime();
+        finished++;
+        makespan = Math.max(makespan, cloudlet.getFinishTime());
+    }
+}
@@ -0,0 +1,221 @@
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+import org.cloudbus.cloudsim.UtilizationModel;
+import org.cloudbus.cloudsim.UtilizationModelFull;
+
+/**
+ * Parameterized workload generator for the priority scheduling experiment
+ *
+ * Produces a stream of PriorityCloudlets with configurable length and
+ * priority distributions and Poisson or bursty arrival times. Cloudlets are
+ * built lazily, one per next() call, so a run of 1e6 cloudlets never holds
+ * the whole workload in memory. The same seed always gives the same workload.
+ */
+public class WorkloadGenerator implements Iterator<PriorityCloudlet> {
+
+    public enum LengthDistribution {
+        UNIFORM, EXPONENTIAL, PARETO
+    }
+
+    public enum ArrivalProcess {
+        POISSON, BURSTY
+    }
+
+    private static final UtilizationModel UTILIZATION_FULL = new UtilizationModelFull();
+
+    private final Random random;
+    private final int cloudletCount;
+    private int generated;
+
+    // Cloudlet length (MI)
+    private LengthDistribution lengthDistribution = LengthDistribution.UNIFORM;
+    private long minLength = 1000;
+    private long meanLength = 10000;
+    private long maxLength = 20000;
+
+    // Cumulative weights, index i -> priority i + 1
+    private double[] priorityCdf = {1.0 / 3, 2.0 / 3, 1.0};
+
+    // Arrival process (rates in cloudlets per simulated second)
+    private ArrivalProcess arrivalProcess = ArrivalProcess.POISSON;
+    private double arrivalRate = 1.0;
+    private double burstRate;
+    private double meanBurstLength;
+    private double meanGapLength;
+
+    // toggled on the first arrival, so the stream starts in a quiet phase
+    private boolean inBurst = true;
+    private double stateEndTime;
+    private double nextArrivalTime = -1;
+
+    /**
+     * @param seed          RNG seed; equal seeds give equal workloads
+     * @param cloudletCount number of cloudlets to generate
+     */
+    public WorkloadGenerator(long seed, int cloudletCount) {
+        if (cloudletCount < 0) {
+            throw new IllegalArgumentException("cloudletCount must be >= 0");
+        }
+        this.random = new Random(seed);
+        this.cloudletCount = cloudletCount;
+    }
+
+    /**
+     * Sets the cloudlet length distribution. UNIFORM uses min and max only,
+     * EXPONENTIAL and PARETO use the mean and are clamped to [min, max].
+     */
+    public void setLengthDistribution(LengthDistribution distribution,
+            long min, long mean, long max) {
+        if (min <= 0 || min > mean || mean > max) {
+            throw new IllegalArgumentException("require 0 < min <= mean <= max");
+        }
+        this.lengthDistribution = distribution;
+        this.minLength = min;
+        this.meanLength = mean;
+        this.maxLength = max;
+    }
+
+    /**
+     * Sets the relative weight of each priority level; weights[0] is
+     * priority 1 (LOW), weights[1] priority 2, and so on.
+     */
+    public void setPriorityWeights(double... weights) {
+        double total = 0;
+        for (double w : weights) {
+            if (w < 0) {
+                throw new IllegalArgumentException("priority weights must be >= 0");
+            }
+            total += w;
+        }
+        if (weights.length == 0 || total <= 0) {
+            throw new IllegalArgumentException("at least one priority weight must be > 0");
+        }
+        double[] cdf = new double[weights.length];
+        double sum = 0;
+        for (int i = 0; i < weights.length; i++) {
+            sum += weights[i];
+            cdf[i] = sum / total;
+        }
+        cdf[cdf.length - 1] = 1.0;
+        this.priorityCdf = cdf;
+    }
+
+    /**
+     * Poisson arrivals: exponential inter-arrival times at the given rate.
+     */
+    public void setPoissonArrivals(double rate) {
+        if (rate <= 0) {
+            throw new IllegalArgumentException("rate must be > 0");
+        }
+        this.arrivalProcess = ArrivalProcess.POISSON;
+        this.arrivalRate = rate;
+    }
+
+    /**
+     * Bursty arrivals: a two-state Markov-modulated Poisson process that
+     * alternates between a quiet phase at baseRate and bursts at burstRate.
+     * Phase lengths are exponential with the given means (seconds).
+     */
+    public void setBurstyArrivals(double baseRate, double burstRate,
+            double meanBurstLength, double meanGapLength) {
+        if (baseRate <= 0 || burstRate <= 0 || meanBurstLength <= 0 || meanGapLength <= 0) {
+            throw new IllegalArgumentException("bursty arrival parameters must be > 0");
+        }
+        this.arrivalProcess = ArrivalProcess.BURSTY;
+        this.arrivalRate = baseRate;
+        this.burstRate = burstRate;
+        this.meanBurstLength = meanBurstLength;
+        this.meanGapLength = meanGapLength;
+    }
+
+    public int getCloudletCount() {
+        return cloudletCount;
+    }
+
+    public int getGeneratedCount() {
+        return generated;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return generated < cloudletCount;
+    }
+
+    /**
+     * Arrival time of the cloudlet the next call to next() returns.
+     */
+    public double getNextArrivalTime() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        if (nextArrivalTime < 0) {
+            nextArrivalTime = sampleArrival(0.0);
+        }
+        return nextArrivalTime;
+    }
+
+    @Override
+    public PriorityCloudlet next() {
+        double arrival = getNextArrivalTime();
+        PriorityCloudlet cloudlet = new PriorityCloudlet(generated, sampleLength(), 1, 300, 300,
+                UTILIZATION_FULL, UTILIZATION_FULL, UTILIZATION_FULL, samplePriority());
+        generated++;
+        nextArrivalTime = hasNext() ? sampleArrival(arrival) : -1;
+        return cloudlet;
+    }
+
+    private long sampleLength() {
+        double length;
+        switch (lengthDistribution) {
+            case EXPONENTIAL:
+                length = -meanLength * Math.log(1.0 - random.nextDouble());
+                break;
+            case PARETO:
+                // scale = min, shape chosen so the untruncated mean is meanLength
+                double shape = meanLength == minLength
+                        ? Double.MAX_VALUE : (double) meanLength / (meanLength - minLength);
+                length = minLength / Math.pow(1.0 - random.nextDouble(), 1.0 / shape);
+                break;
+            default:
+                length = minLength + random.nextDouble() * (maxLength - minLength);
+                break;
+        }
+        return Math.max(minLength, Math.min(maxLength, Math.round(length)));
+    }
+
+    private int samplePriority() {
+        double u = random.nextDouble();
+        for (int i = 0; i < priorityCdf.length; i++) {
+            if (u < priorityCdf[i]) {
+                return i + 1;
+            }
+        }
+        return priorityCdf.length;
+    }
+
+    private double sampleArrival(double previous) {
+        if (arrivalProcess == ArrivalProcess.POISSON) {
+            return previous + exponential(arrivalRate);
+        }
+        // memoryless phases: if the phase ends before the next arrival,
+        // restart sampling from the phase boundary with the new rate
+        double time = previous;
+        while (true) {
+            if (time >= stateEndTime) {
+                inBurst = !inBurst;
+                stateEndTime = time + exponential(1.0 / (inBurst ? meanBurstLength : meanGapLength));
+            }
+            double candidate = time + exponential(inBurst ? burstRate : arrivalRate);
+            if (candidate <= stateEndTime) {
+                return candidate;
+            }
+            time = stateEndTime;
+        }
+    }
+
+    private double exponential(double rate) {
+        return -Math.log(1.0 - random.nextDouble()) / rate;
+    }
+}
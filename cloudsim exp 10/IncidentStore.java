@@ -0,0 +1,582 @@
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Incidents built from alerts, kept in an append-only journal
+ *
+ * An alert has a fingerprint, its rule and key (e.g. "brute-force-ip
+ * 203.0.113.9"), and a correlation key, the source it came from. report()
+ * files it under:
+ *
+ *   the open incident with the same fingerprint, as a duplicate, which is
+ *   SUPPRESSED if that fingerprint was last seen within suppressionMillis
+ *   and REPEATED otherwise;
+ *   else the open incident with the same correlation key seen within
+ *   correlationMillis, which it joins (CORRELATED), so that e.g. a
+ *   brute-force attack and the unauthorized access that follows it from
+ *   the same address are one incident;
+ *   else a new incident (OPENED).
+ *
+ * Incidents go from OPEN to ACKNOWLEDGED to RESOLVED; one without alerts
+ * for resolveAfterMillis is resolved by the store, and a later alert with
+ * its fingerprint opens a new one. A resolved incident is forgotten
+ * retainResolvedMillis after it was resolved, except the newest incident,
+ * which the next id follows on from. All times are event times.
+ *
+ * The journal has one tab-separated line per change: O (opened), A
+ * (alert counts of a fingerprint) and S (state). Duplicates only update
+ * counts in memory; flush() writes one A line per changed fingerprint, so
+ * a storm of alerts costs a line per incident and flush, not per alert.
+ * Opening a store replays the journal, dropping a torn last line. The
+ * journal is rewritten compactly, without forgotten incidents, when it has
+ * grown to more than twice the lines its state needs, on open or on a
+ * flush. A line that does not parse anywhere else fails the open.
+ */
+public class IncidentStore implements Closeable {
+
+    // Lines a journal may have beyond twice what its state needs before it is compacted
+    private static final long COMPACT_SLACK = 1000;
+
+    public enum State {
+        OPEN, ACKNOWLEDGED, RESOLVED
+    }
+
+    public enum Outcome {
+        OPENED, CORRELATED, REPEATED, SUPPRESSED
+    }
+
+    /**
+     * Alerts of one fingerprint within an incident.
+     */
+    public static final class Occurrence {
+        private final String fingerprint;
+        private long firstSeen;
+        private long lastSeen;
+        private long count;
+
+        Occurrence(String fingerprint, long firstSeen) {
+            this.fingerprint = fingerprint;
+            this.firstSeen = firstSeen;
+            this.lastSeen = firstSeen;
+        }
+
+        public String getFingerprint() {
+            return fingerprint;
+        }
+
+        public long getFirstSeen() {
+            return firstSeen;
+        }
+
+        public long getLastSeen() {
+            return lastSeen;
+        }
+
+        public long getCount() {
+            return count;
+        }
+    }
+
+    public static final class Incident {
+        private final long id;
+        private final long opened;
+        private final String correlation;
+        private final String title;
+        private final LinkedHashMap<String, Occurrence> occurrences = new LinkedHashMap<>();
+        private State state = State.OPEN;
+        private long lastSeen;
+        private long changed;
+        private Outcome lastOutcome = Outcome.OPENED;
+
+        Incident(long id, long opened, String correlation, String title) {
+            this.id = id;
+            this.opened = opened;
+            this.correlation = correlation;
+            this.title = title;
+            this.lastSeen = opened;
+            this.changed = opened;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public long getOpened() {
+            return opened;
+        }
+
+        public String getCorrelation() {
+            return correlation;
+        }
+
+        public String getTitle() {
+            return title;
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        /**
+         * Time of the last alert.
+         */
+        public long getLastSeen() {
+            return lastSeen;
+        }
+
+        /**
+         * Time of the last state change.
+         */
+        public long getChanged() {
+            return changed;
+        }
+
+        public Collection<Occurrence> getOccurrences() {
+            return Collections.unmodifiableCollection(occurrences.values());
+        }
+
+        public long getAlertCount() {
+            long count = 0;
+            for (Occurrence occurrence : occurrences.values()) {
+                count += occurrence.count;
+            }
+            return count;
+        }
+
+        /**
+         * How the last reported alert was filed.
+         */
+        public Outcome getLastOutcome() {
+            return lastOutcome;
+        }
+
+        @Override
+        public String toString() {
+            return "#" + id + " " + state + " " + title + " (" + getAlertCount() + " alerts, "
+                    + String.join(", ", occurrences.keySet()) + ")";
+        }
+    }
+
+    private final Path journal;
+    private final TreeMap<Long, Incident> incidents = new TreeMap<>();
+    // open and acknowledged incidents only; byCorrelation holds the latest per source
+    private final Map<Long, Incident> unresolved = new LinkedHashMap<>();
+    private final Map<String, Incident> byFingerprint = new HashMap<>();
+    private final Map<String, Incident> byCorrelation = new HashMap<>();
+    // resolved incidents, roughly oldest first, until they are forgotten
+    private final Map<Long, Incident> resolved = new LinkedHashMap<>();
+    // occurrences with counts not yet in the journal
+    private final Map<Occurrence, Incident> dirty = new LinkedHashMap<>();
+    private Writer out;
+    private long lines;
+    // journal lines at which flush() next checks whether to compact
+    private long compactCheck = COMPACT_SLACK;
+    private long clock;
+
+    private long suppressionMillis = 15 * 60_000L;
+    private long correlationMillis = 10 * 60_000L;
+    private long resolveAfterMillis = 60 * 60_000L;
+    private long retainResolvedMillis = 7 * 24 * 60 * 60_000L;
+    private long suppressed;
+
+    /**
+     * Opens a store, replaying its journal.
+     *
+     * @param journal the journal file, created if missing; null keeps the store in memory only
+     */
+    public IncidentStore(Path journal) throws IOException {
+        this.journal = journal;
+        if (journal == null) {
+            return;
+        }
+        if (Files.exists(journal)) {
+            replay();
+        }
+        forgetExpired();
+        if (lines > 2 * requiredLines() + COMPACT_SLACK) {
+            compact();
+        }
+        openJournal();
+    }
+
+    /**
+     * Files an alert.
+     *
+     * @param rule        e.g. "brute-force-ip"
+     * @param key         what the rule counted, e.g. an address or user name
+     * @param correlation the source, alerts of which belong together
+     * @param message     title of the incident if this alert opens one
+     * @return the incident it went to, with the outcome as its last outcome
+     */
+    public Incident report(String rule, String key, String correlation, long time, String message)
+            throws IOException {
+        String fingerprint = clean(rule) + " " + clean(key);
+        clock = Math.max(clock, time);
+        Incident incident = active(byFingerprint.get(fingerprint), time);
+        if (incident != null) {
+            Occurrence occurrence = incident.occurrences.get(fingerprint);
+            boolean quiet = time - occurrence.lastSeen < suppressionMillis;
+            seen(incident, occurrence, time);
+            incident.lastOutcome = quiet ? Outcome.SUPPRESSED : Outcome.REPEATED;
+            if (quiet) {
+                suppressed++;
+            }
+            return incident;
+        }
+
+        incident = active(byCorrelation.get(clean(correlation)), time);
+        if (incident != null && time - incident.lastSeen < correlationMillis) {
+            incident.lastOutcome = Outcome.CORRELATED;
+        } else {
+            incident = new Incident(incidents.isEmpty() ? 1 : incidents.lastKey() + 1, time, clean(correlation),
+                    clean(message));
+            add(incident);
+            write("O", incident.id, time, incident.correlation, incident.title);
+        }
+        Occurrence occurrence = new Occurrence(fingerprint, time);
+        incident.occurrences.put(fingerprint, occurrence);
+        byFingerprint.put(fingerprint, incident);
+        seen(incident, occurrence, time);
+        return incident;
+    }
+
+    public void acknowledge(long id, long time) throws IOException {
+        Incident incident = get(id);
+        if (incident.state == State.OPEN) {
+            setState(incident, State.ACKNOWLEDGED, time);
+        }
+    }
+
+    public void resolve(long id, long time) throws IOException {
+        Incident incident = get(id);
+        if (incident.state != State.RESOLVED) {
+            setState(incident, State.RESOLVED, time);
+        }
+    }
+
+    /**
+     * Resolves the incidents without alerts for resolveAfterMillis before
+     * now, and forgets those resolved retainResolvedMillis ago.
+     */
+    public void resolveIdle(long now) throws IOException {
+        clock = Math.max(clock, now);
+        for (Incident incident : new ArrayList<>(unresolved.values())) {
+            active(incident, now);
+        }
+        forgetExpired();
+    }
+
+    /**
+     * The latest event time the store has seen, from alerts, state changes
+     * and the journal: the time to acknowledge or resolve at when no event
+     * is at hand, so the journal keeps to one clock.
+     */
+    public long getClock() {
+        return clock;
+    }
+
+    /**
+     * @throws IllegalArgumentException for an unknown id
+     */
+    public Incident get(long id) {
+        Incident incident = incidents.get(id);
+        if (incident == null) {
+            throw new IllegalArgumentException("No incident #" + id);
+        }
+        return incident;
+    }
+
+    /**
+     * All incidents not forgotten yet, oldest first.
+     */
+    public Collection<Incident> getIncidents() {
+        return Collections.unmodifiableCollection(incidents.values());
+    }
+
+    /**
+     * Alerts that were duplicates within the suppression window.
+     */
+    public long getSuppressedCount() {
+        return suppressed;
+    }
+
+    public long getSuppressionMillis() {
+        return suppressionMillis;
+    }
+
+    public void setSuppressionMillis(long suppressionMillis) {
+        this.suppressionMillis = suppressionMillis;
+    }
+
+    public long getCorrelationMillis() {
+        return correlationMillis;
+    }
+
+    public void setCorrelationMillis(long correlationMillis) {
+        this.correlationMillis = correlationMillis;
+    }
+
+    public long getResolveAfterMillis() {
+        return resolveAfterMillis;
+    }
+
+    public void setResolveAfterMillis(long resolveAfterMillis) {
+        this.resolveAfterMillis = resolveAfterMillis;
+    }
+
+    public long getRetainResolvedMillis() {
+        return retainResolvedMillis;
+    }
+
+    /**
+     * How long a resolved incident is kept, in memory and in the journal;
+     * a week by default. Takes effect at once in memory, in the journal at
+     * its next compaction.
+     */
+    public void setRetainResolvedMillis(long retainResolvedMillis) {
+        this.retainResolvedMillis = retainResolvedMillis;
+        forgetExpired();
+    }
+
+    /**
+     * Writes the alert counts changed since the last flush to the journal,
+     * and compacts it if it has grown too long.
+     */
+    public void flush() throws IOException {
+        if (out != null) {
+            for (Map.Entry<Occurrence, Incident> entry : dirty.entrySet()) {
+                // a compacted journal no longer opens an expired incident
+                if (!expired(entry.getValue())) {
+                    writeOccurrence(out, entry.getValue().id, entry.getKey());
+                    lines++;
+                }
+            }
+            out.flush();
+        }
+        dirty.clear();
+        // requiredLines() walks every incident, so only every COMPACT_SLACK lines
+        if (out != null && lines >= compactCheck) {
+            if (lines > 2 * requiredLines() + COMPACT_SLACK) {
+                out.close();
+                compact();
+                openJournal();
+            }
+            compactCheck = lines + COMPACT_SLACK;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (out != null) {
+            flush();
+            out.close();
+            out = null;
+        }
+    }
+
+    // The incident if it is still active at time; resolves it first if it has been idle too long
+    private Incident active(Incident incident, long time) throws IOException {
+        if (incident == null) {
+            return null;
+        }
+        if (time - incident.lastSeen >= resolveAfterMillis) {
+            setState(incident, State.RESOLVED, incident.lastSeen + resolveAfterMillis);
+            return null;
+        }
+        return incident;
+    }
+
+    // Drops resolved incidents past retention from memory; resolved is only roughly in order of
+    // resolution, so one may wait behind a younger one, but compact() skips it either way
+    private void forgetExpired() {
+        for (Iterator<Incident> it = resolved.values().iterator(); it.hasNext(); ) {
+            Incident incident = it.next();
+            if (!expired(incident)) {
+                break;
+            }
+            it.remove();
+            incidents.remove(incident.id);
+            for (Occurrence occurrence : incident.occurrences.values()) {
+                dirty.remove(occurrence);
+            }
+        }
+    }
+
+    private boolean expired(Incident incident) {
+        return incident.state == State.RESOLVED && clock - incident.changed >= retainResolvedMillis
+                && incident.id != incidents.lastKey();
+    }
+
+    private void seen(Incident incident, Occurrence occurrence, long time) {
+        occurrence.count++;
+        occurrence.lastSeen = Math.max(occurrence.lastSeen, time);
+        incident.lastSeen = Math.max(incident.lastSeen, time);
+        byCorrelation.put(incident.correlation, incident);
+        dirty.put(occurrence, incident);
+    }
+
+    private void add(Incident incident) {
+        incidents.put(incident.id, incident);
+        unresolved.put(incident.id, incident);
+        byCorrelation.put(incident.correlation, incident);
+    }
+
+    private void setState(Incident incident, State state, long time) throws IOException {
+        clock = Math.max(clock, time);
+        incident.state = state;
+        incident.changed = time;
+        if (state == State.RESOLVED) {
+            for (String fingerprint : incident.occurrences.keySet()) {
+                byFingerprint.remove(fingerprint, incident);
+            }
+            unresolved.remove(incident.id);
+            byCorrelation.remove(incident.correlation, incident);
+            resolved.put(incident.id, incident);
+        }
+        write("S", incident.id, time, state.name());
+    }
+
+    private void write(String type, long id, long time, String... fields) throws IOException {
+        if (out == null) {
+            return;
+        }
+        out.write(type + "\t" + id + "\t" + time);
+        for (String field : fields) {
+            out.write("\t" + field);
+        }
+        out.write("\n");
+        lines++;
+        out.flush();
+    }
+
+    private static void writeOccurrence(Writer writer, long id, Occurrence occurrence) throws IOException {
+        writer.write("A\t" + id + "\t" + occurrence.lastSeen + "\t" + occurrence.fingerprint + "\t"
+                + occurrence.firstSeen + "\t" + occurrence.count + "\n");
+    }
+
+    // O id time correlation title | A id lastSeen fingerprint firstSeen count | S id time state
+    private void replay() throws IOException {
+        byte[] data = Files.readAllBytes(journal);
+        int good = 0;
+        for (int end = 0; end < data.length; end++) {
+            if (data[end] != '\n') {
+                continue;
+            }
+            try {
+                apply(new String(data, good, end - good, StandardCharsets.UTF_8).split("\t"));
+            } catch (RuntimeException e) {
+                if (end + 1 < data.length) {
+                    // records follow, so this is damage, not a crash mid-write
+                    throw new IOException(journal + ": line " + (lines + 1) + ": " + e.getMessage(), e);
+                }
+                break;
+            }
+            good = end + 1;
+            lines++;
+        }
+        if (good < data.length) {
+            // the last line, torn by a crash: the journal ends before it
+            try (FileChannel channel = FileChannel.open(journal, StandardOpenOption.WRITE)) {
+                channel.truncate(good);
+            }
+        }
+    }
+
+    private void apply(String[] fields) {
+        long id = Long.parseLong(fields[1]);
+        long time = Long.parseLong(fields[2]);
+        clock = Math.max(clock, time);
+        switch (fields[0]) {
+            case "O": {
+                add(new Incident(id, time, fields[3], fields[4]));
+                break;
+            }
+            case "A": {
+                Incident incident = get(id);
+                Occurrence occurrence = incident.occurrences.computeIfAbsent(fields[3],
+                        fingerprint -> new Occurrence(fingerprint, Long.parseLong(fields[4])));
+                occurrence.lastSeen = time;
+                occurrence.count = Long.parseLong(fields[5]);
+                incident.lastSeen = Math.max(incident.lastSeen, time);
+                if (incident.state != State.RESOLVED) {
+                    byFingerprint.put(fields[3], incident);
+                }
+                break;
+            }
+            case "S": {
+                Incident incident = get(id);
+                incident.state = State.valueOf(fields[3]);
+                incident.changed = time;
+                if (incident.state == State.RESOLVED) {
+                    for (String fingerprint : incident.occurrences.keySet()) {
+                        byFingerprint.remove(fingerprint, incident);
+                    }
+                    unresolved.remove(incident.id);
+                    byCorrelation.remove(incident.correlation, incident);
+                    resolved.put(incident.id, incident);
+                }
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("Unknown journal record " + fields[0]);
+        }
+    }
+
+    private long requiredLines() {
+        long required = 0;
+        for (Incident incident : incidents.values()) {
+            if (expired(incident)) {
+                continue;
+            }
+            required += 1 + incident.occurrences.size() + (incident.state == State.OPEN ? 0 : 1);
+        }
+        return required;
+    }
+
+    // Rewrites the journal with one line per kept incident, fingerprint and state, then moves it into place
+    private void compact() throws IOException {
+        Path temp = Files.createTempFile(journal.toAbsolutePath().getParent(), "incidents", ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            for (Incident incident : incidents.values()) {
+                if (expired(incident)) {
+                    continue;
+                }
+                writer.write("O\t" + incident.id + "\t" + incident.opened + "\t" + incident.correlation + "\t"
+                        + incident.title + "\n");
+                for (Occurrence occurrence : incident.occurrences.values()) {
+                    writeOccurrence(writer, incident.id, occurrence);
+                }
+                if (incident.state != State.OPEN) {
+                    writer.write("S\t" + incident.id + "\t" + incident.changed + "\t" + incident.state + "\n");
+                }
+            }
+        }
+        Files.move(temp, journal, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        lines = requiredLines();
+    }
+
+    private void openJournal() throws IOException {
+        out = Files.newBufferedWriter(journal, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND);
+    }
+
+    private static String clean(String field) {
+        return field.replace('\t', ' ').replace('\n', ' ');
+    }
+}
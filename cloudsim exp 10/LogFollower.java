@@ -0,0 +1,256 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Follows a growing log file, like tail -F
+ *
+ * run() reads what is appended to the file and passes it on in whole
+ * lines, then sleeps on a WatchService of the file's directory until the
+ * file changes again. Reads are positional FileChannel reads from the
+ * last offset, so each byte is read once and the work follows the append
+ * rate; a poll every POLL_MILLIS covers platforms whose WatchService is
+ * slow or misses events.
+ *
+ * The file is tracked by its identity (the file key, i.e. device and
+ * inode where there is one), not just its name:
+ *
+ *   rotation (the file is renamed and a new one created): the rest of the
+ *   old file is read through the still open channel, then the new file is
+ *   followed from its start;
+ *   truncation (the file got shorter than the offset, as with
+ *   copytruncate): it is read again from the start.
+ *
+ * The identity and offset are saved to a checkpoint file, at most once a
+ * second and on the way out, replacing it atomically. A new LogFollower
+ * resumes from there if the file is still the same one and not shorter;
+ * otherwise it starts at the beginning of the file.
+ */
+public class LogFollower implements Closeable {
+
+    public static final long POLL_MILLIS = 250;
+
+    private static final long CHECKPOINT_MILLIS = 1000;
+    private static final int READ_BYTES = 1 << 20;
+
+    /**
+     * Receives new log data, on the thread that runs the follower.
+     */
+    public interface LineConsumer {
+
+        /**
+         * @param lines whole lines, from position 0 to limit
+         */
+        void accept(ByteBuffer lines) throws IOException;
+    }
+
+    private final Path file;
+    private final Path checkpoint;
+    private final LineConsumer consumer;
+    private final WatchService watcher;
+
+    private FileChannel channel;
+    private String identity;
+    private long offset;
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(READ_BYTES);
+    private long savedOffset = -1;
+    private long savedAt;
+    private volatile boolean stopped;
+
+    private long bytesRead;
+    private long rotations;
+    private long truncations;
+
+    /**
+     * @param checkpoint where the position is kept across restarts, or null for none
+     */
+    public LogFollower(Path file, Path checkpoint, LineConsumer consumer) throws IOException {
+        this.file = file.toAbsolutePath();
+        this.checkpoint = checkpoint;
+        this.consumer = consumer;
+        this.watcher = this.file.getFileSystem().newWatchService();
+        this.file.getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+        restore();
+    }
+
+    /**
+     * Follows the file until stop() is called or the thread is interrupted.
+     */
+    public void run() throws IOException {
+        try {
+            while (!stopped) {
+                poll();
+                WatchKey key = watcher.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (key != null) {
+                    // any change in the directory just means: look again
+                    key.pollEvents();
+                    key.reset();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ClosedWatchServiceException e) {
+            // closed by close() while waiting
+        } finally {
+            save(true);
+        }
+    }
+
+    /**
+     * Reads whatever was appended, rotated or truncated since the last call.
+     */
+    public void poll() throws IOException {
+        String current = identityOf(file);
+        if (channel != null && current != null && !current.equals(identity)) {
+            // rotated: finish the old file, then start on the new one
+            drain();
+            channel.close();
+            channel = null;
+            rotations++;
+        }
+        if (channel == null) {
+            if (current == null) {
+                return;
+            }
+            try {
+                channel = FileChannel.open(file, StandardOpenOption.READ);
+            } catch (NoSuchFileException e) {
+                return;
+            }
+            if (!current.equals(identity)) {
+                identity = current;
+                offset = 0;
+            }
+        }
+        if (channel.size() < offset) {
+            truncations++;
+            offset = 0;
+        }
+        drain();
+        save(false);
+    }
+
+    /**
+     * Makes run() return after its current step. May be called from any thread.
+     */
+    public void stop() {
+        stopped = true;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    public long getRotations() {
+        return rotations;
+    }
+
+    public long getTruncations() {
+        return truncations;
+    }
+
+    @Override
+    public void close() throws IOException {
+        stopped = true;
+        try {
+            watcher.close();
+        } finally {
+            if (channel != null) {
+                channel.close();
+            }
+        }
+    }
+
+    // Passes on all whole lines from offset to the end of the open channel
+    private void drain() throws IOException {
+        while (true) {
+            buffer.clear();
+            int n = channel.read(buffer, offset);
+            if (n <= 0) {
+                return;
+            }
+            bytesRead += n;
+            int end = buffer.position();
+            while (end > 0 && buffer.get(end - 1) != '\n') {
+                end--;
+            }
+            if (end == 0) {
+                if (buffer.hasRemaining()) {
+                    // an unfinished last line: wait until it is complete
+                    return;
+                }
+                // a line longer than the buffer
+                buffer = ByteBuffer.allocateDirect(buffer.capacity() * 2);
+                continue;
+            }
+            buffer.flip().limit(end);
+            consumer.accept(buffer.slice());
+            offset += end;
+        }
+    }
+
+    // Identity of the file now at path, or null if there is none
+    private static String identityOf(Path path) throws IOException {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        Object key = attributes.fileKey();
+        return key != null ? key.toString() : "created " + attributes.creationTime();
+    }
+
+    // Checkpoint: two lines, identity and offset
+    private void restore() throws IOException {
+        if (checkpoint == null || !Files.exists(checkpoint)) {
+            return;
+        }
+        List<String> lines = Files.readAllLines(checkpoint, StandardCharsets.UTF_8);
+        if (lines.size() < 2) {
+            return;
+        }
+        String saved = lines.get(0);
+        long savedOffset = Long.parseLong(lines.get(1).trim());
+        if (saved.equals(identityOf(file)) && Files.size(file) >= savedOffset) {
+            identity = saved;
+            offset = savedOffset;
+            this.savedOffset = savedOffset;
+        }
+    }
+
+    private void save(boolean force) throws IOException {
+        if (checkpoint == null || identity == null || offset == savedOffset) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (!force && now - savedAt < CHECKPOINT_MILLIS) {
+            return;
+        }
+        Path parent = checkpoint.toAbsolutePath().getParent();
+        Path temp = Files.createTempFile(parent, "checkpoint", ".tmp");
+        Files.write(temp, (identity + "\n" + offset + "\n").getBytes(StandardCharsets.UTF_8));
+        Files.move(temp, checkpoint, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        savedOffset = offset;
+        savedAt = now;
+    }
+}
@@ -1,15 +1,52 @@
 // Experiment 10: Log Monitoring with Incident Management
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
 import java.util.*;
 
 public class LogMonitoring {
 
     private static final String LOG_FILE = "system_logs.txt";
 
+    private static final String RULES_FILE = "rules.conf";
+    private static final int SCAN_BLOCK = 1 << 16;
+    private static final int WINDOW_BUCKETS = 12;
+    private static final int MAX_PRINTED_ALERTS = 20;
+    private static final long RELOAD_MILLIS = 1000;
+
+    // Rules when there is no rules.conf (package-private for the benchmarks)
+    static final String DEFAULT_RULES = String.join("\n",
+            "rule brute-force-ip severity=HIGH key=ip threshold=5 window=60s match=\"Login failed\" \\",
+            "    message=\"Possible brute-force attack from ip {ip} ({count} failed logins within {window})\"",
+            "rule brute-force-user severity=HIGH key=user threshold=3 window=60s match=\"Login failed\" \\",
+            "    message=\"Possible brute-force attack on user {user} ({count} failed logins within {window})\"",
+            "rule unauthorized severity=CRITICAL key=ip match=\"Unauthorized access\" \\",
+            "    message=\"Unauthorized access detected from ip {ip} by user {user}\"");
+
+    // Key of events without the field
+    private static final long NO_KEY = -1;
+    private static final long NO_TIME = Long.MIN_VALUE;
+    private static final byte[] IP_FIELD = "ip=".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] USER_FIELD = "user=".getBytes(StandardCharsets.US_ASCII);
+
     public static void main(String[] args) {
 
         try {
+            if (args.length > 0 && args[0].equals("follow")) {
+                followLogs(args.length > 1 ? args[1] : LOG_FILE);
+                return;
+            }
+            if (args.length > 0 && args[0].equals("incidents")) {
+                manageIncidents(args.length > 1 ? args[1] : LOG_FILE, Arrays.copyOfRange(args, Math.min(2, args.length),
+                        args.length));
+                return;
+            }
+
             System.out.println("Log Monitoring System Started\n");
 
             // Step 1: Generate Logs
@@ -30,12 +67,16 @@ public class LogMonitoring {
 
         FileWriter writer = new FileWriter(LOG_FILE);
 
-        writer.write("INFO: User login successful\n");
-        writer.write("INFO: File uploaded\n");
-        writer.write("WARNING: Login failed\n");
-        writer.write("WARNING: Login failed\n");
-        writer.write("WARNING: Login failed\n");
-        writer.write("ERROR: Unauthorized access attempt\n");
+        writer.write("2026-03-16 09:12:40 WARNING: Login failed user=bob ip=10.0.0.7\n");
+        writer.write("2026-03-16 10:00:00 INFO: User login successful user=alice ip=10.0.0.5\n");
+        writer.write("2026-03-16 10:00:04 INFO: File uploaded user=alice ip=10.0.0.5\n");
+        writer.write("2026-03-16 10:01:10 WARNING: Login failed user=admin ip=203.0.113.9\n");
+        writer.write("2026-03-16 10:01:12 WARNING: Login failed user=admin ip=203.0.113.9\n");
+        writer.write("2026-03-16 10:01:15 WARNING: Login failed user=admin ip=203.0.113.9\n");
+        writer.write("2026-03-16 10:01:20 ERROR: Unauthorized access attempt user=admin ip=203.0.113.9\n");
+        writer.write("2026-03-16 10:01:21 ERROR: Unauthorized access attempt user=admin ip=203.0.113.9\n");
+        writer.write("2026-03-16 10:03:05 ERROR: Unauthorized access attempt user=root ip=203.0.113.9\n");
+        writer.write("2026-03-16 11:30:02 WARNING: Login failed user=bob ip=10.0.0.7\n");
 
         writer.close();
         System.out.println("Logs generated");
@@ -43,28 +84,438 @@ public class LogMonitoring {
 
     // Monitor logs and detect incidents
     private static void monitorLogs() throws IOException {
+        monitorLogs(LOG_FILE);
+    }
+
+    // Monitor any log file with the rules of rules.conf, or the built-in ones
+    static void monitorLogs(String logFile) throws IOException {
+        monitorLogs(logFile, new RulesFile(Paths.get(RULES_FILE)).current());
+    }
 
-        BufferedReader reader = new BufferedReader(new FileReader(LOG_FILE));
-        String line;
-        int failedLogins = 0;
+    // Monitor any log file (package-private for the benchmarks)
+    static void monitorLogs(String logFile, RuleSet rules) throws IOException {
 
         System.out.println("Monitoring logs...");
 
-        while ((line = reader.readLine()) != null) {
+        // matching lines become events per chunk in parallel, then go through the detector in file order
+        IncidentStore incidents = new IncidentStore(null);
+        Detector detector = new Detector(rules, incidents, MAX_PRINTED_ALERTS);
+        new MappedLogScanner().scan(logFile, chunk -> scanEvents(rules, chunk), detector::replay);
 
-            if (line.contains("Login failed")) {
-                failedLogins++;
+        if (detector.printed > MAX_PRINTED_ALERTS) {
+            System.out.println("... " + (detector.printed - MAX_PRINTED_ALERTS) + " more incident updates");
+        }
+        System.out.println(detector.summary() + ": " + detector.alerts + " alerts in "
+                + incidents.getIncidents().size() + " incidents, " + incidents.getSuppressedCount()
+                + " duplicates suppressed");
+    }
+
+    // List the incidents of a followed log, or acknowledge or resolve one ("ack 3"); not while it is followed.
+    // Changes are stamped with the log's event time, which the store keeps, not the wall clock
+    private static void manageIncidents(String logFile, String[] command) throws IOException {
+
+        try (IncidentStore incidents = new IncidentStore(Paths.get(logFile + ".incidents"))) {
+            if (command.length == 2 && command[0].equals("ack")) {
+                incidents.acknowledge(Long.parseLong(command[1]), incidents.getClock());
+            } else if (command.length == 2 && command[0].equals("resolve")) {
+                incidents.resolve(Long.parseLong(command[1]), incidents.getClock());
+            } else if (command.length > 0) {
+                throw new IllegalArgumentException("Usage: java LogMonitoring incidents [file] [ack|resolve id]");
+            }
+            for (IncidentStore.Incident incident : incidents.getIncidents()) {
+                System.out.println(Instant.ofEpochMilli(incident.getOpened()) + " " + incident);
             }
+        }
+    }
 
-            if (line.contains("Unauthorized access")) {
-                System.out.println("INCIDENT ALERT: Unauthorized access detected!");
+    // Follow a log as it grows, alerting on appended lines; Ctrl-C stops it and keeps the position
+    private static void followLogs(String logFile) throws IOException {
+
+        RulesFile rulesFile = new RulesFile(Paths.get(RULES_FILE));
+        IncidentStore incidents = new IncidentStore(Paths.get(logFile + ".incidents"));
+        Detector detector = new Detector(rulesFile.current(), incidents, Long.MAX_VALUE);
+        LogFollower follower = new LogFollower(Paths.get(logFile), Paths.get(logFile + ".checkpoint"), lines -> {
+            // rules.conf may have changed; counts of unchanged rules carry over
+            detector.setRules(rulesFile.current());
+            detector.replay(scanEvents(detector.rules, lines));
+            incidents.resolveIdle(detector.clock);
+            incidents.flush();
+        });
+
+        Thread following = Thread.currentThread();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            follower.stop();
+            try {
+                following.join(2 * LogFollower.POLL_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
+        }));
+
+        System.out.println("Following " + logFile + (follower.getOffset() > 0
+                ? " from byte " + follower.getOffset() + " (checkpoint)" : "") + ", Ctrl-C to stop");
+        try {
+            follower.run();
+        } finally {
+            follower.close();
+            incidents.close();
         }
+        System.out.println("Stopped at byte " + follower.getOffset() + ". " + detector.summary() + ": "
+                + detector.alerts + " alerts, " + incidents.getSuppressedCount() + " duplicates suppressed");
+    }
 
-        reader.close();
+    /**
+     * Rules from a file, checked for changes at most once a second. Without
+     * the file the built-in rules apply; a file with errors keeps the rules
+     * that were there before.
+     */
+    private static final class RulesFile {
+        final Path path;
+        RuleSet rules;
+        long modified = -1;
+        long checked;
 
-        if (failedLogins >= 3) {
-            System.out.println("INCIDENT ALERT: Possible brute-force attack detected!");
+        RulesFile(Path path) {
+            this.path = path;
+        }
+
+        RuleSet current() throws IOException {
+            long now = System.currentTimeMillis();
+            if (rules != null && now - checked < RELOAD_MILLIS) {
+                return rules;
+            }
+            checked = now;
+            long stamp = Files.exists(path) ? Files.getLastModifiedTime(path).toMillis() : 0;
+            if (stamp != modified) {
+                modified = stamp;
+                try {
+                    rules = stamp == 0 ? RuleSet.parse(DEFAULT_RULES) : RuleSet.load(path);
+                    System.out.println("Loaded " + rules.getRules().size() + " rules"
+                            + (stamp == 0 ? "" : " from " + path));
+                } catch (IOException e) {
+                    if (rules == null) {
+                        throw e;
+                    }
+                    System.out.println("Keeping the previous rules: " + e.getMessage());
+                }
+            }
+            return rules;
+        }
+    }
+
+    /**
+     * The rule matches of one chunk, in line order: rule id, time and the
+     * hashes of the rule's key, ip and user field values.
+     */
+    private static final class Events {
+        final RuleSet rules;
+        int size;
+        int[] ruleIds = new int[256];
+        long[] times = new long[256];
+        long[] keys = new long[256];
+        long[] ips = new long[256];
+        long[] users = new long[256];
+        // field values of the hashes seen in this chunk, for the alert messages
+        final Map<Long, String> names = new HashMap<>();
+
+        Events(RuleSet rules) {
+            this.rules = rules;
+        }
+
+        void add(int ruleId, long time, long key, long ip, long user) {
+            if (size == times.length) {
+                ruleIds = Arrays.copyOf(ruleIds, 2 * size);
+                times = Arrays.copyOf(times, 2 * size);
+                keys = Arrays.copyOf(keys, 2 * size);
+                ips = Arrays.copyOf(ips, 2 * size);
+                users = Arrays.copyOf(users, 2 * size);
+            }
+            ruleIds[size] = ruleId;
+            times[size] = time;
+            keys[size] = key;
+            ips[size] = ip;
+            users[size] = user;
+            size++;
+        }
+
+        String name(long hash) {
+            return hash == NO_KEY ? "(unknown)" : names.getOrDefault(hash, "#" + Long.toHexString(hash));
+        }
+    }
+
+    /**
+     * A sliding-window counter per rule with a threshold above 1, fed with
+     * the events in file order. Alerts go to the incident store as soon as
+     * a window fills up (for a threshold of 1, at every match); new
+     * incidents, alerts correlated into open ones and repeats after the
+     * suppression window are printed, duplicates are only counted.
+     */
+    private static final class Detector {
+        final IncidentStore incidents;
+        final long printLimit;
+        RuleSet rules;
+        SlidingWindowCounter[] counters;
+        long[] matches;
+        long clock = NO_TIME;
+        long alerts;
+        long printed;
+
+        Detector(RuleSet rules, IncidentStore incidents, long printLimit) {
+            this.incidents = incidents;
+            this.printLimit = printLimit;
+            setRules(rules);
+        }
+
+        // Switches to other rules, keeping the counts of the rules that count alike in both
+        void setRules(RuleSet next) {
+            if (next == rules) {
+                return;
+            }
+            Map<String, Integer> previous = new HashMap<>();
+            for (int r = 0; rules != null && r < rules.getRules().size(); r++) {
+                previous.put(rules.getRule(r).getName(), r);
+            }
+            SlidingWindowCounter[] nextCounters = new SlidingWindowCounter[next.getRules().size()];
+            long[] nextMatches = new long[nextCounters.length];
+            for (int r = 0; r < nextCounters.length; r++) {
+                RuleSet.Rule rule = next.getRule(r);
+                Integer old = previous.get(rule.getName());
+                if (old != null && rule.countsLike(rules.getRule(old))) {
+                    nextCounters[r] = counters[old];
+                    nextMatches[r] = matches[old];
+                } else if (rule.getThreshold() > 1) {
+                    nextCounters[r] = new SlidingWindowCounter(rule.getWindowMillis(), WINDOW_BUCKETS,
+                            rule.getThreshold());
+                }
+            }
+            rules = next;
+            counters = nextCounters;
+            matches = nextMatches;
+        }
+
+        void replay(Events events) throws IOException {
+            if (events.rules != rules) {
+                throw new IllegalStateException("Events scanned with other rules");
+            }
+            for (int i = 0; i < events.size; i++) {
+                // lines without a timestamp happen when the previous one did
+                long time = events.times[i] == NO_TIME ? clock : events.times[i];
+                clock = Math.max(clock, time);
+                long windowTime = time == NO_TIME ? 0 : time;
+                int r = events.ruleIds[i];
+                matches[r]++;
+                int count = 1;
+                if (counters[r] != null) {
+                    count = counters[r].add(events.keys[i], windowTime);
+                    if (count == 0) {
+                        continue;
+                    }
+                }
+                RuleSet.Rule rule = rules.getRule(r);
+                String key = rule.getKey() == null ? "all" : events.name(events.keys[i]);
+                String ip = events.name(events.ips[i]);
+                alert(windowTime, rule, key, ip,
+                        rule.format(key, count, ip, events.name(events.users[i])));
+            }
+        }
+
+        String summary() {
+            StringBuilder summary = new StringBuilder("Matches:");
+            for (int r = 0; r < matches.length; r++) {
+                if (matches[r] > 0) {
+                    summary.append(' ').append(rules.getRule(r).getName()).append(' ').append(matches[r]);
+                }
+            }
+            return summary.toString();
+        }
+
+        // Alerts are correlated by source address
+        private void alert(long time, RuleSet.Rule rule, String key, String ip, String message) throws IOException {
+            alerts++;
+            IncidentStore.Incident incident = incidents.report(rule.getName(), key, ip, time,
+                    "[" + rule.getSeverity() + "] " + message);
+            if (incident.getLastOutcome() != IncidentStore.Outcome.SUPPRESSED && ++printed <= printLimit) {
+                System.out.println("INCIDENT #" + incident.getId() + " " + incident.getLastOutcome() + " "
+                        + (clock == NO_TIME ? "" : Instant.ofEpochMilli(time) + " ") + "[" + rule.getSeverity()
+                        + "] " + message);
+            }
+        }
+    }
+
+    // Record the rule matches of one chunk; lines are scanned once for all literals and decoded only to run regexes
+    private static Events scanEvents(RuleSet rules, ByteBuffer chunk) {
+        Events events = new Events(rules);
+        AhoCorasick matcher = rules.getMatcher();
+        int[] lineLiterals = new int[rules.getLiterals().size()];
+        long[] seenOnLine = new long[lineLiterals.length];
+        Arrays.fill(seenOnLine, -1);
+        boolean everyLine = rules.getUnfilteredRules().length > 0;
+        byte[] block = new byte[SCAN_BLOCK];
+        long line = 0;
+        int lineStart = 0;
+        int hitCount = 0;
+        int state = 0;
+        int offset = 0;
+        while (chunk.hasRemaining()) {
+            int n = Math.min(block.length, chunk.remaining());
+            chunk.get(block, 0, n);
+            for (int i = 0; i < n; i++) {
+                byte b = block[i];
+                if (b == '\n') {
+                    if (hitCount > 0 || everyLine) {
+                        evaluate(chunk, lineStart, offset + i, lineLiterals, hitCount, seenOnLine, line, events);
+                        hitCount = 0;
+                    }
+                    line++;
+                    lineStart = offset + i + 1;
+                    state = 0;
+                    continue;
+                }
+                state = matcher.step(state, b);
+                int[] hits = matcher.matches(state);
+                if (hits != null) {
+                    for (int p : hits) {
+                        if (seenOnLine[p] != line) {
+                            seenOnLine[p] = line;
+                            lineLiterals[hitCount++] = p;
+                        }
+                    }
+                }
+            }
+            offset += n;
+        }
+        if (lineStart < offset && (hitCount > 0 || everyLine)) {
+            evaluate(chunk, lineStart, offset, lineLiterals, hitCount, seenOnLine, line, events);
+        }
+        return events;
+    }
+
+    // Try the rules of the literals found in a line, and the unfiltered ones
+    // Lines look like "2026-03-16 10:01:10 WARNING: Login failed user=admin ip=203.0.113.9"
+    private static void evaluate(ByteBuffer chunk, int start, int end, int[] literals, int count, long[] seenOnLine,
+                                 long line, Events events) {
+        RuleSet rules = events.rules;
+        String text = null;
+        boolean parsed = false;
+        long time = NO_TIME;
+        long ip = NO_KEY;
+        long user = NO_KEY;
+        for (int c = 0; c <= count; c++) {
+            int[] candidates = c < count ? rules.rulesFor(literals[c]) : rules.getUnfilteredRules();
+            candidates:
+            for (int r : candidates) {
+                for (int literal : rules.literalsOf(r)) {
+                    if (seenOnLine[literal] != line) {
+                        continue candidates;
+                    }
+                }
+                RuleSet.Rule rule = rules.getRule(r);
+                if (rule.getRegex() != null) {
+                    if (text == null) {
+                        byte[] bytes = new byte[end - start];
+                        for (int i = 0; i < bytes.length; i++) {
+                            bytes[i] = chunk.get(start + i);
+                        }
+                        text = new String(bytes, StandardCharsets.UTF_8);
+                    }
+                    if (!rule.getRegex().matcher(text).find()) {
+                        continue;
+                    }
+                }
+                if (!parsed) {
+                    time = parseTime(chunk, start, end);
+                    ip = fieldHash(chunk, start, end, IP_FIELD, events);
+                    user = fieldHash(chunk, start, end, USER_FIELD, events);
+                    parsed = true;
+                }
+                long key;
+                if (rule.getKey() == null) {
+                    key = 0;
+                } else if (rule.getKey().equals("ip")) {
+                    key = ip;
+                } else if (rule.getKey().equals("user")) {
+                    key = user;
+                } else {
+                    key = fieldHash(chunk, start, end, rule.getKeyField(), events);
+                }
+                events.add(r, time, key, ip, user);
+            }
+        }
+    }
+
+    // FNV-1a hash of the value of a name= field, which ends at a space; NO_KEY without the field
+    private static long fieldHash(ByteBuffer chunk, int start, int end, byte[] name, Events events) {
+        int at = field(chunk, start, end, name);
+        if (at < 0) {
+            return NO_KEY;
+        }
+        long hash = 0xcbf29ce484222325L;
+        int stop = at;
+        while (stop < end && chunk.get(stop) != ' ' && chunk.get(stop) != '\r') {
+            hash = (hash ^ (chunk.get(stop) & 0xff)) * 0x100000001b3L;
+            stop++;
+        }
+        hash &= Long.MAX_VALUE;
+        if (!events.names.containsKey(hash)) {
+            byte[] value = new byte[stop - at];
+            for (int i = 0; i < value.length; i++) {
+                value[i] = chunk.get(at + i);
+            }
+            events.names.put(hash, new String(value, StandardCharsets.UTF_8));
+        }
+        return hash;
+    }
+
+    // Position after name in the line, where name starts the line or follows a space; -1 if absent
+    private static int field(ByteBuffer chunk, int start, int end, byte[] name) {
+        for (int i = start; i + name.length <= end; i++) {
+            if (i > start && chunk.get(i - 1) != ' ') {
+                continue;
+            }
+            int k = 0;
+            while (k < name.length && chunk.get(i + k) == name[k]) {
+                k++;
+            }
+            if (k == name.length) {
+                return i + k;
+            }
+        }
+        return -1;
+    }
+
+    // "yyyy-MM-dd HH:mm:ss" (or with a 'T') at the start of the line, UTC, in epoch millis; NO_TIME if absent
+    private static long parseTime(ByteBuffer chunk, int start, int end) {
+        if (end - start < 19) {
+            return NO_TIME;
+        }
+        int[] fields = new int[6];
+        int at = start;
+        for (int f = 0; f < fields.length; f++) {
+            int digits = f == 0 ? 4 : 2;
+            for (int d = 0; d < digits; d++) {
+                byte b = chunk.get(at++);
+                if (b < '0' || b > '9') {
+                    return NO_TIME;
+                }
+                fields[f] = 10 * fields[f] + b - '0';
+            }
+            byte separator = f == 5 ? (byte) ' ' : chunk.get(at++);
+            if (f < 2 && separator != '-' || f == 2 && separator != ' ' && separator != 'T'
+                    || (f == 3 || f == 4) && separator != ':') {
+                return NO_TIME;
+            }
+        }
+        int month = fields[1];
+        if (month < 1 || month > 12 || fields[2] < 1 || fields[2] > 31) {
+            return NO_TIME;
         }
+        // days from civil (Howard Hinnant), March-based years
+        int year = month <= 2 ? fields[0] - 1 : fields[0];
+        int era = year / 400;
+        int yearOfEra = year - era * 400;
+        int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + fields[2] - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        long days = era * 146097L + dayOfEra - 719468;
+        return ((days * 24 + fields[3]) * 60 + fields[4]) * 60_000L + fields[5] * 1000L;
     }
 }
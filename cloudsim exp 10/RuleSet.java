@@ -0,0 +1,555 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Alert rules read from a config file, compiled into one matcher
+ *
+ * One rule per line, "#" starts a comment and a trailing "\" continues a
+ * line:
+ *
+ *   rule brute-force-ip severity=HIGH key=ip threshold=5 window=60s \
+ *       match="Login failed" message="Brute force from {ip} ({count} in {window})"
+ *
+ *   severity   LOW, MEDIUM (default), HIGH or CRITICAL
+ *   key        the field (name=value in the line) whose values are counted
+ *              apart, or "-" to count all lines together
+ *   threshold  matches within the window that raise an alert, default 1
+ *   window     e.g. 500ms, 60s, 5m, 1h; needed with a threshold above 1
+ *   match      text the line must contain
+ *   regex      Java regular expression the line must match (find)
+ *   message    alert text, with {rule}, {key}, {count}, {window}, {ip} and
+ *              {user} replaced
+ *
+ * A rule needs match, regex or both. Its literals are the match text and
+ * the runs of plain text its regex requires (e.g. "union" and "select" in
+ * "union\s+select"). All literals go into a single Aho-Corasick automaton,
+ * so a line is scanned once however many rules there are. A rule is only
+ * looked at on lines where its most selective literal (the one fewest
+ * rules share) occurs, and its regex only runs if all its literals do.
+ * Regexes without required text, e.g. with alternations or (?i), have to
+ * run on every line and are reported by getUnfilteredRules().
+ *
+ * A RuleSet is immutable and can be shared by scanning threads.
+ */
+public class RuleSet {
+
+    public enum Severity {
+        LOW, MEDIUM, HIGH, CRITICAL
+    }
+
+    public static final class Rule {
+        private final String name;
+        private final Severity severity;
+        private final String key;
+        private final int threshold;
+        private final long windowMillis;
+        private final List<String> literals;
+        private final Pattern regex;
+        private final String message;
+        private final byte[] keyField;
+
+        Rule(String name, Severity severity, String key, int threshold, long windowMillis, List<String> literals,
+             Pattern regex, String message) {
+            this.name = name;
+            this.severity = severity;
+            this.key = key;
+            this.threshold = threshold;
+            this.windowMillis = windowMillis;
+            this.literals = Collections.unmodifiableList(literals);
+            this.regex = regex;
+            this.message = message;
+            this.keyField = key == null ? null : (key + "=").getBytes(StandardCharsets.UTF_8);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public Severity getSeverity() {
+            return severity;
+        }
+
+        /**
+         * The field counted per value, or null to count all lines together.
+         */
+        public String getKey() {
+            return key;
+        }
+
+        /**
+         * "key=" as bytes, to find the key field in a line.
+         */
+        byte[] getKeyField() {
+            return keyField;
+        }
+
+        public int getThreshold() {
+            return threshold;
+        }
+
+        public long getWindowMillis() {
+            return windowMillis;
+        }
+
+        /**
+         * Texts every matching line contains; empty if there is nothing to prefilter on.
+         */
+        public List<String> getLiterals() {
+            return literals;
+        }
+
+        public Pattern getRegex() {
+            return regex;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        /**
+         * Whether counting state can be carried over from other to this rule.
+         */
+        boolean countsLike(Rule other) {
+            return name.equals(other.name) && String.valueOf(key).equals(String.valueOf(other.key))
+                    && threshold == other.threshold && windowMillis == other.windowMillis;
+        }
+
+        /**
+         * The alert text for these values.
+         */
+        public String format(String keyValue, int count, String ip, String user) {
+            return message.replace("{rule}", name).replace("{key}", keyValue)
+                    .replace("{count}", Integer.toString(count))
+                    .replace("{window}", windowMillis % 1000 == 0 ? windowMillis / 1000 + " s" : windowMillis + " ms")
+                    .replace("{ip}", ip).replace("{user}", user);
+        }
+    }
+
+    private static final Pattern WINDOW = Pattern.compile("([0-9]+)(ms|s|m|h)?");
+    private static final int MIN_PREFILTER = 3;
+
+    private final List<Rule> rules;
+    private final List<String> literals;
+    private final int[][] literalsOfRule;
+    private final int[][] rulesByLiteral;
+    private final int[] unfiltered;
+    private final AhoCorasick matcher;
+
+    private RuleSet(List<Rule> rules) {
+        this.rules = Collections.unmodifiableList(rules);
+        Map<String, Integer> ids = new LinkedHashMap<>();
+        List<Integer> users = new ArrayList<>();
+        literalsOfRule = new int[rules.size()][];
+        for (int r = 0; r < rules.size(); r++) {
+            List<String> texts = rules.get(r).literals;
+            literalsOfRule[r] = new int[texts.size()];
+            for (int i = 0; i < texts.size(); i++) {
+                Integer id = ids.get(texts.get(i));
+                if (id == null) {
+                    id = ids.size();
+                    ids.put(texts.get(i), id);
+                    users.add(0);
+                }
+                users.set(id, users.get(id) + 1);
+                literalsOfRule[r][i] = id;
+            }
+        }
+        this.literals = Collections.unmodifiableList(new ArrayList<>(ids.keySet()));
+
+        // each rule under its literal with the fewest rules, the longest of those
+        List<List<Integer>> byLiteral = new ArrayList<>();
+        for (int l = 0; l < literals.size(); l++) {
+            byLiteral.add(new ArrayList<>());
+        }
+        List<Integer> always = new ArrayList<>();
+        for (int r = 0; r < rules.size(); r++) {
+            int anchor = -1;
+            for (int id : literalsOfRule[r]) {
+                if (anchor < 0 || users.get(id) < users.get(anchor) || users.get(id).equals(users.get(anchor))
+                        && literals.get(id).length() > literals.get(anchor).length()) {
+                    anchor = id;
+                }
+            }
+            if (anchor < 0) {
+                always.add(r);
+            } else {
+                byLiteral.get(anchor).add(r);
+            }
+        }
+        this.rulesByLiteral = new int[literals.size()][];
+        for (int l = 0; l < literals.size(); l++) {
+            rulesByLiteral[l] = byLiteral.get(l).stream().mapToInt(Integer::intValue).toArray();
+        }
+        this.unfiltered = always.stream().mapToInt(Integer::intValue).toArray();
+        this.matcher = new AhoCorasick(literals);
+    }
+
+    public static RuleSet load(Path file) throws IOException {
+        try {
+            return parse(new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+        } catch (IllegalArgumentException e) {
+            throw new IOException(file + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException naming the line of the first error
+     */
+    public static RuleSet parse(String text) {
+        List<Rule> rules = new ArrayList<>();
+        Map<String, Integer> names = new LinkedHashMap<>();
+        String[] lines = text.split("\r?\n", -1);
+        for (int i = 0; i < lines.length; i++) {
+            int number = i + 1;
+            StringBuilder line = new StringBuilder(lines[i]);
+            while (line.length() > 0 && line.charAt(line.length() - 1) == '\\' && i + 1 < lines.length) {
+                line.setLength(line.length() - 1);
+                line.append(' ').append(lines[++i]);
+            }
+            try {
+                Rule rule = parseRule(tokens(line.toString()));
+                if (rule == null) {
+                    continue;
+                }
+                if (names.put(rule.name, number) != null) {
+                    throw new IllegalArgumentException("rule " + rule.name + " is defined twice");
+                }
+                rules.add(rule);
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("line " + number + ": " + e.getMessage(), e);
+            }
+        }
+        return new RuleSet(rules);
+    }
+
+    public List<Rule> getRules() {
+        return rules;
+    }
+
+    public Rule getRule(int id) {
+        return rules.get(id);
+    }
+
+    /**
+     * Matcher over all literals; pattern i is getLiterals().get(i).
+     */
+    public AhoCorasick getMatcher() {
+        return matcher;
+    }
+
+    public List<String> getLiterals() {
+        return literals;
+    }
+
+    /**
+     * Ids of the rules to look at when literal i occurs in a line.
+     */
+    public int[] rulesFor(int literal) {
+        return rulesByLiteral[literal];
+    }
+
+    /**
+     * Ids of the literals that all occur in the lines rule id matches.
+     */
+    public int[] literalsOf(int rule) {
+        return literalsOfRule[rule];
+    }
+
+    /**
+     * Ids of the rules that have to be tried on every line.
+     */
+    public int[] getUnfilteredRules() {
+        return unfiltered;
+    }
+
+    // Words as {word}, key=value and key="quoted value" ('\"' for a quote) as {key, value}
+    private static List<String[]> tokens(String line) {
+        List<String[]> tokens = new ArrayList<>();
+        int i = 0;
+        int n = line.length();
+        while (i < n) {
+            char c = line.charAt(i);
+            if (c == '#') {
+                break;
+            }
+            if (Character.isWhitespace(c)) {
+                i++;
+                continue;
+            }
+            int start = i;
+            while (i < n && line.charAt(i) != '=' && !Character.isWhitespace(line.charAt(i))) {
+                i++;
+            }
+            String word = line.substring(start, i);
+            if (i == n || line.charAt(i) != '=') {
+                tokens.add(new String[] {word});
+                continue;
+            }
+            i++;
+            StringBuilder value = new StringBuilder();
+            if (i < n && line.charAt(i) == '"') {
+                i++;
+                while (true) {
+                    if (i == n) {
+                        throw new IllegalArgumentException("unterminated quote after " + word + "=");
+                    }
+                    char v = line.charAt(i++);
+                    if (v == '"') {
+                        break;
+                    }
+                    if (v == '\\' && i < n && line.charAt(i) == '"') {
+                        v = line.charAt(i++);
+                    }
+                    value.append(v);
+                }
+            } else {
+                while (i < n && !Character.isWhitespace(line.charAt(i))) {
+                    value.append(line.charAt(i++));
+                }
+            }
+            tokens.add(new String[] {word, value.toString()});
+        }
+        return tokens;
+    }
+
+    private static Rule parseRule(List<String[]> tokens) {
+        if (tokens.isEmpty()) {
+            return null;
+        }
+        if (tokens.size() < 2 || tokens.get(0).length != 1 || !tokens.get(0)[0].equals("rule")
+                || tokens.get(1).length != 1) {
+            throw new IllegalArgumentException("expected: rule <name> key=value ...");
+        }
+        String name = tokens.get(1)[0];
+        Map<String, String> values = new LinkedHashMap<>();
+        for (String[] token : tokens.subList(2, tokens.size())) {
+            if (token.length != 2) {
+                throw new IllegalArgumentException("expected key=value instead of " + token[0]);
+            }
+            if (values.put(token[0], token[1]) != null) {
+                throw new IllegalArgumentException(token[0] + " given twice");
+            }
+        }
+
+        Severity severity = Severity.valueOf(values.getOrDefault("severity", "MEDIUM").toUpperCase());
+        String key = values.getOrDefault("key", "-");
+        int threshold = Integer.parseInt(values.getOrDefault("threshold", "1"));
+        long window = parseWindow(values.getOrDefault("window", "0"));
+        if (threshold < 1 || threshold > 1 && window <= 0) {
+            throw new IllegalArgumentException("rule " + name + " needs a threshold of 1, or a window");
+        }
+        List<String> literals = new ArrayList<>();
+        if (values.containsKey("match")) {
+            if (values.get("match").isEmpty()) {
+                throw new IllegalArgumentException("rule " + name + " has an empty match");
+            }
+            literals.add(values.get("match"));
+        }
+        Pattern regex = null;
+        if (values.containsKey("regex")) {
+            try {
+                regex = Pattern.compile(values.get("regex"));
+            } catch (PatternSyntaxException e) {
+                throw new IllegalArgumentException("bad regex in rule " + name + ": " + e.getDescription());
+            }
+            for (String text : requiredLiterals(values.get("regex"))) {
+                if (!literals.contains(text)) {
+                    literals.add(text);
+                }
+            }
+        } else if (literals.isEmpty()) {
+            throw new IllegalArgumentException("rule " + name + " needs match= or regex=");
+        }
+        String message = values.getOrDefault("message", "{rule} {key} ({count} in {window})");
+        values.keySet().removeAll(Arrays.asList("severity", "key", "threshold", "window", "match", "regex", "message"));
+        if (!values.isEmpty()) {
+            throw new IllegalArgumentException("unknown setting " + values.keySet().iterator().next());
+        }
+        return new Rule(name, severity, key.equals("-") ? null : key, threshold, window, literals, regex, message);
+    }
+
+    private static long parseWindow(String text) {
+        Matcher m = WINDOW.matcher(text);
+        if (!m.matches()) {
+            throw new IllegalArgumentException("bad window " + text + ", expected e.g. 500ms, 60s, 5m or 1h");
+        }
+        long value = Long.parseLong(m.group(1));
+        String unit = m.group(2) == null ? "s" : m.group(2);
+        switch (unit) {
+            case "ms":
+                return value;
+            case "m":
+                return value * 60_000;
+            case "h":
+                return value * 3_600_000;
+            default:
+                return value * 1000;
+        }
+    }
+
+    /**
+     * The runs of at least MIN_PREFILTER plain characters every match of
+     * regex contains. Conservative: none for flags and top-level
+     * alternation, and groups and classes count as unknown text.
+     */
+    static List<String> requiredLiterals(String regex) {
+        List<String> runs = new ArrayList<>();
+        if (regex.contains("(?")) {
+            return runs;
+        }
+        StringBuilder run = new StringBuilder();
+        int depth = 0;
+        for (int i = 0; i <= regex.length(); i++) {
+            char c = i < regex.length() ? regex.charAt(i) : '$';
+            if (depth > 0) {
+                if (c == '\\') {
+                    i++;
+                } else if (c == '(') {
+                    depth++;
+                } else if (c == ')') {
+                    depth--;
+                }
+                continue;
+            }
+            switch (c) {
+                case '|':
+                    runs.clear();
+                    return runs;
+                case '\\':
+                    char next = i + 1 < regex.length() ? regex.charAt(++i) : 'x';
+                    if (!Character.isLetterOrDigit(next)) {
+                        run.append(next);
+                        continue;
+                    }
+                    if (next == 'Q') {
+                        int end = regex.indexOf("\\E", i + 1);
+                        run.append(regex, i + 1, end < 0 ? regex.length() : end);
+                        i = end < 0 ? regex.length() : end + 1;
+                        continue;
+                    }
+                    // \d, \x41, \p{Alpha}...: not plain text, and neither are its operands
+                    i = escapeEnd(regex, i);
+                    break;
+                case '?':
+                case '*':
+                case '{':
+                    // the previous character may be absent
+                    if (run.length() > 0) {
+                        run.setLength(run.length() - 1);
+                    }
+                    if (c == '{') {
+                        int end = regex.indexOf('}', i);
+                        i = end < 0 ? regex.length() : end;
+                    }
+                    break;
+                case '+':
+                    // the previous character is there, but what follows need not be next to it
+                    break;
+                case '[':
+                    i = classEnd(regex, i);
+                    break;
+                case '(':
+                    depth++;
+                    break;
+                case '.':
+                case '^':
+                case '$':
+                    break;
+                default:
+                    run.append(c);
+                    continue;
+            }
+            if (run.length() >= MIN_PREFILTER) {
+                runs.add(run.toString());
+            }
+            run.setLength(0);
+        }
+        return runs;
+    }
+
+    // The last index of the escape whose letter or digit is at regex[i], operands included
+    private static int escapeEnd(String regex, int i) {
+        int n = regex.length();
+        char c = regex.charAt(i);
+        switch (c) {
+            case 'x':
+                if (i + 1 < n && regex.charAt(i + 1) == '{') {
+                    return closing(regex, i + 1, '}');
+                }
+                return Math.min(i + 2, n - 1);
+            case 'u':
+                return Math.min(i + 4, n - 1);
+            case '0': {
+                // up to three octal digits
+                int end = i;
+                while (end + 1 < n && end - i < 3 && regex.charAt(end + 1) >= '0' && regex.charAt(end + 1) <= '7') {
+                    end++;
+                }
+                return end;
+            }
+            case 'c':
+                return Math.min(i + 1, n - 1);
+            case 'N':
+            case 'p':
+            case 'P':
+                if (i + 1 < n && regex.charAt(i + 1) == '{') {
+                    return closing(regex, i + 1, '}');
+                }
+                return c == 'N' ? i : Math.min(i + 1, n - 1);
+            case 'k':
+                if (i + 1 < n && regex.charAt(i + 1) == '<') {
+                    return closing(regex, i + 1, '>');
+                }
+                return i;
+            default:
+                if (c >= '1' && c <= '9') {
+                    // a back reference: digits that follow may belong to its group number
+                    int end = i;
+                    while (end + 1 < n && Character.isDigit(regex.charAt(end + 1))) {
+                        end++;
+                    }
+                    return end;
+                }
+                // \d, \w, \b and the like take no operands
+                return i;
+        }
+    }
+
+    private static int closing(String regex, int open, char close) {
+        int end = regex.indexOf(close, open);
+        return end < 0 ? regex.length() - 1 : end;
+    }
+
+    // Index of the ']' closing the class that opens at start
+    private static int classEnd(String regex, int start) {
+        int i = start + 1;
+        if (i < regex.length() && regex.charAt(i) == '^') {
+            i++;
+        }
+        if (i < regex.length() && regex.charAt(i) == ']') {
+            i++;
+        }
+        for (; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == '[') {
+                i = classEnd(regex, i);
+            } else if (c == ']') {
+                return i;
+            }
+        }
+        return regex.length();
+    }
+}
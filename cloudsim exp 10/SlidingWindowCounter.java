@@ -0,0 +1,313 @@
+import java.util.Arrays;
+
+/**
+ * Per-key event counts over a sliding time window
+ *
+ * Each key has a ring buffer of time buckets (window / buckets wide) and
+ * the total over them; when events move the key's time forward, the
+ * buckets that fall out of the window are cleared and subtracted. add()
+ * reports the moment a key's count reaches the threshold, once, and
+ * re-arms when the count drops below it again.
+ *
+ * Keys are longs in an open-addressing table, and all per-key state lives
+ * in parallel primitive arrays, so counting an event allocates nothing.
+ * When the table fills up it is rebuilt without the keys that have been
+ * idle for idleMillis (measured in event time, not wall-clock time, so a
+ * replayed log behaves like a live one). If maxKeys are still active, the
+ * least recently seen quarter goes, keys seen at the same moment in key
+ * order. maxKeys is a soft bound: keys are only evicted when the table
+ * fills up, so it can hold about twice maxKeys before the next quarter
+ * goes. That still bounds the memory whatever the number of distinct keys:
+ * a table slot takes 30 + 4 * buckets bytes and there are at most
+ * 4 * maxKeys slots, 20 MB with the default 65536 keys and 12 buckets.
+ *
+ * Not thread-safe: feed it from one thread, in roughly increasing time
+ * order. Events older than the window relative to their key are dropped.
+ */
+public class SlidingWindowCounter {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final long bucketMillis;
+    private final int buckets;
+    private final int threshold;
+    private long idleMillis;
+    private int maxKeys = 1 << 16;
+
+    // open addressing with linear probing, at most half full
+    private boolean[] used;
+    private long[] keys;
+    private long[] heads;
+    private long[] lastSeen;
+    private int[] totals;
+    private int[] counts;
+    private boolean[] firing;
+    private int size;
+
+    private long now = Long.MIN_VALUE;
+    private long evicted;
+    private long dropped;
+
+    /**
+     * @param windowMillis length of the window
+     * @param buckets      resolution of the window; more buckets slide more smoothly
+     * @param threshold    events in the window that trigger an alert
+     */
+    public SlidingWindowCounter(long windowMillis, int buckets, int threshold) {
+        if (windowMillis <= 0 || buckets <= 0 || threshold <= 0) {
+            throw new IllegalArgumentException("windowMillis, buckets and threshold must be positive");
+        }
+        this.bucketMillis = (windowMillis + buckets - 1) / buckets;
+        this.buckets = buckets;
+        this.threshold = threshold;
+        this.idleMillis = bucketMillis * buckets;
+        allocate(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Counts one event of key at timeMillis.
+     *
+     * @return the count in the window if this event made it reach the
+     *         threshold, otherwise 0
+     */
+    public int add(long key, long timeMillis) {
+        now = Math.max(now, timeMillis);
+        int slot = find(key);
+        if (slot < 0) {
+            if (size + 1 > keys.length / 2) {
+                rebuild();
+            }
+            slot = insert(key, timeMillis);
+        }
+        lastSeen[slot] = Math.max(lastSeen[slot], timeMillis);
+
+        long bucket = Math.floorDiv(timeMillis, bucketMillis);
+        int base = slot * buckets;
+        long head = heads[slot];
+        if (bucket > head) {
+            long stale = Math.min(bucket - head, buckets);
+            for (long b = head + 1; b <= head + stale; b++) {
+                int index = base + (int) Math.floorMod(b, (long) buckets);
+                totals[slot] -= counts[index];
+                counts[index] = 0;
+            }
+            heads[slot] = bucket;
+            if (totals[slot] < threshold) {
+                firing[slot] = false;
+            }
+        } else if (bucket <= head - buckets) {
+            dropped++;
+            return 0;
+        }
+        counts[base + (int) Math.floorMod(bucket, (long) buckets)]++;
+        int total = ++totals[slot];
+        if (total >= threshold && !firing[slot]) {
+            firing[slot] = true;
+            return total;
+        }
+        return 0;
+    }
+
+    /**
+     * Events of key in the window ending at its latest event, 0 for an unknown key.
+     */
+    public int count(long key) {
+        int slot = find(key);
+        return slot < 0 ? 0 : totals[slot];
+    }
+
+    /**
+     * Forgets the keys without events in the last idleMillis.
+     */
+    public void evictIdle() {
+        long before = size;
+        rebuildKeeping(active());
+        evicted += before - size;
+    }
+
+    public long getWindowMillis() {
+        return bucketMillis * buckets;
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    public long getIdleMillis() {
+        return idleMillis;
+    }
+
+    /**
+     * How long a key may go without events before it can be evicted; at
+     * least the window, which is the default.
+     */
+    public void setIdleMillis(long idleMillis) {
+        this.idleMillis = Math.max(idleMillis, getWindowMillis());
+    }
+
+    public int getMaxKeys() {
+        return maxKeys;
+    }
+
+    public void setMaxKeys(int maxKeys) {
+        this.maxKeys = maxKeys;
+    }
+
+    public int getKeyCount() {
+        return size;
+    }
+
+    public long getEvictedCount() {
+        return evicted;
+    }
+
+    /**
+     * Events that arrived too late for their key's window.
+     */
+    public long getDroppedCount() {
+        return dropped;
+    }
+
+    private int find(long key) {
+        int mask = keys.length - 1;
+        for (int slot = hash(key) & mask; used[slot]; slot = (slot + 1) & mask) {
+            if (keys[slot] == key) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private int insert(long key, long timeMillis) {
+        int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+        while (used[slot]) {
+            slot = (slot + 1) & mask;
+        }
+        used[slot] = true;
+        keys[slot] = key;
+        heads[slot] = Math.floorDiv(timeMillis, bucketMillis);
+        lastSeen[slot] = timeMillis;
+        size++;
+        return slot;
+    }
+
+    // Drops idle keys, then the least recently seen quarter if still at maxKeys, and resizes
+    private void rebuild() {
+        long before = size;
+        boolean[] keep = active();
+        int live = 0;
+        for (boolean kept : keep) {
+            if (kept) {
+                live++;
+            }
+        }
+        if (live >= maxKeys) {
+            evictOldest(keep, live, live / 4);
+        }
+        rebuildKeeping(keep);
+        evicted += before - size;
+    }
+
+    // The slots of keys seen in the last idleMillis
+    private boolean[] active() {
+        long cutoff = idleCutoff();
+        boolean[] keep = new boolean[keys.length];
+        for (int slot = 0; slot < keys.length; slot++) {
+            keep[slot] = used[slot] && lastSeen[slot] >= cutoff;
+        }
+        return keep;
+    }
+
+    // Unmarks exactly count of the live kept slots, by last seen and then by key, so a burst of keys
+    // seen in the same millisecond does not take all the others with it
+    private void evictOldest(boolean[] keep, int live, int count) {
+        if (count == 0) {
+            return;
+        }
+        long[] seen = new long[live];
+        int n = 0;
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (keep[slot]) {
+                seen[n++] = lastSeen[slot];
+            }
+        }
+        Arrays.sort(seen);
+        long last = seen[count - 1];
+        int older = 0;
+        while (seen[older] < last) {
+            older++;
+        }
+        int tied = older;
+        while (tied < live && seen[tied] == last) {
+            tied++;
+        }
+        long[] tiedKeys = new long[tied - older];
+        n = 0;
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (keep[slot] && lastSeen[slot] == last) {
+                tiedKeys[n++] = keys[slot];
+            }
+        }
+        Arrays.sort(tiedKeys);
+        long lastKey = tiedKeys[count - older - 1];
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (keep[slot] && (lastSeen[slot] < last || (lastSeen[slot] == last && keys[slot] <= lastKey))) {
+                keep[slot] = false;
+            }
+        }
+    }
+
+    private void rebuildKeeping(boolean[] keep) {
+        long[] oldKeys = keys;
+        long[] oldHeads = heads;
+        long[] oldLastSeen = lastSeen;
+        int[] oldTotals = totals;
+        int[] oldCounts = counts;
+        boolean[] oldFiring = firing;
+
+        int live = 0;
+        for (boolean kept : keep) {
+            if (kept) {
+                live++;
+            }
+        }
+        int capacity = INITIAL_CAPACITY;
+        while (capacity < 3L * (live + 1) && capacity < (1 << 30)) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+        for (int old = 0; old < oldKeys.length; old++) {
+            if (keep[old]) {
+                int slot = insert(oldKeys[old], oldLastSeen[old]);
+                heads[slot] = oldHeads[old];
+                totals[slot] = oldTotals[old];
+                firing[slot] = oldFiring[old];
+                System.arraycopy(oldCounts, old * buckets, counts, slot * buckets, buckets);
+            }
+        }
+    }
+
+    private long idleCutoff() {
+        return now == Long.MIN_VALUE ? Long.MIN_VALUE : now - idleMillis;
+    }
+
+    private void allocate(int capacity) {
+        used = new boolean[capacity];
+        keys = new long[capacity];
+        heads = new long[capacity];
+        lastSeen = new long[capacity];
+        totals = new int[capacity];
+        counts = new int[capacity * buckets];
+        firing = new boolean[capacity];
+        size = 0;
+    }
+
+    // MurmurHash3's 64-bit finalizer (fmix64), so sequential keys (e.g. IP addresses) spread out
+    private static int hash(long key) {
+        long h = key;
+        h = (h ^ (h >>> 33)) * 0xff51afd7ed558ccdL;
+        h = (h ^ (h >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return (int) (h ^ (h >>> 33));
+    }
+}
@@ -0,0 +1,460 @@
+import org.cloudbus.cloudsim.*;
+import org.cloudbus.cloudsim.core.CloudSim;
+import org.cloudbus.cloudsim.core.CloudSimTags;
+import org.cloudbus.cloudsim.core.SimEvent;
+
+import java.util.*;
+
+/**
+ * Closed-loop autoscaling broker
+ *
+ * Cloudlets are released at their arrival times into a broker-side backlog
+ * and bound to an active VM through a VmLoadIndex (earliest estimated
+ * completion time by default; least-loaded, min-min, max-min and
+ * round-robin are also available).
+ * Every sampleInterval simulated seconds the broker samples per-VM queue
+ * length (outstanding cloudlets) and utilisation (fraction of the interval
+ * the VM had work). It then:
+ *   - provisions VMs while load is above the scale-up thresholds,
+ *   - drains one VM while load is below the scale-down thresholds,
+ * and waits for the cooldown after every scaling action. A drained VM stops
+ * receiving cloudlets and is destroyed once its last cloudlet returns.
+ *
+ * At the end it reports makespan, VM-hours and SLA violations (cloudlets
+ * whose response time exceeded slaResponseTime).
+ */
+public class AutoScalingBroker extends DatacenterBroker {
+
+    private static final int CLOUDLET_ARRIVAL = 920001;
+    private static final int AUTOSCALE_SAMPLE = 920002;
+
+    // Policy (defaults suit the 1000 MIPS VMs of this experiment)
+    private double sampleInterval = 10.0;
+    private double scaleUpQueue = 3.0;
+    private double scaleUpUtilization = 0.9;
+    private double scaleDownQueue = 0.5;
+    private double scaleDownUtilization = 0.3;
+    private double cooldown = 30.0;
+    private int minVms = 1;
+    private int maxVms = 16;
+    private double slaResponseTime = 20.0;
+
+    /**
+     * Broker-side view of one VM.
+     */
+    private static class VmState {
+        final Vm vm;
+        int outstanding;
+        boolean created;
+        boolean draining;
+        double createdAt = -1;
+        double destroyedAt = -1;
+        double busySince = -1;
+        double busyTime;
+
+        VmState(Vm vm) {
+            this.vm = vm;
+        }
+    }
+
+    private final Map<Integer, VmState> vmStates = new LinkedHashMap<>();
+    private final Map<Integer, Double> arrivalTimes = new HashMap<>();
+    private final ArrayDeque<Cloudlet> backlog = new ArrayDeque<>();
+    private final List<Cloudlet> pendingArrivals = new ArrayList<>();
+    private VmLoadIndex loadIndex = new VmLoadIndex(VmLoadIndex.Mode.EARLIEST_COMPLETION);
+
+    private Vm vmTemplate;
+    private int nextVmId;
+    private int datacenterId = -1;
+    private int arrivalsPending;
+    private int vmCreatesPending;
+    private double lastScaleTime = Double.NEGATIVE_INFINITY;
+    private double lastSampleTime;
+    private boolean finished;
+
+    // Results
+    private int activeVms;
+    private int peakVms;
+    private int scaleUps;
+    private int scaleDowns;
+    private int slaViolations;
+    private double makespan;
+    private double responseTimeSum;
+    private int cloudletsReturned;
+
+    public AutoScalingBroker(String name) throws Exception {
+        super(name);
+    }
+
+    /**
+     * Sets the sampling interval and cooldown, in simulated seconds.
+     */
+    public void setTiming(double sampleInterval, double cooldown) {
+        if (sampleInterval <= 0 || cooldown < 0) {
+            throw new IllegalArgumentException("sampleInterval must be > 0 and cooldown >= 0");
+        }
+        this.sampleInterval = sampleInterval;
+        this.cooldown = cooldown;
+    }
+
+    /**
+     * Scale up when mean queue length per VM exceeds upQueue or mean
+     * utilisation exceeds upUtilization; scale down when both are below
+     * downQueue and downUtilization.
+     */
+    public void setThresholds(double upQueue, double upUtilization,
+                              double downQueue, double downUtilization) {
+        if (downQueue > upQueue || downUtilization > upUtilization) {
+            throw new IllegalArgumentException("scale-down thresholds must not exceed scale-up thresholds");
+        }
+        this.scaleUpQueue = upQueue;
+        this.scaleUpUtilization = upUtilization;
+        this.scaleDownQueue = downQueue;
+        this.scaleDownUtilization = downUtilization;
+    }
+
+    public void setVmLimits(int minVms, int maxVms) {
+        if (minVms < 1 || maxVms < minVms) {
+            throw new IllegalArgumentException("require 1 <= minVms <= maxVms");
+        }
+        this.minVms = minVms;
+        this.maxVms = maxVms;
+    }
+
+    public void setSlaResponseTime(double slaResponseTime) {
+        this.slaResponseTime = slaResponseTime;
+    }
+
+    /**
+     * Sets how cloudlets are bound to VMs; call before the simulation starts.
+     */
+    public void setBindingMode(VmLoadIndex.Mode mode) {
+        this.loadIndex = new VmLoadIndex(mode);
+    }
+
+    @Override
+    public void submitVmList(List<? extends Vm> list) {
+        super.submitVmList(list);
+        for (Vm vm : list) {
+            vmStates.put(vm.getId(), new VmState(vm));
+            nextVmId = Math.max(nextVmId, vm.getId() + 1);
+            if (vmTemplate == null) {
+                vmTemplate = vm;
+            }
+        }
+        vmCreatesPending += list.size();
+    }
+
+    /**
+     * Submits a cloudlet that arrives at the given simulated time.
+     */
+    public void submitCloudlet(Cloudlet cloudlet, double arrivalTime) {
+        arrivalTimes.put(cloudlet.getCloudletId(), arrivalTime);
+        pendingArrivals.add(cloudlet);
+    }
+
+    @Override
+    public void submitCloudletList(List<? extends Cloudlet> list) {
+        for (Cloudlet cloudlet : list) {
+            submitCloudlet(cloudlet, 0.0);
+        }
+    }
+
+    @Override
+    public void startEntity() {
+        super.startEntity();
+        for (Cloudlet cloudlet : pendingArrivals) {
+            schedule(getId(), arrivalTimes.get(cloudlet.getCloudletId()), CLOUDLET_ARRIVAL, cloudlet);
+        }
+        arrivalsPending = pendingArrivals.size();
+        pendingArrivals.clear();
+        schedule(getId(), sampleInterval, AUTOSCALE_SAMPLE);
+    }
+
+    @Override
+    protected void processOtherEvent(SimEvent ev) {
+        switch (ev.getTag()) {
+            case CLOUDLET_ARRIVAL:
+                arrivalsPending--;
+                backlog.add((Cloudlet) ev.getData());
+                dispatchBacklog();
+                break;
+            case AUTOSCALE_SAMPLE:
+                if (finished) {
+                    break;
+                }
+                if (arrivalsPending == 0 && cloudletsSubmitted == 0 && vmCreatesPending == 0
+                        && (backlog.isEmpty() || loadIndex.size() == 0)) {
+                    // nothing left for a sample to act on: stop instead of rescheduling forever
+                    if (!backlog.isEmpty()) {
+                        Log.printLine(CloudSim.clock() + ": " + getName() + ": " + backlog.size()
+                                + " Cloudlets cannot be placed, no VM is running");
+                    }
+                    break;
+                }
+                sampleAndScale();
+                schedule(getId(), sampleInterval, AUTOSCALE_SAMPLE);
+                break;
+            default:
+                super.processOtherEvent(ev);
+                break;
+        }
+    }
+
+    @Override
+    protected void processVmCreate(SimEvent ev) {
+        int[] data = (int[]) ev.getData();
+        int dcId = data[0];
+        int vmId = data[1];
+        VmState state = vmStates.get(vmId);
+        vmCreatesPending--;
+
+        if (data[2] == CloudSimTags.TRUE) {
+            getVmsToDatacentersMap().put(vmId, dcId);
+            getVmsCreatedList().add(state.vm);
+            state.created = true;
+            state.createdAt = CloudSim.clock();
+            loadIndex.addVm(state.vm);
+            activeVms++;
+            peakVms = Math.max(peakVms, activeVms);
+            Log.printLine(CloudSim.clock() + ": " + getName() + ": VM #" + vmId
+                    + " has been created in Datacenter #" + dcId + ", Host #" + state.vm.getHost().getId());
+        } else {
+            // no host capacity left: stop trying to grow past what we have
+            Log.printLine(CloudSim.clock() + ": " + getName() + ": Creation of VM #" + vmId
+                    + " failed in Datacenter #" + dcId);
+            vmStates.remove(vmId);
+            getVmList().remove(state.vm);
+            maxVms = Math.max(minVms, countLiveVms());
+        }
+        incrementVmsAcks();
+        // the backlog waits for the last pending creation, whether it worked or not
+        dispatchBacklog();
+    }
+
+    @Override
+    protected void submitCloudlets() {
+        // cloudlets are dispatched from the backlog as they arrive
+    }
+
+    @Override
+    protected void processCloudletReturn(SimEvent ev) {
+        Cloudlet cloudlet = (Cloudlet) ev.getData();
+        getCloudletReceivedList().add(cloudlet);
+        cloudletsSubmitted--;
+
+        double now = CloudSim.clock();
+        double response = cloudlet.getFinishTime() - arrivalTimes.get(cloudlet.getCloudletId());
+        responseTimeSum += response;
+        cloudletsReturned++;
+        if (response > slaResponseTime) {
+            slaViolations++;
+        }
+        makespan = Math.max(makespan, cloudlet.getFinishTime());
+        loadIndex.release(cloudlet);
+
+        VmState state = vmStates.get(cloudlet.getVmId());
+        state.outstanding--;
+        if (state.outstanding == 0) {
+            state.busyTime += now - state.busySince;
+            state.busySince = -1;
+            if (state.draining) {
+                destroyVm(state);
+            }
+        }
+
+        if (arrivalsPending == 0 && backlog.isEmpty() && cloudletsSubmitted == 0) {
+            Log.printLine(now + ": " + getName() + ": All Cloudlets executed. Finishing...");
+            finished = true;
+            for (VmState s : vmStates.values()) {
+                if (s.created && s.destroyedAt < 0) {
+                    s.destroyedAt = now;
+                }
+            }
+            clearDatacenters();
+            finishExecution();
+        }
+    }
+
+    private void sampleAndScale() {
+        double now = CloudSim.clock();
+        double interval = now - lastSampleTime;
+        lastSampleTime = now;
+
+        int serving = 0;
+        double queued = backlog.size();
+        double utilization = 0;
+        for (VmState s : vmStates.values()) {
+            if (!s.created || s.destroyedAt >= 0) {
+                continue;
+            }
+            double busy = s.busyTime;
+            if (s.busySince >= 0) {
+                busy += now - s.busySince;
+                s.busySince = now;
+            }
+            s.busyTime = 0;
+            if (s.draining) {
+                continue;
+            }
+            serving++;
+            queued += s.outstanding;
+            utilization += interval > 0 ? Math.min(1.0, busy / interval) : 0;
+        }
+        if (serving == 0) {
+            return;
+        }
+        double meanQueue = queued / serving;
+        double meanUtilization = utilization / serving;
+
+        if (now - lastScaleTime < cooldown) {
+            return;
+        }
+        int live = countLiveVms();
+        if ((meanQueue > scaleUpQueue || meanUtilization > scaleUpUtilization) && live < maxVms) {
+            // add enough VMs to bring the mean queue back to the threshold
+            int wanted = (int) Math.ceil(queued / scaleUpQueue) - serving;
+            int toAdd = Math.max(1, Math.min(wanted, maxVms - live));
+            for (int i = 0; i < toAdd; i++) {
+                provisionVm();
+            }
+            scaleUps++;
+            lastScaleTime = now;
+            Log.printLine(now + ": " + getName() + ": scale up by " + toAdd
+                    + " (queue " + meanQueue + ", utilisation " + meanUtilization + ")");
+        } else if (meanQueue < scaleDownQueue && meanUtilization < scaleDownUtilization
+                && serving > minVms) {
+            drainLeastLoadedVm();
+            scaleDowns++;
+            lastScaleTime = now;
+            Log.printLine(now + ": " + getName() + ": scale down by 1"
+                    + " (queue " + meanQueue + ", utilisation " + meanUtilization + ")");
+        }
+    }
+
+    private void provisionVm() {
+        CloudletScheduler scheduler = vmTemplate.getCloudletScheduler() instanceof CloudletSchedulerTimeSharedOnDemand
+                ? new CloudletSchedulerTimeSharedOnDemand(vmTemplate.getMips(), vmTemplate.getNumberOfPes())
+                : new CloudletSchedulerTimeShared();
+        Vm vm = new Vm(nextVmId++, getId(), vmTemplate.getMips(), vmTemplate.getNumberOfPes(),
+                vmTemplate.getRam(), vmTemplate.getBw(), vmTemplate.getSize(), vmTemplate.getVmm(),
+                scheduler);
+        getVmList().add(vm);
+        vmStates.put(vm.getId(), new VmState(vm));
+        vmCreatesPending++;
+        sendNow(getDatacenterId(), CloudSimTags.VM_CREATE_ACK, vm);
+    }
+
+    private void drainLeastLoadedVm() {
+        Vm vm = loadIndex.leastLoaded();
+        if (vm == null) {
+            return;
+        }
+        VmState victim = vmStates.get(vm.getId());
+        victim.draining = true;
+        loadIndex.removeVm(vm);
+        activeVms--;
+        if (victim.outstanding == 0) {
+            destroyVm(victim);
+        }
+    }
+
+    private void destroyVm(VmState state) {
+        state.destroyedAt = CloudSim.clock();
+        getVmsCreatedList().remove(state.vm);
+        Log.printLine(CloudSim.clock() + ": " + getName() + ": Destroying VM #" + state.vm.getId());
+        sendNow(getVmsToDatacentersMap().get(state.vm.getId()), CloudSimTags.VM_DESTROY, state.vm);
+    }
+
+    // Bind waiting cloudlets through the load index: O(log V) each. Holds the
+    // backlog while VM creations are outstanding so a batch is not all bound
+    // to the first VM that comes up
+    private void dispatchBacklog() {
+        if (loadIndex.size() == 0 || vmCreatesPending > 0) {
+            return;
+        }
+        if (backlog.size() > 1) {
+            List<Cloudlet> batch = new ArrayList<>(backlog);
+            loadIndex.orderBatch(batch);
+            backlog.clear();
+            backlog.addAll(batch);
+        }
+        while (!backlog.isEmpty()) {
+            Cloudlet cloudlet = backlog.poll();
+            Vm vm = loadIndex.bind(cloudlet);
+            VmState target = vmStates.get(vm.getId());
+            cloudlet.setVmId(vm.getId());
+            if (target.outstanding++ == 0) {
+                target.busySince = CloudSim.clock();
+            }
+            sendNow(getVmsToDatacentersMap().get(vm.getId()), CloudSimTags.CLOUDLET_SUBMIT, cloudlet);
+            cloudletsSubmitted++;
+            getCloudletSubmittedList().add(cloudlet);
+        }
+    }
+
+    private int countLiveVms() {
+        int live = 0;
+        for (VmState s : vmStates.values()) {
+            if (!s.draining && s.destroyedAt < 0) {
+                live++;
+            }
+        }
+        return live;
+    }
+
+    private int getDatacenterId() {
+        if (datacenterId < 0) {
+            datacenterId = getDatacenterIdsList().get(0);
+        }
+        return datacenterId;
+    }
+
+    public double getMakespan() {
+        return makespan;
+    }
+
+    public double getVmHours() {
+        double seconds = 0;
+        for (VmState s : vmStates.values()) {
+            if (s.createdAt >= 0) {
+                double end = s.destroyedAt >= 0 ? s.destroyedAt : CloudSim.clock();
+                seconds += end - s.createdAt;
+            }
+        }
+        return seconds / 3600.0;
+    }
+
+    public int getSlaViolations() {
+        return slaViolations;
+    }
+
+    public double getMeanResponseTime() {
+        return cloudletsReturned == 0 ? 0.0 : responseTimeSum / cloudletsReturned;
+    }
+
+    public int getPeakVms() {
+        return peakVms;
+    }
+
+    /**
+     * Number of distinct VMs created over the whole run.
+     */
+    public int getVmsProvisioned() {
+        int created = 0;
+        for (VmState s : vmStates.values()) {
+            if (s.createdAt >= 0) {
+                created++;
+            }
+        }
+        return created;
+    }
+
+    public int getScaleUps() {
+        return scaleUps;
+    }
+
+    public int getScaleDowns() {
+        return scaleDowns;
+    }
+}
@@ -0,0 +1,56 @@
+import org.cloudbus.cloudsim.Cloudlet;
+import org.cloudbus.cloudsim.CloudletSchedulerTimeShared;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Time-shared cloudlet scheduler for VMs on power-aware hosts
+ *
+ * The stock CloudletSchedulerTimeShared requests no MIPS at all, which a
+ * PowerHost takes literally. This one requests the VM's full MIPS while it
+ * has cloudlets and nothing while it is idle, so host utilisation (and with
+ * it power) follows the work the VMs actually do.
+ */
+public class CloudletSchedulerTimeSharedOnDemand extends CloudletSchedulerTimeShared {
+
+    private final double mips;
+    private final int numberOfPes;
+
+    public CloudletSchedulerTimeSharedOnDemand(double mips, int numberOfPes) {
+        this.mips = mips;
+        this.numberOfPes = numberOfPes;
+    }
+
+    @Override
+    public List<Double> getCurrentRequestedMips() {
+        double perPe = getCloudletExecList().isEmpty() ? 0.0 : mips;
+        List<Double> requested = new ArrayList<>(numberOfPes);
+        for (int i = 0; i < numberOfPes; i++) {
+            requested.add(perPe);
+        }
+        return requested;
+    }
+
+    @Override
+    public double cloudletSubmit(Cloudlet cloudlet, double fileTransferTime) {
+        // An idle VM holds no MIPS until the host re-shares; estimate with the
+        // full share instead of letting the zero capacity corrupt the length
+        if (getCurrentMipsShare() == null || !(getCapacity(getCurrentMipsShare()) > 0)) {
+            List<Double> full = new ArrayList<>(numberOfPes);
+            for (int i = 0; i < numberOfPes; i++) {
+                full.add(mips);
+            }
+            setCurrentMipsShare(full);
+        }
+        return super.cloudletSubmit(cloudlet, fileTransferTime);
+    }
+
+    public double getMips() {
+        return mips;
+    }
+
+    public int getNumberOfPes() {
+        return numberOfPes;
+    }
+}
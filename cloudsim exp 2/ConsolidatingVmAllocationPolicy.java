@@ -0,0 +1,423 @@
+import org.cloudbus.cloudsim.Host;
+import org.cloudbus.cloudsim.Log;
+import org.cloudbus.cloudsim.Vm;
+import org.cloudbus.cloudsim.core.CloudSim;
+import org.cloudbus.cloudsim.power.PowerHost;
+import org.cloudbus.cloudsim.power.PowerVmAllocationPolicyAbstract;
+
+import java.util.*;
+
+/**
+ * Energy-aware VM placement with periodic consolidation
+ *
+ * New VMs are packed onto as few hosts as possible: best fit on MIPS
+ * headroom below utilizationUpper, and an empty host is only switched on
+ * when no host in use can take the VM. At most once per
+ * consolidationInterval optimizeAllocation() plans live migrations that
+ *   - move VMs off hosts above utilizationUpper (busiest VMs first),
+ *   - empty hosts below utilizationLower when all their VMs fit elsewhere,
+ *     so the host draws no power afterwards.
+ *
+ * Hosts in use sit in a TreeSet ordered by headroom, so finding a host is a
+ * ceiling lookup plus the few neighbours that lack RAM, bandwidth or
+ * storage: O(log H) instead of the O(H) scan of the stock power policies.
+ * Empty hosts wait in a queue. A consolidation round costs
+ * O((V + A) log A) for V VMs on A hosts in use.
+ *
+ * Memory, bandwidth and storage of a migrating VM stay reserved on its
+ * source host until the migration completes, as they do in CloudSim.
+ */
+public class ConsolidatingVmAllocationPolicy extends PowerVmAllocationPolicyAbstract {
+
+    /**
+     * Planning view of one host.
+     */
+    private static final class Slot {
+        final PowerHost host;
+        final int id;
+        final double capacity;
+        double load;           // MIPS planned on this host
+        double headroom;       // upper * capacity - load; TreeSet key, only changed outside the set
+        int ramFree;
+        long bwFree;
+        long storageFree;
+        int vms;               // VMs resident or migrating in
+        boolean inUse;
+        boolean source;        // VMs are being moved off this round
+        boolean target;        // received a VM this round
+
+        Slot(PowerHost host, double upper) {
+            this.host = host;
+            this.id = host.getId();
+            this.capacity = host.getTotalMips();
+            this.ramFree = host.getRamProvisioner().getRam();
+            this.bwFree = host.getBwProvisioner().getBw();
+            this.storageFree = host.getStorage();
+            this.headroom = upper * capacity;
+        }
+
+        // Search key for TreeSet.ceiling: sorts before every host with this headroom
+        Slot(double headroom) {
+            this.host = null;
+            this.id = Integer.MIN_VALUE;
+            this.capacity = 0;
+            this.headroom = headroom;
+        }
+    }
+
+    private static final Comparator<Slot> BY_HEADROOM = new Comparator<Slot>() {
+        @Override
+        public int compare(Slot a, Slot b) {
+            int c = Double.compare(a.headroom, b.headroom);
+            return c != 0 ? c : Integer.compare(a.id, b.id);
+        }
+    };
+
+    private final double utilizationLower;
+    private final double utilizationUpper;
+    private final double consolidationInterval;
+
+    private final Map<Integer, Slot> slots = new HashMap<>();
+    private final TreeSet<Slot> inUse = new TreeSet<>(BY_HEADROOM);
+    private final ArrayDeque<Slot> idle = new ArrayDeque<>();
+
+    // Host each VM counts against (its target once a migration is planned)
+    private final Map<Vm, Slot> placement = new HashMap<>();
+    private final Map<Vm, Double> vmLoad = new HashMap<>();
+    // Source host of VMs that are migrating
+    private final Map<Vm, Slot> migratingFrom = new HashMap<>();
+
+    private double lastConsolidation = Double.NEGATIVE_INFINITY;
+    private int peakHostsInUse;
+
+    public ConsolidatingVmAllocationPolicy(List<? extends Host> hostList, double utilizationLower,
+                                           double utilizationUpper, double consolidationInterval) {
+        super(hostList);
+        if (utilizationLower < 0 || utilizationUpper > 1 || utilizationLower >= utilizationUpper) {
+            throw new IllegalArgumentException("require 0 <= utilizationLower < utilizationUpper <= 1");
+        }
+        this.utilizationLower = utilizationLower;
+        this.utilizationUpper = utilizationUpper;
+        this.consolidationInterval = consolidationInterval;
+        for (PowerHost host : this.<PowerHost>getHostList()) {
+            Slot slot = new Slot(host, utilizationUpper);
+            slots.put(host.getId(), slot);
+            idle.add(slot);
+        }
+    }
+
+    @Override
+    public boolean allocateHostForVm(Vm vm) {
+        // a VM being created requests its full MIPS
+        double need = vm.getCurrentRequestedTotalMips();
+        Slot slot = findSlot(vm, need);
+        if (slot == null) {
+            slot = switchOnHost(vm);
+        }
+        if (slot == null) {
+            Log.formatLine("%.2f: No suitable host found for VM #" + vm.getId() + "\n", CloudSim.clock());
+            return false;
+        }
+        if (!super.allocateHostForVm(vm, slot.host)) {
+            if (slot.vms == 0) {
+                switchOff(slot);
+            }
+            return false;
+        }
+        place(vm, slot, need);
+        return true;
+    }
+
+    @Override
+    public boolean allocateHostForVm(Vm vm, Host host) {
+        Slot slot = slots.get(host.getId());
+        boolean planned = placement.get(vm) == slot;
+        if (!planned && !fits(slot, vm)) {
+            return false;
+        }
+        if (!super.allocateHostForVm(vm, host)) {
+            return false;
+        }
+        if (!planned) {
+            // placed from outside this policy
+            if (!slot.inUse) {
+                switchOn(slot);
+            }
+            place(vm, slot, vm.getCurrentRequestedTotalMips());
+        }
+        return true;
+    }
+
+    /**
+     * Called when a VM is destroyed, and on the source host when a
+     * migration completes (the VM stays planned on its target).
+     */
+    @Override
+    public void deallocateHostForVm(Vm vm) {
+        Slot source = migratingFrom.remove(vm);
+        if (source != null) {
+            release(source, vm);
+        } else {
+            Slot slot = placement.remove(vm);
+            Double load = vmLoad.remove(vm);
+            if (slot != null) {
+                adjustLoad(slot, -load);
+                release(slot, vm);
+            }
+        }
+        super.deallocateHostForVm(vm);
+    }
+
+    @Override
+    public List<Map<String, Object>> optimizeAllocation(List<? extends Vm> vmList) {
+        double now = CloudSim.clock();
+        if (now - lastConsolidation < consolidationInterval) {
+            return null;
+        }
+        lastConsolidation = now;
+        refreshLoads(vmList);
+
+        List<Map<String, Object>> migrations = new ArrayList<>();
+        relieveOverUtilizedHosts(migrations);
+        emptyUnderUtilizedHosts(migrations);
+        for (Slot slot : inUse) {
+            slot.source = false;
+            slot.target = false;
+        }
+        return migrations;
+    }
+
+    public int getHostsInUse() {
+        return inUse.size();
+    }
+
+    public int getPeakHostsInUse() {
+        return peakHostsInUse;
+    }
+
+    // Over-utilised hosts have negative headroom, so they are the head of the set
+    private void relieveOverUtilizedHosts(List<Map<String, Object>> migrations) {
+        List<Slot> over = new ArrayList<>();
+        for (Slot slot : inUse) {
+            if (slot.headroom >= 0) {
+                break;
+            }
+            over.add(slot);
+        }
+        for (Slot source : over) {
+            source.source = true;
+            List<Vm> candidates = residentVms(source);
+            Collections.sort(candidates, byLoadDescending());
+            for (Vm vm : candidates) {
+                if (source.headroom >= 0) {
+                    break;
+                }
+                double load = vmLoad.get(vm);
+                Slot target = findSlot(vm, load);
+                if (target == null) {
+                    target = switchOnHost(vm);
+                }
+                if (target == null) {
+                    break;
+                }
+                planMigration(vm, source, target, migrations);
+            }
+        }
+    }
+
+    // Empty the least loaded hosts first; a host is only emptied if every VM fits
+    private void emptyUnderUtilizedHosts(List<Map<String, Object>> migrations) {
+        List<Slot> under = new ArrayList<>();
+        for (Slot slot : inUse) {
+            if (!slot.source && !slot.target && slot.load < utilizationLower * slot.capacity) {
+                under.add(slot);
+            }
+        }
+        Collections.sort(under, new Comparator<Slot>() {
+            @Override
+            public int compare(Slot a, Slot b) {
+                int c = Double.compare(a.load / a.capacity, b.load / b.capacity);
+                return c != 0 ? c : Integer.compare(a.id, b.id);
+            }
+        });
+
+        for (Slot source : under) {
+            if (source.target) {
+                continue;       // took VMs from a host emptied earlier this round
+            }
+            List<Vm> vms = residentVms(source);
+            if (vms.size() != source.vms) {
+                continue;       // a migration into or out of this host is in flight
+            }
+            source.source = true;
+            Collections.sort(vms, byLoadDescending());
+            List<Map<String, Object>> planned = new ArrayList<>();
+            for (Vm vm : vms) {
+                Slot target = findSlot(vm, vmLoad.get(vm));
+                if (target == null) {
+                    break;
+                }
+                planMigration(vm, source, target, planned);
+            }
+            if (planned.size() == vms.size()) {
+                migrations.addAll(planned);
+            } else {
+                for (Map<String, Object> migration : planned) {
+                    undoMigration((Vm) migration.get("vm"), source);
+                }
+                source.source = false;
+            }
+        }
+    }
+
+    /**
+     * Best fit: the host in use with the least headroom that still fits need
+     * MIPS and the VM's memory, bandwidth and storage.
+     */
+    private Slot findSlot(Vm vm, double need) {
+        for (Slot slot : inUse.tailSet(new Slot(need), true)) {
+            if (!slot.source && fits(slot, vm)) {
+                return slot;
+            }
+        }
+        return null;
+    }
+
+    private Slot switchOnHost(Vm vm) {
+        for (int i = idle.size(); i > 0; i--) {
+            Slot slot = idle.poll();
+            if (fits(slot, vm)) {
+                switchOn(slot);
+                return slot;
+            }
+            idle.add(slot);
+        }
+        return null;
+    }
+
+    private boolean fits(Slot slot, Vm vm) {
+        return slot.ramFree >= vm.getRam() && slot.bwFree >= vm.getBw() && slot.storageFree >= vm.getSize()
+                && slot.host.getNumberOfPes() >= vm.getNumberOfPes()
+                && slot.host.getVmScheduler().getPeCapacity() >= vm.getMips();
+    }
+
+    private void place(Vm vm, Slot slot, double load) {
+        reserve(slot, vm);
+        placement.put(vm, slot);
+        vmLoad.put(vm, load);
+        adjustLoad(slot, load);
+    }
+
+    private void planMigration(Vm vm, Slot source, Slot target, List<Map<String, Object>> migrations) {
+        double load = vmLoad.get(vm);
+        reserve(target, vm);
+        adjustLoad(target, load);
+        adjustLoad(source, -load);
+        placement.put(vm, target);
+        migratingFrom.put(vm, source);
+        target.target = true;
+
+        Map<String, Object> migration = new HashMap<>();
+        migration.put("vm", vm);
+        migration.put("host", target.host);
+        migrations.add(migration);
+    }
+
+    private void undoMigration(Vm vm, Slot source) {
+        Slot target = placement.put(vm, source);
+        migratingFrom.remove(vm);
+        double load = vmLoad.get(vm);
+        adjustLoad(target, -load);
+        adjustLoad(source, load);
+        release(target, vm);
+    }
+
+    private void reserve(Slot slot, Vm vm) {
+        slot.ramFree -= vm.getRam();
+        slot.bwFree -= vm.getBw();
+        slot.storageFree -= vm.getSize();
+        slot.vms++;
+    }
+
+    private void release(Slot slot, Vm vm) {
+        slot.ramFree += vm.getRam();
+        slot.bwFree += vm.getBw();
+        slot.storageFree += vm.getSize();
+        if (--slot.vms == 0) {
+            switchOff(slot);
+        }
+    }
+
+    // Re-key a host in the TreeSet: O(log A)
+    private void adjustLoad(Slot slot, double delta) {
+        boolean member = slot.inUse && inUse.remove(slot);
+        slot.load = Math.max(0.0, slot.load + delta);
+        slot.headroom = utilizationUpper * slot.capacity - slot.load;
+        if (member) {
+            inUse.add(slot);
+        }
+    }
+
+    private void switchOn(Slot slot) {
+        slot.inUse = true;
+        inUse.add(slot);
+        peakHostsInUse = Math.max(peakHostsInUse, inUse.size());
+    }
+
+    private void switchOff(Slot slot) {
+        if (slot.inUse) {
+            inUse.remove(slot);
+            slot.inUse = false;
+            slot.source = false;
+            slot.target = false;
+            slot.load = 0.0;
+            slot.headroom = utilizationUpper * slot.capacity;
+            idle.add(slot);
+        }
+    }
+
+    /**
+     * Takes each VM's current MIPS demand and rebuilds the host loads.
+     * VMs that are migrating keep the load they were planned with.
+     */
+    private void refreshLoads(List<? extends Vm> vmList) {
+        for (Vm vm : vmList) {
+            if (placement.containsKey(vm) && !vm.isInMigration()) {
+                vmLoad.put(vm, vm.getCurrentRequestedTotalMips());
+            }
+        }
+        List<Slot> used = new ArrayList<>(inUse);
+        inUse.clear();
+        for (Slot slot : used) {
+            slot.load = 0.0;
+        }
+        for (Map.Entry<Vm, Slot> e : placement.entrySet()) {
+            e.getValue().load += vmLoad.get(e.getKey());
+        }
+        for (Slot slot : used) {
+            slot.headroom = utilizationUpper * slot.capacity - slot.load;
+            inUse.add(slot);
+        }
+    }
+
+    // VMs that live on the host and are not migrating
+    private List<Vm> residentVms(Slot slot) {
+        List<Vm> vms = new ArrayList<>();
+        for (Vm vm : slot.host.getVmList()) {
+            if (!vm.isInMigration() && placement.get(vm) == slot) {
+                vms.add(vm);
+            }
+        }
+        return vms;
+    }
+
+    private Comparator<Vm> byLoadDescending() {
+        return new Comparator<Vm>() {
+            @Override
+            public int compare(Vm a, Vm b) {
+                int c = Double.compare(vmLoad.get(b), vmLoad.get(a));
+                return c != 0 ? c : Integer.compare(a.getId(), b.getId());
+            }
+        };
+    }
+}
@@ -0,0 +1,168 @@
+import org.cloudbus.cloudsim.*;
+import org.cloudbus.cloudsim.core.CloudSim;
+import org.cloudbus.cloudsim.core.CloudSimTags;
+import org.cloudbus.cloudsim.core.SimEvent;
+import org.cloudbus.cloudsim.power.PowerDatacenter;
+import org.cloudbus.cloudsim.power.PowerHost;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * PowerDatacenter for the energy-aware resource manager
+ *
+ * Energy is integrated between steps from the power model, as in
+ * PowerDatacenter, except that a host draws its static power from the step
+ * that finds it running VMs until the step that finds it without any, idle
+ * or not; PowerHost counts a host that was idle at the last step as off.
+ * Each step also:
+ *   - only updates hosts that run VMs (or just stopped), without the
+ *     per-host log lines, so thousands of switched-off hosts cost nothing,
+ *   - wakes up again at the next cloudlet completion, not only every
+ *     scheduling interval, so short cloudlets are not held back,
+ *   - re-shares a host right after a cloudlet arrives, because an idle VM
+ *     (CloudletSchedulerTimeSharedOnDemand) holds no MIPS.
+ * VMs are only removed when the broker destroys them; PowerDatacenter
+ * treats every VM without load as finished, which would take idle
+ * autoscaled VMs away. Migrations of VMs destroyed in flight are dropped.
+ */
+public class EnergyAwareDatacenter extends PowerDatacenter {
+
+    // By position in the host list: whether the host ran VMs at the last step, and so is on until this one
+    private boolean[] poweredOn;
+
+    public EnergyAwareDatacenter(String name, DatacenterCharacteristics characteristics,
+                                 VmAllocationPolicy vmAllocationPolicy, double schedulingInterval)
+            throws Exception {
+        super(name, characteristics, vmAllocationPolicy, new LinkedList<Storage>(), schedulingInterval);
+    }
+
+    @Override
+    protected void updateCloudletProcessing() {
+        double now = CloudSim.clock();
+        if (now >= 0.111 && now <= getLastProcessTime() + CloudSim.getMinTimeBetweenEvents()) {
+            return;
+        }
+        double timeDiff = now - getLastProcessTime();
+        double energy = 0.0;
+        double nextFinish = Double.MAX_VALUE;
+
+        List<PowerHost> hosts = getHostList();
+        if (poweredOn == null) {
+            poweredOn = new boolean[hosts.size()];
+        }
+        for (int i = 0; i < hosts.size(); i++) {
+            PowerHost host = hosts.get(i);
+            boolean running = !host.getVmList().isEmpty();
+            if (running || host.getUtilizationMips() > 0) {
+                nextFinish = Math.min(nextFinish, host.updateVmsProcessing(now));
+            }
+            if (poweredOn[i] && timeDiff > 0) {
+                energy += (power(host, host.getPreviousUtilizationOfCpu())
+                        + power(host, host.getUtilizationOfCpu())) / 2 * timeDiff;
+            }
+            poweredOn[i] = running;
+        }
+        setPower(getPower() + energy);
+        setLastProcessTime(now);
+
+        checkCloudletCompletion();
+
+        if (!isDisableMigrations()) {
+            startMigrations(getVmAllocationPolicy().optimizeAllocation(getVmList()));
+        }
+
+        if (!getVmList().isEmpty()) {
+            double delay = getSchedulingInterval();
+            if (nextFinish != Double.MAX_VALUE) {
+                delay = Math.min(delay, nextFinish - now);
+            }
+            send(getId(), Math.max(delay, CloudSim.getMinTimeBetweenEvents() + 0.01),
+                    CloudSimTags.VM_DATACENTER_EVENT);
+        }
+    }
+
+    @Override
+    protected void processCloudletSubmit(SimEvent ev, boolean ack) {
+        super.processCloudletSubmit(ev, ack);
+        Cloudlet cloudlet = (Cloudlet) ev.getData();
+        reshare(getVmAllocationPolicy().getHost(cloudlet.getVmId(), cloudlet.getUserId()));
+    }
+
+    @Override
+    protected void processVmMigrate(SimEvent ev, boolean ack) {
+        @SuppressWarnings("unchecked")
+        Map<String, Object> migrate = (Map<String, Object>) ev.getData();
+        Vm vm = (Vm) migrate.get("vm");
+        Host host = (Host) migrate.get("host");
+
+        if (!getVmList().contains(vm)) {
+            // destroyed by the broker while migrating
+            host.removeMigratingInVm(vm);
+            getVmAllocationPolicy().deallocateHostForVm(vm);
+            return;
+        }
+        // bring progress up to now on the old host before the VM moves
+        updateCloudletProcessing();
+        Host source = vm.getHost();
+        getVmAllocationPolicy().deallocateHostForVm(vm);
+        // CloudSim leaves the VM marked as migrating out on its old host; if the
+        // VM later migrates back there it would be given 90% instead of 10%
+        source.getVmScheduler().getVmsMigratingOut().remove(vm.getUid());
+        host.removeMigratingInVm(vm);
+        if (!getVmAllocationPolicy().allocateHostForVm(vm, host)) {
+            throw new IllegalStateException("VM #" + vm.getId() + " could not be placed on Host #"
+                    + host.getId() + " after migration");
+        }
+        if (ack) {
+            int[] data = {getId(), vm.getId(), CloudSimTags.TRUE};
+            sendNow(ev.getSource(), CloudSimTags.VM_CREATE_ACK, data);
+        }
+        Log.formatLine("%.2f: Migration of VM #%d to Host #%d is completed",
+                CloudSim.clock(), vm.getId(), host.getId());
+        vm.setInMigration(false);
+        reshare(host);
+    }
+
+    private void startMigrations(List<Map<String, Object>> migrationMap) {
+        if (migrationMap == null) {
+            return;
+        }
+        double now = CloudSim.clock();
+        for (Map<String, Object> migrate : migrationMap) {
+            Vm vm = (Vm) migrate.get("vm");
+            PowerHost targetHost = (PowerHost) migrate.get("host");
+
+            Log.formatLine("%.2f: Migration of VM #%d from Host #%d to Host #%d is started",
+                    now, vm.getId(), vm.getHost().getId(), targetHost.getId());
+            targetHost.addMigratingInVm(vm);
+            incrementMigrationCount();
+
+            // half of the host bandwidth carries the migration, as in PowerDatacenter
+            send(getId(), vm.getRam() / ((double) targetHost.getBw() / (2 * 8000)),
+                    CloudSimTags.VM_MIGRATE, migrate);
+        }
+    }
+
+    // Watts at a utilization; CloudSim can report a hair above 1, which the power model rejects
+    private static double power(PowerHost host, double utilization) {
+        return host.getPowerModel().getPower(Math.max(0.0, Math.min(1.0, utilization)));
+    }
+
+    // Re-allocate the host's MIPS now and wake up at its next completion
+    private void reshare(Host host) {
+        if (host == null) {
+            return;
+        }
+        double now = CloudSim.clock();
+        // the first call brings the VMs up to now and then gives them the MIPS they request now; only
+        // the second runs them at those shares, so its next completion is the one to wake up for
+        host.updateVmsProcessing(now);
+        double nextFinish = host.updateVmsProcessing(now);
+        if (nextFinish != Double.MAX_VALUE) {
+            send(getId(), Math.max(nextFinish - now, CloudSim.getMinTimeBetweenEvents() + 0.01),
+                    CloudSimTags.VM_DATACENTER_EVENT);
+        }
+    }
+}
@@ -1,5 +1,7 @@
 import org.cloudbus.cloudsim.*;
 import org.cloudbus.cloudsim.core.CloudSim;
+import org.cloudbus.cloudsim.power.PowerHost;
+import org.cloudbus.cloudsim.power.models.PowerModelLinear;
 import org.cloudbus.cloudsim.provisioners.PeProvisionerSimple;
 import org.cloudbus.cloudsim.provisioners.RamProvisionerSimple;
 import org.cloudbus.cloudsim.provisioners.BwProvisionerSimple;
@@ -7,10 +9,57 @@ import org.cloudbus.cloudsim.provisioners.BwProvisionerSimple;
 import java.util.*;
 
 
+/**
+ * Resource management with closed-loop autoscaling
+ *
+ * Usage: java -cp ".;lib/*" Main [cloudlets] [sampleInterval] [scaleUpQueue] [scaleDownQueue] [cooldown] [bindingMode]
+ *        java -cp ".;lib/*" Main binding [vms] [cloudlets] [seed]
+ *        java -cp ".;lib/*" Main energy [hosts] [loadScale] [lowerUtilization] [upperUtilization]
+ *
+ * The second form binds one batch of mixed-length cloudlets to a fixed set
+ * of heterogeneous VMs with every VmLoadIndex mode and prints the makespans.
+ * The third runs the autoscaling workload, loadScale times heavier, on
+ * power-aware hosts with a linear power model; VMs are packed and
+ * consolidated by live migration (ConsolidatingVmAllocationPolicy) and the
+ * energy used is reported in kWh.
+ */
 public class Main {
 
+    // Hosts in the datacenter; each fits 2 of the 1000 MIPS VMs
+    private static final int HOSTS = 8;
+
+    // Energy mode: 4 x 2000 MIPS hosts drawing 175 W idle and 250 W at full load
+    private static final int POWER_HOST_PES = 4;
+    private static final double POWER_HOST_MAX_WATTS = 250;
+    private static final double POWER_HOST_STATIC_FRACTION = 0.7;
+    private static final double CONSOLIDATION_INTERVAL = 60.0;
+
     public static void main(String[] args) {
 
+        if (args.length > 0 && args[0].equals("binding")) {
+            int vms = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+            int cloudlets = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+            long seed = args.length > 3 ? Long.parseLong(args[3]) : 42L;
+            compareBindingModes(vms, cloudlets, seed);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("energy")) {
+            int hosts = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+            double loadScale = args.length > 2 ? Double.parseDouble(args[2]) : 10.0;
+            double lower = args.length > 3 ? Double.parseDouble(args[3]) : 0.2;
+            double upper = args.length > 4 ? Double.parseDouble(args[4]) : 0.8;
+            runEnergyAware(hosts, loadScale, lower, upper);
+            return;
+        }
+
+        int cloudletCount = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        double sampleInterval = args.length > 1 ? Double.parseDouble(args[1]) : 10.0;
+        double scaleUpQueue = args.length > 2 ? Double.parseDouble(args[2]) : 3.0;
+        double scaleDownQueue = args.length > 3 ? Double.parseDouble(args[3]) : 0.5;
+        double cooldown = args.length > 4 ? Double.parseDouble(args[4]) : 30.0;
+        VmLoadIndex.Mode bindingMode = args.length > 5
+                ? VmLoadIndex.Mode.valueOf(args[5].toUpperCase()) : VmLoadIndex.Mode.EARLIEST_COMPLETION;
+
         System.out.println("Starting Resource Management Simulation...");
 
         try {
@@ -18,10 +67,15 @@ public class Main {
             CloudSim.init(1, Calendar.getInstance(), false);
 
             // 2. Create Datacenter
-            Datacenter datacenter = createDatacenter("Datacenter_1");
+            Datacenter datacenter = createDatacenter("Datacenter_1", HOSTS, 1);
 
             // 3. Create Broker
-            DatacenterBroker broker = new DatacenterBroker("Broker_1");
+            AutoScalingBroker broker = new AutoScalingBroker("Broker_1");
+            broker.setTiming(sampleInterval, cooldown);
+            broker.setThresholds(scaleUpQueue, 0.9, scaleDownQueue, 0.3);
+            broker.setVmLimits(1, HOSTS * 2);
+            broker.setSlaResponseTime(20.0);
+            broker.setBindingMode(bindingMode);
             int brokerId = broker.getId();
 
             // 4. Create Initial VM list
@@ -34,33 +88,15 @@ public class Main {
 
             System.out.println("Initial VM created");
 
-            // 5. Create Cloudlets (High load)
-            List<Cloudlet> cloudletList = new ArrayList<>();
-
-            for (int i = 0; i < 6; i++) {
-                Cloudlet cloudlet = new Cloudlet(
-                        i, 4000, 1, 300, 300,
-                        null, null, null
-                );
-                cloudlet.setUserId(brokerId);
-                cloudletList.add(cloudlet);
-            }
+            // 5. Create Cloudlets with a quiet / peak / quiet arrival profile
+            submitWorkload(broker, cloudletCount, 1.0);
 
             // 6. RESOURCE MANAGEMENT LOGIC
-            // If cloudlets > threshold, add a new VM
-            int THRESHOLD = 4;
-
-            if (cloudletList.size() > THRESHOLD) {
-                Vm vm2 = new Vm(1, brokerId, 1000, 1, 512, 1000,
-                        10000, "Xen", new CloudletSchedulerTimeShared());
+            // The broker samples queue length and utilisation every sampleInterval
+            // and adds or removes VMs while the simulation runs
 
-                vmList.add(vm2);
-                System.out.println("High load detected → New VM allocated");
-            }
-
-            // 7. Submit VMs and Cloudlets
+            // 7. Submit VMs (cloudlets were submitted with their arrival times)
             broker.submitVmList(vmList);
-            broker.submitCloudletList(cloudletList);
 
             // 8. Start Simulation
             CloudSim.startSimulation();
@@ -68,45 +104,225 @@ public class Main {
 
             // 9. Print Results
             System.out.println("Simulation finished successfully");
-            System.out.println("Total VMs used: " + vmList.size());
-            System.out.println("Total Cloudlets executed: " + cloudletList.size());
+            System.out.println("Total VMs used: " + broker.getVmsProvisioned()
+                    + " (peak " + broker.getPeakVms() + " at once)");
+            System.out.println("Total Cloudlets executed: " + broker.getCloudletReceivedList().size());
+            System.out.println("Scale-ups: " + broker.getScaleUps()
+                    + ", Scale-downs: " + broker.getScaleDowns());
+            System.out.printf("Makespan: %.2f s%n", broker.getMakespan());
+            System.out.printf("VM-hours: %.3f%n", broker.getVmHours());
+            System.out.printf("Mean response time: %.2f s%n", broker.getMeanResponseTime());
+            System.out.println("SLA violations: " + broker.getSlaViolations());
 
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Submits cloudlets of 4000 MI arriving at 0.2 x loadScale per second,
+     * or 2.0 x loadScale per second between t = 300 and t = 900. A 4000 MI
+     * cloudlet takes 4 s alone, so one VM serves 0.25 per second.
+     */
+    private static void submitWorkload(AutoScalingBroker broker, int cloudletCount, double loadScale) {
+        Random random = new Random(42L);
+        UtilizationModel utilizationModel = new UtilizationModelFull();
+        double arrivalTime = 0;
+
+        for (int i = 0; i < cloudletCount; i++) {
+            Cloudlet cloudlet = new Cloudlet(
+                    i, 4000, 1, 300, 300,
+                    utilizationModel, utilizationModel, utilizationModel
+            );
+            cloudlet.setUserId(broker.getId());
+            double rate = ((arrivalTime >= 300 && arrivalTime < 900) ? 2.0 : 0.2) * loadScale;
+            arrivalTime += -Math.log(1.0 - random.nextDouble()) / rate;
+            broker.submitCloudlet(cloudlet, arrivalTime);
+        }
+    }
+
+    /**
+     * Autoscaling on power-aware hosts with consolidation; prints kWh next to
+     * the VM count.
+     */
+    static void runEnergyAware(int hostCount, double loadScale, double lower, double upper) {
+
+        System.out.println("Starting energy-aware Resource Management Simulation...");
+
+        // power hosts log every VM on every step
+        boolean logDisabled = Log.isDisabled();
+        Log.disable();
+        try {
+            CloudSim.init(1, Calendar.getInstance(), false);
+
+            List<PowerHost> hostList = createPowerHosts(hostCount);
+            ConsolidatingVmAllocationPolicy allocationPolicy =
+                    new ConsolidatingVmAllocationPolicy(hostList, lower, upper, CONSOLIDATION_INTERVAL);
+            EnergyAwareDatacenter datacenter = new EnergyAwareDatacenter(
+                    "Datacenter_1", createCharacteristics(hostList), allocationPolicy, 30.0);
+
+            AutoScalingBroker broker = new AutoScalingBroker("Broker_1");
+            broker.setVmLimits(1, hostCount * POWER_HOST_PES);
+            broker.setSlaResponseTime(20.0);
+
+            List<Vm> vmList = new ArrayList<>();
+            vmList.add(new Vm(0, broker.getId(), 1000, 1, 512, 1000,
+                    10000, "Xen", new CloudletSchedulerTimeSharedOnDemand(1000, 1)));
+
+            submitWorkload(broker, (int) (2000 * loadScale), loadScale);
+            broker.submitVmList(vmList);
+
+            long start = System.nanoTime();
+            CloudSim.startSimulation();
+            CloudSim.stopSimulation();
+            long wallMs = (System.nanoTime() - start) / 1000000;
+
+            System.out.println("Simulation finished successfully");
+            System.out.println("Total VMs used: " + broker.getVmsProvisioned()
+                    + " (peak " + broker.getPeakVms() + " at once)");
+            System.out.printf("Energy consumption: %.3f kWh%n", datacenter.getPower() / (3600 * 1000));
+            System.out.println("Hosts in use: peak " + allocationPolicy.getPeakHostsInUse()
+                    + " of " + hostCount + ", VM migrations: " + datacenter.getMigrationCount());
+            System.out.println("Total Cloudlets executed: " + broker.getCloudletReceivedList().size());
+            System.out.println("Scale-ups: " + broker.getScaleUps()
+                    + ", Scale-downs: " + broker.getScaleDowns());
+            System.out.printf("Makespan: %.2f s%n", broker.getMakespan());
+            System.out.printf("VM-hours: %.3f%n", broker.getVmHours());
+            System.out.printf("Mean response time: %.2f s%n", broker.getMeanResponseTime());
+            System.out.println("SLA violations: " + broker.getSlaViolations());
+            System.out.println("Wall time: " + wallMs + " ms");
+
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            if (!logDisabled) {
+                Log.enable();
+            }
+        }
+    }
+
+    /**
+     * Runs the same static batch once per binding mode: vms VMs of 500, 1000
+     * or 2000 MIPS with 1 or 2 PEs, and cloudlets of 1000 to 50000 MI, all
+     * submitted at time 0. Autoscaling is pinned so only binding differs.
+     */
+    static void compareBindingModes(int vmCount, int cloudletCount, long seed) {
+        System.out.println("Binding " + cloudletCount + " cloudlets to " + vmCount + " heterogeneous VMs");
+        boolean logDisabled = Log.isDisabled();
+        Log.disable();
+        try {
+            for (VmLoadIndex.Mode mode : VmLoadIndex.Mode.values()) {
+                CloudSim.init(1, Calendar.getInstance(), false);
+                // 4 PEs of 2000 MIPS per host holds at least two of the largest VMs
+                createDatacenter("Datacenter_1", (vmCount + 1) / 2, 4);
+
+                AutoScalingBroker broker = new AutoScalingBroker("Broker_1");
+                broker.setVmLimits(vmCount, vmCount);
+                broker.setBindingMode(mode);
+                broker.setSlaResponseTime(Double.MAX_VALUE);
+                int brokerId = broker.getId();
+
+                Random random = new Random(seed);
+                int[] mips = {500, 1000, 2000};
+                List<Vm> vmList = new ArrayList<>();
+                for (int i = 0; i < vmCount; i++) {
+                    vmList.add(new Vm(i, brokerId, mips[random.nextInt(mips.length)], 1 + random.nextInt(2),
+                            512, 1000, 10000, "Xen", new CloudletSchedulerTimeShared()));
+                }
+
+                UtilizationModel utilizationModel = new UtilizationModelFull();
+                List<Cloudlet> cloudletList = new ArrayList<>();
+                for (int i = 0; i < cloudletCount; i++) {
+                    Cloudlet cloudlet = new Cloudlet(
+                            i, 1000 + random.nextInt(49001), 1, 300, 300,
+                            utilizationModel, utilizationModel, utilizationModel
+                    );
+                    cloudlet.setUserId(brokerId);
+                    cloudletList.add(cloudlet);
+                }
+
+                broker.submitVmList(vmList);
+                broker.submitCloudletList(cloudletList);
+
+                long start = System.nanoTime();
+                CloudSim.startSimulation();
+                CloudSim.stopSimulation();
+                long wallMs = (System.nanoTime() - start) / 1000000;
+
+                System.out.printf("%-20s makespan %10.2f s, mean response %10.2f s (%d ms wall)%n",
+                        mode, broker.getMakespan(), broker.getMeanResponseTime(), wallMs);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            if (!logDisabled) {
+                Log.enable();
+            }
+        }
+    }
+
+    // Power-aware hosts; 1 Gbit/s so a 512 MB VM migrates in about 8 s
+    private static List<PowerHost> createPowerHosts(int hostCount) {
+
+        List<PowerHost> hostList = new ArrayList<>();
+
+        for (int hostId = 0; hostId < hostCount; hostId++) {
+            List<Pe> peList = new ArrayList<>();
+            for (int peId = 0; peId < POWER_HOST_PES; peId++) {
+                peList.add(new Pe(peId, new PeProvisionerSimple(2000)));
+            }
+
+            hostList.add(new PowerHost(
+                    hostId,
+                    new RamProvisionerSimple(4096 * POWER_HOST_PES),
+                    new BwProvisionerSimple(1000000),
+                    1000000,
+                    peList,
+                    new VmSchedulerTimeSharedOverSubscription(peList),
+                    new PowerModelLinear(POWER_HOST_MAX_WATTS, POWER_HOST_STATIC_FRACTION)
+            ));
+        }
+        return hostList;
+    }
+
+    private static DatacenterCharacteristics createCharacteristics(List<? extends Host> hostList) {
+        return new DatacenterCharacteristics(
+                "x86",
+                "Linux",
+                "Xen",
+                hostList,
+                10.0,
+                3.0,
+                0.05,
+                0.1,
+                0.1
+        );
+    }
+
     // Datacenter creation
-    private static Datacenter createDatacenter(String name) {
+    private static Datacenter createDatacenter(String name, int hostCount, int pesPerHost) {
 
         List<Host> hostList = new ArrayList<>();
 
-        List<Pe> peList = new ArrayList<>();
-        peList.add(new Pe(0, new PeProvisionerSimple(2000)));
+        for (int hostId = 0; hostId < hostCount; hostId++) {
+            List<Pe> peList = new ArrayList<>();
+            for (int peId = 0; peId < pesPerHost; peId++) {
+                peList.add(new Pe(peId, new PeProvisionerSimple(2000)));
+            }
+
+            Host host = new Host(
+                    hostId,
+                    new RamProvisionerSimple(4096 * pesPerHost),
+                    new BwProvisionerSimple(10000 * pesPerHost),
+                    1000000,
+                    peList,
+                    new VmSchedulerTimeShared(peList)
+            );
 
-        Host host = new Host(
-                0,
-                new RamProvisionerSimple(4096),
-                new BwProvisionerSimple(10000),
-                1000000,
-                peList,
-                new VmSchedulerTimeShared(peList)
-        );
+            hostList.add(host);
+        }
 
-        hostList.add(host);
-
-        DatacenterCharacteristics characteristics =
-                new DatacenterCharacteristics(
-                        "x86",
-                        "Linux",
-                        "Xen",
-                        hostList,
-                        10.0,
-                        3.0,
-                        0.05,
-                        0.1,
-                        0.1
-                );
+        DatacenterCharacteristics characteristics = createCharacteristics(hostList);
 
         try {
             return new Datacenter(
@@ -0,0 +1,225 @@
+import org.cloudbus.cloudsim.Cloudlet;
+import org.cloudbus.cloudsim.Vm;
+
+import java.util.*;
+
+/**
+ * Indexed VM load table for load-aware cloudlet binding
+ *
+ * Tracks the MI queued on every VM and answers "which VM should the next
+ * cloudlet go to" without scanning all VMs:
+ *
+ *   ROUND_ROBIN          - what the stock DatacenterBroker does, for comparison
+ *   LEAST_LOADED         - smallest queued MI / (MIPS x PEs)
+ *   EARLIEST_COMPLETION  - smallest (queued MI + cloudlet MI) / (MIPS x PEs)
+ *
+ * LEAST_LOADED keeps one TreeSet ordered by normalised load, so a binding is
+ * O(log V). For EARLIEST_COMPLETION the best VM depends on the cloudlet
+ * length, so VMs are grouped by capacity: inside one group the VM with the
+ * least queued MI always wins, and only the head of each group has to be
+ * compared. A binding costs O(K + log V) for K distinct VM sizes, which is
+ * a handful even with hundreds of VMs.
+ *
+ * Min-min and max-min batch scheduling reduce to EARLIEST_COMPLETION over a
+ * sorted batch (see orderBatch), because a cloudlet's best completion time
+ * grows with its length.
+ */
+public class VmLoadIndex {
+
+    public enum Mode {
+        ROUND_ROBIN, LEAST_LOADED, EARLIEST_COMPLETION, MIN_MIN, MAX_MIN
+    }
+
+    private static final class Entry {
+        final Vm vm;
+        final double capacity;
+        long queuedMi;
+
+        Entry(Vm vm) {
+            this.vm = vm;
+            this.capacity = vm.getMips() * vm.getNumberOfPes();
+        }
+
+        double load() {
+            return queuedMi / capacity;
+        }
+    }
+
+    private static final Comparator<Entry> BY_QUEUED = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            int c = Long.compare(a.queuedMi, b.queuedMi);
+            return c != 0 ? c : Integer.compare(a.vm.getId(), b.vm.getId());
+        }
+    };
+
+    private static final Comparator<Entry> BY_LOAD = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            int c = Double.compare(a.load(), b.load());
+            return c != 0 ? c : Integer.compare(a.vm.getId(), b.vm.getId());
+        }
+    };
+
+    private final Mode mode;
+    private final Map<Integer, Entry> entries = new HashMap<>();
+    private final TreeSet<Entry> byLoad = new TreeSet<>(BY_LOAD);
+    private final Map<Double, TreeSet<Entry>> byCapacity = new HashMap<>();
+    private final List<Entry> roundRobin = new ArrayList<>();
+    private int roundRobinIndex;
+
+    // MI recorded per bound cloudlet; schedulers may change the length later
+    private final Map<Integer, Long> boundMi = new HashMap<>();
+
+    public VmLoadIndex(Mode mode) {
+        this.mode = mode;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public void addVm(Vm vm) {
+        if (entries.containsKey(vm.getId())) {
+            return;
+        }
+        Entry e = new Entry(vm);
+        entries.put(vm.getId(), e);
+        byLoad.add(e);
+        capacityGroup(e.capacity).add(e);
+        roundRobin.add(e);
+    }
+
+    /**
+     * Stops binding to this VM (draining or destroyed).
+     */
+    public void removeVm(Vm vm) {
+        Entry e = entries.remove(vm.getId());
+        if (e == null) {
+            return;
+        }
+        byLoad.remove(e);
+        TreeSet<Entry> group = byCapacity.get(e.capacity);
+        group.remove(e);
+        if (group.isEmpty()) {
+            byCapacity.remove(e.capacity);
+        }
+        // O(V), but only on scale-down
+        int i = roundRobin.indexOf(e);
+        roundRobin.remove(i);
+        if (roundRobinIndex > i) {
+            roundRobinIndex--;
+        }
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public boolean contains(Vm vm) {
+        return entries.containsKey(vm.getId());
+    }
+
+    /**
+     * Picks the VM for a cloudlet and records its MI there.
+     *
+     * @return the chosen VM, or null if no VM accepts work
+     */
+    public Vm bind(Cloudlet cloudlet) {
+        if (entries.isEmpty()) {
+            return null;
+        }
+        long mi = totalMi(cloudlet);
+        Entry chosen;
+        switch (mode) {
+            case ROUND_ROBIN:
+                roundRobinIndex %= roundRobin.size();
+                chosen = roundRobin.get(roundRobinIndex++);
+                break;
+            case LEAST_LOADED:
+                chosen = byLoad.first();
+                break;
+            default:
+                chosen = earliestCompletion(mi);
+                break;
+        }
+        update(chosen, mi);
+        boundMi.put(cloudlet.getCloudletId(), mi);
+        return chosen.vm;
+    }
+
+    /**
+     * Removes a finished cloudlet's MI from its VM.
+     */
+    public void release(Cloudlet cloudlet) {
+        Long mi = boundMi.remove(cloudlet.getCloudletId());
+        Entry e = entries.get(cloudlet.getVmId());
+        if (mi != null && e != null) {
+            update(e, -mi);
+        }
+    }
+
+    /**
+     * VM with the lowest normalised load, or null if none.
+     */
+    public Vm leastLoaded() {
+        return byLoad.isEmpty() ? null : byLoad.first().vm;
+    }
+
+    /**
+     * Estimated time for the VM to finish its queued work.
+     */
+    public double estimatedBacklogTime(Vm vm) {
+        Entry e = entries.get(vm.getId());
+        return e == null ? 0.0 : e.load();
+    }
+
+    /**
+     * Orders a batch of cloudlets for binding: shortest first for min-min,
+     * longest first for max-min, unchanged otherwise.
+     */
+    public void orderBatch(List<Cloudlet> batch) {
+        if (mode == Mode.MIN_MIN) {
+            batch.sort(Comparator.comparingLong(VmLoadIndex::totalMi));
+        } else if (mode == Mode.MAX_MIN) {
+            batch.sort(Comparator.comparingLong(VmLoadIndex::totalMi).reversed());
+        }
+    }
+
+    private Entry earliestCompletion(long mi) {
+        Entry best = null;
+        double bestTime = Double.MAX_VALUE;
+        for (TreeSet<Entry> group : byCapacity.values()) {
+            Entry head = group.first();
+            double time = (head.queuedMi + mi) / head.capacity;
+            if (time < bestTime || (time == bestTime && best != null && head.vm.getId() < best.vm.getId())) {
+                best = head;
+                bestTime = time;
+            }
+        }
+        return best;
+    }
+
+    // Re-key in every index: O(log V)
+    private void update(Entry e, long deltaMi) {
+        TreeSet<Entry> group = byCapacity.get(e.capacity);
+        byLoad.remove(e);
+        group.remove(e);
+        e.queuedMi = Math.max(0, e.queuedMi + deltaMi);
+        byLoad.add(e);
+        group.add(e);
+    }
+
+    private TreeSet<Entry> capacityGroup(double capacity) {
+        TreeSet<Entry> group = byCapacity.get(capacity);
+        if (group == null) {
+            group = new TreeSet<>(BY_QUEUED);
+            byCapacity.put(capacity, group);
+        }
+        return group;
+    }
+
+    private static long totalMi(Cloudlet cloudlet) {
+        return cloudlet.getCloudletLength() * cloudlet.getNumberOfPes();
+    }
+}
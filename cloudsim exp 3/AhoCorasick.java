@@ -0,0 +1,118 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Multi-pattern byte matcher
+ *
+ * Aho-Corasick automaton over UTF-8 bytes with the failure links folded into
+ * a full transition table (one flat array, 256 entries per state), so
+ * feeding a byte is one array lookup whatever the number of patterns. A
+ * state's output lists every pattern that ends there, including the ones
+ * reached through failure links.
+ */
+public class AhoCorasick {
+
+    private final int[] next;
+    private final int[][] output;
+    private final int patternCount;
+
+    public AhoCorasick(List<String> patterns) {
+        List<int[]> trie = new ArrayList<>();
+        List<int[]> ends = new ArrayList<>();
+        trie.add(newState());
+        ends.add(null);
+
+        for (int p = 0; p < patterns.size(); p++) {
+            int state = 0;
+            for (byte b : patterns.get(p).getBytes(StandardCharsets.UTF_8)) {
+                int c = b & 0xff;
+                if (trie.get(state)[c] < 0) {
+                    trie.get(state)[c] = trie.size();
+                    trie.add(newState());
+                    ends.add(null);
+                }
+                state = trie.get(state)[c];
+            }
+            ends.set(state, append(ends.get(state), p));
+        }
+
+        int size = trie.size();
+        int[][] goTo = trie.toArray(new int[size][]);
+        output = ends.toArray(new int[size][]);
+        patternCount = patterns.size();
+
+        // breadth first, so a state's failure target is complete before it
+        int[] fail = new int[size];
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        for (int c = 0; c < 256; c++) {
+            if (goTo[0][c] < 0) {
+                goTo[0][c] = 0;
+            } else {
+                queue.add(goTo[0][c]);
+            }
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            int[] inherited = output[fail[state]];
+            if (inherited != null) {
+                for (int p : inherited) {
+                    output[state] = append(output[state], p);
+                }
+            }
+            for (int c = 0; c < 256; c++) {
+                int child = goTo[state][c];
+                if (child < 0) {
+                    goTo[state][c] = goTo[fail[state]][c];
+                } else {
+                    fail[child] = goTo[fail[state]][c];
+                    queue.add(child);
+                }
+            }
+        }
+
+        next = new int[size * 256];
+        for (int state = 0; state < size; state++) {
+            System.arraycopy(goTo[state], 0, next, state * 256, 256);
+        }
+    }
+
+    /**
+     * State after reading b in state.
+     */
+    public int step(int state, byte b) {
+        return next[state << 8 | b & 0xff];
+    }
+
+    /**
+     * Patterns that end at this state, or null.
+     */
+    public int[] matches(int state) {
+        return output[state];
+    }
+
+    public int getPatternCount() {
+        return patternCount;
+    }
+
+    public int getStateCount() {
+        return output.length;
+    }
+
+    private static int[] newState() {
+        int[] transitions = new int[256];
+        Arrays.fill(transitions, -1);
+        return transitions;
+    }
+
+    private static int[] append(int[] values, int value) {
+        if (values == null) {
+            return new int[] {value};
+        }
+        int[] grown = Arrays.copyOf(values, values.length + 1);
+        grown[values.length] = value;
+        return grown;
+    }
+}
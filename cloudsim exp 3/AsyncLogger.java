@@ -0,0 +1,422 @@
+import org.cloudbus.cloudsim.core.CloudSim;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous structured logger for the forensics experiment
+ *
+ * log() copies the fields into a preallocated slot of a bounded ring buffer
+ * and returns; a single writer thread formats the records into a direct
+ * buffer and appends them to the file in batches through a FileChannel.
+ * One record per line, fields separated by '|':
+ *
+ *   epochMillis|yyyy-MM-dd HH:mm:ss.SSS|run|simTime|entity|event|id|message
+ *
+ * e.g. 1738725386123|2026-02-05 08:46:26.123|18d3f2a1c4e-7b2a|0.100|Cloudlet|FINISHED|3|Cloudlet finished with ID: 3
+ *
+ * run identifies one logger (one program run), so appended runs can be told
+ * apart. id is empty when the record is not about one entity. '|' and line
+ * breaks inside the message are replaced. The date text is formatted once
+ * per second and reused.
+ *
+ * The writer also maintains the file's index (LogStore, LogIndexWriter):
+ * it knows each record's byte offset while formatting it, and writes index
+ * segments only after the log bytes they point to. A missing or stale
+ * index is rebuilt when the logger opens the file.
+ *
+ * Backpressure: when the ring is full, OverflowPolicy.DROP (the default)
+ * discards the new record and counts it, so the caller never waits on the
+ * disk; the writer then logs a Logger|DROPPED record with the count so the
+ * gap is visible in the file. OverflowPolicy.WAIT makes the caller wait for
+ * free space instead and loses nothing.
+ */
+public class AsyncLogger implements Closeable {
+
+    public enum OverflowPolicy {
+        DROP, WAIT
+    }
+
+    public static final int DEFAULT_CAPACITY = 1 << 16;
+
+    private static final int BATCH_BYTES = 1 << 18;
+    private static final long IDLE_PARK_NANOS = 20000000L;
+    private static final DateTimeFormatter DATE_FORMAT =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
+
+    /**
+     * One ring slot; reused, never reallocated.
+     */
+    private static final class Record {
+        long epochMillis;
+        double simTime;
+        String entity;
+        String event;
+        long id;
+        String message;
+    }
+
+    private final Record[] ring;
+    private final int mask;
+    private final OverflowPolicy overflowPolicy;
+    private final String runId;
+    private final FileChannel channel;
+    private final LogIndexWriter index;
+    private final Thread writer;
+
+    // Producers claim slots under the monitor; the writer only reads these
+    private long claimed;
+    private volatile long published;
+    private volatile long consumed;
+    private volatile long flushed;
+    private volatile boolean closed;
+    private volatile long sealRequests;
+    private volatile long sealsDone;
+    private final AtomicLong dropped = new AtomicLong();
+
+    // Writer thread only
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BATCH_BYTES);
+    private final byte[] digits = new byte[20];
+    private final byte[] runIdBytes;
+    private byte[] cachedDate = new byte[0];
+    private long cachedSecond = Long.MIN_VALUE;
+    private long droppedReported;
+    private long filePosition;
+    private volatile IOException failure;
+
+    public AsyncLogger(String fileName) throws IOException {
+        this(fileName, DEFAULT_CAPACITY, OverflowPolicy.DROP, true);
+    }
+
+    /**
+     * @param capacity       ring size in records, rounded up to a power of two
+     * @param overflowPolicy what log() does when the ring is full
+     * @param indexed        whether to keep fileName.idx up to date
+     */
+    public AsyncLogger(String fileName, int capacity, OverflowPolicy overflowPolicy, boolean indexed)
+            throws IOException {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.ring = new Record[size];
+        for (int i = 0; i < size; i++) {
+            ring[i] = new Record();
+        }
+        this.mask = size - 1;
+        this.overflowPolicy = overflowPolicy;
+        this.runId = Long.toHexString(System.currentTimeMillis()) + "-"
+                + Integer.toHexString(0x1000 + new Random().nextInt(0xf000));
+        this.runIdBytes = runId.getBytes("US-ASCII");
+        if (indexed) {
+            LogStore.rebuildIfStale(fileName);
+            this.index = new LogIndexWriter(LogStore.indexFile(fileName), false);
+        } else {
+            this.index = null;
+        }
+        this.channel = FileChannel.open(Paths.get(fileName),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        this.filePosition = channel.size();
+
+        this.writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "AsyncLogger-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Identifier written in the run field of every record.
+     */
+    public String getRunId() {
+        return runId;
+    }
+
+    public void log(String entity, String event, String message) {
+        log(entity, event, -1, message);
+    }
+
+    /**
+     * Queues one record stamped with the wall clock and CloudSim.clock().
+     *
+     * @param id entity ID, or -1 for none
+     */
+    public void log(String entity, String event, long id, String message) {
+        long now = System.currentTimeMillis();
+        double simTime = CloudSim.clock();
+        long sequence;
+        synchronized (this) {
+            if (closed) {
+                dropped.incrementAndGet();
+                return;
+            }
+            while (claimed - consumed > mask) {
+                if (overflowPolicy == OverflowPolicy.DROP) {
+                    dropped.incrementAndGet();
+                    return;
+                }
+                LockSupport.unpark(writer);
+                LockSupport.parkNanos(10000L);
+            }
+            Record r = ring[(int) claimed & mask];
+            r.epochMillis = now;
+            r.simTime = simTime;
+            r.entity = entity;
+            r.event = event;
+            r.id = id;
+            r.message = message;
+            sequence = ++claimed;
+            published = sequence;
+        }
+        // wake the writer early when a burst fills half the ring
+        if (sequence - consumed >= (mask + 1) >> 1) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    /**
+     * Blocks until every record logged so far is in the file and in the
+     * index. Meant for points where the file is read back, not for the
+     * simulation loop.
+     */
+    public void flush() throws IOException {
+        long target = published;
+        long seal = ++sealRequests;
+        while ((flushed < target || index != null && sealsDone < seal) && writer.isAlive()) {
+            LockSupport.unpark(writer);
+            LockSupport.parkNanos(100000L);
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Writes out everything queued and closes the file.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+        if (index != null) {
+            index.close();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Records discarded because the ring was full (DROP) or the logger was closed.
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Records taken off the ring by the writer (written unless the disk failed).
+     */
+    public long getWrittenCount() {
+        return consumed;
+    }
+
+    private void drain() {
+        while (true) {
+            long start = consumed;
+            long end = published;
+            for (long sequence = start; sequence < end; sequence++) {
+                Record r = ring[(int) sequence & mask];
+                append(r.epochMillis, r.simTime, r.entity, r.event, r.id, r.message);
+                r.entity = null;
+                r.event = null;
+                r.message = null;
+            }
+            // slots are free for producers once formatted into the buffer
+            consumed = end;
+
+            long lost = dropped.get();
+            if (lost > droppedReported) {
+                append(System.currentTimeMillis(), CloudSim.clock(), "Logger", "DROPPED", lost - droppedReported,
+                        "Ring buffer full: " + (lost - droppedReported) + " records dropped");
+                droppedReported = lost;
+            }
+
+            if (start == end) {
+                long seal = sealRequests;
+                writeBuffer();
+                if (index != null && seal > sealsDone) {
+                    index.seal();
+                    writeIndex();
+                    sealsDone = seal;
+                }
+                flushed = end;
+                if (closed && published == end) {
+                    break;
+                }
+                LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+            }
+        }
+    }
+
+    private void append(long epochMillis, double simTime, String entity, String event, long id, String message) {
+        long offset = filePosition + buffer.position();
+        format(epochMillis, simTime, entity, event, id, message);
+        if (index != null) {
+            index.add(offset, filePosition + buffer.position(), epochMillis, runId, null, entity, event, id);
+        }
+    }
+
+    private void format(long epochMillis, double simTime, String entity, String event, long id, String message) {
+        putLong(epochMillis);
+        put((byte) '|');
+        long second = epochMillis / 1000;
+        if (second != cachedSecond) {
+            cachedSecond = second;
+            cachedDate = DATE_FORMAT.format(Instant.ofEpochSecond(second)).getBytes();
+        }
+        putBytes(cachedDate);
+        put((byte) '.');
+        int millis = (int) (epochMillis % 1000);
+        put((byte) ('0' + millis / 100));
+        put((byte) ('0' + millis / 10 % 10));
+        put((byte) ('0' + millis % 10));
+        put((byte) '|');
+        putBytes(runIdBytes);
+        put((byte) '|');
+        putSimTime(simTime);
+        put((byte) '|');
+        putText(entity);
+        put((byte) '|');
+        putText(event);
+        put((byte) '|');
+        if (id >= 0) {
+            putLong(id);
+        }
+        put((byte) '|');
+        putText(message);
+        put((byte) '\n');
+    }
+
+    // Fixed three decimals without going through String.format
+    private void putSimTime(double simTime) {
+        long thousandths = Math.round(simTime * 1000.0);
+        if (thousandths < 0) {
+            put((byte) '-');
+            thousandths = -thousandths;
+        }
+        putLong(thousandths / 1000);
+        put((byte) '.');
+        int fraction = (int) (thousandths % 1000);
+        put((byte) ('0' + fraction / 100));
+        put((byte) ('0' + fraction / 10 % 10));
+        put((byte) ('0' + fraction % 10));
+    }
+
+    private void putLong(long value) {
+        if (value == 0) {
+            put((byte) '0');
+            return;
+        }
+        int n = 0;
+        while (value > 0) {
+            digits[n++] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        while (n > 0) {
+            put(digits[--n]);
+        }
+    }
+
+    // UTF-8 without allocating; field separators and line breaks are replaced
+    private void putText(String text) {
+        if (text == null) {
+            return;
+        }
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                if (c == '|') {
+                    c = '/';
+                } else if (c == '\n' || c == '\r') {
+                    c = ' ';
+                }
+                put((byte) c);
+            } else if (c < 0x800) {
+                put((byte) (0xc0 | c >> 6));
+                put((byte) (0x80 | c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < text.length()
+                    && Character.isLowSurrogate(text.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, text.charAt(++i));
+                put((byte) (0xf0 | cp >> 18));
+                put((byte) (0x80 | cp >> 12 & 0x3f));
+                put((byte) (0x80 | cp >> 6 & 0x3f));
+                put((byte) (0x80 | cp & 0x3f));
+            } else {
+                put((byte) (0xe0 | c >> 12));
+                put((byte) (0x80 | c >> 6 & 0x3f));
+                put((byte) (0x80 | c & 0x3f));
+            }
+        }
+    }
+
+    private void putBytes(byte[] bytes) {
+        for (byte b : bytes) {
+            put(b);
+        }
+    }
+
+    private void put(byte b) {
+        if (!buffer.hasRemaining()) {
+            writeBuffer();
+        }
+        buffer.put(b);
+    }
+
+    private void writeBuffer() {
+        buffer.flip();
+        filePosition += buffer.remaining();
+        try {
+            while (buffer.hasRemaining() && failure == null) {
+                channel.write(buffer);
+            }
+        } catch (IOException e) {
+            // keep consuming so producers never stall; reported by flush()/close()
+            failure = e;
+        }
+        buffer.clear();
+        writeIndex();
+    }
+
+    // Segments sealed so far only point at bytes written above
+    private void writeIndex() {
+        if (index == null || failure != null) {
+            return;
+        }
+        try {
+            index.writePending();
+        } catch (IOException e) {
+            failure = e;
+        }
+    }
+}
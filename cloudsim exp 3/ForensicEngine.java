@@ -0,0 +1,509 @@
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Streaming forensic rule engine
+ *
+ * Every byte of the log goes once through a single Aho-Corasick automaton
+ * built from the patterns of all rules, so the cost is linear in the file
+ * size however many rules are loaded. The file is memory-mapped and its
+ * newline-aligned chunks are matched in parallel (MappedLogScanner); each
+ * chunk records its matches, which are then handed in file order to the
+ * rules using that pattern, with rule state kept per run. Count, rate and
+ * sequence rules therefore see exactly what a sequential pass would show.
+ *
+ * Lines are scoped by run: AsyncLogger lines carry it in their third field;
+ * older "date : message" lines get legacy-1, legacy-2, ... starting at
+ * each "Cloud Log Forensics Simulation Started". Records the analysis
+ * wrote itself (entity Analysis) are not matched again.
+ */
+public class ForensicEngine {
+
+    static final String LEGACY_START = "Cloud Log Forensics Simulation Started";
+    private static final byte[] LEGACY_SEPARATOR = " : ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] LEGACY_START_BYTES = LEGACY_START.getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] OWN_ENTITY = "Analysis".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * One rule firing for one run.
+     */
+    public static class Finding {
+
+        private final String session;
+        private final ForensicRule rule;
+        private final String detail;
+
+        Finding(String session, ForensicRule rule, String detail) {
+            this.session = session;
+            this.rule = rule;
+            this.detail = detail;
+        }
+
+        public String getSession() {
+            return session;
+        }
+
+        public String getRuleName() {
+            return rule.getName();
+        }
+
+        public String getSeverity() {
+            return rule.getSeverity();
+        }
+
+        public String getMessage() {
+            return rule.getMessage();
+        }
+
+        public String getDetail() {
+            return detail;
+        }
+
+        @Override
+        public String toString() {
+            return "[" + session + "] " + getSeverity() + " " + getRuleName() + ": " + getMessage()
+                    + " (" + detail + ")";
+        }
+    }
+
+    private static final class Session {
+        final String id;
+        final ForensicRule.State[] states;
+        final List<Finding> findings = new ArrayList<>();
+
+        Session(String id, List<ForensicRule> rules) {
+            this.id = id;
+            this.states = new ForensicRule.State[rules.size()];
+            for (int i = 0; i < states.length; i++) {
+                states[i] = rules.get(i).newState();
+            }
+        }
+    }
+
+    private final List<ForensicRule> rules = new ArrayList<>();
+    private final MappedLogScanner scanner;
+
+    public ForensicEngine() {
+        this(new MappedLogScanner());
+    }
+
+    public ForensicEngine(MappedLogScanner scanner) {
+        this.scanner = scanner;
+    }
+
+    public void addRule(ForensicRule rule) {
+        rules.add(rule);
+    }
+
+    public List<ForensicRule> getRules() {
+        return rules;
+    }
+
+    /**
+     * Loads a rules file (see ForensicRule); blank lines and # comments are skipped.
+     */
+    public static ForensicEngine fromFile(String fileName) throws IOException {
+        ForensicEngine engine = new ForensicEngine();
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(fileName), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (!line.isEmpty() && !line.startsWith("#")) {
+                    engine.addRule(ForensicRule.parse(line));
+                }
+            }
+        }
+        return engine;
+    }
+
+    /**
+     * Runs every rule over the log.
+     *
+     * @param session run to analyse, or null for every run in the file
+     * @return findings grouped by run, runs in order of their first match
+     */
+    public List<Finding> analyze(String logFile, String session) throws IOException {
+        Plan plan = new Plan();
+        Replay replay = new Replay(plan, session);
+        scanner.scan(logFile, buffer -> new Chunk(plan, session, buffer).scan(), replay::accept);
+        return replay.finish();
+    }
+
+    /**
+     * Feeds the chunks' matches to the rules, chunk by chunk in file order.
+     */
+    private final class Replay {
+
+        private final Plan plan;
+        private final String only;
+        private final Map<String, Session> sessions = new LinkedHashMap<>();
+        private long lineOffset;
+        private int legacyRuns;
+
+        Replay(Plan plan, String only) {
+            this.plan = plan;
+            this.only = only;
+        }
+
+        void accept(Chunk chunk) {
+            // lines before the chunk's first marker continue the previous legacy run
+            int base = legacyRuns == 0 && chunk.legacyBeforeMarker ? 1 : legacyRuns;
+            Session[] runs = new Session[chunk.runs.size()];
+            Session[] legacy = new Session[chunk.legacyMarkers + 1];
+
+            for (int e = 0; e < chunk.events; e++) {
+                int code = chunk.eventSession[e];
+                Session session;
+                if (code >= 0) {
+                    if (runs[code] == null) {
+                        runs[code] = session(sessions, only, chunk.runs.get(code));
+                    }
+                    session = runs[code];
+                } else {
+                    int ordinal = -code - 1;
+                    if (legacy[ordinal] == null) {
+                        legacy[ordinal] = session(sessions, only, "legacy-" + (base + ordinal));
+                    }
+                    session = legacy[ordinal];
+                }
+                if (session == null) {
+                    continue;
+                }
+                long lineNumber = lineOffset + chunk.eventLine[e] + 1;
+                int[] subs = plan.subscribers[chunk.eventPattern[e]];
+                for (int k = 0; k < subs.length; k += 2) {
+                    String detail = session.states[subs[k]].onMatch(subs[k + 1], chunk.eventTime[e], lineNumber);
+                    if (detail != null) {
+                        session.findings.add(new Finding(session.id, rules.get(subs[k]), detail));
+                    }
+                }
+            }
+            lineOffset += chunk.lines;
+            legacyRuns = base + chunk.legacyMarkers;
+        }
+
+        List<Finding> finish() {
+            List<Finding> findings = new ArrayList<>();
+            for (Session s : sessions.values()) {
+                for (int r = 0; r < rules.size(); r++) {
+                    String detail = s.states[r].finish();
+                    if (detail != null) {
+                        s.findings.add(new Finding(s.id, rules.get(r), detail));
+                    }
+                }
+                findings.addAll(s.findings);
+            }
+            return findings;
+        }
+    }
+
+    private Session session(Map<String, Session> sessions, String only, String id) {
+        if (only != null && !only.equals(id)) {
+            return null;
+        }
+        Session s = sessions.get(id);
+        if (s == null) {
+            s = new Session(id, rules);
+            sessions.put(id, s);
+        }
+        return s;
+    }
+
+    /**
+     * The rules' patterns compiled into one matcher; shared read-only by the
+     * chunk scans.
+     */
+    private final class Plan {
+
+        final AhoCorasick matcher;
+        // pattern -> (rule, pattern index within the rule) pairs
+        final int[][] subscribers;
+        final boolean needsTime;
+
+        Plan() {
+            Map<String, Integer> ids = new LinkedHashMap<>();
+            List<int[]> subs = new ArrayList<>();
+            boolean time = false;
+            for (int r = 0; r < rules.size(); r++) {
+                ForensicRule rule = rules.get(r);
+                time |= rule.needsTime();
+                String[] patterns = rule.getPatterns();
+                for (int p = 0; p < patterns.length; p++) {
+                    Integer id = ids.get(patterns[p]);
+                    if (id == null) {
+                        id = ids.size();
+                        ids.put(patterns[p], id);
+                        subs.add(new int[0]);
+                    }
+                    int[] s = subs.get(id);
+                    s = Arrays.copyOf(s, s.length + 2);
+                    s[s.length - 2] = r;
+                    s[s.length - 1] = p;
+                    subs.set(id, s);
+                }
+            }
+            this.matcher = new AhoCorasick(new ArrayList<>(ids.keySet()));
+            this.subscribers = subs.toArray(new int[subs.size()][]);
+            this.needsTime = time;
+        }
+    }
+
+    /**
+     * Matches of one chunk, in line order, with chunk-relative line numbers.
+     * A legacy line is recorded by how many run markers precede it within
+     * the chunk, since its run number depends on the chunks before.
+     */
+    private static final class Chunk {
+
+        private static final int SKIP = Integer.MIN_VALUE;
+        private static final int SCAN_BLOCK = 1 << 16;
+
+        private final Plan plan;
+        private final String only;
+        private final boolean skipLegacy;
+        private final ByteBuffer buffer;
+        private final long[] seenOnLine;
+        private final int[] lineHits;
+        private int lineHitCount;
+        private byte[] currentRun;
+        private int currentSession;
+        private SimpleDateFormat legacyDate;
+        private String cachedDateText;
+        private long cachedDateMillis;
+
+        long lines;
+        boolean legacyBeforeMarker;
+        int legacyMarkers;
+        final List<String> runs = new ArrayList<>();
+        // per match: run index (or -1 - legacy ordinal), pattern, line, time
+        int events;
+        int[] eventSession = new int[64];
+        int[] eventPattern = new int[64];
+        long[] eventLine = new long[64];
+        long[] eventTime = new long[64];
+
+        Chunk(Plan plan, String only, ByteBuffer buffer) {
+            this.plan = plan;
+            this.only = only;
+            this.skipLegacy = only != null && !only.startsWith("legacy-");
+            this.buffer = buffer;
+            this.seenOnLine = new long[plan.subscribers.length];
+            Arrays.fill(seenOnLine, -1);
+            this.lineHits = new int[plan.subscribers.length];
+        }
+
+        Chunk scan() {
+            AhoCorasick matcher = plan.matcher;
+            int limit = buffer.limit();
+            // bulk copies into a small array are faster than get(i) per byte
+            byte[] block = new byte[Math.max(1, Math.min(SCAN_BLOCK, limit))];
+            int lineStart = 0;
+            int state = 0;
+            for (int offset = 0; offset < limit; offset += block.length) {
+                int n = Math.min(block.length, limit - offset);
+                buffer.position(offset);
+                buffer.get(block, 0, n);
+                for (int j = 0; j < n; j++) {
+                    byte b = block[j];
+                    if (b == '\n') {
+                        endLine(lineStart, offset + j);
+                        lineStart = offset + j + 1;
+                        state = 0;
+                        continue;
+                    }
+                    state = matcher.step(state, b);
+                    int[] hits = matcher.matches(state);
+                    if (hits != null) {
+                        for (int pattern : hits) {
+                            if (seenOnLine[pattern] != lines) {
+                                seenOnLine[pattern] = lines;
+                                lineHits[lineHitCount++] = pattern;
+                            }
+                        }
+                    }
+                }
+            }
+            if (lineStart < limit) {
+                endLine(lineStart, limit);
+            }
+            return this;
+        }
+
+        private void endLine(int from, int to) {
+            long line = lines++;
+            int hitCount = lineHitCount;
+            lineHitCount = 0;
+            if (to > from && buffer.get(to - 1) == '\r') {
+                to--;
+            }
+            if (to == from) {
+                return;
+            }
+
+            boolean structured = structured(from, to);
+            int session;
+            if (structured) {
+                session = structuredSession(from, to);
+            } else {
+                int message = indexOf(from, to, LEGACY_SEPARATOR);
+                if (message >= 0 && startsWith(message + LEGACY_SEPARATOR.length, to, LEGACY_START_BYTES)) {
+                    legacyMarkers++;
+                } else if (legacyMarkers == 0) {
+                    legacyBeforeMarker = true;
+                }
+                session = skipLegacy ? SKIP : -1 - legacyMarkers;
+            }
+            if (session == SKIP || hitCount == 0) {
+                return;
+            }
+
+            long time = plan.needsTime ? lineTime(from, to, structured) : 0L;
+            for (int h = 0; h < hitCount; h++) {
+                if (events == eventSession.length) {
+                    int size = events * 2;
+                    eventSession = Arrays.copyOf(eventSession, size);
+                    eventPattern = Arrays.copyOf(eventPattern, size);
+                    eventLine = Arrays.copyOf(eventLine, size);
+                    eventTime = Arrays.copyOf(eventTime, size);
+                }
+                eventSession[events] = session;
+                eventPattern[events] = lineHits[h];
+                eventLine[events] = line;
+                eventTime[events] = time;
+                events++;
+            }
+        }
+
+        // epochMillis|...: AsyncLogger format
+        private boolean structured(int from, int to) {
+            int i = from;
+            while (i < to && buffer.get(i) >= '0' && buffer.get(i) <= '9') {
+                i++;
+            }
+            return i > from && i < to && buffer.get(i) == '|';
+        }
+
+        private int structuredSession(int from, int to) {
+            int runStart = fieldStart(from, to, 2);
+            int runEnd = fieldStart(from, to, 3) - 1;
+            int entityStart = fieldStart(from, to, 4);
+            if (runStart < 0 || runEnd < 0 || entityStart < 0) {
+                return SKIP;
+            }
+            if (entityStart + OWN_ENTITY.length < to && startsWith(entityStart, to, OWN_ENTITY)
+                    && buffer.get(entityStart + OWN_ENTITY.length) == '|') {
+                return SKIP;
+            }
+            // consecutive lines are almost always from the same run
+            if (currentRun == null || !equals(runStart, runEnd, currentRun)) {
+                currentRun = new byte[runEnd - runStart];
+                for (int i = 0; i < currentRun.length; i++) {
+                    currentRun[i] = buffer.get(runStart + i);
+                }
+                String run = new String(currentRun, StandardCharsets.US_ASCII);
+                if (only != null && !only.equals(run)) {
+                    currentSession = SKIP;
+                } else {
+                    currentSession = runs.indexOf(run);
+                    if (currentSession < 0) {
+                        currentSession = runs.size();
+                        runs.add(run);
+                    }
+                }
+            }
+            return currentSession;
+        }
+
+        private long lineTime(int from, int to, boolean structured) {
+            if (structured) {
+                long millis = 0;
+                for (int i = from; buffer.get(i) != '|'; i++) {
+                    millis = millis * 10 + (buffer.get(i) - '0');
+                }
+                return millis;
+            }
+            int end = indexOf(from, to, LEGACY_SEPARATOR);
+            if (end < 0) {
+                return 0L;
+            }
+            byte[] bytes = new byte[end - from];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = buffer.get(from + i);
+            }
+            // the date text changes once per second at most
+            String text = new String(bytes, StandardCharsets.US_ASCII);
+            if (!text.equals(cachedDateText)) {
+                if (legacyDate == null) {
+                    legacyDate = new SimpleDateFormat("EEE MMM dd HH:mm:ss zzz yyyy", Locale.ENGLISH);
+                }
+                cachedDateText = text;
+                try {
+                    cachedDateMillis = legacyDate.parse(text).getTime();
+                } catch (ParseException e) {
+                    cachedDateMillis = 0L;
+                }
+            }
+            return cachedDateMillis;
+        }
+
+        private int fieldStart(int from, int to, int field) {
+            int i = from;
+            for (int f = 0; f < field; f++) {
+                while (i < to && buffer.get(i) != '|') {
+                    i++;
+                }
+                if (i == to) {
+                    return -1;
+                }
+                i++;
+            }
+            return i;
+        }
+
+        private int indexOf(int from, int to, byte[] needle) {
+            for (int i = from; i + needle.length <= to; i++) {
+                if (startsWith(i, to, needle)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private boolean startsWith(int offset, int to, byte[] prefix) {
+            if (offset + prefix.length > to) {
+                return false;
+            }
+            for (int i = 0; i < prefix.length; i++) {
+                if (buffer.get(offset + i) != prefix[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean equals(int from, int to, byte[] bytes) {
+            if (to - from != bytes.length) {
+                return false;
+            }
+            for (int i = 0; i < bytes.length; i++) {
+                if (buffer.get(from + i) != bytes[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
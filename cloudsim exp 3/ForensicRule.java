@@ -0,0 +1,234 @@
+/**
+ * One forensic rule
+ *
+ * A rule watches one or two text patterns and keeps its own state per run
+ * (session), so a run is judged only on its own log lines. Rules are
+ * written one per line in a rules file:
+ *
+ *   count|name|severity|pattern|max|message         more than max matching lines
+ *   rate|name|severity|pattern|max/millis|message   more than max matching lines within millis
+ *   sequence|name|severity|first|then|message       first with no then after it before the run ends
+ *
+ * e.g. sequence|vm-without-cloudlet|WARN|VM created|Cloudlet created|VM created without any cloudlet
+ *
+ * A line counts once per pattern however often the pattern occurs in it.
+ */
+public abstract class ForensicRule {
+
+    /**
+     * Per-run state of one rule.
+     */
+    public abstract static class State {
+
+        /**
+         * @param pattern index into getPatterns()
+         * @return a finding detail to report now, or null
+         */
+        abstract String onMatch(int pattern, long timeMillis, long lineNumber);
+
+        /**
+         * @return a finding detail for the end of the run, or null
+         */
+        abstract String finish();
+    }
+
+    private final String name;
+    private final String severity;
+    private final String message;
+
+    protected ForensicRule(String name, String severity, String message) {
+        this.name = name;
+        this.severity = severity;
+        this.message = message;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getSeverity() {
+        return severity;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public abstract String[] getPatterns();
+
+    public abstract State newState();
+
+    /**
+     * Whether onMatch needs the line timestamp.
+     */
+    public boolean needsTime() {
+        return false;
+    }
+
+    /**
+     * Parses one rules-file line.
+     */
+    public static ForensicRule parse(String line) {
+        String[] f = line.split("\\|", -1);
+        if (f.length != 6) {
+            throw new IllegalArgumentException("Expected 6 '|'-separated fields: " + line);
+        }
+        String type = f[0].trim();
+        switch (type) {
+            case "count":
+                return new Count(f[1].trim(), f[2].trim(), f[3], Integer.parseInt(f[4].trim()), f[5].trim());
+            case "rate":
+                String[] rate = f[4].split("/");
+                return new Rate(f[1].trim(), f[2].trim(), f[3], Integer.parseInt(rate[0].trim()),
+                        Long.parseLong(rate[1].trim()), f[5].trim());
+            case "sequence":
+                return new Sequence(f[1].trim(), f[2].trim(), f[3], f[4], f[5].trim());
+            default:
+                throw new IllegalArgumentException("Unknown rule type '" + type + "': " + line);
+        }
+    }
+
+    /**
+     * More than max lines match in a run.
+     */
+    public static class Count extends ForensicRule {
+
+        private final String pattern;
+        private final int max;
+
+        public Count(String name, String severity, String pattern, int max, String message) {
+            super(name, severity, message);
+            this.pattern = pattern;
+            this.max = max;
+        }
+
+        @Override
+        public String[] getPatterns() {
+            return new String[] {pattern};
+        }
+
+        @Override
+        public State newState() {
+            return new State() {
+                long count;
+
+                @Override
+                String onMatch(int p, long timeMillis, long lineNumber) {
+                    count++;
+                    return null;
+                }
+
+                @Override
+                String finish() {
+                    return count > max ? count + " lines with '" + pattern + "', limit " + max : null;
+                }
+            };
+        }
+    }
+
+    /**
+     * More than max lines match within a sliding window of windowMillis.
+     * Reported once per run, at the line that crosses the limit.
+     */
+    public static class Rate extends ForensicRule {
+
+        private final String pattern;
+        private final int max;
+        private final long windowMillis;
+
+        public Rate(String name, String severity, String pattern, int max, long windowMillis, String message) {
+            super(name, severity, message);
+            this.pattern = pattern;
+            this.max = max;
+            this.windowMillis = windowMillis;
+        }
+
+        @Override
+        public String[] getPatterns() {
+            return new String[] {pattern};
+        }
+
+        @Override
+        public boolean needsTime() {
+            return true;
+        }
+
+        @Override
+        public State newState() {
+            return new State() {
+                // times of the last max + 1 matches
+                final long[] recent = new long[max + 1];
+                long count;
+                boolean reported;
+
+                @Override
+                String onMatch(int p, long timeMillis, long lineNumber) {
+                    recent[(int) (count % recent.length)] = timeMillis;
+                    count++;
+                    if (reported || count <= max) {
+                        return null;
+                    }
+                    long oldest = recent[(int) (count % recent.length)];
+                    if (timeMillis - oldest <= windowMillis) {
+                        reported = true;
+                        return (max + 1) + " lines with '" + pattern + "' within " + windowMillis
+                                + " ms, ending at line " + lineNumber;
+                    }
+                    return null;
+                }
+
+                @Override
+                String finish() {
+                    return null;
+                }
+            };
+        }
+    }
+
+    /**
+     * A line matching first is not followed by one matching then before the
+     * run ends.
+     */
+    public static class Sequence extends ForensicRule {
+
+        private final String first;
+        private final String then;
+
+        public Sequence(String name, String severity, String first, String then, String message) {
+            super(name, severity, message);
+            this.first = first;
+            this.then = then;
+        }
+
+        @Override
+        public String[] getPatterns() {
+            return new String[] {first, then};
+        }
+
+        @Override
+        public State newState() {
+            return new State() {
+                long pendingSince = -1;
+
+                @Override
+                String onMatch(int p, long timeMillis, long lineNumber) {
+                    if (p == 0) {
+                        if (pendingSince < 0) {
+                            pendingSince = lineNumber;
+                        }
+                    } else {
+                        pendingSince = -1;
+                    }
+                    return null;
+                }
+
+                @Override
+                String finish() {
+                    return pendingSince >= 0
+                            ? "'" + first + "' at line " + pendingSince + " never followed by '" + then + "'"
+                            : null;
+                }
+            };
+        }
+    }
+}
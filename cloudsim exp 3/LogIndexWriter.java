@@ -0,0 +1,223 @@
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+
+/**
+ * Writes the on-disk index of a log file (see LogStore for the layout)
+ *
+ * Records are collected into a segment until the time bucket changes, the
+ * segment is full or the legacy run changes; the segment is then sealed
+ * with its postings. Sealed segments are only appended to the index file
+ * by writePending(), which the caller invokes after the log bytes they
+ * point to have been written, so the index never runs ahead of the log.
+ * Single-threaded: AsyncLogger calls it from its writer thread.
+ */
+class LogIndexWriter implements Closeable {
+
+    static final int MAGIC = 0x434c4958;     // "CLIX"
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 8;
+    static final long BUCKET_MILLIS = 60000L;
+    static final int MAX_SEGMENT_RECORDS = 1 << 16;
+
+    /**
+     * Growable list of ascending log offsets.
+     */
+    private static final class Postings {
+        long[] offsets = new long[4];
+        int size;
+
+        void add(long offset) {
+            if (size == offsets.length) {
+                offsets = Arrays.copyOf(offsets, size * 2);
+            }
+            offsets[size++] = offset;
+        }
+    }
+
+    private static final class Segment {
+        final long bucket;
+        final String legacyRun;
+        final long startOffset;
+        long endOffset;
+        long minTime = Long.MAX_VALUE;
+        long maxTime = Long.MIN_VALUE;
+        int records;
+        final Map<String, Postings> postings = new TreeMap<>();
+
+        Segment(long bucket, String legacyRun, long startOffset) {
+            this.bucket = bucket;
+            this.legacyRun = legacyRun;
+            this.startOffset = startOffset;
+        }
+    }
+
+    private final FileChannel channel;
+    private final List<byte[]> pending = new ArrayList<>();
+    private Segment current;
+
+    /**
+     * @param truncate start a new index instead of appending to an existing one
+     */
+    LogIndexWriter(String indexFile, boolean truncate) throws IOException {
+        if (truncate) {
+            channel = FileChannel.open(Paths.get(indexFile), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        } else {
+            channel = FileChannel.open(Paths.get(indexFile), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+        if (channel.size() == 0) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            header.putInt(MAGIC).putInt(VERSION).flip();
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+        }
+    }
+
+    /**
+     * Indexes the record stored at [offset, endOffset) of the log.
+     *
+     * @param run       run field of the record
+     * @param legacyRun non-null for legacy lines, which do not carry their run
+     * @param entity    entity type or null
+     * @param event     event keyword or null
+     * @param id        entity ID or -1
+     */
+    void add(long offset, long endOffset, long epochMillis, String run, String legacyRun,
+             String entity, String event, long id) {
+        long bucket = Math.floorDiv(epochMillis, BUCKET_MILLIS);
+        if (current != null && (current.bucket != bucket || current.records >= MAX_SEGMENT_RECORDS
+                || !Objects.equals(current.legacyRun, legacyRun))) {
+            seal();
+        }
+        if (current == null) {
+            current = new Segment(bucket, legacyRun, offset);
+        }
+        current.endOffset = endOffset;
+        current.minTime = Math.min(current.minTime, epochMillis);
+        current.maxTime = Math.max(current.maxTime, epochMillis);
+        current.records++;
+        if (run != null) {
+            post(LogStore.runKey(run), offset);
+        }
+        if (entity != null) {
+            post(LogStore.entityKey(entity), offset);
+            if (id >= 0) {
+                post(LogStore.idKey(entity, id), offset);
+            }
+        }
+        if (event != null) {
+            post(LogStore.eventKey(event), offset);
+        }
+    }
+
+    private void post(String key, long offset) {
+        Postings p = current.postings.get(key);
+        if (p == null) {
+            p = new Postings();
+            current.postings.put(key, p);
+        }
+        p.add(offset);
+    }
+
+    /**
+     * Closes the current segment; it is written by the next writePending().
+     */
+    void seal() {
+        if (current != null) {
+            pending.add(encode(current));
+            current = null;
+        }
+    }
+
+    /**
+     * Appends the sealed segments to the index file.
+     */
+    void writePending() throws IOException {
+        for (byte[] segment : pending) {
+            ByteBuffer buffer = ByteBuffer.wrap(segment);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+        pending.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        seal();
+        writePending();
+        channel.close();
+    }
+
+    // bodyLength, header, key offset table, then (key, count, length, varint deltas) per key
+    private static byte[] encode(Segment s) {
+        try {
+            ByteArrayOutputStream entries = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(entries);
+            int[] entryOffsets = new int[s.postings.size()];
+            int k = 0;
+            for (Map.Entry<String, Postings> e : s.postings.entrySet()) {
+                entryOffsets[k++] = out.size();
+                byte[] key = e.getKey().getBytes(StandardCharsets.UTF_8);
+                out.writeShort(key.length);
+                out.write(key);
+                Postings p = e.getValue();
+                ByteArrayOutputStream deltas = new ByteArrayOutputStream(p.size * 2);
+                long previous = s.startOffset;
+                for (int i = 0; i < p.size; i++) {
+                    writeVarLong(deltas, p.offsets[i] - previous);
+                    previous = p.offsets[i];
+                }
+                out.writeInt(p.size);
+                out.writeInt(deltas.size());
+                deltas.writeTo(out);
+            }
+
+            byte[] legacyRun = s.legacyRun == null ? new byte[0] : s.legacyRun.getBytes(StandardCharsets.UTF_8);
+            int headerBytes = 4 * 8 + 4 + 2 + legacyRun.length + 4;
+            int tableBytes = 4 * entryOffsets.length;
+
+            ByteArrayOutputStream segment = new ByteArrayOutputStream(4 + headerBytes + tableBytes + out.size());
+            DataOutputStream body = new DataOutputStream(segment);
+            body.writeInt(headerBytes + tableBytes + out.size());
+            body.writeLong(s.minTime);
+            body.writeLong(s.maxTime);
+            body.writeLong(s.startOffset);
+            body.writeLong(s.endOffset);
+            body.writeInt(s.records);
+            body.writeShort(legacyRun.length);
+            body.write(legacyRun);
+            body.writeInt(entryOffsets.length);
+            for (int offset : entryOffsets) {
+                body.writeInt(headerBytes + tableBytes + offset);
+            }
+            entries.writeTo(body);
+            return segment.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);     // in-memory streams do not fail
+        }
+    }
+
+    private static void writeVarLong(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+}
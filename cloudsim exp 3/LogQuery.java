@@ -0,0 +1,80 @@
+/**
+ * Filter for LogStore.query
+ *
+ * Every field left unset matches everything; set fields must all match.
+ * An id only makes sense together with an entity (Cloudlet 3, VM 0).
+ */
+public class LogQuery {
+
+    private String entity;
+    private long id = -1;
+    private String event;
+    private String run;
+    private long fromMillis = Long.MIN_VALUE;
+    private long toMillis = Long.MAX_VALUE;
+
+    public LogQuery() {
+    }
+
+    public LogQuery(String entity, long id) {
+        this.entity = entity;
+        this.id = id;
+    }
+
+    public String getEntity() {
+        return entity;
+    }
+
+    public void setEntity(String entity) {
+        this.entity = entity;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public void setId(long id) {
+        this.id = id;
+    }
+
+    public String getEvent() {
+        return event;
+    }
+
+    public void setEvent(String event) {
+        this.event = event;
+    }
+
+    public String getRun() {
+        return run;
+    }
+
+    public void setRun(String run) {
+        this.run = run;
+    }
+
+    public long getFromMillis() {
+        return fromMillis;
+    }
+
+    public long getToMillis() {
+        return toMillis;
+    }
+
+    /**
+     * Wall-clock interval, both ends inclusive.
+     */
+    public void setTimeRange(long fromMillis, long toMillis) {
+        this.fromMillis = fromMillis;
+        this.toMillis = toMillis;
+    }
+
+    boolean matches(LogRecord record) {
+        return (entity == null || entity.equals(record.getEntity()))
+                && (id < 0 || id == record.getId())
+                && (event == null || event.equals(record.getEvent()))
+                && (run == null || run.equals(record.getRun()))
+                && record.getEpochMillis() >= fromMillis
+                && record.getEpochMillis() <= toMillis;
+    }
+}
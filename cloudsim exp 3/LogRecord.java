@@ -0,0 +1,161 @@
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * One line of cloud_logs.txt, parsed
+ *
+ * AsyncLogger lines carry every field. Older "date : message" lines only
+ * have a time and a message; "X created with ID: n" gives entity X, event
+ * CREATED and id n, a message starting with ALERT gives event ALERT. Their
+ * run is the legacy-N session the line belongs to.
+ */
+public class LogRecord {
+
+    private static final Pattern LEGACY_CREATED = Pattern.compile("^(\\w+) created with ID: (\\d+)");
+
+    private final long offset;
+    private final long epochMillis;
+    private final String run;
+    private final double simTime;
+    private final String entity;
+    private final String event;
+    private final long id;
+    private final String message;
+
+    public LogRecord(long offset, long epochMillis, String run, double simTime,
+                     String entity, String event, long id, String message) {
+        this.offset = offset;
+        this.epochMillis = epochMillis;
+        this.run = run;
+        this.simTime = simTime;
+        this.entity = entity;
+        this.event = event;
+        this.id = id;
+        this.message = message;
+    }
+
+    /**
+     * Byte offset of the line in the log file.
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    public long getEpochMillis() {
+        return epochMillis;
+    }
+
+    public String getRun() {
+        return run;
+    }
+
+    /**
+     * Simulated time, NaN for legacy lines.
+     */
+    public double getSimTime() {
+        return simTime;
+    }
+
+    /**
+     * Entity type (Cloudlet, VM, ...), or null.
+     */
+    public String getEntity() {
+        return entity;
+    }
+
+    /**
+     * Event keyword (CREATED, FINISHED, ALERT, ...), or null.
+     */
+    public String getEvent() {
+        return event;
+    }
+
+    /**
+     * Entity ID, or -1.
+     */
+    public long getId() {
+        return id;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%tF %<tT.%<tL [%s] %s %s %s : %s", epochMillis, run,
+                entity == null ? "-" : entity, event == null ? "-" : event, id < 0 ? "-" : String.valueOf(id),
+                message);
+    }
+
+    /**
+     * Parses lines of both formats; not thread-safe (caches the last legacy date).
+     */
+    public static class Parser {
+
+        private final SimpleDateFormat legacyDate =
+                new SimpleDateFormat("EEE MMM dd HH:mm:ss zzz yyyy", Locale.ENGLISH);
+        private String cachedDateText;
+        private long cachedDateMillis;
+
+        /**
+         * @param legacyRun run to give a legacy line
+         * @return the record, or null if the line is blank
+         */
+        public LogRecord parse(String line, long offset, String legacyRun) {
+            if (line.isEmpty()) {
+                return null;
+            }
+            if (isStructured(line)) {
+                String[] f = line.split("\\|", 8);
+                if (f.length == 8) {
+                    return new LogRecord(offset, Long.parseLong(f[0]), f[2], Double.parseDouble(f[3]),
+                            f[4], f[5], f[6].isEmpty() ? -1 : Long.parseLong(f[6]), f[7]);
+                }
+            }
+            int separator = line.indexOf(" : ");
+            if (separator < 0) {
+                return new LogRecord(offset, 0L, legacyRun, Double.NaN, null, null, -1, line);
+            }
+            String message = line.substring(separator + 3);
+            String entity = null;
+            String event = null;
+            long id = -1;
+            Matcher created = LEGACY_CREATED.matcher(message);
+            if (created.find()) {
+                entity = created.group(1);
+                event = "CREATED";
+                id = Long.parseLong(created.group(2));
+            } else if (message.startsWith("ALERT")) {
+                event = "ALERT";
+            }
+            return new LogRecord(offset, legacyTime(line.substring(0, separator)), legacyRun, Double.NaN,
+                    entity, event, id, message);
+        }
+
+        private long legacyTime(String text) {
+            // the date text changes once per second at most
+            if (!text.equals(cachedDateText)) {
+                cachedDateText = text;
+                try {
+                    cachedDateMillis = legacyDate.parse(text).getTime();
+                } catch (ParseException e) {
+                    cachedDateMillis = 0L;
+                }
+            }
+            return cachedDateMillis;
+        }
+    }
+
+    // epochMillis|...: AsyncLogger format
+    static boolean isStructured(String line) {
+        int i = 0;
+        while (i < line.length() && line.charAt(i) >= '0' && line.charAt(i) <= '9') {
+            i++;
+        }
+        return i > 0 && i < line.length() && line.charAt(i) == '|';
+    }
+}
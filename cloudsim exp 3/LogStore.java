@@ -0,0 +1,540 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Indexed, queryable view of cloud_logs.txt
+ *
+ * The index lives next to the log (cloud_logs.txt.idx). AsyncLogger keeps
+ * it up to date; rebuild() recreates it from any log file, legacy lines
+ * included. After an 8-byte header it is a sequence of segments, each
+ * covering one time bucket (LogIndexWriter.BUCKET_MILLIS) of consecutive
+ * log records:
+ *
+ *   int bodyLength
+ *   long minTime, maxTime, startOffset, endOffset; int records; short+bytes legacyRun
+ *   int keyCount; int[keyCount] key entry offsets (keys sorted)
+ *   per key: short+bytes key; int count; int byteLength; varint offset deltas
+ *
+ * Keys are r:run, e:entity, i:entity#id and v:event. A query picks the
+ * segments whose time range overlaps, looks up its keys by binary search
+ * in the mapped segment, intersects the postings and reads only the lines
+ * at the resulting offsets. Only a time-only query reads whole segments.
+ *
+ * Usage: java LogStore rebuild [log=cloud_logs.txt]
+ *        java LogStore query [entity=Cloudlet] [id=3] [event=FINISHED] [run=...] [from=T] [to=T] [log=...]
+ *        java LogStore runs [event=ALERT] [log=...]
+ * T is epoch milliseconds or "yyyy-MM-dd HH:mm:ss".
+ */
+public class LogStore implements Closeable {
+
+    private static final String DEFAULT_LOG = "cloud_logs.txt";
+    private static final int READ_BLOCK = 1 << 16;
+    private static final long MAX_UNINDEXED_TAIL = 1 << 20;
+
+    /**
+     * Segment header, read when the store is opened; postings are read on demand.
+     */
+    private static final class Segment {
+        long bodyPosition;
+        int bodyLength;
+        long minTime;
+        long maxTime;
+        long startOffset;
+        long endOffset;
+        int records;
+        String legacyRun;
+        int keyTable;
+    }
+
+    private final String logFile;
+    private final FileChannel log;
+    private final FileChannel index;
+    private final List<Segment> segments = new ArrayList<>();
+    private final LogRecord.Parser parser = new LogRecord.Parser();
+
+    // cached block of the log for reading lines
+    private final ByteBuffer block = ByteBuffer.allocate(READ_BLOCK);
+    private long blockStart = -1;
+
+    private LogStore(String logFile) throws IOException {
+        this.logFile = logFile;
+        this.log = FileChannel.open(Paths.get(logFile), StandardOpenOption.READ);
+        this.index = FileChannel.open(Paths.get(indexFile(logFile)), StandardOpenOption.READ);
+        loadSegments();
+    }
+
+    /**
+     * Opens the log and its index. The index is not rebuilt here; see
+     * isComplete() and rebuild().
+     */
+    public static LogStore open(String logFile) throws IOException {
+        return new LogStore(logFile);
+    }
+
+    public static String indexFile(String logFile) {
+        return logFile + ".idx";
+    }
+
+    static String runKey(String run) {
+        return "r:" + run;
+    }
+
+    static String entityKey(String entity) {
+        return "e:" + entity;
+    }
+
+    static String idKey(String entity, long id) {
+        return "i:" + entity + "#" + id;
+    }
+
+    static String eventKey(String event) {
+        return "v:" + event;
+    }
+
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Whether every record of the log is in the index. Segments still held
+     * by a running AsyncLogger are missing until it is flushed.
+     */
+    public boolean isComplete() throws IOException {
+        return isCovered(log, segments.isEmpty() ? 0L : segments.get(segments.size() - 1).endOffset);
+    }
+
+    /**
+     * Records matching the query, in log order.
+     */
+    public List<LogRecord> query(LogQuery query) throws IOException {
+        List<String> keys = new ArrayList<>();
+        if (query.getRun() != null) {
+            keys.add(runKey(query.getRun()));
+        }
+        if (query.getEntity() != null) {
+            keys.add(query.getId() >= 0 ? idKey(query.getEntity(), query.getId()) : entityKey(query.getEntity()));
+        }
+        if (query.getEvent() != null) {
+            keys.add(eventKey(query.getEvent()));
+        }
+
+        List<LogRecord> result = new ArrayList<>();
+        for (Segment s : segments) {
+            if (s.maxTime < query.getFromMillis() || s.minTime > query.getToMillis()) {
+                continue;
+            }
+            if (keys.isEmpty()) {
+                scanSegment(s, query, result);
+                continue;
+            }
+            ByteBuffer body = index.map(FileChannel.MapMode.READ_ONLY, s.bodyPosition, s.bodyLength);
+            long[] offsets = null;
+            for (String key : keys) {
+                long[] postings = postings(s, body, key);
+                offsets = offsets == null ? postings : intersect(offsets, postings);
+                if (offsets.length == 0) {
+                    break;
+                }
+            }
+            for (long offset : offsets) {
+                LogRecord record = read(offset, s.legacyRun);
+                if (record != null && query.matches(record)) {
+                    result.add(record);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Runs with at least one record of the given event (e.g. ALERT), in log order.
+     */
+    public Set<String> runsWith(String event) throws IOException {
+        LogQuery query = new LogQuery();
+        query.setEvent(event);
+        Set<String> runs = new LinkedHashSet<>();
+        for (LogRecord record : query(query)) {
+            runs.add(record.getRun());
+        }
+        return runs;
+    }
+
+    @Override
+    public void close() throws IOException {
+        log.close();
+        index.close();
+    }
+
+    private void loadSegments() throws IOException {
+        long size = index.size();
+        ByteBuffer header = ByteBuffer.allocate(LogIndexWriter.HEADER_BYTES);
+        index.read(header, 0);
+        header.flip();
+        if (header.remaining() < LogIndexWriter.HEADER_BYTES || header.getInt() != LogIndexWriter.MAGIC
+                || header.getInt() != LogIndexWriter.VERSION) {
+            throw new IOException(indexFile(logFile) + " is not a log index; run LogStore rebuild");
+        }
+        long position = LogIndexWriter.HEADER_BYTES;
+        ByteBuffer length = ByteBuffer.allocate(4);
+        while (position + 4 <= size) {
+            length.clear();
+            index.read(length, position);
+            int bodyLength = length.getInt(0);
+            if (bodyLength <= 0 || position + 4 + bodyLength > size) {
+                break;      // cut short by a crash; a rebuild replaces it
+            }
+            Segment s = new Segment();
+            s.bodyPosition = position + 4;
+            s.bodyLength = bodyLength;
+            ByteBuffer fixed = ByteBuffer.allocate(Math.min(bodyLength, 4 * 8 + 4 + 2 + 256));
+            index.read(fixed, s.bodyPosition);
+            fixed.flip();
+            s.minTime = fixed.getLong();
+            s.maxTime = fixed.getLong();
+            s.startOffset = fixed.getLong();
+            s.endOffset = fixed.getLong();
+            s.records = fixed.getInt();
+            int legacyLength = fixed.getShort();
+            if (legacyLength > 0) {
+                byte[] bytes = new byte[legacyLength];
+                fixed.get(bytes);
+                s.legacyRun = new String(bytes, StandardCharsets.UTF_8);
+            }
+            s.keyTable = fixed.position();
+            segments.add(s);
+            position += 4 + bodyLength;
+        }
+    }
+
+    // Binary search over the sorted key table of one segment
+    private static long[] postings(Segment s, ByteBuffer body, String key) {
+        int keyCount = body.getInt(s.keyTable);
+        int low = 0;
+        int high = keyCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int entry = body.getInt(s.keyTable + 4 + 4 * mid);
+            int keyLength = body.getShort(entry);
+            byte[] bytes = new byte[keyLength];
+            for (int i = 0; i < keyLength; i++) {
+                bytes[i] = body.get(entry + 2 + i);
+            }
+            int cmp = new String(bytes, StandardCharsets.UTF_8).compareTo(key);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                int position = entry + 2 + keyLength;
+                long[] offsets = new long[body.getInt(position)];
+                position += 8;
+                long previous = s.startOffset;
+                for (int i = 0; i < offsets.length; i++) {
+                    long delta = 0;
+                    int shift = 0;
+                    byte b;
+                    do {
+                        b = body.get(position++);
+                        delta |= (long) (b & 0x7f) << shift;
+                        shift += 7;
+                    } while (b < 0);
+                    previous += delta;
+                    offsets[i] = previous;
+                }
+                return offsets;
+            }
+        }
+        return new long[0];
+    }
+
+    private static long[] intersect(long[] a, long[] b) {
+        long[] out = new long[Math.min(a.length, b.length)];
+        int n = 0;
+        for (int i = 0, j = 0; i < a.length && j < b.length; ) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                out[n++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    private void scanSegment(Segment s, LogQuery query, List<LogRecord> result) throws IOException {
+        long offset = s.startOffset;
+        while (offset < s.endOffset) {
+            String line = readLine(offset);
+            if (line == null) {
+                break;
+            }
+            LogRecord record = parser.parse(stripCr(line), offset, s.legacyRun);
+            if (record != null && query.matches(record)) {
+                result.add(record);
+            }
+            offset += line.getBytes(StandardCharsets.UTF_8).length + 1;
+        }
+    }
+
+    private LogRecord read(long offset, String legacyRun) throws IOException {
+        String line = readLine(offset);
+        return line == null ? null : parser.parse(stripCr(line), offset, legacyRun);
+    }
+
+    // The line starting at offset, without its '\n'; consecutive reads share a block
+    private String readLine(long offset) throws IOException {
+        ByteArrayOutputStream longLine = null;
+        long position = offset;
+        while (true) {
+            if (blockStart < 0 || position < blockStart || position >= blockStart + block.limit()) {
+                block.clear();
+                if (log.read(block, position) <= 0) {
+                    block.limit(0);
+                    blockStart = -1;
+                    return longLine == null ? null : longLine.toString("UTF-8");
+                }
+                block.flip();
+                blockStart = position;
+            }
+            int from = (int) (position - blockStart);
+            for (int i = from; i < block.limit(); i++) {
+                if (block.get(i) == '\n') {
+                    return text(longLine, from, i);
+                }
+            }
+            // the line continues past this block
+            if (longLine == null) {
+                longLine = new ByteArrayOutputStream();
+            }
+            longLine.write(block.array(), from, block.limit() - from);
+            position = blockStart + block.limit();
+        }
+    }
+
+    private String text(ByteArrayOutputStream prefix, int from, int to) {
+        if (prefix == null) {
+            return new String(block.array(), from, to - from, StandardCharsets.UTF_8);
+        }
+        prefix.write(block.array(), from, to - from);
+        return new String(prefix.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static String stripCr(String line) {
+        return line.endsWith("\r") ? line.substring(0, line.length() - 1) : line;
+    }
+
+    /**
+     * Recreates the index of a log file from scratch.
+     *
+     * @return number of records indexed
+     */
+    public static long rebuild(String logFile) throws IOException {
+        String indexFile = indexFile(logFile);
+        String tmp = indexFile + ".tmp";
+        long records = 0;
+        try (LogIndexWriter writer = new LogIndexWriter(tmp, true)) {
+            if (new File(logFile).exists()) {
+                try (InputStream in = new BufferedInputStream(new FileInputStream(logFile), READ_BLOCK)) {
+                    records = rebuild(in, writer);
+                }
+            }
+        }
+        Files.move(Paths.get(tmp), Paths.get(indexFile), StandardCopyOption.REPLACE_EXISTING);
+        return records;
+    }
+
+    private static long rebuild(InputStream in, LogIndexWriter writer) throws IOException {
+        LogRecord.Parser parser = new LogRecord.Parser();
+        ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+        byte[] chunk = new byte[READ_BLOCK];
+        long records = 0;
+        long offset = 0;
+        int legacyRuns = 0;
+        String legacyRun = null;
+        int n;
+        while (true) {
+            n = in.read(chunk);
+            int start = 0;
+            for (int i = 0; i < n; i++) {
+                if (chunk[i] != '\n') {
+                    continue;
+                }
+                line.write(chunk, start, i - start);
+                long lineStart = offset + start - (line.size() - (i - start));
+                start = i + 1;
+                String text = stripCr(new String(line.toByteArray(), StandardCharsets.UTF_8));
+                line.reset();
+                if (text.isEmpty()) {
+                    continue;
+                }
+                long lineEnd = offset + start;
+                if (LogRecord.isStructured(text)) {
+                    LogRecord record = parser.parse(text, lineStart, null);
+                    writer.add(lineStart, lineEnd, record.getEpochMillis(), record.getRun(), null,
+                            record.getEntity(), record.getEvent(), record.getId());
+                } else {
+                    int separator = text.indexOf(" : ");
+                    if (legacyRuns == 0 || separator >= 0
+                            && text.startsWith(ForensicEngine.LEGACY_START, separator + 3)) {
+                        legacyRun = "legacy-" + (++legacyRuns);
+                    }
+                    LogRecord record = parser.parse(text, lineStart, legacyRun);
+                    writer.add(lineStart, lineEnd, record.getEpochMillis(), legacyRun, legacyRun,
+                            record.getEntity(), record.getEvent(), record.getId());
+                }
+                records++;
+            }
+            if (n < 0) {
+                break;
+            }
+            line.write(chunk, start, n - start);
+            offset += n;
+            writer.writePending();
+        }
+        // a last line without '\n' is left out, as AsyncLogger may still be writing it
+        return records;
+    }
+
+    /**
+     * Rebuilds the index unless it exists and covers the whole log. Called by
+     * AsyncLogger before it appends to the log.
+     */
+    public static void rebuildIfStale(String logFile) throws IOException {
+        boolean logExists = new File(logFile).exists();
+        boolean indexExists = new File(indexFile(logFile)).exists();
+        if (!logExists && !indexExists) {
+            return;
+        }
+        if (logExists && indexExists) {
+            try (LogStore store = open(logFile)) {
+                if (store.isComplete()) {
+                    return;
+                }
+            } catch (IOException e) {
+                // unreadable index: rebuild it
+            }
+        }
+        rebuild(logFile);
+    }
+
+    // Only line breaks may follow the last indexed record
+    private static boolean isCovered(FileChannel log, long indexedEnd) throws IOException {
+        long size = log.size();
+        if (size - indexedEnd > MAX_UNINDEXED_TAIL || size < indexedEnd) {
+            return false;
+        }
+        ByteBuffer tail = ByteBuffer.allocate((int) (size - indexedEnd));
+        while (tail.hasRemaining() && log.read(tail, indexedEnd + tail.position()) > 0) {
+            // keep reading
+        }
+        for (int i = 0; i < tail.position(); i++) {
+            if (tail.get(i) != '\n' && tail.get(i) != '\r') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.out.println("Usage: LogStore rebuild|query|runs [log] ...");
+            return;
+        }
+        String logFile = DEFAULT_LOG;
+        LogQuery query = new LogQuery();
+        String event = "ALERT";
+        long from = Long.MIN_VALUE;
+        long to = Long.MAX_VALUE;
+        for (int i = 1; i < args.length; i++) {
+            String[] kv = args[i].split("=", 2);
+            if (kv.length != 2) {
+                throw new IllegalArgumentException("Expected name=value: " + args[i]);
+            }
+            switch (kv[0]) {
+                case "log": logFile = kv[1]; break;
+                case "entity": query.setEntity(kv[1]); break;
+                case "id": query.setId(Long.parseLong(kv[1])); break;
+                case "event": query.setEvent(kv[1]); event = kv[1]; break;
+                case "run": query.setRun(kv[1]); break;
+                case "from": from = parseTime(kv[1]); break;
+                case "to": to = parseTime(kv[1]); break;
+                default: throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+        query.setTimeRange(from, to);
+
+        if (!args[0].equals("rebuild") && !new File(indexFile(logFile)).exists()) {
+            System.out.println("No index for " + logFile + " yet, building it");
+            rebuild(logFile);
+        }
+
+        switch (args[0]) {
+            case "rebuild": {
+                long start = System.currentTimeMillis();
+                long records = rebuild(logFile);
+                System.out.println("Indexed " + records + " records of " + logFile + " in "
+                        + (System.currentTimeMillis() - start) + " ms");
+                break;
+            }
+            case "query": {
+                try (LogStore store = open(logFile)) {
+                    warnIfIncomplete(store);
+                    for (LogRecord record : store.query(query)) {
+                        System.out.println(record);
+                    }
+                }
+                break;
+            }
+            case "runs": {
+                try (LogStore store = open(logFile)) {
+                    warnIfIncomplete(store);
+                    for (String run : store.runsWith(event)) {
+                        System.out.println(run);
+                    }
+                }
+                break;
+            }
+            default:
+                System.out.println("Unknown command: " + args[0]);
+        }
+    }
+
+    private static void warnIfIncomplete(LogStore store) throws IOException {
+        if (!store.isComplete()) {
+            System.out.println("Note: the index does not cover the whole log; run LogStore rebuild");
+        }
+    }
+
+    private static long parseTime(String text) {
+        if (text.matches("\\d+")) {
+            return Long.parseLong(text);
+        }
+        try {
+            return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").parse(text).getTime();
+        } catch (ParseException e) {
+            throw new IllegalArgumentException("Bad time: " + text);
+        }
+    }
+}
@@ -1,32 +1,83 @@
 import org.cloudbus.cloudsim.*;
 import org.cloudbus.cloudsim.core.CloudSim;
+import org.cloudbus.cloudsim.core.SimEvent;
 import org.cloudbus.cloudsim.provisioners.*;
 
 import java.util.*;
 import java.io.*;
 
+/**
+ * Cloud log forensics
+ *
+ * Usage: java -cp ".;lib/*" Main [cloudlets]
+ *        java -cp ".;lib/*" Main analyze [run|all]
+ *        java -cp ".;lib/*" LogStore query entity=Cloudlet id=3 (see LogStore)
+ *
+ * Events go through AsyncLogger, so logging every cloudlet's lifecycle does
+ * not slow the simulation down. The analysis applies forensic_rules.txt to
+ * the records of this run only; "analyze" applies it to an existing log
+ * without simulating, for one run or for every run in the file. The logger
+ * also keeps cloud_logs.txt.idx, so LogStore answers questions such as
+ * "events of Cloudlet 3 between T1 and T2" or "runs that raised ALERT"
+ * without rescanning the log.
+ */
 public class Main {
 
-    private static FileWriter logWriter;
+    private static final String LOG_FILE = "cloud_logs.txt";
+    private static final String RULES_FILE = "forensic_rules.txt";
+
+    private static AsyncLogger logger;
+
+    /**
+     * Broker that logs each cloudlet as it comes back.
+     */
+    private static class LoggingBroker extends DatacenterBroker {
+
+        LoggingBroker(String name) throws Exception {
+            super(name);
+        }
+
+        @Override
+        protected void processCloudletReturn(SimEvent ev) {
+            Cloudlet cloudlet = (Cloudlet) ev.getData();
+            writeLog("Cloudlet", "FINISHED", cloudlet.getCloudletId(),
+                    "Cloudlet finished with ID: " + cloudlet.getCloudletId());
+            super.processCloudletReturn(ev);
+        }
+    }
 
     public static void main(String[] args) {
 
+        if (args.length > 0 && args[0].equals("analyze")) {
+            String run = args.length > 1 && !args[1].equals("all") ? args[1] : null;
+            try {
+                for (ForensicEngine.Finding finding : loadRules().analyze(LOG_FILE, run)) {
+                    System.out.println(finding);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            return;
+        }
+
+        int cloudletCount = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+
         try {
             // Create log file
-            logWriter = new FileWriter("cloud_logs.txt", true);
-            writeLog("Cloud Log Forensics Simulation Started");
+            logger = new AsyncLogger(LOG_FILE);
+            writeLog("Run", "STARTED", -1, "Cloud Log Forensics Simulation Started");
 
             // 1. Initialize CloudSim
             CloudSim.init(1, Calendar.getInstance(), false);
 
             // 2. Create Datacenter
             Datacenter datacenter = createDatacenter("Datacenter_1");
-            writeLog("Datacenter created");
+            writeLog("Datacenter", "CREATED", datacenter.getId(), "Datacenter created");
 
             // 3. Create Broker
-            DatacenterBroker broker = new DatacenterBroker("Broker_1");
+            DatacenterBroker broker = new LoggingBroker("Broker_1");
             int brokerId = broker.getId();
-            writeLog("Broker created with ID: " + brokerId);
+            writeLog("Broker", "CREATED", brokerId, "Broker created with ID: " + brokerId);
 
             // 4. Create VM
             Vm vm = new Vm(
@@ -34,21 +85,21 @@ public class Main {
                     512, 1000, 10000,
                     "Xen", new CloudletSchedulerTimeShared()
             );
-            writeLog("VM created with ID: 0");
+            writeLog("VM", "CREATED", 0, "VM created with ID: 0");
 
             broker.submitVmList(Collections.singletonList(vm));
 
             // 5. Create Cloudlets
             List<Cloudlet> cloudletList = new ArrayList<>();
 
-            for (int i = 0; i < 4; i++) {
+            for (int i = 0; i < cloudletCount; i++) {
                 Cloudlet cloudlet = new Cloudlet(
                         i, 3000, 1, 300, 300,
                         null, null, null
                 );
                 cloudlet.setUserId(brokerId);
                 cloudletList.add(cloudlet);
-                writeLog("Cloudlet created with ID: " + i);
+                writeLog("Cloudlet", "CREATED", i, "Cloudlet created with ID: " + i);
             }
 
             broker.submitCloudletList(cloudletList);
@@ -57,16 +108,19 @@ public class Main {
             CloudSim.startSimulation();
             CloudSim.stopSimulation();
 
-            writeLog("Simulation completed");
+            writeLog("Run", "SIMULATED", -1, "Simulation completed");
 
             // 7. Log Forensics Analysis
             analyzeLogs();
 
-            writeLog("Log forensics analysis completed");
-            logWriter.close();
+            writeLog("Run", "COMPLETED", -1, "Log forensics analysis completed");
+            logger.close();
 
             System.out.println("Simulation and log forensics completed successfully");
-            System.out.println("Check cloud_logs.txt for details");
+            if (logger.getDroppedCount() > 0) {
+                System.out.println("Log records dropped under load: " + logger.getDroppedCount());
+            }
+            System.out.println("Check " + LOG_FILE + " for details (run " + logger.getRunId() + ")");
 
         } catch (Exception e) {
             e.printStackTrace();
@@ -112,32 +166,38 @@ public class Main {
         }
     }
 
-    // Write logs
-    private static void writeLog(String message) throws IOException {
-        logWriter.write(new Date() + " : " + message + "\n");
+    // Write logs: queued, the writer thread does the formatting and I/O
+    private static void writeLog(String entity, String event, long id, String message) {
+        logger.log(entity, event, id, message);
     }
 
-    // Simple forensic analysis
+    // Forensic analysis of this run's records
     private static void analyzeLogs() throws IOException {
 
-        writeLog("Forensic Analysis Started");
+        writeLog("Analysis", "STARTED", -1, "Forensic Analysis Started");
+        logger.flush();
 
-        BufferedReader reader = new BufferedReader(new FileReader("cloud_logs.txt"));
-        String line;
-        int cloudletCount = 0;
+        List<ForensicEngine.Finding> findings = loadRules().analyze(LOG_FILE, logger.getRunId());
 
-        while ((line = reader.readLine()) != null) {
-            if (line.contains("Cloudlet created")) {
-                cloudletCount++;
-            }
+        boolean alert = false;
+        for (ForensicEngine.Finding finding : findings) {
+            writeLog("Analysis", finding.getSeverity(), -1,
+                    finding.getSeverity() + ": " + finding.getMessage() + " (" + finding.getDetail() + ")");
+            System.out.println(finding);
+            alert |= finding.getSeverity().equals("ALERT");
         }
+        if (!alert) {
+            writeLog("Analysis", "NORMAL", -1, "Normal cloudlet activity detected");
+        }
+    }
 
-        reader.close();
-
-        if (cloudletCount > 3) {
-            writeLog("ALERT: High number of cloudlets detected – Possible overload or attack");
-        } else {
-            writeLog("Normal cloudlet activity detected");
+    private static ForensicEngine loadRules() throws IOException {
+        if (new java.io.File(RULES_FILE).exists()) {
+            return ForensicEngine.fromFile(RULES_FILE);
         }
+        ForensicEngine engine = new ForensicEngine();
+        engine.addRule(new ForensicRule.Count("cloudlet-overload", "ALERT", "Cloudlet created", 3,
+                "High number of cloudlets detected – Possible overload or attack"));
+        return engine;
     }
 }
@@ -0,0 +1,152 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Parallel scan of a memory-mapped log file
+ *
+ * The file is split into chunks of about chunkBytes whose ends are moved
+ * forward to the next line break, so no line is split. Each chunk is mapped
+ * read-only on its own (which also keeps every mapping under the 2 GB limit
+ * of a MappedByteBuffer) and handed to a ChunkScanner on a fork-join pool.
+ * Results come back in file order for the caller to merge, e.g. by adding
+ * up counters or by replaying recorded matches.
+ */
+public class MappedLogScanner {
+
+    public static final long DEFAULT_CHUNK_BYTES = 64L << 20;
+
+    /**
+     * Scans one chunk. Runs concurrently with the other chunks, so it may
+     * only share immutable state with them.
+     */
+    public interface ChunkScanner<R> {
+
+        /**
+         * @param chunk whole lines, from position 0 to limit
+         */
+        R scan(ByteBuffer chunk) throws IOException;
+    }
+
+    private final ForkJoinPool pool;
+    private final long chunkBytes;
+
+    public MappedLogScanner() {
+        this(ForkJoinPool.commonPool(), DEFAULT_CHUNK_BYTES);
+    }
+
+    public MappedLogScanner(ForkJoinPool pool, long chunkBytes) {
+        if (chunkBytes <= 0 || chunkBytes > Integer.MAX_VALUE / 2) {
+            throw new IllegalArgumentException("chunkBytes must be in 1.." + Integer.MAX_VALUE / 2);
+        }
+        this.pool = pool;
+        this.chunkBytes = chunkBytes;
+    }
+
+    /**
+     * Receives chunk results in file order, on the calling thread.
+     */
+    public interface ChunkConsumer<R> {
+
+        void accept(R result) throws IOException;
+    }
+
+    /**
+     * @return one result per chunk, in file order; empty for an empty file
+     */
+    public <R> List<R> scan(String fileName, ChunkScanner<R> scanner) throws IOException {
+        List<R> results = new ArrayList<>();
+        scan(fileName, scanner, results::add);
+        return results;
+    }
+
+    /**
+     * Scans the chunks in parallel and passes each result to consumer in file
+     * order. At most twice the pool's parallelism chunks are in flight, so
+     * results that are large (e.g. lists of matches) stay bounded in memory
+     * whatever the file size.
+     */
+    public <R> void scan(String fileName, ChunkScanner<R> scanner, ChunkConsumer<R> consumer) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+            List<Long> bounds = split(channel);
+            int window = Math.max(2, pool.getParallelism() * 2);
+            ArrayDeque<ForkJoinTask<R>> inFlight = new ArrayDeque<>();
+            int next = 0;
+            try {
+                while (next + 1 < bounds.size() || !inFlight.isEmpty()) {
+                    while (next + 1 < bounds.size() && inFlight.size() < window) {
+                        long start = bounds.get(next);
+                        long length = bounds.get(next + 1) - start;
+                        inFlight.add(pool.submit(
+                                () -> scanner.scan(channel.map(FileChannel.MapMode.READ_ONLY, start, length))));
+                        next++;
+                    }
+                    consumer.accept(join(inFlight.poll(), fileName));
+                }
+            } finally {
+                for (ForkJoinTask<R> task : inFlight) {
+                    task.cancel(false);
+                }
+            }
+        }
+    }
+
+    private static <R> R join(ForkJoinTask<R> task, String fileName) throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while scanning " + fileName, e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    // Chunk boundaries: 0, ..., size, each after a '\n' (or the end of file)
+    private List<Long> split(FileChannel channel) throws IOException {
+        long size = channel.size();
+        List<Long> bounds = new ArrayList<>();
+        bounds.add(0L);
+        long position = 0;
+        while (position < size) {
+            long end = position + chunkBytes >= size ? size : nextLineStart(channel, position + chunkBytes, size);
+            bounds.add(end);
+            position = end;
+        }
+        return bounds;
+    }
+
+    private static long nextLineStart(FileChannel channel, long from, long size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        long position = from;
+        while (position < size) {
+            buffer.clear();
+            int n = channel.read(buffer, position);
+            if (n <= 0) {
+                break;
+            }
+            for (int i = 0; i < n; i++) {
+                if (buffer.get(i) == '\n') {
+                    return position + i + 1;
+                }
+            }
+            position += n;
+        }
+        return size;
+    }
+}
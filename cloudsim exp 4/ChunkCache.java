@@ -0,0 +1,216 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Size-bounded LRU cache of decrypted chunks
+ *
+ * ChunkStore keeps plaintext chunks here after decrypting them, keyed by
+ * chunk id, so a chunk read again (or shared by another file) is copied
+ * from memory instead of read from disk and decrypted. When the cached
+ * bytes would exceed the capacity, the least recently used chunks are
+ * evicted.
+ *
+ * Off-heap, the plaintext lives in direct buffers allocated once and cut
+ * into 4 KB pages; a chunk takes as many pages as it needs, wherever they
+ * are free, and eviction returns them. The garbage collector then neither
+ * scans nor copies cached data, however large the cache. On the heap each
+ * chunk is a byte[].
+ *
+ * All methods are synchronized.
+ */
+public class ChunkCache {
+
+    public static final int PAGE_BYTES = 4096;
+
+    // pages per direct buffer; 1 GB buffers
+    private static final int ARENA_PAGES = (1 << 30) / PAGE_BYTES;
+
+    private static final class Entry {
+        final byte[] heap;
+        final int[] pages;
+
+        Entry(byte[] heap, int[] pages) {
+            this.heap = heap;
+            this.pages = pages;
+        }
+
+        long size() {
+            return heap != null ? heap.length : (long) pages.length * PAGE_BYTES;
+        }
+    }
+
+    private final long capacity;
+    private final boolean offHeap;
+    private final LinkedHashMap<Object, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private final ByteBuffer[] arenas;
+    private final int[] freePages;
+    private final byte[] copyBuffer = new byte[PAGE_BYTES];
+    private int freeCount;
+    private long used;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * @param capacityBytes upper bound of the cached plaintext (rounded down to whole pages off-heap)
+     * @param offHeap       keep plaintext in direct buffers instead of byte arrays
+     */
+    public ChunkCache(long capacityBytes, boolean offHeap) {
+        this.offHeap = offHeap;
+        if (offHeap) {
+            long pages = capacityBytes / PAGE_BYTES;
+            if (pages > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Cache capacity too large");
+            }
+            this.capacity = pages * PAGE_BYTES;
+            this.arenas = new ByteBuffer[(int) ((pages + ARENA_PAGES - 1) / ARENA_PAGES)];
+            for (int i = 0; i < arenas.length; i++) {
+                arenas[i] = ByteBuffer.allocateDirect((int) Math.min(ARENA_PAGES, pages - (long) i * ARENA_PAGES)
+                        * PAGE_BYTES);
+            }
+            this.freePages = new int[(int) pages];
+            for (int i = 0; i < freePages.length; i++) {
+                freePages[i] = freePages.length - 1 - i;
+            }
+            this.freeCount = freePages.length;
+        } else {
+            this.capacity = capacityBytes;
+            this.arenas = null;
+            this.freePages = null;
+        }
+    }
+
+    /**
+     * On a hit, writes bytes [from, to) of the cached chunk to out.
+     *
+     * @return false on a miss
+     */
+    public synchronized boolean write(Object key, int from, int to, OutputStream out) throws IOException {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            misses++;
+            return false;
+        }
+        hits++;
+        if (entry.heap != null) {
+            out.write(entry.heap, from, to - from);
+            return true;
+        }
+        while (from < to) {
+            int index = from / PAGE_BYTES;
+            int offset = from % PAGE_BYTES;
+            int n = Math.min(PAGE_BYTES - offset, to - from);
+            ByteBuffer arena = arena(entry.pages[index]);
+            arena.position(position(entry.pages[index]) + offset);
+            arena.get(copyBuffer, 0, n);
+            out.write(copyBuffer, 0, n);
+            from += n;
+        }
+        return true;
+    }
+
+    /**
+     * Caches a chunk, evicting others as needed. Chunks larger than the cache are not kept.
+     */
+    public synchronized void put(Object key, byte[] plain) {
+        invalidate(key);
+        long size = offHeap ? pagesFor(plain.length) * (long) PAGE_BYTES : plain.length;
+        if (size > capacity) {
+            return;
+        }
+        Iterator<Map.Entry<Object, Entry>> lru = entries.entrySet().iterator();
+        while (used + size > capacity) {
+            release(lru.next().getValue());
+            lru.remove();
+            evictions++;
+        }
+        used += size;
+        if (!offHeap) {
+            entries.put(key, new Entry(plain, null));
+            return;
+        }
+        int[] pages = new int[pagesFor(plain.length)];
+        for (int i = 0; i < pages.length; i++) {
+            pages[i] = freePages[--freeCount];
+            ByteBuffer arena = arena(pages[i]);
+            arena.position(position(pages[i]));
+            arena.put(plain, i * PAGE_BYTES, Math.min(PAGE_BYTES, plain.length - i * PAGE_BYTES));
+        }
+        entries.put(key, new Entry(null, pages));
+    }
+
+    public synchronized void invalidate(Object key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            release(entry);
+        }
+    }
+
+    public synchronized void clear() {
+        for (Entry entry : entries.values()) {
+            release(entry);
+        }
+        entries.clear();
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    public synchronized long getUsedBytes() {
+        return used;
+    }
+
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized double getHitRate() {
+        return hits + misses == 0 ? 0.0 : (double) hits / (hits + misses);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%d chunks, %.1f of %.1f MB %s, %d hits, %d misses (%.1f%%), %d evictions",
+                entries.size(), used / 1e6, capacity / 1e6, offHeap ? "off-heap" : "on heap", hits, misses,
+                100 * getHitRate(), evictions);
+    }
+
+    private void release(Entry entry) {
+        used -= entry.size();
+        if (entry.pages != null) {
+            for (int page : entry.pages) {
+                freePages[freeCount++] = page;
+            }
+        }
+    }
+
+    private ByteBuffer arena(int page) {
+        return arenas[page / ARENA_PAGES];
+    }
+
+    private static int position(int page) {
+        return (page % ARENA_PAGES) * PAGE_BYTES;
+    }
+
+    private static int pagesFor(int length) {
+        return (length + PAGE_BYTES - 1) / PAGE_BYTES;
+    }
+}
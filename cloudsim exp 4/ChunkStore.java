@@ -0,0 +1,574 @@
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Content-addressed, deduplicating encrypted file store
+ *
+ * Layout of the store directory (big-endian):
+ *
+ *   segment-NNNNN.dat  chunk records: 32-byte chunk id, int sealed length, sealed chunk
+ *   chunks.idx         index entries: chunk id, int segment, long offset of the sealed chunk, int length
+ *   names.log          manifests: int bodyLength, then UTF name, long length, int chunk count and
+ *                      (chunk id, int plaintext length) per chunk; the last manifest of a name wins
+ *
+ * All three files are append-only. put() cuts a file into content-defined
+ * chunks and appends only the chunks whose id is not stored yet, so data
+ * shared between files, versions and users is kept once. Segments are
+ * closed at SEGMENT_BYTES. The index and the manifests are loaded into
+ * hash maps at open, so finding a chunk or a file costs no disk access.
+ *
+ * Chunks use keyed convergent encryption: the id is HMAC(idKey, plaintext),
+ * the chunk key is HMAC(chunkKey, id), and the chunk is sealed with AES-GCM
+ * under that key with a zero nonce and the id as additional data. Both
+ * HMAC keys derive from the master key. Equal chunks therefore encrypt to
+ * equal records under one master key and deduplicate, while without the
+ * master key the store reveals only which chunks are equal. A chunk key
+ * only ever encrypts one plaintext, so the fixed nonce is never reused.
+ *
+ * With a ChunkCache set, get() serves chunks from the cache and caches
+ * the ones it decrypts. Chunks never change, so cached plaintext cannot go
+ * stale; replacing a file only drops the chunks its old version no longer
+ * shares with the new one, as they are unlikely to be read again soon.
+ *
+ * Index entries are written after their record and manifests after their
+ * chunks. After a crash, open() indexes the records found past the end of
+ * the index and cuts off half-written records and manifests.
+ */
+public class ChunkStore implements Closeable {
+
+    public static final long SEGMENT_BYTES = 64L << 20;
+
+    private static final int ID_BYTES = 32;
+    private static final int RECORD_HEADER_BYTES = ID_BYTES + 4;
+    private static final int INDEX_ENTRY_BYTES = ID_BYTES + 4 + 8 + 4;
+    private static final byte[] ZERO_NONCE = new byte[12];
+
+    /**
+     * Result of a put.
+     */
+    public static class FileInfo {
+
+        private final String name;
+        private final long length;
+        private final int chunks;
+        private final int newChunks;
+        private final long newBytes;
+
+        FileInfo(String name, long length, int chunks, int newChunks, long newBytes) {
+            this.name = name;
+            this.length = length;
+            this.chunks = chunks;
+            this.newChunks = newChunks;
+            this.newBytes = newBytes;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        public int getChunks() {
+            return chunks;
+        }
+
+        /**
+         * Chunks that were not in the store before.
+         */
+        public int getNewChunks() {
+            return newChunks;
+        }
+
+        /**
+         * Bytes a full download reads from the segments, record headers included.
+         */
+        public long getSealedLength() {
+            return length + (long) chunks * (RECORD_HEADER_BYTES + ChunkedGcmFile.TAG_BYTES);
+        }
+
+        /**
+         * Bytes the put added to the segments.
+         */
+        public long getNewBytes() {
+            return newBytes;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d bytes in %d chunks, %d new (%d bytes stored)", name, length, chunks,
+                    newChunks, newBytes);
+        }
+    }
+
+    private static final class ChunkId {
+        final byte[] bytes;
+        private final int hash;
+
+        ChunkId(byte[] bytes) {
+            this.bytes = bytes;
+            // an HMAC is uniform, so any 4 bytes make a good hash code
+            this.hash = ByteBuffer.wrap(bytes).getInt();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof ChunkId && Arrays.equals(bytes, ((ChunkId) o).bytes);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final class Location {
+        final int segment;
+        final long offset;
+        final int length;
+
+        Location(int segment, long offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private static final class Manifest {
+        final long length;
+        final ChunkId[] chunks;
+        // ends[i] = plaintext offset where chunk i ends
+        final long[] ends;
+
+        Manifest(ChunkId[] chunks, long[] ends) {
+            this.length = ends.length == 0 ? 0 : ends[ends.length - 1];
+            this.chunks = chunks;
+            this.ends = ends;
+        }
+    }
+
+    private final Path dir;
+    private final Mac idMac;
+    private final Mac keyMac;
+    private final Cipher cipher;
+    private final Map<ChunkId, Location> index = new HashMap<>();
+    private final Map<String, Manifest> names = new HashMap<>();
+    private final List<FileChannel> segments = new ArrayList<>();
+    private final FileChannel indexChannel;
+    private final FileChannel namesChannel;
+    private long storedBytes;
+    private ChunkCache cache;
+
+    /**
+     * Opens the store in dir, creating it if needed.
+     */
+    public ChunkStore(Path dir, SecretKey masterKey) throws IOException {
+        this.dir = Files.createDirectories(dir);
+        this.idMac = hmac(derive(masterKey, "chunk-id"));
+        this.keyMac = hmac(derive(masterKey, "chunk-key"));
+        this.cipher = ChunkedGcmFile.newCipher();
+
+        for (int i = 0; Files.exists(segmentPath(i)); i++) {
+            segments.add(FileChannel.open(segmentPath(i), StandardOpenOption.READ, StandardOpenOption.WRITE));
+        }
+        this.indexChannel = FileChannel.open(dir.resolve("chunks.idx"), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.namesChannel = FileChannel.open(dir.resolve("names.log"), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            long[] indexed = loadIndex();
+            for (int i = 0; i < segments.size(); i++) {
+                recoverSegment(i, indexed[i]);
+                storedBytes += segments.get(i).size();
+            }
+            loadNames();
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Stores everything readable from in under name, replacing any file of that name.
+     */
+    public synchronized FileInfo put(String name, InputStream in) throws IOException {
+        ContentDefinedChunker chunker = new ContentDefinedChunker(in);
+        List<ChunkId> chunks = new ArrayList<>();
+        long[] ends = new long[16];
+        long length = 0;
+        int newChunks = 0;
+        long newBytes = 0;
+
+        byte[] chunk;
+        while ((chunk = chunker.next()) != null) {
+            ChunkId id = new ChunkId(idMac.doFinal(chunk));
+            if (!index.containsKey(id)) {
+                newBytes += append(id, seal(id, chunk));
+                newChunks++;
+            }
+            if (chunks.size() == ends.length) {
+                ends = Arrays.copyOf(ends, ends.length * 2);
+            }
+            length += chunk.length;
+            ends[chunks.size()] = length;
+            chunks.add(id);
+        }
+
+        Manifest manifest = new Manifest(chunks.toArray(new ChunkId[0]), Arrays.copyOf(ends, chunks.size()));
+        writeManifest(name, manifest);
+        Manifest replaced = names.put(name, manifest);
+        if (replaced != null && cache != null) {
+            Set<ChunkId> kept = new HashSet<>(chunks);
+            for (ChunkId id : replaced.chunks) {
+                if (!kept.contains(id)) {
+                    cache.invalidate(id);
+                }
+            }
+        }
+        return new FileInfo(name, length, chunks.size(), newChunks, newBytes);
+    }
+
+    /**
+     * Writes bytes [offset, offset + length) of a file to out, fewer if the
+     * file ends first. Only the chunks overlapping the range are read.
+     *
+     * @return number of bytes written
+     */
+    public synchronized long get(String name, long offset, long length, OutputStream out) throws IOException {
+        Manifest manifest = manifest(name);
+        if (offset < 0 || length < 0 || offset > manifest.length) {
+            throw new IndexOutOfBoundsException("Range " + offset + "+" + length + " of " + manifest.length);
+        }
+        // offset + length may overflow, e.g. for Long.MAX_VALUE meaning "to the end"
+        long end = length > manifest.length - offset ? manifest.length : offset + length;
+        int found = Arrays.binarySearch(manifest.ends, offset);
+        int i = found >= 0 ? found + 1 : -found - 1;
+
+        long written = 0;
+        for (; i < manifest.chunks.length && offset + written < end; i++) {
+            long chunkStart = i == 0 ? 0 : manifest.ends[i - 1];
+            int from = (int) Math.max(0, offset - chunkStart);
+            int to = (int) (Math.min(manifest.ends[i], end) - chunkStart);
+            if (cache == null || !cache.write(manifest.chunks[i], from, to, out)) {
+                byte[] plain = readChunk(manifest.chunks[i]);
+                if (cache != null) {
+                    cache.put(manifest.chunks[i], plain);
+                }
+                out.write(plain, from, to - from);
+            }
+            written += to - from;
+        }
+        return written;
+    }
+
+    /**
+     * The whole file.
+     */
+    public byte[] get(String name) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        get(name, 0, Long.MAX_VALUE, out);
+        return out.toByteArray();
+    }
+
+    public synchronized ChunkCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Cache for decrypted chunks, or null for none. Chunk ids are unique, so
+     * one cache can serve several stores.
+     */
+    public synchronized void setCache(ChunkCache cache) {
+        this.cache = cache;
+    }
+
+    public synchronized boolean contains(String name) {
+        return names.containsKey(name);
+    }
+
+    public synchronized long getLength(String name) throws IOException {
+        return manifest(name).length;
+    }
+
+    public synchronized Set<String> getNames() {
+        return Collections.unmodifiableSet(new TreeSet<>(names.keySet()));
+    }
+
+    /**
+     * Total length of all stored files, as if each were kept in full.
+     */
+    public synchronized long getLogicalBytes() {
+        long total = 0;
+        for (Manifest manifest : names.values()) {
+            total += manifest.length;
+        }
+        return total;
+    }
+
+    /**
+     * Bytes in the segment files.
+     */
+    public synchronized long getStoredBytes() {
+        return storedBytes;
+    }
+
+    /**
+     * Number of distinct chunks stored.
+     */
+    public synchronized int getChunkCount() {
+        return index.size();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        for (FileChannel segment : segments) {
+            segment.close();
+        }
+        if (indexChannel != null) {
+            indexChannel.close();
+        }
+        if (namesChannel != null) {
+            namesChannel.close();
+        }
+    }
+
+    private Manifest manifest(String name) throws NoSuchFileException {
+        Manifest manifest = names.get(name);
+        if (manifest == null) {
+            throw new NoSuchFileException(name, null, "not in " + dir);
+        }
+        return manifest;
+    }
+
+    private byte[] seal(ChunkId id, byte[] plain) throws IOException {
+        try {
+            cipher.init(Cipher.ENCRYPT_MODE, chunkKey(id), new GCMParameterSpec(128, ZERO_NONCE));
+            cipher.updateAAD(id.bytes);
+            return cipher.doFinal(plain);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Encryption of a chunk failed", e);
+        }
+    }
+
+    private byte[] readChunk(ChunkId id) throws IOException {
+        Location location = index.get(id);
+        if (location == null) {
+            throw new IOException("Chunk missing from " + dir);
+        }
+        ByteBuffer sealed = ByteBuffer.allocate(location.length);
+        readFully(segments.get(location.segment), sealed, location.offset);
+        try {
+            cipher.init(Cipher.DECRYPT_MODE, chunkKey(id), new GCMParameterSpec(128, ZERO_NONCE));
+            cipher.updateAAD(id.bytes);
+            return cipher.doFinal(sealed.array());
+        } catch (AEADBadTagException e) {
+            throw new IOException("Chunk in segment " + location.segment + " at " + location.offset
+                    + " failed authentication", e);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Decryption of a chunk failed", e);
+        }
+    }
+
+    private SecretKey chunkKey(ChunkId id) {
+        return new SecretKeySpec(keyMac.doFinal(id.bytes), 0, 16, "AES");
+    }
+
+    // Appends a record, then its index entry; returns the bytes added to the segment
+    private long append(ChunkId id, byte[] sealed) throws IOException {
+        int recordBytes = RECORD_HEADER_BYTES + sealed.length;
+        if (segments.isEmpty() || segments.get(segments.size() - 1).size() + recordBytes > SEGMENT_BYTES) {
+            Path path = segmentPath(segments.size());
+            segments.add(FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE));
+        }
+        int segment = segments.size() - 1;
+        FileChannel channel = segments.get(segment);
+        long position = channel.size();
+        ByteBuffer record = ByteBuffer.allocate(recordBytes);
+        record.put(id.bytes).putInt(sealed.length).put(sealed).flip();
+        writeFully(channel, record, position);
+
+        Location location = new Location(segment, position + RECORD_HEADER_BYTES, sealed.length);
+        writeIndexEntry(id, location);
+        index.put(id, location);
+        storedBytes += recordBytes;
+        return recordBytes;
+    }
+
+    private void writeIndexEntry(ChunkId id, Location location) throws IOException {
+        ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_BYTES);
+        entry.put(id.bytes).putInt(location.segment).putLong(location.offset).putInt(location.length).flip();
+        writeFully(indexChannel, entry, indexChannel.size());
+    }
+
+    private void writeManifest(String name, Manifest manifest) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + manifest.chunks.length * (ID_BYTES + 4));
+        DataOutputStream body = new DataOutputStream(bytes);
+        body.writeInt(0);
+        body.writeUTF(name);
+        body.writeLong(manifest.length);
+        body.writeInt(manifest.chunks.length);
+        long previous = 0;
+        for (int i = 0; i < manifest.chunks.length; i++) {
+            body.write(manifest.chunks[i].bytes);
+            body.writeInt((int) (manifest.ends[i] - previous));
+            previous = manifest.ends[i];
+        }
+        ByteBuffer record = ByteBuffer.wrap(bytes.toByteArray());
+        record.putInt(0, record.capacity() - 4);
+        writeFully(namesChannel, record, namesChannel.size());
+    }
+
+    // Reads the index; returns per segment the end of the last indexed record
+    private long[] loadIndex() throws IOException {
+        long[] indexed = new long[segments.size()];
+        long size = indexChannel.size() / INDEX_ENTRY_BYTES * INDEX_ENTRY_BYTES;
+        indexChannel.truncate(size);
+        ByteBuffer buffer = ByteBuffer.allocate(INDEX_ENTRY_BYTES * 4096);
+        for (long position = 0; position < size; ) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), size - position));
+            readFully(indexChannel, buffer, position);
+            position += buffer.position();
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                byte[] id = new byte[ID_BYTES];
+                buffer.get(id);
+                Location location = new Location(buffer.getInt(), buffer.getLong(), buffer.getInt());
+                if (location.segment >= segments.size()) {
+                    throw new IOException("Index of " + dir + " names a missing segment " + location.segment);
+                }
+                index.put(new ChunkId(id), location);
+                indexed[location.segment] = Math.max(indexed[location.segment], location.offset + location.length);
+            }
+        }
+        return indexed;
+    }
+
+    // Indexes the complete records after from and truncates a torn one at the end
+    private void recoverSegment(int segment, long from) throws IOException {
+        FileChannel channel = segments.get(segment);
+        long size = channel.size();
+        long position = from;
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_BYTES);
+        while (position + RECORD_HEADER_BYTES <= size) {
+            header.clear();
+            readFully(channel, header, position);
+            header.flip();
+            byte[] id = new byte[ID_BYTES];
+            header.get(id);
+            int length = header.getInt();
+            if (length < 0 || position + RECORD_HEADER_BYTES + length > size) {
+                break;
+            }
+            ChunkId chunkId = new ChunkId(id);
+            Location location = new Location(segment, position + RECORD_HEADER_BYTES, length);
+            if (!index.containsKey(chunkId)) {
+                writeIndexEntry(chunkId, location);
+                index.put(chunkId, location);
+            }
+            position += RECORD_HEADER_BYTES + length;
+        }
+        if (position < size) {
+            channel.truncate(position);
+        }
+    }
+
+    private void loadNames() throws IOException {
+        long size = namesChannel.size();
+        long position = 0;
+        ByteBuffer length = ByteBuffer.allocate(4);
+        while (position + 4 <= size) {
+            length.clear();
+            readFully(namesChannel, length, position);
+            int bodyLength = length.getInt(0);
+            if (bodyLength < 0 || position + 4 + bodyLength > size) {
+                break;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(bodyLength);
+            readFully(namesChannel, buffer, position + 4);
+            DataInputStream body = new DataInputStream(new ByteArrayInputStream(buffer.array()));
+            String name = body.readUTF();
+            body.readLong();
+            ChunkId[] chunks = new ChunkId[body.readInt()];
+            long[] ends = new long[chunks.length];
+            long end = 0;
+            for (int i = 0; i < chunks.length; i++) {
+                byte[] id = new byte[ID_BYTES];
+                body.readFully(id);
+                chunks[i] = new ChunkId(id);
+                end += body.readInt();
+                ends[i] = end;
+            }
+            names.put(name, new Manifest(chunks, ends));
+            position += 4 + bodyLength;
+        }
+        if (position < size) {
+            namesChannel.truncate(position);
+        }
+    }
+
+    private Path segmentPath(int segment) {
+        return dir.resolve(String.format("segment-%05d.dat", segment));
+    }
+
+    private static SecretKey derive(SecretKey masterKey, String label) {
+        Mac mac = hmac(new SecretKeySpec(masterKey.getEncoded(), "HmacSHA256"));
+        return new SecretKeySpec(mac.doFinal(label.getBytes(StandardCharsets.UTF_8)), "HmacSHA256");
+    }
+
+    private static Mac hmac(SecretKey key) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(key);
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 not available", e);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        long start = position - buffer.position();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, start + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of store file");
+            }
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        long start = position - buffer.position();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, start + buffer.position());
+        }
+    }
+}
@@ -0,0 +1,357 @@
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.function.Function;
+
+/**
+ * Encrypted file in fixed-size AES-GCM chunks
+ *
+ * Layout (big-endian):
+ *
+ *   header   int magic "SFS1", byte version, int chunkSize, 8-byte nonce prefix,
+ *            byte keyIdLength, keyId (UTF-8)
+ *   chunk i  ciphertext of plaintext bytes [i * chunkSize, (i + 1) * chunkSize), then a 16-byte tag
+ *
+ * Chunk i uses nonce = prefix || i (4 bytes) and authenticates header || i
+ * (8 bytes) || last (1 byte) as additional data, so chunks cannot be
+ * reordered, moved to another file or cut off at the end without failing
+ * their tag. Every chunk but the last holds exactly chunkSize bytes, which
+ * makes the position of any chunk computable: one chunk can be read and
+ * decrypted on its own, and streaming in either direction needs two chunk
+ * buffers whatever the file size. There is always at least one chunk
+ * (empty for an empty file).
+ */
+public class ChunkedGcmFile implements Closeable {
+
+    public static final int MAGIC = 0x53465331;     // "SFS1"
+    public static final int VERSION = 1;
+    public static final int DEFAULT_CHUNK_SIZE = 1 << 16;
+    public static final int TAG_BYTES = 16;
+
+    private static final int NONCE_PREFIX_BYTES = 8;
+    private static final int MAX_CHUNK_SIZE = 1 << 24;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    /**
+     * Header of a file being written: its bytes and the nonce prefix in them.
+     */
+    static final class Header {
+        final byte[] bytes;
+        final byte[] noncePrefix;
+
+        private Header(byte[] bytes, byte[] noncePrefix) {
+            this.bytes = bytes;
+            this.noncePrefix = noncePrefix;
+        }
+
+        /**
+         * A header with a fresh random nonce prefix.
+         */
+        static Header create(int chunkSize, String keyId) {
+            if (chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE) {
+                throw new IllegalArgumentException("chunkSize must be in 1.." + MAX_CHUNK_SIZE);
+            }
+            byte[] id = keyId.getBytes(StandardCharsets.UTF_8);
+            if (id.length > 255) {
+                throw new IllegalArgumentException("keyId longer than 255 bytes");
+            }
+            byte[] prefix = new byte[NONCE_PREFIX_BYTES];
+            RANDOM.nextBytes(prefix);
+            ByteBuffer header = ByteBuffer.allocate(4 + 1 + 4 + NONCE_PREFIX_BYTES + 1 + id.length);
+            header.putInt(MAGIC).put((byte) VERSION).putInt(chunkSize).put(prefix).put((byte) id.length).put(id);
+            return new Header(header.array(), prefix);
+        }
+    }
+
+    private final FileChannel channel;
+    private final SecretKey key;
+    private final byte[] header;
+    private final int chunkSize;
+    private final byte[] noncePrefix;
+    private final String keyId;
+    private final long chunkCount;
+    private final long plaintextLength;
+    private final Cipher cipher;
+    private final ByteBuffer sealed;
+
+    /**
+     * Opens an encrypted file for reading.
+     */
+    public ChunkedGcmFile(Path file, SecretKey key) throws IOException {
+        this(file, keyId -> key);
+    }
+
+    /**
+     * Opens an encrypted file for reading with the key named in its header.
+     *
+     * @param keys looks up a key by key id
+     */
+    public ChunkedGcmFile(Path file, Function<String, SecretKey> keys) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            ByteBuffer fixed = ByteBuffer.allocate(4 + 1 + 4 + NONCE_PREFIX_BYTES + 1);
+            readFully(fixed, 0);
+            fixed.flip();
+            if (fixed.getInt() != MAGIC || fixed.get() != VERSION) {
+                throw new IOException(file + " is not an encrypted chunk file");
+            }
+            this.chunkSize = fixed.getInt();
+            if (chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE) {
+                throw new IOException("Bad chunk size " + chunkSize + " in " + file);
+            }
+            this.noncePrefix = new byte[NONCE_PREFIX_BYTES];
+            fixed.get(noncePrefix);
+            ByteBuffer id = ByteBuffer.allocate(fixed.get() & 0xff);
+            readFully(id, fixed.capacity());
+            this.keyId = new String(id.array(), StandardCharsets.UTF_8);
+
+            this.header = new byte[fixed.capacity() + id.capacity()];
+            System.arraycopy(fixed.array(), 0, header, 0, fixed.capacity());
+            System.arraycopy(id.array(), 0, header, fixed.capacity(), id.capacity());
+
+            long body = channel.size() - header.length;
+            long full = chunkSize + TAG_BYTES;
+            long count = body / full;
+            long rest = body % full;
+            if (rest > 0) {
+                if (rest < TAG_BYTES) {
+                    throw new IOException(file + " is truncated");
+                }
+                count++;
+            }
+            if (count == 0) {
+                throw new IOException(file + " has no chunks");
+            }
+            this.chunkCount = count;
+            this.plaintextLength = body - count * TAG_BYTES;
+            this.key = keys.apply(keyId);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        this.cipher = newCipher();
+        this.sealed = ByteBuffer.allocateDirect(chunkSize + TAG_BYTES);
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public long getChunkCount() {
+        return chunkCount;
+    }
+
+    public long getPlaintextLength() {
+        return plaintextLength;
+    }
+
+    /**
+     * Identifies the key the file was encrypted with.
+     */
+    public String getKeyId() {
+        return keyId;
+    }
+
+    /**
+     * Decrypts one chunk into out (which needs chunkSize bytes free).
+     *
+     * @return number of plaintext bytes written
+     * @throws IOException also if the chunk fails authentication
+     */
+    public int readChunk(long index, ByteBuffer out) throws IOException {
+        if (index < 0 || index >= chunkCount) {
+            throw new IndexOutOfBoundsException("Chunk " + index + " of " + chunkCount);
+        }
+        long position = header.length + index * (chunkSize + TAG_BYTES);
+        int length = (int) Math.min(chunkSize + TAG_BYTES, channel.size() - position);
+        sealed.clear().limit(length);
+        readFully(sealed, position);
+        sealed.flip();
+        try {
+            cipher.init(Cipher.DECRYPT_MODE, key, parameters(noncePrefix, index));
+            cipher.updateAAD(associatedData(header, index, index == chunkCount - 1));
+            return cipher.doFinal(sealed, out);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Chunk " + index + " failed authentication", e);
+        }
+    }
+
+    /**
+     * Decrypts the whole file into out, one chunk at a time.
+     */
+    public void decryptTo(WritableByteChannel out) throws IOException {
+        ByteBuffer plain = ByteBuffer.allocateDirect(chunkSize);
+        for (long i = 0; i < chunkCount; i++) {
+            plain.clear();
+            readChunk(i, plain);
+            plain.flip();
+            while (plain.hasRemaining()) {
+                out.write(plain);
+            }
+        }
+    }
+
+    /**
+     * The plaintext as a channel, decrypted a chunk at a time as it is read.
+     */
+    public ReadableByteChannel openPlaintext() {
+        return new ReadableByteChannel() {
+            private final ByteBuffer plain = ByteBuffer.allocateDirect(chunkSize);
+            private long next;
+            private boolean open = true;
+
+            {
+                plain.flip();
+            }
+
+            @Override
+            public int read(ByteBuffer dst) throws IOException {
+                if (!plain.hasRemaining()) {
+                    if (next == chunkCount) {
+                        return -1;
+                    }
+                    plain.clear();
+                    readChunk(next++, plain);
+                    plain.flip();
+                }
+                int n = Math.min(plain.remaining(), dst.remaining());
+                ByteBuffer slice = plain.duplicate();
+                slice.limit(slice.position() + n);
+                dst.put(slice);
+                plain.position(plain.position() + n);
+                return n;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return open;
+            }
+
+            @Override
+            public void close() {
+                open = false;
+            }
+        };
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Encrypts everything readable from in into target, replacing it.
+     *
+     * @param keyId stored in the header to name the key, at most 255 bytes
+     * @return number of plaintext bytes encrypted
+     */
+    public static long encrypt(ReadableByteChannel in, Path target, SecretKey key, String keyId, int chunkSize)
+            throws IOException {
+        Header header = Header.create(chunkSize, keyId);
+        Cipher cipher = newCipher();
+        ByteBuffer current = ByteBuffer.allocateDirect(chunkSize);
+        ByteBuffer next = ByteBuffer.allocateDirect(chunkSize);
+        ByteBuffer sealed = ByteBuffer.allocateDirect(chunkSize + TAG_BYTES);
+        long total = 0;
+
+        try (FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeFully(out, ByteBuffer.wrap(header.bytes));
+
+            fill(in, current);
+            for (long index = 0; ; index++) {
+                // a chunk is the last one when nothing follows it
+                boolean last = !fill(in, next) && next.position() == 0;
+                current.flip();
+                total += current.remaining();
+                sealed.clear();
+                seal(cipher, key, header, index, last, current, sealed);
+                sealed.flip();
+                writeFully(out, sealed);
+                if (last) {
+                    return total;
+                }
+                ByteBuffer swap = current;
+                current = next;
+                next = swap;
+                next.clear();
+            }
+        }
+    }
+
+    /**
+     * Encrypts chunk index of a file from plain into sealed (chunk plus tag).
+     */
+    static void seal(Cipher cipher, SecretKey key, Header header, long index, boolean last,
+                     ByteBuffer plain, ByteBuffer sealed) throws IOException {
+        try {
+            cipher.init(Cipher.ENCRYPT_MODE, key, parameters(header.noncePrefix, index));
+            cipher.updateAAD(associatedData(header.bytes, index, last));
+            cipher.doFinal(plain, sealed);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Encryption of chunk " + index + " failed", e);
+        }
+    }
+
+    static Cipher newCipher() {
+        try {
+            return Cipher.getInstance("AES/GCM/NoPadding");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("AES/GCM not available", e);
+        }
+    }
+
+    static GCMParameterSpec parameters(byte[] noncePrefix, long index) {
+        byte[] nonce = new byte[NONCE_PREFIX_BYTES + 4];
+        System.arraycopy(noncePrefix, 0, nonce, 0, NONCE_PREFIX_BYTES);
+        if (index >= 1L << 32) {
+            throw new IllegalArgumentException("More than 2^32 chunks");
+        }
+        nonce[8] = (byte) (index >>> 24);
+        nonce[9] = (byte) (index >>> 16);
+        nonce[10] = (byte) (index >>> 8);
+        nonce[11] = (byte) index;
+        return new GCMParameterSpec(TAG_BYTES * 8, nonce);
+    }
+
+    static byte[] associatedData(byte[] header, long index, boolean last) {
+        ByteBuffer aad = ByteBuffer.allocate(header.length + 8 + 1);
+        aad.put(header).putLong(index).put((byte) (last ? 1 : 0));
+        return aad.array();
+    }
+
+    // Reads until buffer is full; false at end of input
+    private static boolean fill(ReadableByteChannel in, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (in.read(buffer) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void writeFully(WritableByteChannel out, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of encrypted file");
+            }
+        }
+    }
+}
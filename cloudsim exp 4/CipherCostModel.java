@@ -0,0 +1,274 @@
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.Arrays;
+
+/**
+ * CPU cost of a cipher, measured on this machine and expressed in MI
+ *
+ * calibrate() times a cipher transformation at a chunk size, for a full
+ * chunk and for an empty one, in both directions. The cost of n bytes is
+ * then chunks * (per-chunk setup) + n * (per byte), and the cloudlet length
+ * is that many seconds times referenceMips: a VM with referenceMips MIPS
+ * runs the cipher as fast as one core of the calibrating machine. The
+ * per-chunk setup is what makes small chunks expensive.
+ *
+ * The JIT compiles the cipher only after many calls, and until then it
+ * runs tens of times slower, so both directions are first warmed up
+ * together until their throughput settles. Then full and empty chunks of
+ * both directions are timed in interleaved rounds and each figure is the
+ * median, which keeps out pauses from GC and other processes without
+ * favouring whichever direction happens to run last.
+ */
+public class CipherCostModel {
+
+    // warm-up: batches until the full-chunk time of both directions changes by at most SETTLED
+    // for STEADY_BATCHES batches in a row, within the time bounds
+    private static final int WARMUP_BATCH_BYTES = 4 << 20;
+    private static final double SETTLED = 0.05;
+    private static final int STEADY_BATCHES = 3;
+    private static final long WARMUP_MIN_NANOS = 300_000_000L;
+    private static final long WARMUP_MAX_NANOS = 5_000_000_000L;
+
+    private static final int SAMPLE_BYTES = 8 << 20;
+    private static final int EMPTY_CHUNKS = 5000;
+    private static final int ROUNDS = 7;
+
+    private final String transformation;
+    private final int chunkSize;
+    private final double referenceMips;
+    private final double encryptChunkSeconds;
+    private final double encryptByteSeconds;
+    private final double decryptChunkSeconds;
+    private final double decryptByteSeconds;
+    private final int tagBytes;
+    private final int paddingBlock;
+
+    private CipherCostModel(String transformation, int chunkSize, double referenceMips,
+                            double[] encrypt, double[] decrypt, int tagBytes, int paddingBlock) {
+        this.transformation = transformation;
+        this.chunkSize = chunkSize;
+        this.referenceMips = referenceMips;
+        this.encryptChunkSeconds = encrypt[0];
+        this.encryptByteSeconds = encrypt[1];
+        this.decryptChunkSeconds = decrypt[0];
+        this.decryptByteSeconds = decrypt[1];
+        this.tagBytes = tagBytes;
+        this.paddingBlock = paddingBlock;
+    }
+
+    /**
+     * Measures an AES transformation, e.g. "AES/GCM/NoPadding", "AES/CTR/NoPadding"
+     * or "AES/CBC/PKCS5Padding". Takes one to a few seconds.
+     */
+    public static CipherCostModel calibrate(String transformation, int chunkSize, double referenceMips)
+            throws GeneralSecurityException {
+        byte[] key = new byte[16];
+        new SecureRandom().nextBytes(key);
+        SecretKeySpec secretKey = new SecretKeySpec(key, "AES");
+        Cipher cipher = Cipher.getInstance(transformation);
+        boolean gcm = transformation.contains("/GCM/");
+
+        ByteBuffer plain = ByteBuffer.allocateDirect(chunkSize);
+        ByteBuffer sealed = ByteBuffer.allocateDirect(chunkSize + 2 * cipher.getBlockSize() + 16);
+        Nonces nonces = new Nonces(gcm);
+
+        // encryption: a fresh nonce per chunk, as in ChunkedGcmFile
+        Runnable encryptFull = () -> crypt(cipher, Cipher.ENCRYPT_MODE, secretKey, nonces.next(), plain, chunkSize,
+                sealed);
+        Runnable encryptEmpty = () -> crypt(cipher, Cipher.ENCRYPT_MODE, secretKey, nonces.next(), plain, 0, sealed);
+
+        // decryption: one sealed chunk and one sealed empty chunk, opened again and again
+        AlgorithmParameterSpec fullNonce = nonces.next();
+        crypt(cipher, Cipher.ENCRYPT_MODE, secretKey, fullNonce, plain, chunkSize, sealed);
+        ByteBuffer sealedFull = copy(sealed);
+        AlgorithmParameterSpec emptyNonce = nonces.next();
+        crypt(cipher, Cipher.ENCRYPT_MODE, secretKey, emptyNonce, plain, 0, sealed);
+        ByteBuffer sealedEmpty = copy(sealed);
+        ByteBuffer opened = ByteBuffer.allocateDirect(chunkSize + cipher.getBlockSize());
+        Runnable decryptFull = () -> crypt(cipher, Cipher.DECRYPT_MODE, secretKey, fullNonce, sealedFull,
+                sealedFull.capacity(), opened);
+        Runnable decryptEmpty = () -> crypt(cipher, Cipher.DECRYPT_MODE, secretKey, emptyNonce, sealedEmpty,
+                sealedEmpty.capacity(), opened);
+
+        Runnable[] tasks = {encryptFull, encryptEmpty, decryptFull, decryptEmpty};
+        warmUp(tasks, chunkSize);
+        double[] perChunk = measure(tasks, chunkSize);
+        double[] encrypt = {perChunk[1], Math.max(0.0, perChunk[0] - perChunk[1]) / chunkSize};
+        double[] decrypt = {perChunk[3], Math.max(0.0, perChunk[2] - perChunk[3]) / chunkSize};
+
+        boolean padded = !transformation.endsWith("/NoPadding");
+        return new CipherCostModel(transformation, chunkSize, referenceMips, encrypt, decrypt,
+                padded ? 0 : sealedEmpty.capacity(), padded ? cipher.getBlockSize() : 0);
+    }
+
+    public String getTransformation() {
+        return transformation;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public double getReferenceMips() {
+        return referenceMips;
+    }
+
+    /**
+     * Encryption throughput of one core for large files, MB/s.
+     */
+    public double getEncryptThroughput() {
+        return 1e-6 / (encryptByteSeconds + encryptChunkSeconds / chunkSize);
+    }
+
+    /**
+     * Decryption throughput of one core for large files, MB/s.
+     */
+    public double getDecryptThroughput() {
+        return 1e-6 / (decryptByteSeconds + decryptChunkSeconds / chunkSize);
+    }
+
+    /**
+     * Length in MI of encrypting bytes of plaintext.
+     */
+    public long encryptLength(long bytes) {
+        return length(chunks(bytes) * encryptChunkSeconds + bytes * encryptByteSeconds);
+    }
+
+    /**
+     * Length in MI of decrypting a file of bytes of plaintext.
+     */
+    public long decryptLength(long bytes) {
+        return length(chunks(bytes) * decryptChunkSeconds + bytes * decryptByteSeconds);
+    }
+
+    /**
+     * Size of the ciphertext of bytes of plaintext, file header not included.
+     */
+    public long sealedSize(long bytes) {
+        long full = bytes / chunkSize;
+        long rest = bytes % chunkSize;
+        if (rest == 0 && full > 0) {
+            return full * sealedChunk(chunkSize);
+        }
+        return full * sealedChunk(chunkSize) + sealedChunk(rest);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s, %d KB chunks: encrypt %.0f MB/s, decrypt %.0f MB/s", transformation,
+                chunkSize / 1024, getEncryptThroughput(), getDecryptThroughput());
+    }
+
+    private long sealedChunk(long bytes) {
+        if (paddingBlock > 0) {
+            // padding always adds at least one byte, up to the next block
+            return (bytes / paddingBlock + 1) * paddingBlock;
+        }
+        return bytes + tagBytes;
+    }
+
+    private long chunks(long bytes) {
+        return Math.max(1, (bytes + chunkSize - 1) / chunkSize);
+    }
+
+    private long length(double seconds) {
+        return Math.max(1, Math.round(seconds * referenceMips));
+    }
+
+    /**
+     * Counter nonces of the size the mode wants.
+     */
+    private static final class Nonces {
+        private final boolean gcm;
+        private long counter;
+
+        Nonces(boolean gcm) {
+            this.gcm = gcm;
+        }
+
+        AlgorithmParameterSpec next() {
+            byte[] nonce = new byte[gcm ? 12 : 16];
+            ByteBuffer.wrap(nonce).putLong(++counter);
+            return gcm ? new GCMParameterSpec(128, nonce) : new IvParameterSpec(nonce);
+        }
+    }
+
+    // tasks are {encrypt full, encrypt empty, decrypt full, decrypt empty}; runs them all in batches
+    // until the full chunks of both directions take as long as in the batches before
+    private static void warmUp(Runnable[] tasks, int chunkSize) {
+        int fullChunks = Math.max(1, WARMUP_BATCH_BYTES / chunkSize);
+        long start = System.nanoTime();
+        double lastEncrypt = 0;
+        double lastDecrypt = 0;
+        int steady = 0;
+        while (System.nanoTime() - start < WARMUP_MAX_NANOS) {
+            double encrypt = run(tasks[0], fullChunks);
+            run(tasks[1], EMPTY_CHUNKS);
+            double decrypt = run(tasks[2], fullChunks);
+            run(tasks[3], EMPTY_CHUNKS);
+            steady = settled(encrypt, lastEncrypt) && settled(decrypt, lastDecrypt) ? steady + 1 : 0;
+            if (steady >= STEADY_BATCHES && System.nanoTime() - start >= WARMUP_MIN_NANOS) {
+                return;
+            }
+            lastEncrypt = encrypt;
+            lastDecrypt = decrypt;
+        }
+    }
+
+    private static boolean settled(double seconds, double before) {
+        return Math.abs(seconds - before) <= SETTLED * before;
+    }
+
+    // Seconds per chunk of each task, the median of ROUNDS rounds; each round runs every task
+    // once, starting with a different one, so no task always runs right after the same other
+    private static double[] measure(Runnable[] tasks, int chunkSize) {
+        int[] counts = {Math.max(1, SAMPLE_BYTES / chunkSize), EMPTY_CHUNKS,
+                Math.max(1, SAMPLE_BYTES / chunkSize), EMPTY_CHUNKS};
+        double[][] samples = new double[tasks.length][ROUNDS];
+        for (int round = 0; round < ROUNDS; round++) {
+            for (int k = 0; k < tasks.length; k++) {
+                int task = (round + k) % tasks.length;
+                samples[task][round] = run(tasks[task], counts[task]) / counts[task];
+            }
+        }
+        double[] medians = new double[tasks.length];
+        for (int task = 0; task < tasks.length; task++) {
+            Arrays.sort(samples[task]);
+            medians[task] = samples[task][ROUNDS / 2];
+        }
+        return medians;
+    }
+
+    private static double run(Runnable task, int times) {
+        long start = System.nanoTime();
+        for (int i = 0; i < times; i++) {
+            task.run();
+        }
+        return (System.nanoTime() - start) / 1e9;
+    }
+
+    private static void crypt(Cipher cipher, int mode, SecretKeySpec key, AlgorithmParameterSpec nonce,
+                              ByteBuffer in, int length, ByteBuffer out) {
+        try {
+            cipher.init(mode, key, nonce);
+            in.clear().limit(length);
+            out.clear();
+            cipher.doFinal(in, out);
+            out.flip();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(cipher.getAlgorithm() + " failed during calibration", e);
+        }
+    }
+
+    private static ByteBuffer copy(ByteBuffer buffer) {
+        ByteBuffer copy = ByteBuffer.allocateDirect(buffer.remaining());
+        copy.put(buffer.duplicate()).flip();
+        return copy;
+    }
+}
@@ -0,0 +1,104 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * Splits a stream into content-defined chunks (FastCDC)
+ *
+ * A gear rolling hash runs over the bytes and a chunk ends where the hash
+ * matches a mask, so boundaries depend on the content around them rather
+ * than on offsets: inserting bytes into a file only changes the chunks
+ * near the insertion, and equal runs of data in different files produce
+ * equal chunks. Chunks are between MIN_SIZE and MAX_SIZE bytes, about
+ * AVERAGE_SIZE on average; a stricter mask before the average and a looser
+ * one after it keep most chunks close to the average.
+ */
+public class ContentDefinedChunker {
+
+    public static final int MIN_SIZE = 2 << 10;
+    public static final int AVERAGE_SIZE = 8 << 10;
+    public static final int MAX_SIZE = 64 << 10;
+
+    // 15 and 11 bits spread over the high half, from the FastCDC paper
+    private static final long MASK_SMALL = 0x0003590703530000L;
+    private static final long MASK_LARGE = 0x0000d90003530000L;
+
+    // Fixed seed: the boundaries, and with them deduplication, must not change between runs
+    private static final long[] GEAR = new long[256];
+
+    static {
+        SplittableRandom random = new SplittableRandom(0x6765617243444321L);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private final InputStream in;
+    private final byte[] buffer = new byte[4 * MAX_SIZE];
+    private int start;
+    private int end;
+    private boolean eof;
+
+    public ContentDefinedChunker(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Returns the next chunk, or null at the end of the stream. An empty
+     * stream has no chunks.
+     */
+    public byte[] next() throws IOException {
+        if (end - start < MAX_SIZE && !eof) {
+            fill();
+        }
+        if (start == end) {
+            return null;
+        }
+        int length = cut(buffer, start, end - start);
+        byte[] chunk = Arrays.copyOfRange(buffer, start, start + length);
+        start += length;
+        return chunk;
+    }
+
+    /**
+     * Length of the chunk that starts at off, given available bytes.
+     */
+    static int cut(byte[] data, int off, int available) {
+        if (available <= MIN_SIZE) {
+            return available;
+        }
+        int limit = Math.min(available, MAX_SIZE);
+        int normal = Math.min(limit, AVERAGE_SIZE);
+        long hash = 0;
+        int i = MIN_SIZE;
+        for (; i < normal; i++) {
+            hash = (hash << 1) + GEAR[data[off + i] & 0xff];
+            if ((hash & MASK_SMALL) == 0) {
+                return i + 1;
+            }
+        }
+        for (; i < limit; i++) {
+            hash = (hash << 1) + GEAR[data[off + i] & 0xff];
+            if ((hash & MASK_LARGE) == 0) {
+                return i + 1;
+            }
+        }
+        return limit;
+    }
+
+    // Moves the unread bytes to the front and reads until full or end of stream
+    private void fill() throws IOException {
+        System.arraycopy(buffer, start, buffer, 0, end - start);
+        end -= start;
+        start = 0;
+        while (end < buffer.length) {
+            int n = in.read(buffer, end, buffer.length - end);
+            if (n < 0) {
+                eof = true;
+                return;
+            }
+            end += n;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+import org.cloudbus.cloudsim.Cloudlet;
+import org.cloudbus.cloudsim.UtilizationModelFull;
+
+/**
+ * Cloudlet that encrypts or decrypts one file
+ *
+ * An upload reads the plaintext from the user (file size) and writes the
+ * ciphertext to storage (output size); a download reads the ciphertext and
+ * sends the plaintext back. The length comes from a CipherCostModel.
+ * SecureTransferBroker moves both sizes through the VM's bandwidth and
+ * submits the follow-up, if any, once this cloudlet's output is out.
+ */
+public class CryptoCloudlet extends Cloudlet {
+
+    public enum Operation {
+        UPLOAD, DOWNLOAD
+    }
+
+    private final Operation operation;
+    private final long plaintextBytes;
+    private CryptoCloudlet followUp;
+    private double requestTime = -1;
+    private double completionTime = -1;
+
+    public CryptoCloudlet(int cloudletId, Operation operation, long cloudletLength,
+            long cloudletFileSize, long cloudletOutputSize, long plaintextBytes) {
+        super(cloudletId, cloudletLength, 1, cloudletFileSize, cloudletOutputSize,
+                new UtilizationModelFull(), new UtilizationModelFull(), new UtilizationModelFull());
+        this.operation = operation;
+        this.plaintextBytes = plaintextBytes;
+    }
+
+    /**
+     * Upload of a file of plaintextBytes, sealed to sealedBytes (header included).
+     */
+    public static CryptoCloudlet upload(int cloudletId, CipherCostModel model, long plaintextBytes,
+            long sealedBytes) {
+        return new CryptoCloudlet(cloudletId, Operation.UPLOAD, model.encryptLength(plaintextBytes),
+                plaintextBytes, sealedBytes, plaintextBytes);
+    }
+
+    public static CryptoCloudlet download(int cloudletId, CipherCostModel model, long plaintextBytes,
+            long sealedBytes) {
+        return new CryptoCloudlet(cloudletId, Operation.DOWNLOAD, model.decryptLength(plaintextBytes),
+                sealedBytes, plaintextBytes, plaintextBytes);
+    }
+
+    public Operation getOperation() {
+        return operation;
+    }
+
+    public long getPlaintextBytes() {
+        return plaintextBytes;
+    }
+
+    public CryptoCloudlet getFollowUp() {
+        return followUp;
+    }
+
+    /**
+     * Cloudlet to start once this one is complete, e.g. the download after an upload.
+     */
+    public void setFollowUp(CryptoCloudlet followUp) {
+        this.followUp = followUp;
+    }
+
+    /**
+     * Simulation time the request reached the broker, before any transfer.
+     */
+    public double getRequestTime() {
+        return requestTime;
+    }
+
+    void setRequestTime(double requestTime) {
+        this.requestTime = requestTime;
+    }
+
+    /**
+     * Simulation time the output transfer finished.
+     */
+    public double getCompletionTime() {
+        return completionTime;
+    }
+
+    void setCompletionTime(double completionTime) {
+        this.completionTime = completionTime;
+    }
+}
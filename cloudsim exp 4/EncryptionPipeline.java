@@ -0,0 +1,335 @@
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Parallel bulk encryption into ChunkedGcmFiles
+ *
+ *   reader (calling thread) -> work queue -> encryption workers -> done queue -> writer (in order)
+ *
+ * The reader cuts the files into chunks, one after the other, and numbers
+ * them. Workers seal chunks in any order with a Cipher kept per thread,
+ * and the writer puts them back in sequence, writing each target file in
+ * turn. Chunk buffers come from a fixed pool that is refilled by the
+ * writer, so memory stays bounded and a slow stage holds back the reader
+ * instead of piling up data. Each stage counts the time it is busy (not
+ * waiting on a queue), so the report shows which one limits throughput.
+ */
+public class EncryptionPipeline implements Closeable {
+
+    /**
+     * Per-stage figures of one encryptAll call.
+     */
+    public static class Report {
+
+        private final int files;
+        private final long bytes;
+        private final long wallNanos;
+        private final long readNanos;
+        private final long encryptNanos;
+        private final long writeNanos;
+        private final int workers;
+
+        Report(int files, long bytes, long wallNanos, long readNanos, long encryptNanos, long writeNanos,
+               int workers) {
+            this.files = files;
+            this.bytes = bytes;
+            this.wallNanos = wallNanos;
+            this.readNanos = readNanos;
+            this.encryptNanos = encryptNanos;
+            this.writeNanos = writeNanos;
+            this.workers = workers;
+        }
+
+        public int getFiles() {
+            return files;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * Plaintext MB per second of wall-clock time, end to end.
+         */
+        public double getThroughput() {
+            return rate(wallNanos);
+        }
+
+        private double rate(long nanos) {
+            return nanos == 0 ? 0.0 : bytes / 1e6 / (nanos / 1e9);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d files, %.1f MB in %.2f s: %.1f MB/s%n", files, bytes / 1e6, wallNanos / 1e9,
+                    getThroughput())
+                    + String.format("  read     %8.1f MB/s  (1 thread, busy %.2f s)%n", rate(readNanos),
+                    readNanos / 1e9)
+                    + String.format("  encrypt  %8.1f MB/s  (%d workers, %.1f MB/s each, busy %.2f s in total)%n",
+                    rate(encryptNanos) * workers, workers, rate(encryptNanos), encryptNanos / 1e9)
+                    + String.format("  write    %8.1f MB/s  (1 thread, busy %.2f s)", rate(writeNanos),
+                    writeNanos / 1e9);
+        }
+    }
+
+    private static final class Target {
+        final Path path;
+        final ChunkedGcmFile.Header header;
+
+        Target(Path path, ChunkedGcmFile.Header header) {
+            this.path = path;
+            this.header = header;
+        }
+    }
+
+    private static final class Chunk {
+        final ByteBuffer plain;
+        final ByteBuffer sealed;
+        long sequence;
+        Target target;
+        long index;
+        boolean last;
+
+        Chunk(int chunkSize) {
+            plain = ByteBuffer.allocateDirect(chunkSize);
+            sealed = ByteBuffer.allocateDirect(chunkSize + ChunkedGcmFile.TAG_BYTES);
+        }
+    }
+
+    // No more chunks; one per worker, then one for the writer
+    private static final Chunk END = new Chunk(1);
+
+    // Cipher.getInstance is slow; each worker thread keeps its own
+    private static final ThreadLocal<Cipher> CIPHER = ThreadLocal.withInitial(ChunkedGcmFile::newCipher);
+
+    private final SecretKey key;
+    private final String keyId;
+    private final int chunkSize;
+    private final int workers;
+    private final int poolSize;
+    private final ExecutorService pool;
+
+    public EncryptionPipeline(SecretKey key, String keyId) {
+        this(key, keyId, ChunkedGcmFile.DEFAULT_CHUNK_SIZE, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param workers encryption threads; the pool holds 4 chunk buffers per worker
+     */
+    public EncryptionPipeline(SecretKey key, String keyId, int chunkSize, int workers) {
+        this.key = key;
+        this.keyId = keyId;
+        this.chunkSize = chunkSize;
+        this.workers = workers;
+        this.poolSize = 4 * workers;
+        // workers plus the writer
+        this.pool = Executors.newFixedThreadPool(workers + 1, r -> {
+            Thread t = new Thread(r, "EncryptionPipeline");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Encrypts each source to targetDir/name.enc. Names must be unique.
+     */
+    public Report encryptAll(List<Path> sources, Path targetDir) throws IOException {
+        Set<Path> names = new HashSet<>();
+        for (Path source : sources) {
+            if (!names.add(source.getFileName())) {
+                throw new IllegalArgumentException("Duplicate file name " + source.getFileName());
+            }
+        }
+
+        BlockingQueue<Chunk> free = new ArrayBlockingQueue<>(poolSize);
+        for (int i = 0; i < poolSize; i++) {
+            free.add(new Chunk(chunkSize));
+        }
+        BlockingQueue<Chunk> work = new ArrayBlockingQueue<>(poolSize + workers);
+        BlockingQueue<Chunk> done = new LinkedBlockingQueue<>();
+        AtomicInteger running = new AtomicInteger(workers);
+        AtomicLong encryptNanos = new AtomicLong();
+        AtomicLong writeNanos = new AtomicLong();
+
+        long start = System.nanoTime();
+        List<Future<?>> stages = new ArrayList<>();
+        for (int w = 0; w < workers; w++) {
+            stages.add(pool.submit(() -> {
+                encrypt(work, done, running, encryptNanos);
+                return null;
+            }));
+        }
+        stages.add(pool.submit(() -> {
+            write(done, free, writeNanos);
+            return null;
+        }));
+
+        long readNanos = 0;
+        long bytes = 0;
+        try {
+            long sequence = 0;
+            for (Path source : sources) {
+                Target target = new Target(targetDir.resolve(source.getFileName() + ".enc"),
+                        ChunkedGcmFile.Header.create(chunkSize, keyId));
+                try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ)) {
+                    long size = in.size();
+                    long chunks = Math.max(1, (size + chunkSize - 1) / chunkSize);
+                    for (long index = 0; index < chunks; index++) {
+                        Chunk chunk = take(free, stages);
+                        long t = System.nanoTime();
+                        chunk.plain.clear();
+                        chunk.plain.limit((int) Math.min(chunkSize, size - index * chunkSize));
+                        while (chunk.plain.hasRemaining()) {
+                            if (in.read(chunk.plain, index * chunkSize + chunk.plain.position()) < 0) {
+                                throw new IOException(source + " shrank while being read");
+                            }
+                        }
+                        chunk.plain.flip();
+                        readNanos += System.nanoTime() - t;
+                        bytes += chunk.plain.remaining();
+                        chunk.sequence = sequence++;
+                        chunk.target = target;
+                        chunk.index = index;
+                        chunk.last = index == chunks - 1;
+                        work.put(chunk);
+                    }
+                }
+            }
+            for (int w = 0; w < workers; w++) {
+                work.put(END);
+            }
+            for (Future<?> stage : stages) {
+                stage.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted", e);
+        } catch (ExecutionException e) {
+            throw failure(e);
+        } finally {
+            for (Future<?> stage : stages) {
+                stage.cancel(true);
+            }
+        }
+        return new Report(sources.size(), bytes, System.nanoTime() - start, readNanos, encryptNanos.get(),
+                writeNanos.get(), workers);
+    }
+
+    @Override
+    public void close() {
+        pool.shutdownNow();
+    }
+
+    private void encrypt(BlockingQueue<Chunk> work, BlockingQueue<Chunk> done, AtomicInteger running,
+                         AtomicLong busy) throws IOException, InterruptedException {
+        Cipher cipher = CIPHER.get();
+        while (true) {
+            Chunk chunk = work.take();
+            if (chunk == END) {
+                // the last worker out tells the writer
+                if (running.decrementAndGet() == 0) {
+                    done.put(END);
+                }
+                return;
+            }
+            long t = System.nanoTime();
+            chunk.sealed.clear();
+            ChunkedGcmFile.seal(cipher, key, chunk.target.header, chunk.index, chunk.last, chunk.plain,
+                    chunk.sealed);
+            chunk.sealed.flip();
+            busy.addAndGet(System.nanoTime() - t);
+            done.put(chunk);
+        }
+    }
+
+    private void write(BlockingQueue<Chunk> done, BlockingQueue<Chunk> free, AtomicLong busy)
+            throws IOException, InterruptedException {
+        Map<Long, Chunk> early = new HashMap<>();
+        long next = 0;
+        FileChannel out = null;
+        try {
+            while (true) {
+                Chunk chunk = done.take();
+                if (chunk == END) {
+                    return;
+                }
+                early.put(chunk.sequence, chunk);
+                while ((chunk = early.remove(next)) != null) {
+                    long t = System.nanoTime();
+                    if (chunk.index == 0) {
+                        out = FileChannel.open(chunk.target.path, StandardOpenOption.CREATE,
+                                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                        writeFully(out, ByteBuffer.wrap(chunk.target.header.bytes));
+                    }
+                    writeFully(out, chunk.sealed);
+                    if (chunk.last) {
+                        out.close();
+                        out = null;
+                    }
+                    busy.addAndGet(System.nanoTime() - t);
+                    next++;
+                    free.put(chunk);
+                }
+            }
+        } finally {
+            if (out != null) {
+                out.close();
+            }
+        }
+    }
+
+    // Waits for a free buffer, giving up if a stage has failed
+    private static Chunk take(BlockingQueue<Chunk> free, List<Future<?>> stages)
+            throws InterruptedException, ExecutionException {
+        while (true) {
+            Chunk chunk = free.poll(100, TimeUnit.MILLISECONDS);
+            if (chunk != null) {
+                return chunk;
+            }
+            for (Future<?> stage : stages) {
+                if (stage.isDone()) {
+                    stage.get();
+                }
+            }
+        }
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+
+    private static IOException failure(ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof IOException) {
+            return (IOException) cause;
+        }
+        if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        }
+        return new IOException(cause);
+    }
+}
@@ -0,0 +1,330 @@
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Local key management: versioned master keys and HKDF-derived data keys
+ *
+ * Key hierarchy, HKDF-SHA256 (RFC 5869) at every step:
+ *
+ *   master key vN (random, 256 bits)
+ *     user key   = HKDF(master vN, info "user:" + user)
+ *       file key = HKDF(user key,  info "file:" + file)     AES-256
+ *
+ * A file key is named by its key id "vN/user/file", which is what
+ * ChunkedGcmFile stores in its header; dataKey(keyId) derives it again
+ * from the id alone. Users must not contain '/', files may.
+ *
+ * The master keys are kept in a keyring file, each wrapped with AES-GCM
+ * under the root key. rotate() adds a new master version that keyId()
+ * uses from then on; older versions stay readable, and isCurrent() tells
+ * callers to re-encrypt a file when they next touch it.
+ *
+ * Derived keys are cached for ttlMillis (user and file keys alike, up to
+ * maxCachedKeys), so repeated access costs a map lookup instead of four
+ * HMACs. cipher() hands out one AES/GCM Cipher per thread: GCM needs a
+ * fresh nonce and therefore an init() per message, but the instance is
+ * reused and the JDK skips the key expansion when a thread keeps using
+ * the same key.
+ */
+public class KeyManagementService {
+
+    private static final int KEY_BYTES = 32;
+    private static final int NONCE_BYTES = 12;
+    private static final byte[] SALT = "cloudsim-exp4-kms".getBytes(StandardCharsets.UTF_8);
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final ThreadLocal<Cipher> CIPHER = ThreadLocal.withInitial(ChunkedGcmFile::newCipher);
+
+    private static final class CachedKey {
+        final SecretKey key;
+        final long expires;
+
+        CachedKey(SecretKey key, long expires) {
+            this.key = key;
+            this.expires = expires;
+        }
+    }
+
+    private final Path keyring;
+    private final SecretKey rootKey;
+    private final TreeMap<Integer, byte[]> masters = new TreeMap<>();
+    private final LinkedHashMap<String, CachedKey> cache = new LinkedHashMap<>(256, 0.75f, true);
+    private long ttlMillis = 5 * 60 * 1000L;
+    private int maxCachedKeys = 10000;
+
+    private long hits;
+    private long misses;
+
+    /**
+     * Opens the keyring, creating it with a first master key if it does not exist.
+     *
+     * @param rootKey AES key that wraps the master keys
+     */
+    public KeyManagementService(Path keyring, SecretKey rootKey) throws IOException {
+        this.keyring = keyring;
+        this.rootKey = rootKey;
+        if (Files.exists(keyring)) {
+            load();
+        } else {
+            rotate();
+        }
+    }
+
+    /**
+     * Key id of the current file key of user and file.
+     */
+    public synchronized String keyId(String user, String file) {
+        if (user.isEmpty() || user.indexOf('/') >= 0) {
+            throw new IllegalArgumentException("Bad user name '" + user + "'");
+        }
+        return "v" + masters.lastKey() + "/" + user + "/" + file;
+    }
+
+    /**
+     * Whether keyId uses the current master key.
+     */
+    public synchronized boolean isCurrent(String keyId) {
+        return version(keyId) == masters.lastKey();
+    }
+
+    /**
+     * The key id of the same user and file under the current master key.
+     */
+    public String currentKeyId(String keyId) {
+        String[] parts = parse(keyId);
+        return keyId(parts[1], parts[2]);
+    }
+
+    /**
+     * The file key named by keyId.
+     *
+     * @throws IllegalArgumentException for a malformed id or an unknown master version
+     */
+    public synchronized SecretKey dataKey(String keyId) {
+        String[] parts = parse(keyId);
+        SecretKey key = cached(keyId);
+        if (key == null) {
+            SecretKey user = userKey(parts[0], parts[1]);
+            key = new SecretKeySpec(hkdf(user.getEncoded(), "file:" + parts[2]), "AES");
+            remember(keyId, key);
+        }
+        return key;
+    }
+
+    /**
+     * Re-encrypts a ChunkedGcmFile under the current master key if it uses
+     * an older one, replacing it atomically. Callers invoke it when they
+     * touch a file, so rotation costs nothing up front.
+     *
+     * @return whether the file was re-encrypted
+     */
+    public boolean reencryptIfStale(Path file) throws IOException {
+        String keyId;
+        try (ChunkedGcmFile encrypted = new ChunkedGcmFile(file, this::dataKey)) {
+            keyId = encrypted.getKeyId();
+            if (isCurrent(keyId)) {
+                return false;
+            }
+            String current = currentKeyId(keyId);
+            Path temp = Files.createTempFile(file.toAbsolutePath().getParent(), "reencrypt", ".tmp");
+            try {
+                ChunkedGcmFile.encrypt(encrypted.openPlaintext(), temp, dataKey(current), current,
+                        encrypted.getChunkSize());
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * An AES/GCM Cipher of the calling thread, to be initialised per message.
+     */
+    public Cipher cipher() {
+        return CIPHER.get();
+    }
+
+    /**
+     * Adds a new random master key and makes it current.
+     *
+     * @return the new version
+     */
+    public synchronized int rotate() throws IOException {
+        byte[] master = new byte[KEY_BYTES];
+        RANDOM.nextBytes(master);
+        int version = masters.isEmpty() ? 1 : masters.lastKey() + 1;
+        masters.put(version, master);
+        save();
+        return version;
+    }
+
+    public synchronized int getCurrentVersion() {
+        return masters.lastKey();
+    }
+
+    public synchronized long getTtlMillis() {
+        return ttlMillis;
+    }
+
+    /**
+     * How long a derived key stays cached; 0 disables the cache.
+     */
+    public synchronized void setTtlMillis(long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+        cache.clear();
+    }
+
+    public synchronized int getMaxCachedKeys() {
+        return maxCachedKeys;
+    }
+
+    public synchronized void setMaxCachedKeys(int maxCachedKeys) {
+        this.maxCachedKeys = maxCachedKeys;
+    }
+
+    public synchronized long getCacheHits() {
+        return hits;
+    }
+
+    public synchronized long getCacheMisses() {
+        return misses;
+    }
+
+    private SecretKey userKey(String version, String user) {
+        String id = version + "/" + user;
+        SecretKey key = cached(id);
+        if (key == null) {
+            byte[] master = masters.get(Integer.parseInt(version.substring(1)));
+            key = new SecretKeySpec(hkdf(master, "user:" + user), "HmacSHA256");
+            remember(id, key);
+        }
+        return key;
+    }
+
+    private SecretKey cached(String id) {
+        CachedKey cachedKey = cache.get(id);
+        if (cachedKey != null && cachedKey.expires > System.currentTimeMillis()) {
+            hits++;
+            return cachedKey.key;
+        }
+        misses++;
+        return null;
+    }
+
+    private void remember(String id, SecretKey key) {
+        if (ttlMillis <= 0) {
+            return;
+        }
+        cache.put(id, new CachedKey(key, System.currentTimeMillis() + ttlMillis));
+        if (cache.size() > maxCachedKeys) {
+            cache.remove(cache.keySet().iterator().next());
+        }
+    }
+
+    private int version(String keyId) {
+        return Integer.parseInt(parse(keyId)[0].substring(1));
+    }
+
+    // {"vN", user, file}, with the master version checked; no regex, this runs on every lookup
+    private String[] parse(String keyId) {
+        int first = keyId.indexOf('/');
+        int second = first < 0 ? -1 : keyId.indexOf('/', first + 1);
+        if (second < 0 || second == first + 1 || first < 2 || first > 10 || keyId.charAt(0) != 'v') {
+            throw new IllegalArgumentException("Bad key id '" + keyId + "'");
+        }
+        int version = 0;
+        for (int i = 1; i < first; i++) {
+            char c = keyId.charAt(i);
+            if (c < '0' || c > '9') {
+                throw new IllegalArgumentException("Bad key id '" + keyId + "'");
+            }
+            version = 10 * version + (c - '0');
+        }
+        if (!masters.containsKey(version)) {
+            throw new IllegalArgumentException("Unknown master key version in '" + keyId + "'");
+        }
+        return new String[] {keyId.substring(0, first), keyId.substring(first + 1, second),
+                keyId.substring(second + 1)};
+    }
+
+    // HKDF-SHA256 with the fixed salt, KEY_BYTES of output
+    private static byte[] hkdf(byte[] inputKey, String info) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(SALT, "HmacSHA256"));
+            byte[] prk = mac.doFinal(inputKey);
+            mac.init(new SecretKeySpec(prk, "HmacSHA256"));
+            mac.update(info.getBytes(StandardCharsets.UTF_8));
+            mac.update((byte) 1);
+            return Arrays.copyOf(mac.doFinal(), KEY_BYTES);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 not available", e);
+        }
+    }
+
+    // int count, then (int version, nonce, int length, wrapped key) per master key
+    private void load() throws IOException {
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(keyring))) {
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                int version = in.readInt();
+                byte[] nonce = new byte[NONCE_BYTES];
+                in.readFully(nonce);
+                byte[] wrapped = new byte[in.readInt()];
+                in.readFully(wrapped);
+                Cipher cipher = cipher();
+                cipher.init(Cipher.DECRYPT_MODE, rootKey, new GCMParameterSpec(128, nonce));
+                cipher.updateAAD(("v" + version).getBytes(StandardCharsets.UTF_8));
+                masters.put(version, cipher.doFinal(wrapped));
+            }
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot unwrap " + keyring + ": wrong root key or damaged keyring", e);
+        }
+        if (masters.isEmpty()) {
+            throw new IOException(keyring + " holds no master keys");
+        }
+    }
+
+    // Written to a temporary file and moved into place, so a crash leaves the old keyring
+    private void save() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(masters.size());
+            for (Map.Entry<Integer, byte[]> master : masters.entrySet()) {
+                byte[] nonce = new byte[NONCE_BYTES];
+                RANDOM.nextBytes(nonce);
+                Cipher cipher = cipher();
+                cipher.init(Cipher.ENCRYPT_MODE, rootKey, new GCMParameterSpec(128, nonce));
+                cipher.updateAAD(("v" + master.getKey()).getBytes(StandardCharsets.UTF_8));
+                byte[] wrapped = cipher.doFinal(master.getValue());
+                out.writeInt(master.getKey());
+                out.write(nonce);
+                out.writeInt(wrapped.length);
+                out.write(wrapped);
+            }
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot wrap master keys", e);
+        }
+        Path parent = keyring.toAbsolutePath().getParent();
+        Path temp = Files.createTempFile(parent, "keyring", ".tmp");
+        Files.write(temp, bytes.toByteArray());
+        Files.move(temp, keyring, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -2,30 +2,122 @@ import org.cloudbus.cloudsim.*;
 import org.cloudbus.cloudsim.core.CloudSim;
 import org.cloudbus.cloudsim.provisioners.*;
 
-import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
 import javax.crypto.spec.SecretKeySpec;
 import java.util.*;
 import java.io.*;
-import java.util.Base64;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
 
+/**
+ * Secure file sharing
+ *
+ * Usage: java -cp ".;lib/*" Main [file]
+ *        java -cp ".;lib/*" Main bulk [files=2000] [sizeKb=256]
+ *        java -cp ".;lib/*" Main simulate [files=200] [sizeMb=16]
+ *        java -cp ".;lib/*" Main dedup [users=20] [sizeMb=4]
+ *        java -cp ".;lib/*" Main keys [files=10000]
+ *        java -cp ".;lib/*" Main rootkey
+ *
+ * Without a file the sample text is uploaded to the ChunkStore in
+ * cloud_store, which deduplicates content-defined chunks across files and
+ * users. A given file is stored as ChunkedGcmFile: AES-GCM over 64 KB
+ * chunks, streamed through FileChannels, so memory use does not depend on
+ * the file size. Dedup mode has many users upload edited copies of one
+ * data set to a temporary ChunkStore and reports the storage saved, then
+ * downloads hot files with and without a ChunkCache of decrypted chunks.
+ * Bulk mode generates files in a temporary directory and uploads them
+ * through EncryptionPipeline, one encryption worker per core, then once
+ * more one file after the other for comparison.
+ *
+ * The upload and download of the shared file also run inside the
+ * simulation as CryptoCloudlets: their lengths come from the cipher speed
+ * measured on this machine (CipherCostModel, a 1000 MIPS VM as fast as one
+ * core here) and their sizes from the real files, moved through the VM's
+ * bandwidth by SecureTransferBroker. Simulate mode uploads and downloads
+ * many files that way for several cipher modes and chunk sizes and prints
+ * the VM time each one costs.
+ *
+ * Keys come from a KeyManagementService with its master keys in
+ * keyring.dat: every file is encrypted under its own HKDF-derived key,
+ * named in the file header. Keys mode times key lookups with and without
+ * the cache of derived keys, then rotates the master key and re-encrypts
+ * files lazily as they are read.
+ *
+ * The root key that wraps the master keys is not part of the program: it
+ * is read as hex from the CLOUDSIM_ROOT_KEY environment variable or else
+ * from root.key, which rootkey mode creates. Without either, every mode
+ * that opens keyring.dat fails. Keys mode uses a temporary keyring and a
+ * root key of its own.
+ */
 public class Main {
 
-    // AES key (16 bytes)
-    private static final String SECRET_KEY = "1234567890123456";
+    // Where the AES key that wraps the master keys in the keyring comes from, as hex, see rootKey()
+    private static final String ROOT_KEY_ENV = "CLOUDSIM_ROOT_KEY";
+    private static final String ROOT_KEY_FILE = "root.key";
+    private static final String KEYRING = "keyring.dat";
+    private static final String USER = "alice";
+    private static final String CLOUD_FILE = "cloud_storage.enc";
+    private static final String CLOUD_STORE = "cloud_store";
+    private static final String SAMPLE_NAME = "confidential.txt";
+
+    private static KeyManagementService kms;
+    // Decrypted chunks of cloud_store, kept across downloads; 64 MB off-heap, so only made once it is opened
+    private static ChunkCache cache;
+
+    private static final String[] TRANSFORMATIONS = {"AES/GCM/NoPadding", "AES/CTR/NoPadding", "AES/CBC/PKCS5Padding"};
+    private static final int[] CHUNK_SIZES = {4 << 10, 64 << 10, 1 << 20};
 
     public static void main(String[] args) {
 
+        if (args.length > 0 && args[0].equals("simulate")) {
+            try {
+                compareCiphers(args.length > 1 ? Integer.parseInt(args[1]) : 200,
+                        args.length > 2 ? Integer.parseInt(args[2]) : 16);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            return;
+        }
+
+        if (args.length > 0 && args[0].equals("rootkey")) {
+            try {
+                createRootKey();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            return;
+        }
+
+        if (args.length > 0 && args[0].equals("keys")) {
+            try {
+                keyManagement(args.length > 1 ? Integer.parseInt(args[1]) : 10000);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            return;
+        }
+
         try {
             System.out.println("Starting Secure File Sharing Simulation...");
 
             // 1. Initialize CloudSim
-            CloudSim.init(1, Calendar.getInstance(), false);
+            CloudSim.init(1, Calendar.getInstance(), false, SecureTransferBroker.MIN_TIME_BETWEEN_EVENTS);
 
             // 2. Create Datacenter
             Datacenter datacenter = createDatacenter("Datacenter_1");
 
             // 3. Create Broker
-            DatacenterBroker broker = new DatacenterBroker("Broker_1");
+            SecureTransferBroker broker = new SecureTransferBroker("Broker_1");
             int brokerId = broker.getId();
 
             // 4. Create VM
@@ -37,24 +129,45 @@ public class Main {
             broker.submitVmList(Collections.singletonList(vm));
 
             // 5. Secure File Upload
-            String originalData = "This is a confidential cloud file";
-            System.out.println("Original File Data: " + originalData);
+            if (args.length > 0 && args[0].equals("dedup")) {
+                dedupUpload(args.length > 1 ? Integer.parseInt(args[1]) : 20,
+                        args.length > 2 ? Integer.parseInt(args[2]) : 4);
+            } else if (args.length > 0 && args[0].equals("bulk")) {
+                bulkUpload(args.length > 1 ? Integer.parseInt(args[1]) : 2000,
+                        args.length > 2 ? Integer.parseInt(args[2]) : 256);
+            } else if (args.length > 0) {
+                long length = shareFile(Paths.get(args[0]));
+                submitTransfer(broker, vm, length, Files.size(Paths.get(CLOUD_FILE)));
+            } else {
+                String originalData = "This is a confidential cloud file";
+                System.out.println("Original File Data: " + originalData);
 
-            String encryptedData = encrypt(originalData);
-            saveToCloud(encryptedData);
+                ChunkStore.FileInfo stored = saveToCloud(SAMPLE_NAME, originalData.getBytes(StandardCharsets.UTF_8));
 
-            System.out.println("File encrypted and stored securely in cloud");
+                System.out.println("File encrypted and stored securely in cloud (" + stored + ")");
 
-            // 6. Secure File Download (Authorized User)
-            String retrievedEncryptedData = readFromCloud();
-            String decryptedData = decrypt(retrievedEncryptedData);
+                // 6. Secure File Download (Authorized User)
+                String decryptedData = new String(readFromCloud(SAMPLE_NAME), StandardCharsets.UTF_8);
 
-            System.out.println("Decrypted File Data (Authorized Access): " + decryptedData);
+                System.out.println("Decrypted File Data (Authorized Access): " + decryptedData);
+                submitTransfer(broker, vm, stored.getLength(), stored.getSealedLength());
+            }
 
             // 7. Start Simulation
             CloudSim.startSimulation();
             CloudSim.stopSimulation();
 
+            for (Cloudlet cloudlet : broker.getCloudletReceivedList()) {
+                CryptoCloudlet transfer = (CryptoCloudlet) cloudlet;
+                System.out.printf("%s of %d bytes: %d MI, requested at %.3f, complete at %.3f%n",
+                        transfer.getOperation(), transfer.getPlaintextBytes(), transfer.getCloudletLength(),
+                        transfer.getRequestTime(), transfer.getCompletionTime());
+            }
+            for (CryptoCloudlet transfer : broker.getFailedList()) {
+                System.out.printf("%s of %d bytes: failed, no VM to run on%n", transfer.getOperation(),
+                        transfer.getPlaintextBytes());
+            }
+
             System.out.println("Secure File Sharing Simulation Completed");
 
         } catch (Exception e) {
@@ -101,34 +214,445 @@ public class Main {
         }
     }
 
-    // AES Encryption
-    private static String encrypt(String data) throws Exception {
-        SecretKeySpec key = new SecretKeySpec(SECRET_KEY.getBytes(), "AES");
-        Cipher cipher = Cipher.getInstance("AES");
-        cipher.init(Cipher.ENCRYPT_MODE, key);
-        return Base64.getEncoder().encodeToString(cipher.doFinal(data.getBytes()));
+    // Upload then download of the stored cloud file, as cloudlets sized from the real file
+    private static void submitTransfer(SecureTransferBroker broker, Vm vm, long plaintextBytes, long sealedBytes)
+            throws Exception {
+        CipherCostModel model = CipherCostModel.calibrate("AES/GCM/NoPadding", ChunkedGcmFile.DEFAULT_CHUNK_SIZE,
+                vm.getMips());
+        System.out.println("Calibrated " + model);
+        CryptoCloudlet upload = CryptoCloudlet.upload(0, model, plaintextBytes, sealedBytes);
+        upload.setFollowUp(CryptoCloudlet.download(1, model, plaintextBytes, sealedBytes));
+        broker.submitCloudletList(Collections.singletonList(upload));
     }
 
-    // AES Decryption
-    private static String decrypt(String encryptedData) throws Exception {
-        SecretKeySpec key = new SecretKeySpec(SECRET_KEY.getBytes(), "AES");
-        Cipher cipher = Cipher.getInstance("AES");
-        cipher.init(Cipher.DECRYPT_MODE, key);
-        return new String(cipher.doFinal(Base64.getDecoder().decode(encryptedData)));
+    // Simulated upload and download of many files for each cipher mode and chunk size
+    private static void compareCiphers(int files, int sizeMb) throws Exception {
+        long plaintextBytes = (long) sizeMb << 20;
+        System.out.printf("%d uploads and downloads of %d MB on one 1000 MIPS VM with 1000 Mbit/s%n", files, sizeMb);
+        System.out.printf("%-22s %8s %10s %10s %10s %10s %8s%n", "Cipher", "Chunk", "Enc MB/s", "Makespan",
+                "VM CPU s", "Link s", "CPU %");
+        Log.disable();
+        for (String transformation : TRANSFORMATIONS) {
+            for (int chunkSize : CHUNK_SIZES) {
+                CipherCostModel model = CipherCostModel.calibrate(transformation, chunkSize, 1000);
+
+                CloudSim.init(1, Calendar.getInstance(), false, SecureTransferBroker.MIN_TIME_BETWEEN_EVENTS);
+                createDatacenter("Datacenter_1");
+                SecureTransferBroker broker = new SecureTransferBroker("Broker_1");
+                Vm vm = new Vm(0, broker.getId(), 1000, 1, 512, 1000, 10000, "Xen",
+                        new CloudletSchedulerTimeShared());
+                broker.submitVmList(Collections.singletonList(vm));
+
+                long sealedBytes = model.sealedSize(plaintextBytes);
+                List<CryptoCloudlet> uploads = new ArrayList<>();
+                for (int i = 0; i < files; i++) {
+                    CryptoCloudlet upload = CryptoCloudlet.upload(2 * i, model, plaintextBytes, sealedBytes);
+                    upload.setFollowUp(CryptoCloudlet.download(2 * i + 1, model, plaintextBytes, sealedBytes));
+                    uploads.add(upload);
+                }
+                broker.submitCloudletList(uploads);
+
+                CloudSim.startSimulation();
+                CloudSim.stopSimulation();
+
+                System.out.printf("%-22s %5d KB %10.0f %10.2f %10.2f %10.2f %7.1f%%%n", transformation,
+                        chunkSize >> 10, model.getEncryptThroughput(), broker.getMakespan(), broker.getCpuSeconds(),
+                        broker.getTransferSeconds(), 100.0 * broker.getCpuSeconds() / broker.getMakespan());
+            }
+        }
+    }
+
+    // From CLOUDSIM_ROOT_KEY, else from root.key; never built in, or anyone with the source could open the keyring
+    private static SecretKey rootKey() throws IOException {
+        String hex = System.getenv(ROOT_KEY_ENV);
+        String source = ROOT_KEY_ENV;
+        if (hex == null) {
+            Path file = Paths.get(ROOT_KEY_FILE);
+            if (!Files.exists(file)) {
+                throw new IOException("No root key: set " + ROOT_KEY_ENV + " or run \"Main rootkey\" to create "
+                        + file);
+            }
+            hex = new String(Files.readAllBytes(file), StandardCharsets.US_ASCII);
+            source = file.toString();
+        }
+        hex = hex.trim();
+        if (hex.length() != 32 && hex.length() != 48 && hex.length() != 64) {
+            throw new IOException(source + ": expected an AES key of 32, 48 or 64 hex digits, not "
+                    + hex.length() + " characters");
+        }
+        byte[] key = new byte[hex.length() / 2];
+        for (int i = 0; i < key.length; i++) {
+            int high = Character.digit(hex.charAt(2 * i), 16);
+            int low = Character.digit(hex.charAt(2 * i + 1), 16);
+            if (high < 0 || low < 0) {
+                throw new IOException(source + ": not a hex digit at " + (2 * i + (high < 0 ? 1 : 2)));
+            }
+            key[i] = (byte) (high << 4 | low);
+        }
+        return new SecretKeySpec(key, "AES");
+    }
+
+    // A random 128-bit root key in root.key, readable by its owner only where the file system has permissions
+    private static void createRootKey() throws IOException {
+        Path file = Paths.get(ROOT_KEY_FILE);
+        if (Files.exists(file)) {
+            System.out.println(file + " already exists; delete it first, and " + KEYRING
+                    + " with it since that cannot be opened without it");
+            return;
+        }
+        byte[] key = new byte[16];
+        new SecureRandom().nextBytes(key);
+        StringBuilder hex = new StringBuilder();
+        for (byte b : key) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        Files.write(file, (hex + "\n").getBytes(StandardCharsets.US_ASCII), StandardOpenOption.CREATE_NEW);
+        try {
+            Files.setPosixFilePermissions(file, PosixFilePermissions.fromString("rw-------"));
+        } catch (UnsupportedOperationException e) {
+            // e.g. Windows: protect the file by its ACL instead
+        }
+        System.out.println("Created root key " + file + "; keep it secret, " + KEYRING
+                + " cannot be opened without it");
+    }
+
+    private static synchronized KeyManagementService keys() throws IOException {
+        if (kms == null) {
+            kms = new KeyManagementService(Paths.get(KEYRING), rootKey());
+        }
+        return kms;
+    }
+
+    private static synchronized ChunkCache cache() {
+        if (cache == null) {
+            cache = new ChunkCache(64L << 20, true);
+        }
+        return cache;
+    }
+
+    // Chunk ids are derived from the store key, so it stays on master v1: a new one would mean re-chunking
+    private static SecretKey storeKey(String store) throws IOException {
+        return keys().dataKey("v1/store/" + store);
+    }
+
+    private static ChunkStore openCloud() throws IOException {
+        ChunkStore store = new ChunkStore(Paths.get(CLOUD_STORE), storeKey(CLOUD_STORE));
+        store.setCache(cache());
+        return store;
     }
 
     // Simulate storing encrypted file in cloud
-    private static void saveToCloud(String data) throws IOException {
-        FileWriter writer = new FileWriter("cloud_storage.txt");
-        writer.write(data);
-        writer.close();
+    private static ChunkStore.FileInfo saveToCloud(String name, byte[] data) throws IOException {
+        try (ChunkStore store = openCloud()) {
+            return store.put(name, new ByteArrayInputStream(data));
+        }
     }
 
     // Simulate retrieving encrypted file from cloud
-    private static String readFromCloud() throws IOException {
-        BufferedReader reader = new BufferedReader(new FileReader("cloud_storage.txt"));
-        String data = reader.readLine();
-        reader.close();
-        return data;
+    private static byte[] readFromCloud(String name) throws IOException {
+        try (ChunkStore store = openCloud()) {
+            return store.get(name);
+        }
+    }
+
+    // Many users upload edited copies of one data set; shows the storage saved and range reads
+    private static void dedupUpload(int users, int sizeMb) throws Exception {
+        Path dir = Files.createTempDirectory("chunk-store");
+        try {
+            Random random = new Random(7);
+            byte[] base = new byte[sizeMb << 20];
+            random.nextBytes(base);
+            byte[][] uploads = new byte[users][];
+
+            long start = System.nanoTime();
+            try (ChunkStore store = new ChunkStore(dir, storeKey("dedup"))) {
+                for (int user = 0; user < users; user++) {
+                    uploads[user] = edit(base, random);
+                    ChunkStore.FileInfo info = store.put("user" + user + "/data.bin",
+                            new ByteArrayInputStream(uploads[user]));
+                    if (user < 3 || user == users - 1) {
+                        System.out.println("  " + info);
+                    }
+                }
+                double seconds = (System.nanoTime() - start) / 1e9;
+                System.out.printf("%d uploads, %.1f MB in %.2f s: %.1f MB/s%n", users,
+                        store.getLogicalBytes() / 1e6, seconds, store.getLogicalBytes() / 1e6 / seconds);
+                System.out.printf("Stored %.1f MB for %.1f MB of files in %d chunks (%.1fx less)%n",
+                        store.getStoredBytes() / 1e6, store.getLogicalBytes() / 1e6, store.getChunkCount(),
+                        (double) store.getLogicalBytes() / store.getStoredBytes());
+            }
+
+            // reopen: index and names come back from disk
+            try (ChunkStore store = new ChunkStore(dir, storeKey("dedup"))) {
+                int reads = 10000;
+                ByteArrayOutputStream out = new ByteArrayOutputStream(4096);
+                start = System.nanoTime();
+                for (int i = 0; i < reads; i++) {
+                    int user = random.nextInt(users);
+                    int offset = random.nextInt(uploads[user].length - 4096);
+                    out.reset();
+                    store.get("user" + user + "/data.bin", offset, 4096, out);
+                    if (!Arrays.equals(out.toByteArray(), Arrays.copyOfRange(uploads[user], offset, offset + 4096))) {
+                        throw new IOException("Range read of user" + user + " at " + offset + " is wrong");
+                    }
+                }
+                System.out.printf("%d random 4 KB range reads after reopening: %.1f us each, all correct%n",
+                        reads, (System.nanoTime() - start) / 1e3 / reads);
+
+                // from the middle to the end, however long the file is
+                int tail = uploads[0].length / 2 + random.nextInt(uploads[0].length / 2);
+                out.reset();
+                long read = store.get("user0/data.bin", tail, Long.MAX_VALUE, out);
+                if (read != uploads[0].length - tail
+                        || !Arrays.equals(out.toByteArray(), Arrays.copyOfRange(uploads[0], tail, uploads[0].length))) {
+                    throw new IOException("Read of user0 from " + tail + " to the end returned " + read + " bytes");
+                }
+                System.out.printf("Read from %d to the end: %d bytes, correct%n", tail, read);
+
+                // the same file downloaded again and again, without and with a cache
+                for (ChunkCache cache : new ChunkCache[] {null, new ChunkCache(64L << 20, true)}) {
+                    store.setCache(cache);
+                    long bytes = 0;
+                    start = System.nanoTime();
+                    for (int i = 0; i < 20; i++) {
+                        bytes += store.get("user" + (i % 4) + "/data.bin", 0, Long.MAX_VALUE, new OutputStream() {
+                            @Override
+                            public void write(int b) {
+                            }
+
+                            @Override
+                            public void write(byte[] b, int off, int len) {
+                            }
+                        });
+                    }
+                    double seconds = (System.nanoTime() - start) / 1e9;
+                    System.out.printf("20 downloads of 4 hot files %s: %.1f MB/s%n",
+                            cache == null ? "uncached" : "cached", bytes / 1e6 / seconds);
+                    if (cache != null) {
+                        System.out.println("  cache: " + cache);
+                    }
+                }
+            }
+        } finally {
+            deleteTree(dir);
+        }
+    }
+
+    // A copy of data with a few bytes overwritten, inserted and deleted at random places
+    private static byte[] edit(byte[] data, Random random) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length + 4096);
+        int position = 0;
+        for (int edit = 0; edit < 4; edit++) {
+            int at = position + random.nextInt((data.length - position) / (4 - edit));
+            out.write(data, position, at - position);
+            byte[] inserted = new byte[1 + random.nextInt(100)];
+            random.nextBytes(inserted);
+            out.write(inserted, 0, inserted.length);
+            position = Math.min(data.length, at + random.nextInt(100));
+        }
+        out.write(data, position, data.length - position);
+        return out.toByteArray();
+    }
+
+    // Upload a file of any size, then check a full download and one chunk read on its own; returns its size
+    private static long shareFile(Path source) throws Exception {
+        Path cloud = Paths.get(CLOUD_FILE);
+        KeyManagementService keys = keys();
+        String keyId = keys.keyId(USER, source.getFileName().toString());
+        long start = System.nanoTime();
+        long length;
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ)) {
+            length = ChunkedGcmFile.encrypt(in, cloud, keys.dataKey(keyId), keyId, ChunkedGcmFile.DEFAULT_CHUNK_SIZE);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("Encrypted %s (%d bytes) under key %s in %.2f s, %.1f MB/s%n",
+                source, length, keyId, seconds, length / 1e6 / seconds);
+
+        try (ChunkedGcmFile file = new ChunkedGcmFile(cloud, keys::dataKey)) {
+            start = System.nanoTime();
+            byte[] downloaded = decryptedSha256(file);
+            seconds = (System.nanoTime() - start) / 1e9;
+            boolean intact = MessageDigest.isEqual(downloaded, sha256(source));
+            System.out.printf("Decrypted %d chunks in %.2f s, matches original: %b%n",
+                    file.getChunkCount(), seconds, intact);
+
+            long middle = file.getChunkCount() / 2;
+            ByteBuffer chunk = ByteBuffer.allocate(file.getChunkSize());
+            int n = file.readChunk(middle, chunk);
+            System.out.println("Random access: chunk " + middle + " decrypted on its own (" + n + " bytes)");
+        }
+        return length;
+    }
+
+    // Upload many files through the parallel pipeline, then sequentially with a Cipher per file
+    private static void bulkUpload(int files, int sizeKb) throws Exception {
+        Path dir = Files.createTempDirectory("bulk-upload");
+        Path plain = Files.createDirectories(dir.resolve("plain"));
+        Path parallel = Files.createDirectories(dir.resolve("parallel"));
+        Path sequential = Files.createDirectories(dir.resolve("sequential"));
+        try {
+            System.out.printf("Generating %d files of %d KB in %s%n", files, sizeKb, dir);
+            List<Path> sources = new ArrayList<>(files);
+            Random random = new Random(42);
+            byte[] data = new byte[sizeKb * 1024];
+            for (int i = 0; i < files; i++) {
+                random.nextBytes(data);
+                sources.add(Files.write(plain.resolve("file" + i + ".bin"), data));
+            }
+
+            int workers = Runtime.getRuntime().availableProcessors();
+            KeyManagementService keys = keys();
+            String keyId = keys.keyId(USER, "bulk");
+            SecretKey key = keys.dataKey(keyId);
+            EncryptionPipeline.Report report;
+            try (EncryptionPipeline pipeline = new EncryptionPipeline(key, keyId,
+                    ChunkedGcmFile.DEFAULT_CHUNK_SIZE, workers)) {
+                report = pipeline.encryptAll(sources, parallel);
+            }
+            System.out.println("Pipeline: " + report);
+
+            long start = System.nanoTime();
+            for (Path source : sources) {
+                try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ)) {
+                    ChunkedGcmFile.encrypt(in, sequential.resolve(source.getFileName() + ".enc"), key, keyId,
+                            ChunkedGcmFile.DEFAULT_CHUNK_SIZE);
+                }
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            double throughput = report.getBytes() / 1e6 / seconds;
+            System.out.printf("Sequential: %.2f s, %.1f MB/s (pipeline %.1fx on %d cores)%n", seconds, throughput,
+                    throughput > 0 ? report.getThroughput() / throughput : 1.0, workers);
+
+            int checked = 0;
+            for (int i = 0; i < sources.size(); i += Math.max(1, sources.size() / 20)) {
+                Path source = sources.get(i);
+                try (ChunkedGcmFile file = new ChunkedGcmFile(parallel.resolve(source.getFileName() + ".enc"),
+                        keys::dataKey)) {
+                    if (!MessageDigest.isEqual(decryptedSha256(file), sha256(source))) {
+                        throw new IOException("Pipeline output for " + source + " does not decrypt to it");
+                    }
+                }
+                checked++;
+            }
+            System.out.println("Verified " + checked + " pipeline uploads by decrypting them");
+        } finally {
+            deleteTree(dir);
+        }
+    }
+
+    // Key lookups without and with the cache, then a master key rotation with lazy re-encryption
+    private static void keyManagement(int files) throws Exception {
+        Path dir = Files.createTempDirectory("key-management");
+        // the keyring is thrown away, and so is the key that wraps it
+        byte[] rootKey = new byte[16];
+        new SecureRandom().nextBytes(rootKey);
+        try {
+            KeyManagementService keys = new KeyManagementService(dir.resolve(KEYRING),
+                    new SecretKeySpec(rootKey, "AES"));
+            String[] users = {"alice", "bob", "carol", "dave"};
+            String[] keyIds = new String[files];
+            for (int i = 0; i < files; i++) {
+                keyIds[i] = keys.keyId(users[i % users.length], "file" + i + ".bin");
+            }
+            // file keys and user keys; a cyclic scan over more than fits would miss every time
+            keys.setMaxCachedKeys(Math.max(keys.getMaxCachedKeys(), files + users.length));
+            for (long ttl : new long[] {0, keys.getTtlMillis()}) {
+                keys.setTtlMillis(ttl);
+                for (String keyId : keyIds) {
+                    keys.dataKey(keyId);
+                }
+                long start = System.nanoTime();
+                for (int round = 0; round < 10; round++) {
+                    for (String keyId : keyIds) {
+                        keys.dataKey(keyId);
+                    }
+                }
+                System.out.printf("%d key lookups %s: %.2f us each%n", 10L * files,
+                        ttl == 0 ? "uncached" : "cached", (System.nanoTime() - start) / 1e3 / (10.0 * files));
+            }
+            System.out.printf("Cache: %d hits, %d misses%n", keys.getCacheHits(), keys.getCacheMisses());
+
+            Random random = new Random(3);
+            List<Path> shared = new ArrayList<>();
+            for (String user : users) {
+                Path file = dir.resolve(user + ".enc");
+                byte[] data = new byte[200 << 10];
+                random.nextBytes(data);
+                String keyId = keys.keyId(user, "report.pdf");
+                ChunkedGcmFile.encrypt(Channels.newChannel(new ByteArrayInputStream(data)), file,
+                        keys.dataKey(keyId), keyId, ChunkedGcmFile.DEFAULT_CHUNK_SIZE);
+                shared.add(file);
+            }
+            System.out.println("Rotated to master key v" + keys.rotate());
+
+            // a reader touches half of the files; only those move to the new master key
+            for (int i = 0; i < shared.size(); i += 2) {
+                Path file = shared.get(i);
+                byte[] before = decryptedSha256(file, keys);
+                boolean reencrypted = keys.reencryptIfStale(file);
+                if (!MessageDigest.isEqual(before, decryptedSha256(file, keys))) {
+                    throw new IOException(file + " changed when it was re-encrypted");
+                }
+                System.out.println("  read " + file.getFileName() + (reencrypted ? ", re-encrypted" : ""));
+            }
+            for (Path file : shared) {
+                try (ChunkedGcmFile encrypted = new ChunkedGcmFile(file, keys::dataKey)) {
+                    System.out.printf("  %-10s key %s%s%n", file.getFileName(), encrypted.getKeyId(),
+                            keys.isCurrent(encrypted.getKeyId()) ? "" : " (stale)");
+                }
+            }
+
+            // the keyring comes back from disk with both master keys
+            KeyManagementService reopened = new KeyManagementService(dir.resolve(KEYRING),
+                    new SecretKeySpec(rootKey, "AES"));
+            for (Path file : shared) {
+                decryptedSha256(file, reopened);
+            }
+            System.out.println("Reopened keyring at v" + reopened.getCurrentVersion() + ", all files readable");
+        } finally {
+            deleteTree(dir);
+        }
+    }
+
+    private static byte[] decryptedSha256(Path file, KeyManagementService keys) throws Exception {
+        try (ChunkedGcmFile encrypted = new ChunkedGcmFile(file, keys::dataKey)) {
+            return decryptedSha256(encrypted);
+        }
+    }
+
+    private static void deleteTree(Path dir) throws IOException {
+        try (java.util.stream.Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    private static byte[] decryptedSha256(ChunkedGcmFile file) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        file.decryptTo(Channels.newChannel(new OutputStream() {
+            @Override
+            public void write(int b) {
+                digest.update((byte) b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                digest.update(b, off, len);
+            }
+        }));
+        return digest.digest();
+    }
+
+    private static byte[] sha256(Path file) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file.toFile()), 1 << 16)) {
+            byte[] buffer = new byte[1 << 16];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, n);
+            }
+        }
+        return digest.digest();
     }
 }
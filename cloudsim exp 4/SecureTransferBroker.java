@@ -0,0 +1,191 @@
+import org.cloudbus.cloudsim.Cloudlet;
+import org.cloudbus.cloudsim.DatacenterBroker;
+import org.cloudbus.cloudsim.Log;
+import org.cloudbus.cloudsim.Vm;
+import org.cloudbus.cloudsim.core.CloudSim;
+import org.cloudbus.cloudsim.core.CloudSimTags;
+import org.cloudbus.cloudsim.core.SimEvent;
+import org.cloudbus.cloudsim.lists.VmList;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Broker that runs CryptoCloudlets with their data transfers
+ *
+ * Stock CloudSim ignores a cloudlet's file and output sizes. Here each
+ * cloudlet first receives its input through its VM's network link, then
+ * runs, then sends its output through the same link; only then is it
+ * complete and its follow-up (the download after an upload) started. A
+ * VM's link carries one transfer at a time at the VM's bandwidth, taken as
+ * Mbit/s, so transfers queue behind each other while the VM computes.
+ *
+ * Cipher cloudlets last milliseconds, far below CloudSim's default minimum
+ * time between events (0.1 s): the datacenter would skip the update that
+ * finishes them and the simulation would stall. Initialise CloudSim with
+ * MIN_TIME_BETWEEN_EVENTS, which is below the shortest possible cloudlet
+ * (1 MI). The datacenter still re-checks running cloudlets only every
+ * 10 ms, so files of a few MB and more are modelled faithfully.
+ *
+ * A transfer that has no VM to run on, because none was created or the
+ * one it is bound to was not, fails at once along with its follow-up; see
+ * getFailedList().
+ */
+public class SecureTransferBroker extends DatacenterBroker {
+
+    /**
+     * Period to pass to CloudSim.init for simulations with this broker.
+     */
+    public static final double MIN_TIME_BETWEEN_EVENTS = 1e-4;
+
+    private static final int INPUT_TRANSFERRED = 940001;
+    private static final int OUTPUT_TRANSFERRED = 940002;
+
+    private final Map<Integer, Double> linkFreeAt = new HashMap<>();
+    private final List<CryptoCloudlet> failed = new ArrayList<>();
+    private int vmIndex;
+    private int outstanding;
+
+    // Results, index = Operation.ordinal()
+    private final long[] completed = new long[2];
+    private final double[] responseTimeSum = new double[2];
+    private double cpuSeconds;
+    private double transferSeconds;
+    private double makespan;
+
+    public SecureTransferBroker(String name) throws Exception {
+        super(name);
+    }
+
+    @Override
+    protected void submitCloudlets() {
+        for (Cloudlet cloudlet : getCloudletList()) {
+            if (!(cloudlet instanceof CryptoCloudlet)) {
+                throw new IllegalArgumentException("Cloudlet " + cloudlet.getCloudletId()
+                        + " is not a CryptoCloudlet");
+            }
+            request((CryptoCloudlet) cloudlet);
+        }
+        getCloudletList().clear();
+        finishIfDone();
+    }
+
+    @Override
+    protected void processOtherEvent(SimEvent ev) {
+        if (ev == null || (ev.getTag() != INPUT_TRANSFERRED && ev.getTag() != OUTPUT_TRANSFERRED)) {
+            super.processOtherEvent(ev);
+            return;
+        }
+        CryptoCloudlet cloudlet = (CryptoCloudlet) ev.getData();
+        if (ev.getTag() == INPUT_TRANSFERRED) {
+            sendNow(getVmsToDatacentersMap().get(cloudlet.getVmId()), CloudSimTags.CLOUDLET_SUBMIT, cloudlet);
+            cloudletsSubmitted++;
+            return;
+        }
+
+        cloudlet.setCompletionTime(CloudSim.clock());
+        getCloudletReceivedList().add(cloudlet);
+        int op = cloudlet.getOperation().ordinal();
+        completed[op]++;
+        responseTimeSum[op] += cloudlet.getCompletionTime() - cloudlet.getRequestTime();
+        makespan = Math.max(makespan, cloudlet.getCompletionTime());
+        outstanding--;
+
+        if (cloudlet.getFollowUp() != null) {
+            cloudlet.getFollowUp().setVmId(cloudlet.getVmId());
+            request(cloudlet.getFollowUp());
+        }
+        finishIfDone();
+    }
+
+    @Override
+    protected void processCloudletReturn(SimEvent ev) {
+        CryptoCloudlet cloudlet = (CryptoCloudlet) ev.getData();
+        cloudletsSubmitted--;
+        Vm vm = VmList.getById(getVmsCreatedList(), cloudlet.getVmId());
+        cpuSeconds += cloudlet.getCloudletLength() / vm.getMips();
+        transfer(cloudlet, cloudlet.getCloudletOutputSize(), OUTPUT_TRANSFERRED);
+    }
+
+    public long getCompletedCount(CryptoCloudlet.Operation operation) {
+        return completed[operation.ordinal()];
+    }
+
+    /**
+     * Mean time from request to the end of the output transfer.
+     */
+    public double getMeanResponseTime(CryptoCloudlet.Operation operation) {
+        long count = completed[operation.ordinal()];
+        return count == 0 ? 0.0 : responseTimeSum[operation.ordinal()] / count;
+    }
+
+    /**
+     * VM time the cipher work needs, summed over all cloudlets.
+     */
+    public double getCpuSeconds() {
+        return cpuSeconds;
+    }
+
+    /**
+     * Time the VM links spent moving data, summed over all VMs.
+     */
+    public double getTransferSeconds() {
+        return transferSeconds;
+    }
+
+    public double getMakespan() {
+        return makespan;
+    }
+
+    /**
+     * Transfers that did not run because they had no VM, in the order they failed.
+     */
+    public List<CryptoCloudlet> getFailedList() {
+        return failed;
+    }
+
+    // Binds the cloudlet to a VM (round-robin unless already bound) and starts its input transfer
+    private void request(CryptoCloudlet cloudlet) {
+        List<Vm> vms = getVmsCreatedList();
+        if (cloudlet.getVmId() < 0 && !vms.isEmpty()) {
+            vmIndex %= vms.size();
+            cloudlet.setVmId(vms.get(vmIndex).getId());
+            vmIndex = (vmIndex + 1) % vms.size();
+        }
+        if (VmList.getById(vms, cloudlet.getVmId()) == null) {
+            Log.printLine(CloudSim.clock() + ": " + getName() + ": " + cloudlet.getOperation() + " #"
+                    + cloudlet.getCloudletId() + " failed: "
+                    + (cloudlet.getVmId() < 0 ? "no VM was created" : "VM #" + cloudlet.getVmId()
+                    + " was not created"));
+            failed.add(cloudlet);
+            for (CryptoCloudlet next = cloudlet.getFollowUp(); next != null; next = next.getFollowUp()) {
+                failed.add(next);
+            }
+            return;
+        }
+        cloudlet.setUserId(getId());
+        cloudlet.setRequestTime(CloudSim.clock());
+        outstanding++;
+        transfer(cloudlet, cloudlet.getCloudletFileSize(), INPUT_TRANSFERRED);
+    }
+
+    private void finishIfDone() {
+        if (outstanding == 0) {
+            Log.printLine(CloudSim.clock() + ": " + getName() + ": All transfers complete. Finishing...");
+            clearDatacenters();
+            finishExecution();
+        }
+    }
+
+    // Queues bytes on the cloudlet's VM link and signals tag when they are through
+    private void transfer(CryptoCloudlet cloudlet, long bytes, int tag) {
+        Vm vm = VmList.getById(getVmsCreatedList(), cloudlet.getVmId());
+        double seconds = bytes * 8.0 / (vm.getBw() * 1e6);
+        double start = Math.max(CloudSim.clock(), linkFreeAt.getOrDefault(vm.getId(), 0.0));
+        linkFreeAt.put(vm.getId(), start + seconds);
+        transferSeconds += seconds;
+        schedule(getId(), start + seconds - CloudSim.clock(), tag, cloudlet);
+    }
+}
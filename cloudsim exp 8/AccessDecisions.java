@@ -0,0 +1,145 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decision layer in front of an access policy: decision cache and audit log
+ *
+ * check() takes the current policy snapshot from its Decider, answers from
+ * the DecisionCache if the same request was decided under the same policy
+ * version, asks the Decider otherwise, and queues the decision for the
+ * AuditLog if one is set. The version of the snapshot goes into the cache
+ * key and the audit record, so a policy change invalidates the cache and
+ * the audit log shows which version made each decision.
+ *
+ * A decision that rests on more than the request, such as the time of day
+ * or attributes fetched from a store, comes with a deadline in its Verdict
+ * and is only cached until then.
+ *
+ * RBAC and ABAC both sit behind one of these; with cacheSize 0 nothing is
+ * cached, for policies whose own check is cheaper than a cache lookup.
+ * Thread-safe as far as the Decider is.
+ *
+ * @param <P> the policy snapshot type
+ */
+public class AccessDecisions<P> {
+
+    /**
+     * Adapts a policy to the decision layer.
+     */
+    public interface Decider<P> {
+
+        /**
+         * The snapshot to decide the next request with.
+         */
+        P current();
+
+        long versionOf(P policy);
+
+        Verdict decide(P policy, String subject, String resource, String action, String[] attributes);
+    }
+
+    /**
+     * A decision and how long it holds for the same request and policy version.
+     */
+    public static final class Verdict {
+
+        public static final Verdict PERMIT = new Verdict(true, DecisionCache.NEVER);
+        public static final Verdict DENY = new Verdict(false, DecisionCache.NEVER);
+
+        private final boolean permitted;
+        private final long expiresAt;
+
+        private Verdict(boolean permitted, long expiresAt) {
+            this.permitted = permitted;
+            this.expiresAt = expiresAt;
+        }
+
+        /**
+         * A decision that holds as long as the policy version.
+         */
+        public static Verdict of(boolean permitted) {
+            return permitted ? PERMIT : DENY;
+        }
+
+        /**
+         * A decision that holds until the System.nanoTime() deadline expiresAt.
+         */
+        public static Verdict until(boolean permitted, long expiresAt) {
+            return expiresAt == DecisionCache.NEVER ? of(permitted) : new Verdict(permitted, expiresAt);
+        }
+
+        public boolean isPermitted() {
+            return permitted;
+        }
+
+        /**
+         * The System.nanoTime() deadline, DecisionCache.NEVER for none.
+         */
+        public long getExpiresAt() {
+            return expiresAt;
+        }
+    }
+
+    private final String source;
+    private final Decider<P> decider;
+    private final DecisionCache cache;
+    private volatile AuditLog auditLog;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * @param source    name of the policy in audit records, e.g. "RBAC"
+     * @param cacheSize decisions to cache, 0 for none
+     */
+    public AccessDecisions(String source, Decider<P> decider, int cacheSize) {
+        this.source = source;
+        this.decider = decider;
+        this.cache = cacheSize > 0 ? new DecisionCache(cacheSize) : null;
+    }
+
+    /**
+     * Decides a request. Any part may be null; attributes is kept for the
+     * cache and the audit log and must not change afterwards.
+     */
+    public boolean check(String subject, String resource, String action, String[] attributes) {
+        P policy = decider.current();
+        long version = decider.versionOf(policy);
+        Boolean cached = cache == null ? null : cache.get(version, subject, resource, action, attributes);
+        boolean permitted;
+        if (cached != null) {
+            permitted = cached;
+            hits.increment();
+        } else {
+            Verdict verdict = decider.decide(policy, subject, resource, action, attributes);
+            permitted = verdict.permitted;
+            if (cache != null) {
+                cache.put(version, subject, resource, action, attributes, permitted, verdict.expiresAt);
+                misses.increment();
+            }
+        }
+        AuditLog log = auditLog;
+        if (log != null) {
+            log.record(source, version, subject, resource, action, attributes, permitted, cached != null);
+        }
+        return permitted;
+    }
+
+    public AuditLog getAuditLog() {
+        return auditLog;
+    }
+
+    /**
+     * Where decisions are logged from now on, or null to stop logging.
+     */
+    public void setAuditLog(AuditLog auditLog) {
+        this.auditLog = auditLog;
+    }
+
+    public long getCacheHits() {
+        return hits.sum();
+    }
+
+    public long getCacheMisses() {
+        return misses.sum();
+    }
+}
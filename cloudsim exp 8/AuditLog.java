@@ -0,0 +1,569 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only binary log of access decisions, written in the background
+ *
+ * record() only copies the decision's fields into an in-memory batch:
+ * a few array stores under a short lock, no I/O and no allocation. A
+ * writer thread swaps in an empty batch every FLUSH_MILLIS (or as soon as
+ * the batch is full), encodes it and appends it to the file, so the cost
+ * of auditing stays off the access path. Nothing is dropped: when the
+ * writer falls behind by a whole batch, record() waits for it, which
+ * getStalls() counts.
+ *
+ * File format: the magic "CSAUDIT1", then one frame per batch:
+ *
+ *   int length, int CRC-32 of the payload, payload:
+ *     long time of the first record (epoch millis)
+ *     varint n, n strings (varint length, UTF-8)
+ *     varint m, m records:
+ *       varint zigzag time delta to the previous record, varint policy version,
+ *       varint source, subject, resource, action (string index + 1, 0 for none),
+ *       varint attribute count, that many string indexes, byte flags (1 permit, 2 cached)
+ *
+ * Strings are stored once per frame, so a record usually takes 8 to 12
+ * bytes, and every frame can be read on its own. A frame cut short by a
+ * crash fails its length or CRC check; the reader stops there, and
+ * opening the log again truncates it.
+ */
+public class AuditLog implements Closeable {
+
+    public static final long FLUSH_MILLIS = 20;
+
+    private static final byte[] MAGIC = "CSAUDIT1".getBytes(StandardCharsets.US_ASCII);
+    private static final int BATCH_RECORDS = 1 << 16;
+    private static final int PERMIT = 1;
+    private static final int CACHED = 2;
+
+    /**
+     * One decision read back from the log.
+     */
+    public static final class Record {
+        public final long time;
+        public final String source;
+        public final long policyVersion;
+        public final String subject;
+        public final String resource;
+        public final String action;
+        public final List<String> attributes;
+        public final boolean permitted;
+        public final boolean cached;
+
+        Record(long time, String source, long policyVersion, String subject, String resource, String action,
+               List<String> attributes, boolean permitted, boolean cached) {
+            this.time = time;
+            this.source = source;
+            this.policyVersion = policyVersion;
+            this.subject = subject;
+            this.resource = resource;
+            this.action = action;
+            this.attributes = attributes;
+            this.permitted = permitted;
+            this.cached = cached;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder line = new StringBuilder();
+            line.append(Instant.ofEpochMilli(time)).append(' ').append(source).append(" v").append(policyVersion);
+            if (subject != null) {
+                line.append(" subject=").append(subject);
+            }
+            if (resource != null) {
+                line.append(" resource=").append(resource);
+            }
+            if (action != null) {
+                line.append(" action=").append(action);
+            }
+            if (!attributes.isEmpty()) {
+                line.append(" attributes=").append(attributes);
+            }
+            line.append(permitted ? " PERMIT" : " DENY");
+            if (cached) {
+                line.append(" (cached)");
+            }
+            return line.toString();
+        }
+    }
+
+    // Decisions waiting to be written, in parallel arrays
+    private static final class Batch {
+        final long[] times = new long[BATCH_RECORDS];
+        final long[] versions = new long[BATCH_RECORDS];
+        final String[] sources = new String[BATCH_RECORDS];
+        final String[] subjects = new String[BATCH_RECORDS];
+        final String[] resources = new String[BATCH_RECORDS];
+        final String[] actions = new String[BATCH_RECORDS];
+        final String[][] attributes = new String[BATCH_RECORDS][];
+        final byte[] flags = new byte[BATCH_RECORDS];
+        int size;
+
+        void clear() {
+            Arrays.fill(sources, 0, size, null);
+            Arrays.fill(subjects, 0, size, null);
+            Arrays.fill(resources, 0, size, null);
+            Arrays.fill(actions, 0, size, null);
+            Arrays.fill(attributes, 0, size, null);
+            size = 0;
+        }
+    }
+
+    private final Path file;
+    private final FileChannel channel;
+    private final Thread writer;
+
+    // recorders wait on room for a free batch or a flush, the writer on work
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition room = lock.newCondition();
+    private final Condition work = lock.newCondition();
+
+    // guarded by lock
+    private Batch filling = new Batch();
+    private Batch spare = new Batch();
+    private boolean sync;
+    private boolean flushRequested;
+    private boolean closed;
+    private long recorded;
+    private long written;
+    private long stalls;
+    private IOException failure;
+
+    // used by the writer thread only
+    private ByteBuffer head = ByteBuffer.allocate(1 << 12);
+    private ByteBuffer body = ByteBuffer.allocate(1 << 20);
+    private final Map<String, Integer> strings = new LinkedHashMap<>();
+
+    /**
+     * Opens file for appending, creating it if needed, and starts the writer thread.
+     */
+    public AuditLog(Path file) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        if (channel.size() == 0) {
+            channel.write(ByteBuffer.wrap(MAGIC), 0);
+        } else {
+            long valid = read(channel, file, null);
+            if (valid < channel.size()) {
+                // a frame torn by a crash
+                channel.truncate(valid);
+            }
+        }
+        channel.position(channel.size());
+        writer = new Thread(this::writeLoop, "audit-log " + file.getFileName());
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queues one decision for the log. attributes is kept and must not
+     * change afterwards.
+     *
+     * @throws IllegalStateException if the log is closed or writing it failed
+     */
+    public void record(String source, long policyVersion, String subject, String resource, String action,
+                       String[] attributes, boolean permitted, boolean cached) {
+        long now = System.currentTimeMillis();
+        lock.lock();
+        try {
+            while (filling.size == BATCH_RECORDS && !closed && failure == null) {
+                stalls++;
+                work.signal();
+                room.awaitUninterruptibly();
+            }
+            if (closed || failure != null) {
+                throw new IllegalStateException("Audit log " + file + " is not writable", failure);
+            }
+            Batch batch = filling;
+            int i = batch.size++;
+            batch.times[i] = now;
+            batch.versions[i] = policyVersion;
+            batch.sources[i] = source;
+            batch.subjects[i] = subject;
+            batch.resources[i] = resource;
+            batch.actions[i] = action;
+            batch.attributes[i] = attributes;
+            batch.flags[i] = (byte) ((permitted ? PERMIT : 0) | (cached ? CACHED : 0));
+            recorded++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until everything recorded so far is in the file.
+     */
+    public void flush() throws IOException {
+        lock.lock();
+        try {
+            long target = recorded;
+            while (written < target && failure == null) {
+                flushRequested = true;
+                work.signal();
+                room.awaitUninterruptibly();
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Whether each batch is forced to the disk before the next one; off by
+     * default, so a machine crash (not a process crash) can lose the last
+     * batches.
+     */
+    public void setSync(boolean sync) {
+        lock.lock();
+        try {
+            this.sync = sync;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getRecordedCount() {
+        lock.lock();
+        try {
+            return recorded;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getWrittenCount() {
+        lock.lock();
+        try {
+            return written;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Times record() had to wait because the writer was a full batch behind.
+     */
+    public long getStalls() {
+        lock.lock();
+        try {
+            return stalls;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes what is left and closes the file.
+     */
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            closed = true;
+            work.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            channel.close();
+        }
+        lock.lock();
+        try {
+            if (failure != null) {
+                throw failure;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void writeLoop() {
+        long nextWrite = 0;
+        while (true) {
+            Batch batch;
+            boolean force;
+            lock.lock();
+            try {
+                // a partly filled batch collects decisions until FLUSH_MILLIS after the last write
+                while (!closed && !flushRequested && filling.size < BATCH_RECORDS) {
+                    long wait = filling.size == 0 ? FLUSH_MILLIS : nextWrite - System.currentTimeMillis();
+                    if (wait <= 0) {
+                        break;
+                    }
+                    work.awaitNanos(wait * 1000000);
+                }
+                if (filling.size == 0 && closed) {
+                    return;
+                }
+                // take the batch as it is; recorders carry on with the spare
+                batch = filling;
+                filling = spare;
+                spare = null;
+                force = sync;
+                flushRequested = false;
+                room.signalAll();
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+            int count = batch.size;
+            try {
+                if (count > 0) {
+                    write(batch, force);
+                }
+            } catch (IOException e) {
+                lock.lock();
+                try {
+                    failure = e;
+                    room.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+                return;
+            }
+            nextWrite = System.currentTimeMillis() + FLUSH_MILLIS;
+            batch.clear();
+            lock.lock();
+            try {
+                spare = batch;
+                written += count;
+                room.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    // One pass over the batch: records go into body, their strings into the table in head
+    private void write(Batch batch, boolean force) throws IOException {
+        strings.clear();
+        head.clear();
+        head.position(8);
+        head.putLong(batch.times[0]);
+        body.clear();
+        body = putVarint(body, batch.size);
+        long previous = batch.times[0];
+        for (int i = 0; i < batch.size; i++) {
+            long delta = batch.times[i] - previous;
+            previous = batch.times[i];
+            body = putVarint(body, (delta << 1) ^ (delta >> 63));
+            body = putVarint(body, batch.versions[i]);
+            body = putVarint(body, index(batch.sources[i]));
+            body = putVarint(body, index(batch.subjects[i]));
+            body = putVarint(body, index(batch.resources[i]));
+            body = putVarint(body, index(batch.actions[i]));
+            String[] attributes = batch.attributes[i];
+            body = putVarint(body, attributes == null ? 0 : attributes.length);
+            if (attributes != null) {
+                for (String attribute : attributes) {
+                    body = putVarint(body, index(attribute));
+                }
+            }
+            body = ensure(body, 1);
+            body.put(batch.flags[i]);
+        }
+        ByteBuffer table = ByteBuffer.allocate(16 + 16 * strings.size());
+        table = putVarint(table, strings.size());
+        for (String string : strings.keySet()) {
+            byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            table = putVarint(table, bytes.length);
+            table = ensure(table, bytes.length);
+            table.put(bytes);
+        }
+        table.flip();
+        head = ensure(head, table.remaining());
+        head.put(table);
+
+        CRC32 crc = new CRC32();
+        crc.update(head.array(), 8, head.position() - 8);
+        crc.update(body.array(), 0, body.position());
+        head.putInt(0, head.position() - 8 + body.position());
+        head.putInt(4, (int) crc.getValue());
+        head.flip();
+        body.flip();
+        ByteBuffer[] frame = {head, body};
+        while (body.hasRemaining()) {
+            channel.write(frame);
+        }
+        if (force) {
+            channel.force(false);
+        }
+    }
+
+    // Index + 1 of string in this frame's table, 0 for null; strings keeps them in order
+    private int index(String string) {
+        if (string == null) {
+            return 0;
+        }
+        Integer index = strings.get(string);
+        if (index == null) {
+            index = strings.size();
+            strings.put(string, index);
+        }
+        return index + 1;
+    }
+
+    private static ByteBuffer putVarint(ByteBuffer buffer, long value) {
+        buffer = ensure(buffer, 10);
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+        return buffer;
+    }
+
+    private static ByteBuffer ensure(ByteBuffer buffer, int bytes) {
+        if (buffer.remaining() >= bytes) {
+            return buffer;
+        }
+        ByteBuffer bigger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+        buffer.flip();
+        bigger.put(buffer);
+        return bigger;
+    }
+
+    /**
+     * Passes every record of the log in file to consumer, up to the first
+     * damaged or incomplete frame.
+     *
+     * @return the length of the file up to there
+     */
+    public static long read(Path file, Consumer<Record> consumer) throws IOException {
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            return read(in, file, consumer);
+        }
+    }
+
+    // One frame at a time, so the memory needed is that of the largest batch; null consumer: only check
+    private static long read(FileChannel in, Path file, Consumer<Record> consumer) throws IOException {
+        ByteBuffer magic = ByteBuffer.allocate(MAGIC.length);
+        readFully(in, magic, 0);
+        if (magic.hasRemaining() || !Arrays.equals(magic.array(), MAGIC)) {
+            throw new IOException(file + " is not an audit log");
+        }
+        long size = in.size();
+        long position = MAGIC.length;
+        ByteBuffer header = ByteBuffer.allocate(8);
+        ByteBuffer payload = ByteBuffer.allocate(1 << 16);
+        CRC32 crc = new CRC32();
+        while (size - position >= 8) {
+            header.clear();
+            readFully(in, header, position);
+            int length = header.getInt(0);
+            if (length < 0 || length > size - position - 8) {
+                break;
+            }
+            if (payload.capacity() < length) {
+                payload = ByteBuffer.allocate(length);
+            }
+            payload.clear().limit(length);
+            readFully(in, payload, position + 8);
+            crc.reset();
+            crc.update(payload.array(), 0, length);
+            if ((int) crc.getValue() != header.getInt(4)) {
+                break;
+            }
+            if (consumer != null) {
+                payload.flip();
+                readFrame(payload, consumer);
+            }
+            position += 8 + length;
+        }
+        return position;
+    }
+
+    private static void readFully(FileChannel in, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (in.read(buffer, position + buffer.position()) < 0) {
+                return;
+            }
+        }
+    }
+
+    private static void readFrame(ByteBuffer payload, Consumer<Record> consumer) {
+        long time = payload.getLong();
+        String[] table = new String[(int) getVarint(payload) + 1];
+        for (int s = 1; s < table.length; s++) {
+            byte[] bytes = new byte[(int) getVarint(payload)];
+            payload.get(bytes);
+            table[s] = new String(bytes, StandardCharsets.UTF_8);
+        }
+        long count = getVarint(payload);
+        for (long r = 0; r < count; r++) {
+            long delta = getVarint(payload);
+            time += (delta >>> 1) ^ -(delta & 1);
+            long version = getVarint(payload);
+            String source = table[(int) getVarint(payload)];
+            String subject = table[(int) getVarint(payload)];
+            String resource = table[(int) getVarint(payload)];
+            String action = table[(int) getVarint(payload)];
+            String[] attributes = new String[(int) getVarint(payload)];
+            for (int a = 0; a < attributes.length; a++) {
+                attributes[a] = table[(int) getVarint(payload)];
+            }
+            int flags = payload.get();
+            consumer.accept(new Record(time, source, version, subject, resource, action,
+                    Collections.unmodifiableList(Arrays.asList(attributes)), (flags & PERMIT) != 0,
+                    (flags & CACHED) != 0));
+        }
+    }
+
+    private static long getVarint(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+    /**
+     * Prints an audit log: java AuditLog [file] [text to look for]
+     */
+    public static void main(String[] args) throws IOException {
+        Path file = Paths.get(args.length > 0 ? args[0] : "audit.log");
+        String filter = args.length > 1 ? args[1] : null;
+        long[] counts = new long[3];
+        long valid = read(file, record -> {
+            String line = record.toString();
+            if (filter == null || line.contains(filter)) {
+                System.out.println(line);
+                counts[0]++;
+                counts[record.permitted ? 1 : 2]++;
+            }
+        });
+        System.out.println(counts[0] + " decisions, " + counts[1] + " permitted, " + counts[2] + " denied");
+        long size = Files.size(file);
+        if (valid < size) {
+            System.out.println((size - valid) + " bytes at the end are damaged or incomplete");
+        }
+    }
+}
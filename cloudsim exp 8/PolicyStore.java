@@ -0,0 +1,122 @@
+import java.util.function.Consumer;
+
+/**
+ * RBAC policy that can change while it is being checked
+ *
+ * Readers call current() and check against the CompiledPolicy it
+ * returns. That is a single volatile read: no lock, and a snapshot never
+ * changes, so a reader sees one whole version of the policy even if it
+ * makes several checks, never half an update.
+ *
+ * Writers are serialised on the store. An update edits a copy of the
+ * RolePolicy, compiles it and only then publishes the result with one
+ * volatile write, as the next version. An update that fails, e.g. with
+ * a cycle in the role hierarchy, leaves the published policy as it was.
+ * Readers that are still checking against the previous snapshot finish
+ * on it; once they let go of it, it is garbage.
+ *
+ * Ids stay the same from one version to the next, so callers may keep
+ * role and permission ids across updates.
+ */
+public class PolicyStore {
+
+    private RolePolicy definition;
+    private volatile CompiledPolicy current;
+
+    /**
+     * A user's session that follows the published policy: each check sees
+     * the current version, so a revoked permission is gone at once.
+     */
+    public final class Session {
+
+        private final String user;
+        private final String[] activeRoles;
+        private CompiledPolicy.Session session;
+
+        private Session(String user, String[] activeRoles) {
+            this.user = user;
+            this.activeRoles = activeRoles;
+            this.session = current.newSession(user, activeRoles);
+        }
+
+        /**
+         * @throws IllegalStateException if an update took away a role of the session
+         */
+        public boolean check(int permission) {
+            CompiledPolicy policy = current;
+            CompiledPolicy.Session session = this.session;
+            if (session.getPolicy() != policy) {
+                try {
+                    session = policy.newSession(user, activeRoles);
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalStateException("Session of " + user + " ended: " + e.getMessage(), e);
+                }
+                this.session = session;
+            }
+            return session.check(permission);
+        }
+
+        public boolean check(String permission) {
+            return check(current.permissionId(permission));
+        }
+    }
+
+    public PolicyStore(RolePolicy definition) {
+        this.definition = new RolePolicy(definition);
+        this.current = this.definition.compile(1);
+    }
+
+    /**
+     * The policy to check against; hold on to it for all checks of one request.
+     */
+    public CompiledPolicy current() {
+        return current;
+    }
+
+    public long getVersion() {
+        return current.getVersion();
+    }
+
+    public boolean check(String role, String permission) {
+        return current.check(role, permission);
+    }
+
+    public Session newSession(String user, String... activeRoles) {
+        return new Session(user, activeRoles);
+    }
+
+    /**
+     * Applies changes to the policy and publishes the result as one new version.
+     *
+     * @return the new version
+     * @throws IllegalArgumentException if the changed policy does not compile
+     */
+    public synchronized long update(Consumer<RolePolicy> changes) {
+        RolePolicy next = new RolePolicy(definition);
+        changes.accept(next);
+        CompiledPolicy compiled = next.compile(current.getVersion() + 1);
+        definition = next;
+        current = compiled;
+        return compiled.getVersion();
+    }
+
+    public long addRole(String role, String... juniors) {
+        return update(policy -> policy.addRole(role, juniors));
+    }
+
+    public long grant(String role, String permission) {
+        return update(policy -> policy.grant(role, permission));
+    }
+
+    public long revoke(String role, String permission) {
+        return update(policy -> policy.revoke(role, permission));
+    }
+
+    public long assign(String user, String role) {
+        return update(policy -> policy.assign(user, role));
+    }
+
+    public long unassign(String user, String role) {
+        return update(policy -> policy.unassign(user, role));
+    }
+}
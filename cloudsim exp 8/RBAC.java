@@ -1,45 +1,172 @@
 // Experiment 8: Role-Based Access Control (RBAC)
 
-import java.util.HashMap;
-import java.util.Map;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 
 public class RBAC {
 
-    // Role → Permission mapping
-    private static final Map<String, String[]> rolePermissions = new HashMap<>();
+    // Role hierarchy ADMIN > USER > GUEST, flattened into permission bitsets; changeable at runtime
+    private static final PolicyStore policies;
+
+    // Checks by name go through these, for the audit log; a bit test is cheaper than a cache lookup
+    private static final AccessDecisions<CompiledPolicy> roleDecisions;
+    private static final AccessDecisions<CompiledPolicy> userDecisions;
 
     static {
-        rolePermissions.put("ADMIN", new String[]{"READ", "WRITE", "DELETE"});
-        rolePermissions.put("USER", new String[]{"READ", "WRITE"});
-        rolePermissions.put("GUEST", new String[]{"READ"});
+        RolePolicy roles = new RolePolicy();
+        roles.grant("GUEST", "READ");
+        roles.addRole("USER", "GUEST");
+        roles.grant("USER", "WRITE");
+        roles.addRole("ADMIN", "USER");
+        roles.grant("ADMIN", "DELETE");
+        roles.grant("OPERATOR", "RESTART");
+        roles.assign("alice", "USER");
+        roles.assign("alice", "OPERATOR");
+        policies = new PolicyStore(roles);
+        roleDecisions = new AccessDecisions<>("RBAC role", new Decider() {
+            @Override
+            public AccessDecisions.Verdict decide(CompiledPolicy policy, String role, String resource,
+                                                  String permission, String[] attributes) {
+                return AccessDecisions.Verdict.of(policy.check(role, permission));
+            }
+        }, 0);
+        userDecisions = new AccessDecisions<>("RBAC user", new Decider() {
+            @Override
+            public AccessDecisions.Verdict decide(CompiledPolicy policy, String user, String resource,
+                                                  String permission, String[] attributes) {
+                return AccessDecisions.Verdict.of(policy.checkUser(user, permission));
+            }
+        }, 0);
     }
 
-    // Check access based on role
-    public static boolean checkAccess(String role, String permission) {
-        String[] permissions = rolePermissions.get(role);
-        if (permissions == null) {
-            return false;
+    // Decisions against the current snapshot of the store
+    private abstract static class Decider implements AccessDecisions.Decider<CompiledPolicy> {
+
+        @Override
+        public CompiledPolicy current() {
+            return policies.current();
         }
-        for (String p : permissions) {
-            if (p.equals(permission)) {
-                return true;
-            }
+
+        @Override
+        public long versionOf(CompiledPolicy policy) {
+            return policy.getVersion();
         }
-        return false;
     }
 
-    public static void main(String[] args) {
+    // Check access based on role
+    public static boolean checkAccess(String role, String permission) {
+        return roleDecisions.check(role, null, permission, null);
+    }
+
+    // Same with ids from getPolicy(), for callers that check often; not audited
+    public static boolean checkAccess(int role, int permission) {
+        return policies.current().check(role, permission);
+    }
+
+    // Check access based on all roles of a user
+    public static boolean checkUserAccess(String user, String permission) {
+        return userDecisions.check(user, null, permission, null);
+    }
+
+    // Where checks by name are logged from now on, or null to stop
+    public static void setAuditLog(AuditLog auditLog) {
+        roleDecisions.setAuditLog(auditLog);
+        userDecisions.setAuditLog(auditLog);
+    }
+
+    // The current version of the policy
+    public static CompiledPolicy getPolicy() {
+        return policies.current();
+    }
+
+    // Grants, revokes and new roles take effect for all threads at once
+    public static PolicyStore getPolicies() {
+        return policies;
+    }
+
+    public static void main(String[] args) throws IOException {
 
         System.out.println("RBAC Simulation Started\n");
 
+        Path auditFile = Paths.get(args.length > 0 ? args[0] : "audit.log");
+        AuditLog auditLog = new AuditLog(auditFile);
+        setAuditLog(auditLog);
+
         testAccess("ADMIN", "DELETE");
         testAccess("USER", "DELETE");
         testAccess("GUEST", "READ");
         testAccess("GUEST", "WRITE");
+        testAccess("ADMIN", "READ");
+
+        System.out.println();
+        testUserAccess("alice", "WRITE");
+        testUserAccess("alice", "RESTART");
+        testUserAccess("alice", "DELETE");
+
+        PolicyStore.Session session = policies.newSession("alice", "USER");
+        System.out.println("Session of alice as USER | Permission: RESTART → "
+                + (session.check("RESTART") ? "ACCESS GRANTED" : "ACCESS DENIED"));
+
+        System.out.println();
+        long version = policies.revoke("USER", "WRITE");
+        System.out.println("Policy version " + version + ": WRITE revoked from USER");
+        testAccess("USER", "WRITE");
+        testAccess("ADMIN", "WRITE");
+        System.out.println("Session of alice as USER | Permission: WRITE → "
+                + (session.check("WRITE") ? "ACCESS GRANTED" : "ACCESS DENIED"));
+        policies.grant("USER", "WRITE");
+
+        System.out.println();
+        checkWhileUpdating();
+
+        setAuditLog(null);
+        auditLog.close();
+        System.out.println(auditLog.getWrittenCount() + " decisions appended to " + auditFile
+                + " (java AuditLog " + auditFile + " to read it)");
 
         System.out.println("\nRBAC Simulation Completed");
     }
 
+    // Readers check without locks while the policy changes under them; each
+    // snapshot must be self-consistent: ADMIN has WRITE exactly when USER has
+    private static void checkWhileUpdating() {
+        int updates = 1000;
+        long[] checks = new long[2];
+        long[] torn = new long[2];
+        Thread[] readers = new Thread[2];
+        for (int t = 0; t < readers.length; t++) {
+            int reader = t;
+            readers[t] = new Thread(() -> {
+                while (policies.getVersion() < updates) {
+                    CompiledPolicy snapshot = policies.current();
+                    if (snapshot.check("USER", "WRITE") != snapshot.check("ADMIN", "WRITE")) {
+                        torn[reader]++;
+                    }
+                    checks[reader] += 2;
+                }
+            });
+            readers[t].start();
+        }
+        while (policies.getVersion() < updates) {
+            if (checkAccess("USER", "WRITE")) {
+                policies.revoke("USER", "WRITE");
+            } else {
+                policies.grant("USER", "WRITE");
+            }
+        }
+        for (Thread reader : readers) {
+            try {
+                reader.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        System.out.println((checks[0] + checks[1]) + " checks on 2 threads during " + updates
+                + " policy updates, " + (torn[0] + torn[1]) + " inconsistent");
+    }
+
     // Test method
     private static void testAccess(String role, String permission) {
         System.out.print("Role: " + role + " | Permission: " + permission + " → ");
@@ -49,4 +176,13 @@ public class RBAC {
             System.out.println("ACCESS DENIED");
         }
     }
+
+    private static void testUserAccess(String user, String permission) {
+        System.out.print("User: " + user + " | Permission: " + permission + " → ");
+        if (checkUserAccess(user, permission)) {
+            System.out.println("ACCESS GRANTED");
+        } else {
+            System.out.println("ACCESS DENIED");
+        }
+    }
 }
@@ -0,0 +1,202 @@
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Editable RBAC policy: roles, their permissions, role inheritance and users
+ *
+ * A role inherits every permission of its junior roles, transitively
+ * (ADMIN inherits USER, USER inherits GUEST). Users can hold any number
+ * of roles. Roles, permissions and users are interned to int ids in the
+ * order they are first mentioned; ids are never reused, so ids looked up
+ * once stay valid in every later compile().
+ *
+ * compile() flattens the hierarchy into a CompiledPolicy, where every
+ * role and user has one bitset of all its permissions and a check is a
+ * single bit test. Not thread-safe; PolicyStore edits copies and
+ * publishes the compiled result for concurrent readers.
+ */
+public class RolePolicy {
+
+    private final Map<String, Integer> roleIds = new HashMap<>();
+    private final List<String> roleNames = new ArrayList<>();
+    private final List<BitSet> grants = new ArrayList<>();
+    private final List<Set<Integer>> juniors = new ArrayList<>();
+
+    private final Map<String, Integer> permissionIds = new HashMap<>();
+    private final List<String> permissionNames = new ArrayList<>();
+
+    private final Map<String, Integer> userIds = new HashMap<>();
+    private final List<String> userNames = new ArrayList<>();
+    private final List<BitSet> userRoles = new ArrayList<>();
+
+    public RolePolicy() {
+    }
+
+    /**
+     * A deep copy of policy, with the same ids.
+     */
+    public RolePolicy(RolePolicy policy) {
+        roleIds.putAll(policy.roleIds);
+        roleNames.addAll(policy.roleNames);
+        for (BitSet granted : policy.grants) {
+            grants.add((BitSet) granted.clone());
+        }
+        for (Set<Integer> inherited : policy.juniors) {
+            juniors.add(new LinkedHashSet<>(inherited));
+        }
+        permissionIds.putAll(policy.permissionIds);
+        permissionNames.addAll(policy.permissionNames);
+        userIds.putAll(policy.userIds);
+        userNames.addAll(policy.userNames);
+        for (BitSet held : policy.userRoles) {
+            userRoles.add((BitSet) held.clone());
+        }
+    }
+
+    /**
+     * Defines role if it is new and makes it inherit the permissions of juniors.
+     */
+    public void addRole(String role, String... juniors) {
+        int id = role(role);
+        for (String junior : juniors) {
+            this.juniors.get(id).add(role(junior));
+        }
+    }
+
+    public void grant(String role, String permission) {
+        grants.get(role(role)).set(permission(permission));
+    }
+
+    public void revoke(String role, String permission) {
+        Integer id = roleIds.get(role);
+        Integer permissionId = permissionIds.get(permission);
+        if (id != null && permissionId != null) {
+            grants.get(id).clear(permissionId);
+        }
+    }
+
+    public void assign(String user, String role) {
+        userRoles.get(user(user)).set(role(role));
+    }
+
+    public void unassign(String user, String role) {
+        Integer id = userIds.get(user);
+        Integer roleId = roleIds.get(role);
+        if (id != null && roleId != null) {
+            userRoles.get(id).clear(roleId);
+        }
+    }
+
+    /**
+     * Flattens the policy into bitsets, as version 0.
+     *
+     * @throws IllegalArgumentException if the role hierarchy has a cycle
+     */
+    public CompiledPolicy compile() {
+        return compile(0);
+    }
+
+    /**
+     * Flattens the policy into bitsets.
+     *
+     * @param version number the result reports, e.g. for audit records
+     * @throws IllegalArgumentException if the role hierarchy has a cycle
+     */
+    public CompiledPolicy compile(long version) {
+        int roles = roleNames.size();
+        int words = Math.max(1, (permissionNames.size() + 63) >>> 6);
+        long[] roleBits = new long[roles * words];
+        for (int role = 0; role < roles; role++) {
+            long[] own = grants.get(role).toLongArray();
+            System.arraycopy(own, 0, roleBits, role * words, own.length);
+        }
+        flatten(roleBits, words);
+
+        long[] userBits = new long[userNames.size() * words];
+        int[][] rolesOfUser = new int[userNames.size()][];
+        for (int user = 0; user < rolesOfUser.length; user++) {
+            rolesOfUser[user] = userRoles.get(user).stream().toArray();
+            for (int role : rolesOfUser[user]) {
+                for (int w = 0; w < words; w++) {
+                    userBits[user * words + w] |= roleBits[role * words + w];
+                }
+            }
+        }
+        return new CompiledPolicy(version, roleNames, permissionNames, userNames, words, roleBits, userBits,
+                rolesOfUser);
+    }
+
+    // ORs the bits of every role's juniors into it, juniors first; iterative, so deep hierarchies are fine
+    private void flatten(long[] bits, int words) {
+        int roles = roleNames.size();
+        byte[] state = new byte[roles]; // 0 new, 1 on the current path, 2 done
+        int[] stack = new int[roles + juniors.stream().mapToInt(Set::size).sum()];
+        for (int root = 0; root < roles; root++) {
+            int top = 0;
+            stack[top++] = root;
+            while (top > 0) {
+                int role = stack[top - 1];
+                if (state[role] == 0) {
+                    state[role] = 1;
+                    for (int junior : juniors.get(role)) {
+                        if (state[junior] == 1) {
+                            throw new IllegalArgumentException("Role hierarchy has a cycle through "
+                                    + roleNames.get(role) + " and " + roleNames.get(junior));
+                        }
+                        if (state[junior] == 0) {
+                            stack[top++] = junior;
+                        }
+                    }
+                    continue;
+                }
+                top--;
+                if (state[role] == 1) {
+                    for (int junior : juniors.get(role)) {
+                        for (int w = 0; w < words; w++) {
+                            bits[role * words + w] |= bits[junior * words + w];
+                        }
+                    }
+                    state[role] = 2;
+                }
+            }
+        }
+    }
+
+    private int role(String role) {
+        Integer id = roleIds.get(role);
+        if (id == null) {
+            id = roleNames.size();
+            roleIds.put(role, id);
+            roleNames.add(role);
+            grants.add(new BitSet());
+            juniors.add(new LinkedHashSet<>());
+        }
+        return id;
+    }
+
+    private int permission(String permission) {
+        Integer id = permissionIds.get(permission);
+        if (id == null) {
+            id = permissionNames.size();
+            permissionIds.put(permission, id);
+            permissionNames.add(permission);
+        }
+        return id;
+    }
+
+    private int user(String user) {
+        Integer id = userIds.get(user);
+        if (id == null) {
+            id = userNames.size();
+            userIds.put(user, id);
+            userNames.add(user);
+            userRoles.add(new BitSet());
+        }
+        return id;
+    }
+}
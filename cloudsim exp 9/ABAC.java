@@ -1,33 +1,203 @@
 // Experiment 9: Attribute-Based Access Control (ABAC)
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Clock;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 public class ABAC {
 
-    // Access decision based on attributes
+    // Used when there is no policies.conf: the rule this experiment started with
+    static final String DEFAULT_POLICY =
+            "permit it-working-hours if department == IT and clearanceLevel == HIGH"
+                    + " and accessTime == WORKING_HOURS\n";
+
+    // Replaced as a whole by setPolicy(), see AbacPolicy
+    private static volatile AbacPolicy policy = AbacPolicy.parse(DEFAULT_POLICY);
+
+    // Looks up what a request leaves out: the time of day here, subjects and resources once main() adds a store
+    private static final AttributeResolver resolver = new AttributeResolver(16384);
+
+    // The only source of accessTime, businessDay and the other time attributes, see supplied()
+    private static final EnvironmentAttributes environment = new EnvironmentAttributes(Clock.systemDefaultZone(),
+            new BusinessCalendar(ZoneId.systemDefault(), LocalTime.of(9, 0), LocalTime.of(17, 0)));
+
+    static {
+        resolver.addProvider(environment);
+    }
+
+    // Decisions are cached and can be audited, see AccessDecisions
+    private static final AccessDecisions<AbacPolicy> decisions = new AccessDecisions<>("ABAC",
+            new AccessDecisions.Decider<AbacPolicy>() {
+                @Override
+                public AbacPolicy current() {
+                    return policy;
+                }
+
+                @Override
+                public long versionOf(AbacPolicy policy) {
+                    return policy.getVersion();
+                }
+
+                @Override
+                public AccessDecisions.Verdict decide(AbacPolicy policy, String subject, String resource,
+                                                      String action, String[] attributes) {
+                    AttributeResolver.Request request = resolver.newRequest(
+                            name -> supplied(name, subject, resource, action, attributes));
+                    boolean permitted = policy.evaluate(request) == AbacPolicy.Decision.PERMIT;
+                    // cached only as long as the looked up attributes hold, e.g. until working hours end
+                    return AccessDecisions.Verdict.until(permitted, request.getExpiresAt());
+                }
+            }, 1024);
+
+    // Access decision based on attributes; the time is looked up
+    public static boolean checkAccess(String department, String clearanceLevel) {
+        // in name order, like checkAccess(Map) lays them out
+        return decisions.check(null, null, null, new String[] {
+                "clearanceLevel", clearanceLevel,
+                "department", department});
+    }
+
+    /**
+     * @deprecated the time is looked up from the clock and accessTime is
+     * ignored; use checkAccess(department, clearanceLevel)
+     */
+    @Deprecated
     public static boolean checkAccess(
             String department,
             String clearanceLevel,
             String accessTime
     ) {
-        // Policy:
-        // Allow access if department is IT,
-        // clearance is HIGH,
-        // and access time is working hours
-        if (department.equals("IT")
-                && clearanceLevel.equals("HIGH")
-                && accessTime.equals("WORKING_HOURS")) {
-            return true;
+        return checkAccess(department, clearanceLevel);
+    }
+
+    // Access decision for any attributes; one without a value counts as missing, and time attributes are
+    // ignored since they are looked up
+    public static boolean checkAccess(Map<String, String> attributes) {
+        String[] names = attributes.keySet().toArray(new String[0]);
+        Arrays.sort(names);
+        String[] pairs = new String[names.length * 2];
+        int n = 0;
+        for (String name : names) {
+            String value = attributes.get(name);
+            if (value != null && !environment.provides(name)) {
+                pairs[n++] = name;
+                pairs[n++] = value;
+            }
         }
-        return false;
+        return decisions.check(null, null, null, Arrays.copyOf(pairs, n));
+    }
+
+    // Access decision for a subject and a resource by id; their attributes and the time are looked up
+    public static boolean checkSubjectAccess(String subject, String resource, String action) {
+        return decisions.check(subject, resource, action, null);
+    }
+
+    // attributes holds name, value pairs; subject, resource and action may also come as arguments.
+    // A caller never supplies the time: claiming WORKING_HOURS at night would otherwise pass
+    private static String supplied(String name, String subject, String resource, String action,
+                                   String[] attributes) {
+        if (environment.provides(name)) {
+            return null;
+        }
+        String argument = name.equals("subject") ? subject
+                : name.equals("resource") ? resource
+                : name.equals("action") ? action : null;
+        if (argument != null) {
+            return argument;
+        }
+        for (int i = 0; attributes != null && i < attributes.length; i += 2) {
+            if (attributes[i].equals(name)) {
+                return attributes[i + 1];
+            }
+        }
+        return null;
+    }
+
+    // Add providers here to look up more attributes
+    public static AttributeResolver getAttributeResolver() {
+        return resolver;
+    }
+
+    public static AbacPolicy getPolicy() {
+        return policy;
+    }
+
+    // Decides the next requests; cached decisions of the old policy no longer answer
+    public static void setPolicy(AbacPolicy policy) {
+        ABAC.policy = policy;
     }
 
-    public static void main(String[] args) {
+    // Where decisions are logged from now on, or null to stop
+    public static void setAuditLog(AuditLog auditLog) {
+        decisions.setAuditLog(auditLog);
+    }
+
+    public static void main(String[] args) throws IOException {
 
         System.out.println("ABAC Simulation Started\n");
 
-        testAccess("IT", "HIGH", "WORKING_HOURS");
-        testAccess("HR", "HIGH", "WORKING_HOURS");
-        testAccess("IT", "LOW", "WORKING_HOURS");
-        testAccess("IT", "HIGH", "NON_WORKING_HOURS");
+        Path policyFile = Paths.get("policies.conf");
+        if (Files.exists(policyFile)) {
+            setPolicy(AbacPolicy.load(policyFile));
+            System.out.println("Loaded " + policy.getRules().size() + " rules from " + policyFile
+                    + " (" + policy.getAlgorithm() + "), decision tree of "
+                    + policy.getTree().getNodeCount() + " nodes\n");
+        }
+
+        Path attributeFile = Paths.get("attributes.conf");
+        if (Files.exists(attributeFile)) {
+            FileAttributeStore store = new FileAttributeStore(attributeFile, 30000);
+            resolver.addProvider(store);
+            System.out.println("Loaded " + store.getSubjectCount() + " subjects and " + store.getResourceCount()
+                    + " resources from " + attributeFile + "\n");
+        }
+
+        Path auditFile = Paths.get(args.length > 0 ? args[0] : "audit.log");
+        AuditLog auditLog = new AuditLog(auditFile);
+        setAuditLog(auditLog);
+
+        AttributeResolver.Request now = resolver.newRequest(name -> null);
+        System.out.println("It is " + now.get("dayOfWeek") + " " + now.get("hour") + "h in " + now.get("timeZone")
+                + ": accessTime " + now.get("accessTime") + ", businessDay " + now.get("businessDay") + "\n");
+        testAccess("IT", "HIGH");
+        testAccess("HR", "HIGH");
+        testAccess("IT", "LOW");
+        testAccess("IT", "HIGH");
+
+        System.out.println();
+        testAccess(request("department", "HR", "action", "read", "resourceType", "payroll",
+                "clearance", "2"));
+        testAccess(request("department", "HR", "action", "update", "resourceType", "payroll",
+                "clearance", "2"));
+        testAccess(request("department", "FINANCE", "action", "read", "resourceType", "report",
+                "clearance", "1"));
+        testAccess(request("department", "FINANCE", "action", "read", "resourceType", "report",
+                "clearance", "1", "region", "EMBARGOED"));
+        // the time comes from the clock, whatever the request says
+        testAccess(request("department", "IT", "clearanceLevel", "HIGH", "accessTime", "WORKING_HOURS"));
+
+        System.out.println();
+        testSubjectAccess("alice", "q3-report", "read");
+        testSubjectAccess("alice", "server-17", "read");
+        testSubjectAccess("bob", "payroll-2026", "read");
+        testSubjectAccess("bob", "payroll-2026", "delete");
+        testSubjectAccess("carol", "q3-report", "read");
+        testSubjectAccess("carol", "q3-report", "export");
+        testSubjectAccess("alice", "q3-report", "read");
+        System.out.println(resolver.getLookups() + " attribute lookups, " + resolver.getCacheHits()
+                + " answered from the attribute cache");
+
+        setAuditLog(null);
+        auditLog.close();
+        System.out.println("\n" + decisions.getCacheHits() + " of " + auditLog.getWrittenCount()
+                + " decisions from the cache, all appended to " + auditFile);
 
         System.out.println("\nABAC Simulation Completed");
     }
@@ -35,19 +205,46 @@ public class ABAC {
     // Test cases
     private static void testAccess(
             String department,
-            String clearance,
-            String time
+            String clearance
     ) {
         System.out.print(
                 "Department: " + department +
                 ", Clearance: " + clearance +
-                ", Time: " + time + " → "
+                ", Time: " + resolver.newRequest(name -> null).get("accessTime") + " → "
         );
 
-        if (checkAccess(department, clearance, time)) {
+        if (checkAccess(department, clearance)) {
             System.out.println("ACCESS GRANTED");
         } else {
             System.out.println("ACCESS DENIED");
         }
     }
+
+    private static void testAccess(Map<String, String> attributes) {
+        System.out.print(attributes + " → ");
+
+        if (checkAccess(attributes)) {
+            System.out.println("ACCESS GRANTED");
+        } else {
+            System.out.println("ACCESS DENIED");
+        }
+    }
+
+    private static void testSubjectAccess(String subject, String resource, String action) {
+        System.out.print(subject + " " + action + " " + resource + " → ");
+
+        if (checkSubjectAccess(subject, resource, action)) {
+            System.out.println("ACCESS GRANTED");
+        } else {
+            System.out.println("ACCESS DENIED");
+        }
+    }
+
+    private static Map<String, String> request(String... namesAndValues) {
+        Map<String, String> attributes = new LinkedHashMap<>();
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            attributes.put(namesAndValues[i], namesAndValues[i + 1]);
+        }
+        return attributes;
+    }
 }
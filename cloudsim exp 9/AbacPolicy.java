@@ -0,0 +1,458 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ABAC policies read from a file, compiled into a decision tree
+ *
+ * One rule per line, "#" starts a comment and a trailing "\" continues a
+ * line:
+ *
+ *   algorithm deny-overrides
+ *   permit it-staff if department == IT and clearanceLevel == HIGH
+ *   deny contractors-delete if employment == contractor and action in {delete, purge}
+ *   permit readers if action == read and clearance >= 2
+ *   permit everyone
+ *
+ * A rule applies when all its conditions hold; one without conditions
+ * always applies. Conditions are "attribute op value", with spaces around
+ * the operator:
+ *
+ *   == !=             equal, not equal
+ *   in {a, b}         one of a set; "not in" for none of it
+ *   < <= > >=         numeric comparison
+ *
+ * Values are single words or "quoted", and compared as text except by the
+ * numeric operators. A condition on an attribute the request does not
+ * have, or on a non-number for a numeric operator, does not hold.
+ *
+ * The algorithm combines the rules that apply: deny-overrides (the
+ * default: deny if any deny rule applies, else permit if a permit rule
+ * does), permit-overrides, or first-applicable (the first applicable rule
+ * in the file decides). If no rule applies the decision is
+ * NOT_APPLICABLE, which ABAC treats as a deny.
+ *
+ * The rules are compiled into a DecisionTree when the policy is created,
+ * so evaluate() costs a few lookups for the attributes the rules test,
+ * not a pass over the rules. Each AbacPolicy gets a new version number,
+ * which keeps cached decisions of one policy from answering for another.
+ * A policy is immutable and can be shared between threads.
+ */
+public class AbacPolicy {
+
+    private static final AtomicLong VERSIONS = new AtomicLong();
+
+    public enum Effect {
+        PERMIT, DENY
+    }
+
+    public enum Decision {
+        PERMIT, DENY, NOT_APPLICABLE
+    }
+
+    public enum Algorithm {
+        DENY_OVERRIDES, PERMIT_OVERRIDES, FIRST_APPLICABLE;
+
+        static Algorithm parse(String name) {
+            for (Algorithm algorithm : values()) {
+                if (algorithm.toString().equals(name)) {
+                    return algorithm;
+                }
+            }
+            throw new IllegalArgumentException("unknown algorithm " + name);
+        }
+
+        @Override
+        public String toString() {
+            return name().toLowerCase().replace('_', '-');
+        }
+    }
+
+    public static final class Condition {
+
+        enum Op {
+            EQ("=="), NE("!="), IN("in"), NOT_IN("not in"), LT("<"), LE("<="), GT(">"), GE(">=");
+
+            final String symbol;
+
+            Op(String symbol) {
+                this.symbol = symbol;
+            }
+        }
+
+        private final String attribute;
+        private final Op op;
+        private final Set<String> values;
+        private final double number;
+
+        Condition(String attribute, Op op, Set<String> values, double number) {
+            this.attribute = attribute;
+            this.op = op;
+            this.values = values;
+            this.number = number;
+        }
+
+        public String getAttribute() {
+            return attribute;
+        }
+
+        /**
+         * Whether the condition holds exactly for the values of getValues(),
+         * so rules can be looked up by the attribute's value.
+         */
+        public boolean isIndexable() {
+            return op == Op.EQ || op == Op.IN;
+        }
+
+        /**
+         * The values of ==, != and the set operators, empty for the numeric ones.
+         */
+        public Set<String> getValues() {
+            return values;
+        }
+
+        public boolean test(String value) {
+            if (value == null) {
+                return false;
+            }
+            switch (op) {
+                case EQ:
+                case IN:
+                    return values.contains(value);
+                case NE:
+                case NOT_IN:
+                    return !values.contains(value);
+                default:
+                    double actual;
+                    try {
+                        actual = Double.parseDouble(value);
+                    } catch (NumberFormatException e) {
+                        return false;
+                    }
+                    switch (op) {
+                        case LT:
+                            return actual < number;
+                        case LE:
+                            return actual <= number;
+                        case GT:
+                            return actual > number;
+                        default:
+                            return actual >= number;
+                    }
+            }
+        }
+
+        @Override
+        public String toString() {
+            String value = op == Op.IN || op == Op.NOT_IN ? values.toString().replace('[', '{').replace(']', '}')
+                    : op == Op.EQ || op == Op.NE ? values.iterator().next() : String.valueOf(number);
+            return attribute + " " + op.symbol + " " + value;
+        }
+    }
+
+    public static final class Rule {
+        private final String name;
+        private final Effect effect;
+        private final List<Condition> conditions;
+        private final int line;
+
+        Rule(String name, Effect effect, List<Condition> conditions, int line) {
+            this.name = name;
+            this.effect = effect;
+            this.conditions = Collections.unmodifiableList(conditions);
+            this.line = line;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public Effect getEffect() {
+            return effect;
+        }
+
+        public List<Condition> getConditions() {
+            return conditions;
+        }
+
+        /**
+         * Line in the policy file where the rule starts.
+         */
+        public int getLine() {
+            return line;
+        }
+    }
+
+    private final Algorithm algorithm;
+    private final List<Rule> rules;
+    private final DecisionTree tree;
+    private final long version = VERSIONS.incrementAndGet();
+
+    private AbacPolicy(Algorithm algorithm, List<Rule> rules) {
+        this.algorithm = algorithm;
+        this.rules = Collections.unmodifiableList(rules);
+        this.tree = new DecisionTree(ordered(algorithm, rules));
+    }
+
+    public static AbacPolicy load(Path file) throws IOException {
+        try {
+            return parse(new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+        } catch (IllegalArgumentException e) {
+            throw new IOException(file + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException naming the line of the first error
+     */
+    public static AbacPolicy parse(String text) {
+        Algorithm algorithm = null;
+        List<Rule> rules = new ArrayList<>();
+        Set<String> names = new LinkedHashSet<>();
+        String[] lines = text.split("\r?\n", -1);
+        for (int i = 0; i < lines.length; i++) {
+            int number = i + 1;
+            StringBuilder line = new StringBuilder(lines[i]);
+            while (line.length() > 0 && line.charAt(line.length() - 1) == '\\' && i + 1 < lines.length) {
+                line.setLength(line.length() - 1);
+                line.append(' ').append(lines[++i]);
+            }
+            try {
+                List<Token> tokens = tokens(line.toString());
+                if (tokens.isEmpty()) {
+                    continue;
+                }
+                if (tokens.get(0).is("algorithm")) {
+                    if (tokens.size() != 2) {
+                        throw new IllegalArgumentException("expected algorithm <name>");
+                    }
+                    if (algorithm != null) {
+                        throw new IllegalArgumentException("algorithm is set twice");
+                    }
+                    algorithm = Algorithm.parse(tokens.get(1).text);
+                    continue;
+                }
+                Rule rule = parseRule(tokens, number);
+                if (!names.add(rule.name)) {
+                    throw new IllegalArgumentException("rule " + rule.name + " is defined twice");
+                }
+                rules.add(rule);
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("line " + number + ": " + e.getMessage(), e);
+            }
+        }
+        return new AbacPolicy(algorithm != null ? algorithm : Algorithm.DENY_OVERRIDES, rules);
+    }
+
+    /**
+     * The rule that decides a request, or null if none applies.
+     */
+    public Rule match(Attributes attributes) {
+        return tree.match(attributes);
+    }
+
+    public Decision evaluate(Attributes attributes) {
+        Rule rule = tree.match(attributes);
+        if (rule == null) {
+            return Decision.NOT_APPLICABLE;
+        }
+        return rule.effect == Effect.PERMIT ? Decision.PERMIT : Decision.DENY;
+    }
+
+    public Algorithm getAlgorithm() {
+        return algorithm;
+    }
+
+    public List<Rule> getRules() {
+        return rules;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public DecisionTree getTree() {
+        return tree;
+    }
+
+    // The overriding effect first, so every algorithm becomes first-applicable
+    private static List<Rule> ordered(Algorithm algorithm, List<Rule> rules) {
+        if (algorithm == Algorithm.FIRST_APPLICABLE) {
+            return rules;
+        }
+        Effect first = algorithm == Algorithm.DENY_OVERRIDES ? Effect.DENY : Effect.PERMIT;
+        List<Rule> ordered = new ArrayList<>(rules.size());
+        for (Rule rule : rules) {
+            if (rule.effect == first) {
+                ordered.add(rule);
+            }
+        }
+        for (Rule rule : rules) {
+            if (rule.effect != first) {
+                ordered.add(rule);
+            }
+        }
+        return ordered;
+    }
+
+    private static final class Token {
+        final String text;
+        final boolean quoted;
+
+        Token(String text, boolean quoted) {
+            this.text = text;
+            this.quoted = quoted;
+        }
+
+        boolean is(String word) {
+            return !quoted && text.equals(word);
+        }
+    }
+
+    // Words, "quoted values" ('\"' for a quote), and { } , on their own
+    private static List<Token> tokens(String line) {
+        List<Token> tokens = new ArrayList<>();
+        int i = 0;
+        int n = line.length();
+        while (i < n) {
+            char c = line.charAt(i);
+            if (c == '#') {
+                break;
+            }
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (c == '{' || c == '}' || c == ',') {
+                tokens.add(new Token(String.valueOf(c), false));
+                i++;
+            } else if (c == '"') {
+                StringBuilder value = new StringBuilder();
+                i++;
+                while (true) {
+                    if (i == n) {
+                        throw new IllegalArgumentException("unterminated quote");
+                    }
+                    char v = line.charAt(i++);
+                    if (v == '"') {
+                        break;
+                    }
+                    if (v == '\\' && i < n && line.charAt(i) == '"') {
+                        v = line.charAt(i++);
+                    }
+                    value.append(v);
+                }
+                tokens.add(new Token(value.toString(), true));
+            } else {
+                int start = i;
+                while (i < n && !Character.isWhitespace(line.charAt(i)) && "{},\"#".indexOf(line.charAt(i)) < 0) {
+                    i++;
+                }
+                tokens.add(new Token(line.substring(start, i), false));
+            }
+        }
+        return tokens;
+    }
+
+    // permit|deny <name> [if <condition> [and <condition>]...]
+    private static Rule parseRule(List<Token> tokens, int line) {
+        Effect effect;
+        if (tokens.get(0).is("permit")) {
+            effect = Effect.PERMIT;
+        } else if (tokens.get(0).is("deny")) {
+            effect = Effect.DENY;
+        } else {
+            throw new IllegalArgumentException("expected permit, deny or algorithm, not " + tokens.get(0).text);
+        }
+        if (tokens.size() < 2 || tokens.get(1).quoted) {
+            throw new IllegalArgumentException("expected a rule name after " + tokens.get(0).text);
+        }
+        String name = tokens.get(1).text;
+        List<Condition> conditions = new ArrayList<>();
+        int i = 2;
+        if (i < tokens.size()) {
+            if (!tokens.get(i).is("if")) {
+                throw new IllegalArgumentException("expected if after rule " + name);
+            }
+            do {
+                i = parseCondition(tokens, i + 1, conditions);
+            } while (i < tokens.size() && tokens.get(i).is("and"));
+            if (i < tokens.size()) {
+                throw new IllegalArgumentException("expected and, not " + tokens.get(i).text);
+            }
+        }
+        return new Rule(name, effect, conditions, line);
+    }
+
+    // Parses the condition at tokens[i], returns the index after it
+    private static int parseCondition(List<Token> tokens, int i, List<Condition> conditions) {
+        if (i + 2 > tokens.size() || tokens.get(i).quoted) {
+            throw new IllegalArgumentException("expected a condition");
+        }
+        String attribute = tokens.get(i++).text;
+        String symbol = tokens.get(i++).text;
+        if (symbol.equals("not") && i < tokens.size() && tokens.get(i).is("in")) {
+            symbol = "not in";
+            i++;
+        }
+        Condition.Op op = null;
+        for (Condition.Op candidate : Condition.Op.values()) {
+            if (candidate.symbol.equals(symbol)) {
+                op = candidate;
+            }
+        }
+        if (op == null) {
+            throw new IllegalArgumentException("unknown operator " + symbol + " after " + attribute);
+        }
+        Set<String> values = new LinkedHashSet<>();
+        double number = 0;
+        if (op == Condition.Op.IN || op == Condition.Op.NOT_IN) {
+            if (i == tokens.size() || !tokens.get(i).is("{")) {
+                throw new IllegalArgumentException("expected { after " + attribute + " " + symbol);
+            }
+            i++;
+            while (true) {
+                if (i == tokens.size()) {
+                    throw new IllegalArgumentException("unterminated set after " + attribute + " " + symbol);
+                }
+                Token value = tokens.get(i++);
+                if (value.is("}") && values.isEmpty()) {
+                    break;
+                }
+                if (value.is("{") || value.is("}") || value.is(",")) {
+                    throw new IllegalArgumentException("expected a value in the set after " + attribute);
+                }
+                values.add(value.text);
+                if (i < tokens.size() && tokens.get(i).is(",")) {
+                    i++;
+                } else if (i < tokens.size() && tokens.get(i).is("}")) {
+                    i++;
+                    break;
+                } else {
+                    throw new IllegalArgumentException("expected , or } in the set after " + attribute);
+                }
+            }
+        } else {
+            if (i == tokens.size()) {
+                throw new IllegalArgumentException("expected a value after " + attribute + " " + symbol);
+            }
+            String value = tokens.get(i++).text;
+            if (op == Condition.Op.EQ || op == Condition.Op.NE) {
+                values.add(value);
+            } else {
+                try {
+                    number = Double.parseDouble(value);
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException(attribute + " " + symbol + " needs a number, not " + value);
+                }
+            }
+        }
+        conditions.add(new Condition(attribute, op, Collections.unmodifiableSet(values), number));
+        return i;
+    }
+}
@@ -0,0 +1,55 @@
+/**
+ * A source of attributes a request does not carry itself
+ *
+ * An AttributeResolver asks a provider for an attribute only when a policy
+ * needs it, at most once per request, and keeps the value across requests
+ * for as long as the provider says it holds. See EnvironmentAttributes for
+ * the time of day and FileAttributeStore for subject and resource
+ * attributes.
+ */
+public interface AttributeProvider {
+
+    /**
+     * A value with how long it may be reused.
+     */
+    final class Value {
+        private final String value;
+        private final long ttlMillis;
+
+        /**
+         * @param value     null if there is none
+         * @param ttlMillis how long other requests may reuse it, 0 for not at all
+         */
+        public Value(String value, long ttlMillis) {
+            this.value = value;
+            this.ttlMillis = ttlMillis;
+        }
+
+        public String getValue() {
+            return value;
+        }
+
+        public long getTtlMillis() {
+            return ttlMillis;
+        }
+    }
+
+    /**
+     * Whether this provider supplies the attribute name.
+     */
+    boolean provides(String name);
+
+    /**
+     * What the value of name for this request is cached under: the same
+     * key from this provider means the same value, e.g. the name plus the
+     * subject it belongs to. Null if there is nothing to look up, e.g. the
+     * request names no subject.
+     */
+    String cacheKey(String name, Attributes request);
+
+    /**
+     * Looks name up for the request, which the other attributes can be
+     * read from.
+     */
+    Value get(String name, Attributes request);
+}
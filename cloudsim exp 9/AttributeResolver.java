@@ -0,0 +1,182 @@
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Fills in the attributes a request lacks from AttributeProviders, on demand
+ *
+ * newRequest() wraps the attributes a caller supplied. Asked for one it
+ * does not have, the request finds the first provider that supplies it
+ * and looks it up then, so only the attributes the decision tree actually
+ * reaches are fetched. Each is fetched at most once per request, and
+ * values are kept across requests in a direct-mapped cache, like the
+ * DecisionCache, for as long as their provider says they hold.
+ *
+ * The request remembers the earliest moment a value it used expires:
+ * a decision made from it is only valid until then, see getExpiresAt().
+ * Requests are for one thread; the resolver is thread-safe.
+ */
+public class AttributeResolver {
+
+    // Far enough off to mean "until the provider says otherwise", near enough not to overflow
+    private static final long MAX_TTL_NANOS = TimeUnit.DAYS.toNanos(365);
+
+    private static final class Cached {
+        final AttributeProvider provider;
+        final String key;
+        final String value;
+        final long expiresAt;
+
+        Cached(AttributeProvider provider, String key, String value, long expiresAt) {
+            this.provider = provider;
+            this.key = key;
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final List<AttributeProvider> providers = new CopyOnWriteArrayList<>();
+    private final Cached[] cache;
+
+    private final LongAdder lookups = new LongAdder();
+    private final LongAdder hits = new LongAdder();
+
+    /**
+     * @param cacheSize values to keep across requests, 0 for none
+     */
+    public AttributeResolver(int cacheSize) {
+        int size = Integer.highestOneBit(Math.max(1, cacheSize - 1)) << 1;
+        this.cache = cacheSize > 0 ? new Cached[Math.max(2, size)] : null;
+    }
+
+    /**
+     * Asked after the providers added before it.
+     */
+    public void addProvider(AttributeProvider provider) {
+        providers.add(provider);
+    }
+
+    public List<AttributeProvider> getProviders() {
+        return providers;
+    }
+
+    /**
+     * A request with the supplied attributes, which take precedence over
+     * the providers.
+     */
+    public Request newRequest(Attributes supplied) {
+        return new Request(supplied);
+    }
+
+    public void clear() {
+        if (cache != null) {
+            Arrays.fill(cache, null);
+        }
+    }
+
+    /**
+     * Values fetched from a provider.
+     */
+    public long getLookups() {
+        return lookups.sum();
+    }
+
+    /**
+     * Values taken from the cache instead.
+     */
+    public long getCacheHits() {
+        return hits.sum();
+    }
+
+    /**
+     * The attributes of one request, resolved as they are asked for.
+     */
+    public final class Request implements Attributes {
+
+        private final Attributes supplied;
+        private String[] names = new String[4];
+        private String[] values = new String[4];
+        private int resolved;
+        private long expiresAt = DecisionCache.NEVER;
+        // read once, when the first attribute is resolved
+        private long now;
+        private boolean started;
+
+        private Request(Attributes supplied) {
+            this.supplied = supplied;
+        }
+
+        @Override
+        public String get(String name) {
+            String value = supplied.get(name);
+            if (value != null) {
+                return value;
+            }
+            for (int i = 0; i < resolved; i++) {
+                if (names[i].equals(name)) {
+                    return values[i];
+                }
+            }
+            value = resolve(name);
+            if (resolved == names.length) {
+                names = Arrays.copyOf(names, resolved * 2);
+                values = Arrays.copyOf(values, resolved * 2);
+            }
+            names[resolved] = name;
+            values[resolved++] = value;
+            return value;
+        }
+
+        /**
+         * The System.nanoTime() deadline after which a value this request
+         * used may have changed, DecisionCache.NEVER if it used none.
+         */
+        public long getExpiresAt() {
+            return expiresAt;
+        }
+
+        private String resolve(String name) {
+            for (AttributeProvider provider : providers) {
+                if (provider.provides(name)) {
+                    String key = provider.cacheKey(name, this);
+                    return key == null ? null : resolve(provider, name, key);
+                }
+            }
+            return null;
+        }
+
+        private String resolve(AttributeProvider provider, String name, String key) {
+            if (!started) {
+                now = System.nanoTime();
+                started = true;
+            }
+            int hash = 31 * System.identityHashCode(provider) + key.hashCode();
+            int slot = (hash ^ (hash >>> 16)) & (cache == null ? 0 : cache.length - 1);
+            Cached cached = cache == null ? null : cache[slot];
+            if (cached != null && cached.provider == provider && cached.key.equals(key)
+                    && cached.expiresAt - now > 0) {
+                hits.increment();
+                expireBy(cached.expiresAt);
+                return cached.value;
+            }
+            AttributeProvider.Value value = provider.get(name, this);
+            lookups.increment();
+            // a value that may not be reused expires at once, along with decisions made from it
+            long until = now + Math.min(TimeUnit.MILLISECONDS.toNanos(value.getTtlMillis()), MAX_TTL_NANOS);
+            if (cache != null && value.getTtlMillis() > 0) {
+                cache[slot] = new Cached(provider, key, value.getValue(), until);
+            }
+            expireBy(until);
+            return value.getValue();
+        }
+
+        // nanoTime() may wrap, so deadlines are compared by their difference
+        private void expireBy(long deadline) {
+            if (expiresAt == DecisionCache.NEVER || deadline - expiresAt < 0) {
+                expiresAt = deadline;
+            }
+        }
+    }
+}
@@ -0,0 +1,14 @@
+/**
+ * The attributes of one access request, looked up by name
+ *
+ * AbacPolicy only asks for the attributes its rules test on the way
+ * through the decision tree, so an implementation may work them out or
+ * fetch them when asked. A Map works as one: map::get.
+ */
+public interface Attributes {
+
+    /**
+     * The value of attribute name, or null if the request has none.
+     */
+    String get(String name);
+}
@@ -0,0 +1,84 @@
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Working days and hours in one time zone
+ *
+ * Working hours are from start (inclusive) to end (exclusive) on working
+ * days that are not holidays; Monday to Friday unless setWorkingDays()
+ * says otherwise. Configure it before handing it to EnvironmentAttributes,
+ * it is not safe to change while requests are being decided.
+ */
+public class BusinessCalendar {
+
+    private final ZoneId zone;
+    private final LocalTime start;
+    private final LocalTime end;
+    private final Set<DayOfWeek> workingDays = EnumSet.range(DayOfWeek.MONDAY, DayOfWeek.FRIDAY);
+    private final Set<LocalDate> holidays = new HashSet<>();
+
+    public BusinessCalendar(ZoneId zone, LocalTime start, LocalTime end) {
+        if (!start.isBefore(end)) {
+            throw new IllegalArgumentException("working hours " + start + "-" + end + " end before they start");
+        }
+        this.zone = zone;
+        this.start = start;
+        this.end = end;
+    }
+
+    public ZoneId getZone() {
+        return zone;
+    }
+
+    public LocalTime getStart() {
+        return start;
+    }
+
+    public LocalTime getEnd() {
+        return end;
+    }
+
+    public void setWorkingDays(DayOfWeek... days) {
+        workingDays.clear();
+        for (DayOfWeek day : days) {
+            workingDays.add(day);
+        }
+    }
+
+    public void addHoliday(LocalDate date) {
+        holidays.add(date);
+    }
+
+    public boolean isBusinessDay(LocalDate date) {
+        return workingDays.contains(date.getDayOfWeek()) && !holidays.contains(date);
+    }
+
+    public boolean isWorkingTime(ZonedDateTime time) {
+        ZonedDateTime local = time.withZoneSameInstant(zone);
+        LocalTime clock = local.toLocalTime();
+        return isBusinessDay(local.toLocalDate()) && !clock.isBefore(start) && clock.isBefore(end);
+    }
+
+    /**
+     * The next moment after time at which isWorkingTime() may change: the
+     * start or end of working hours, or midnight.
+     */
+    public ZonedDateTime nextChange(ZonedDateTime time) {
+        ZonedDateTime local = time.withZoneSameInstant(zone);
+        LocalDate date = local.toLocalDate();
+        ZonedDateTime next = date.plusDays(1).atStartOfDay(zone);
+        for (LocalTime boundary : new LocalTime[] {start, end}) {
+            ZonedDateTime candidate = ZonedDateTime.of(date, boundary, zone);
+            if (candidate.isAfter(local) && candidate.isBefore(next)) {
+                next = candidate;
+            }
+        }
+        return next;
+    }
+}
@@ -0,0 +1,110 @@
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Bounded cache of access decisions
+ *
+ * Keyed by (policy version, subject, resource, action, attributes). It is
+ * direct-mapped, like a CPU cache: a key hashes to one slot, and a new
+ * decision simply replaces whatever was in its slot, so the cache never
+ * holds more than capacity entries and needs no eviction bookkeeping.
+ * Entries are immutable and the slots are written without locks; a
+ * thread may miss another thread's latest entry, never see half of one.
+ *
+ * Every entry carries the policy version it was decided under and only
+ * answers for that version, so publishing a new policy invalidates the
+ * whole cache at once without touching it. The full key is compared on a
+ * hit, not just its hash, so two requests can never share a decision.
+ * An entry put with a deadline stops answering once System.nanoTime()
+ * reaches it; only those entries cost a clock read on a hit.
+ */
+public class DecisionCache {
+
+    /**
+     * The deadline of an entry that holds as long as its policy version.
+     */
+    public static final long NEVER = Long.MAX_VALUE;
+
+    private static final class Entry {
+        final long version;
+        final int hash;
+        final String subject;
+        final String resource;
+        final String action;
+        final String[] attributes;
+        final boolean permitted;
+        final long expiresAt;
+
+        Entry(long version, int hash, String subject, String resource, String action, String[] attributes,
+              boolean permitted, long expiresAt) {
+            this.version = version;
+            this.hash = hash;
+            this.subject = subject;
+            this.resource = resource;
+            this.action = action;
+            this.attributes = attributes;
+            this.permitted = permitted;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final Entry[] entries;
+
+    /**
+     * @param capacity number of slots, rounded up to a power of two
+     */
+    public DecisionCache(int capacity) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        this.entries = new Entry[Math.max(2, size)];
+    }
+
+    /**
+     * The cached decision, or null if there is none for this version.
+     */
+    public Boolean get(long version, String subject, String resource, String action, String[] attributes) {
+        int hash = hash(subject, resource, action, attributes);
+        Entry entry = entries[hash & (entries.length - 1)];
+        if (entry != null && entry.version == version && entry.hash == hash
+                && Objects.equals(entry.subject, subject) && Objects.equals(entry.resource, resource)
+                && Objects.equals(entry.action, action) && Arrays.equals(entry.attributes, attributes)
+                && (entry.expiresAt == NEVER || entry.expiresAt - System.nanoTime() > 0)) {
+            return entry.permitted;
+        }
+        return null;
+    }
+
+    /**
+     * Caches a decision; attributes is kept and must not change afterwards.
+     */
+    public void put(long version, String subject, String resource, String action, String[] attributes,
+                    boolean permitted) {
+        put(version, subject, resource, action, attributes, permitted, NEVER);
+    }
+
+    /**
+     * Caches a decision until the System.nanoTime() deadline expiresAt.
+     */
+    public void put(long version, String subject, String resource, String action, String[] attributes,
+                    boolean permitted, long expiresAt) {
+        int hash = hash(subject, resource, action, attributes);
+        entries[hash & (entries.length - 1)] =
+                new Entry(version, hash, subject, resource, action, attributes, permitted, expiresAt);
+    }
+
+    public void clear() {
+        Arrays.fill(entries, null);
+    }
+
+    public int getCapacity() {
+        return entries.length;
+    }
+
+    private static int hash(String subject, String resource, String action, String[] attributes) {
+        int h = Objects.hashCode(subject);
+        h = 31 * h + Objects.hashCode(resource);
+        h = 31 * h + Objects.hashCode(action);
+        h = 31 * h + Arrays.hashCode(attributes);
+        // spread the high bits down, the slot only uses the low ones
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,222 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * The rules of an AbacPolicy compiled into a tree that tests one attribute per level
+ *
+ * An inner node names an attribute and maps its values to child nodes.
+ * Under the child for a value are the rules whose == or in condition on
+ * the attribute allows that value, plus the rules that do not test the
+ * attribute with == or in at all; those alone make up the "otherwise"
+ * child, taken for any other value and when the request lacks the
+ * attribute. Each level splits on the attribute most of its rules test,
+ * so a request walks down with one hash lookup per attribute to a leaf
+ * holding only the rules that can still apply, in order. The leaf checks
+ * what is left of their conditions (!=, not in, numeric ones, attributes
+ * off the path) and returns the first rule that applies, so the work
+ * depends on the attributes the request has, not on the number of rules.
+ *
+ * A rule that does not test an attribute is copied into every branch of
+ * it. To keep the tree in proportion to the policy, an attribute is only
+ * split on if those copies add up to at most MAX_COPIES times the node's
+ * rules, nodes of LEAF_SIZE rules or fewer are not split at all, and
+ * identical subtrees are built once and shared.
+ */
+public final class DecisionTree {
+
+    private static final int MAX_COPIES = 2;
+
+    // Trying this many rules at a leaf costs about as much as a lookup
+    private static final int LEAF_SIZE = 4;
+
+    private static final class Node {
+        String attribute;
+        Map<String, Node> branches;
+        Node otherwise;
+        AbacPolicy.Rule[] rules;
+        AbacPolicy.Condition[][] conditions;
+    }
+
+    private final List<AbacPolicy.Rule> rules;
+    private final Node root;
+    private int nodes;
+    private int depth;
+    private int largestLeaf;
+
+    /**
+     * @param rules in the order they are tried: the first one that applies decides
+     */
+    DecisionTree(List<AbacPolicy.Rule> rules) {
+        this.rules = rules;
+        int[] all = new int[rules.size()];
+        for (int i = 0; i < all.length; i++) {
+            all[i] = i;
+        }
+        this.root = build(all, new TreeSet<>(), new HashMap<>());
+    }
+
+    /**
+     * The first rule that applies, or null.
+     */
+    public AbacPolicy.Rule match(Attributes attributes) {
+        Node node = root;
+        while (node.attribute != null) {
+            String value = attributes.get(node.attribute);
+            Node next = value == null ? null : node.branches.get(value);
+            node = next != null ? next : node.otherwise;
+        }
+        rules:
+        for (int i = 0; i < node.rules.length; i++) {
+            for (AbacPolicy.Condition condition : node.conditions[i]) {
+                if (!condition.test(attributes.get(condition.getAttribute()))) {
+                    continue rules;
+                }
+            }
+            return node.rules[i];
+        }
+        return null;
+    }
+
+    /**
+     * Distinct nodes, shared subtrees counted once.
+     */
+    public int getNodeCount() {
+        return nodes;
+    }
+
+    /**
+     * Attributes tested on the longest path.
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * Rules in the largest leaf: the most a request may have to try.
+     */
+    public int getLargestLeaf() {
+        return largestLeaf;
+    }
+
+    private Node build(int[] ids, TreeSet<String> path, Map<String, Node> built) {
+        String key = path + Arrays.toString(ids);
+        Node node = built.get(key);
+        if (node != null) {
+            return node;
+        }
+        node = new Node();
+        nodes++;
+        depth = Math.max(depth, path.size());
+        if (ids.length > LEAF_SIZE) {
+            split(node, ids, path, built);
+        }
+        if (node.attribute == null) {
+            leaf(node, ids, path);
+        }
+        built.put(key, node);
+        return node;
+    }
+
+    // Splits on the attribute most rules test, the first whose copies are in bounds
+    private void split(Node node, int[] ids, TreeSet<String> path, Map<String, Node> built) {
+        Map<String, Integer> tested = new LinkedHashMap<>();
+        for (int id : ids) {
+            for (AbacPolicy.Condition condition : rules.get(id).getConditions()) {
+                String attribute = condition.getAttribute();
+                if (condition.isIndexable() && !path.contains(attribute)
+                        && indexCondition(rules.get(id), attribute) == condition) {
+                    tested.merge(attribute, 1, Integer::sum);
+                }
+            }
+        }
+        List<String> candidates = new ArrayList<>(tested.keySet());
+        candidates.sort((a, b) -> tested.get(b) - tested.get(a));
+        for (String attribute : candidates) {
+            Set<String> values = new LinkedHashSet<>();
+            int wildcards = 0;
+            for (int id : ids) {
+                AbacPolicy.Condition condition = indexCondition(rules.get(id), attribute);
+                if (condition == null) {
+                    wildcards++;
+                } else {
+                    values.addAll(condition.getValues());
+                }
+            }
+            if ((long) wildcards * (values.size() + 1) > (long) MAX_COPIES * ids.length) {
+                continue;
+            }
+            // one pass in rule order, so every branch keeps its rules in order
+            Map<String, List<Integer>> branches = new LinkedHashMap<>();
+            for (String value : values) {
+                branches.put(value, new ArrayList<>());
+            }
+            List<Integer> otherwise = new ArrayList<>();
+            for (int id : ids) {
+                AbacPolicy.Condition condition = indexCondition(rules.get(id), attribute);
+                if (condition == null) {
+                    for (List<Integer> branch : branches.values()) {
+                        branch.add(id);
+                    }
+                    otherwise.add(id);
+                } else {
+                    for (String value : condition.getValues()) {
+                        branches.get(value).add(id);
+                    }
+                }
+            }
+            TreeSet<String> below = new TreeSet<>(path);
+            below.add(attribute);
+            node.attribute = attribute;
+            node.branches = new HashMap<>(values.size() * 2);
+            for (Map.Entry<String, List<Integer>> branch : branches.entrySet()) {
+                node.branches.put(branch.getKey(), build(toArray(branch.getValue()), below, built));
+            }
+            node.otherwise = build(toArray(otherwise), below, built);
+            return;
+        }
+    }
+
+    private static int[] toArray(List<Integer> ids) {
+        int[] array = new int[ids.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = ids.get(i);
+        }
+        return array;
+    }
+
+    // A leaf tries its rules with the conditions the path has not settled
+    private void leaf(Node node, int[] ids, Set<String> path) {
+        node.rules = new AbacPolicy.Rule[ids.length];
+        node.conditions = new AbacPolicy.Condition[ids.length][];
+        for (int i = 0; i < ids.length; i++) {
+            AbacPolicy.Rule rule = rules.get(ids[i]);
+            List<AbacPolicy.Condition> left = new ArrayList<>();
+            for (AbacPolicy.Condition condition : rule.getConditions()) {
+                if (!path.contains(condition.getAttribute())
+                        || indexCondition(rule, condition.getAttribute()) != condition) {
+                    left.add(condition);
+                }
+            }
+            node.rules[i] = rule;
+            node.conditions[i] = left.toArray(new AbacPolicy.Condition[0]);
+        }
+        largestLeaf = Math.max(largestLeaf, ids.length);
+    }
+
+    // The condition of rule the tree uses for attribute: its first == or in on it
+    private static AbacPolicy.Condition indexCondition(AbacPolicy.Rule rule, String attribute) {
+        for (AbacPolicy.Condition condition : rule.getConditions()) {
+            if (condition.isIndexable() && condition.getAttribute().equals(attribute)) {
+                return condition;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,88 @@
+import java.time.Clock;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+
+/**
+ * Attributes of the moment a request is decided, from a clock and a BusinessCalendar
+ *
+ *   accessTime     WORKING_HOURS or NON_WORKING_HOURS
+ *   businessDay    true or false
+ *   dayOfWeek      MONDAY ... SUNDAY
+ *   hour           0 ... 23, for numeric conditions
+ *   date           2026-10-18
+ *   timeZone       the calendar's zone, e.g. Europe/Berlin
+ *
+ * all in the calendar's time zone. Each value may be reused until the
+ * moment it can next change, e.g. accessTime until working hours start or
+ * end, but for at most MAX_TTL_MILLIS in case the clock is set.
+ */
+public class EnvironmentAttributes implements AttributeProvider {
+
+    static final long MAX_TTL_MILLIS = 60000;
+
+    private final Clock clock;
+    private final BusinessCalendar calendar;
+
+    public EnvironmentAttributes(Clock clock, BusinessCalendar calendar) {
+        this.clock = clock;
+        this.calendar = calendar;
+    }
+
+    public Clock getClock() {
+        return clock;
+    }
+
+    public BusinessCalendar getCalendar() {
+        return calendar;
+    }
+
+    @Override
+    public boolean provides(String name) {
+        switch (name) {
+            case "accessTime":
+            case "businessDay":
+            case "dayOfWeek":
+            case "hour":
+            case "date":
+            case "timeZone":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    @Override
+    public String cacheKey(String name, Attributes request) {
+        // the same for every request
+        return name;
+    }
+
+    @Override
+    public Value get(String name, Attributes request) {
+        ZonedDateTime now = ZonedDateTime.now(clock.withZone(calendar.getZone()));
+        ZonedDateTime midnight = now.toLocalDate().plusDays(1).atStartOfDay(calendar.getZone());
+        switch (name) {
+            case "accessTime":
+                return value(calendar.isWorkingTime(now) ? "WORKING_HOURS" : "NON_WORKING_HOURS",
+                        now, calendar.nextChange(now));
+            case "businessDay":
+                return value(String.valueOf(calendar.isBusinessDay(now.toLocalDate())), now, midnight);
+            case "dayOfWeek":
+                return value(now.getDayOfWeek().toString(), now, midnight);
+            case "hour":
+                return value(String.valueOf(now.getHour()), now, now.withMinute(0).withSecond(0).withNano(0)
+                        .plusHours(1));
+            case "date":
+                return value(now.toLocalDate().toString(), now, midnight);
+            case "timeZone":
+                return new Value(calendar.getZone().getId(), MAX_TTL_MILLIS);
+            default:
+                return new Value(null, MAX_TTL_MILLIS);
+        }
+    }
+
+    private static Value value(String value, ZonedDateTime now, ZonedDateTime changes) {
+        long millis = Duration.between(now, changes).toMillis();
+        return new Value(value, Math.max(0, Math.min(millis, MAX_TTL_MILLIS)));
+    }
+}
@@ -0,0 +1,175 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Subject and resource attributes kept in a local file
+ *
+ * One subject or resource per line, "#" starts a comment:
+ *
+ *   subject alice department=IT clearanceLevel=HIGH clearance=3
+ *   resource payroll-2026 resourceType=payroll region=EU
+ *
+ * A request names its subject and resource in the "subject" and
+ * "resource" attributes; the other names on subject lines are looked up
+ * for its subject, those on resource lines for its resource. A name can
+ * belong to subjects or to resources, not both, and values have no spaces.
+ *
+ * Every lookup checks whether the file changed and reads it again if so,
+ * so an edit shows up once the values an AttributeResolver cached expire,
+ * after ttlMillis at most. A file that no longer parses is reported and
+ * the previous contents are kept.
+ */
+public class FileAttributeStore implements AttributeProvider {
+
+    private static final class Contents {
+        final FileTime modified;
+        final Map<String, Map<String, String>> subjects = new HashMap<>();
+        final Map<String, Map<String, String>> resources = new HashMap<>();
+        final Set<String> subjectNames = new HashSet<>();
+        final Set<String> resourceNames = new HashSet<>();
+
+        Contents(FileTime modified) {
+            this.modified = modified;
+        }
+    }
+
+    private final Path file;
+    private final long ttlMillis;
+    private volatile Contents contents;
+    // the version of the file that did not parse, so it is reported once
+    private volatile FileTime failed;
+
+    /**
+     * @param ttlMillis how long a value may be reused before the file is asked again
+     */
+    public FileAttributeStore(Path file, long ttlMillis) throws IOException {
+        this.file = file;
+        this.ttlMillis = ttlMillis;
+        this.contents = read(file);
+    }
+
+    @Override
+    public boolean provides(String name) {
+        Contents current = contents;
+        return current.subjectNames.contains(name) || current.resourceNames.contains(name);
+    }
+
+    @Override
+    public String cacheKey(String name, Attributes request) {
+        String kind = contents.subjectNames.contains(name) ? "subject" : "resource";
+        String id = request.get(kind);
+        return id == null ? null : kind + "/" + id + "/" + name;
+    }
+
+    @Override
+    public Value get(String name, Attributes request) {
+        Contents current = refresh();
+        boolean subject = current.subjectNames.contains(name);
+        String id = request.get(subject ? "subject" : "resource");
+        Map<String, String> attributes = id == null ? null
+                : (subject ? current.subjects : current.resources).get(id);
+        return new Value(attributes == null ? null : attributes.get(name), ttlMillis);
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    public int getSubjectCount() {
+        return contents.subjects.size();
+    }
+
+    public int getResourceCount() {
+        return contents.resources.size();
+    }
+
+    private Contents refresh() {
+        Contents current = contents;
+        try {
+            FileTime modified = Files.getLastModifiedTime(file);
+            if (!modified.equals(current.modified) && !modified.equals(failed)) {
+                synchronized (this) {
+                    current = contents;
+                    if (!modified.equals(current.modified) && !modified.equals(failed)) {
+                        try {
+                            current = read(file);
+                            contents = current;
+                        } catch (IOException e) {
+                            failed = modified;
+                            throw e;
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("FileAttributeStore: " + e.getMessage() + ", keeping the previous contents");
+        }
+        return current;
+    }
+
+    private static Contents read(Path file) throws IOException {
+        FileTime modified = Files.getLastModifiedTime(file);
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        try {
+            return parse(lines, modified);
+        } catch (IllegalArgumentException e) {
+            throw new IOException(file + ": " + e.getMessage(), e);
+        }
+    }
+
+    private static Contents parse(List<String> lines, FileTime modified) {
+        Contents contents = new Contents(modified);
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i);
+            int comment = line.indexOf('#');
+            if (comment >= 0) {
+                line = line.substring(0, comment);
+            }
+            line = line.trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+            String[] words = line.split("\\s+");
+            boolean subject = words[0].equals("subject");
+            if (!subject && !words[0].equals("resource")) {
+                throw new IllegalArgumentException("line " + (i + 1) + ": expected subject or resource, not "
+                        + words[0]);
+            }
+            if (words.length < 2 || words[1].contains("=")) {
+                throw new IllegalArgumentException("line " + (i + 1) + ": expected an id after " + words[0]);
+            }
+            Map<String, Map<String, String>> entries = subject ? contents.subjects : contents.resources;
+            if (entries.containsKey(words[1])) {
+                throw new IllegalArgumentException("line " + (i + 1) + ": " + words[0] + " " + words[1]
+                        + " is defined twice");
+            }
+            Map<String, String> attributes = new HashMap<>();
+            for (int w = 2; w < words.length; w++) {
+                int equals = words[w].indexOf('=');
+                if (equals <= 0) {
+                    throw new IllegalArgumentException("line " + (i + 1) + ": expected name=value, not "
+                            + words[w]);
+                }
+                String name = words[w].substring(0, equals);
+                if (name.equals("subject") || name.equals("resource")
+                        || (subject ? contents.resourceNames : contents.subjectNames).contains(name)) {
+                    throw new IllegalArgumentException("line " + (i + 1) + ": " + name + " cannot be a "
+                            + words[0] + " attribute");
+                }
+                attributes.put(name, words[w].substring(equals + 1));
+                (subject ? contents.subjectNames : contents.resourceNames).add(name);
+            }
+            entries.put(words[1], Collections.unmodifiableMap(attributes));
+        }
+        return contents;
+    }
+}